@@ -168,7 +168,7 @@ public class Gene implements Comparable<Gene> {
                     maxExpression = expression;
 
                 int numExpressingCells = ControllerMediator.getInstance().getNumExpressingCells(isoform.getId(), cluster, false);
-                int numCells = cluster.getCells().size();
+                int numCells = cluster.getNumCells();
                 double percentExpressed = (double) numExpressingCells / numCells;
                 if (percentExpressed > maxPercentExpressed)
                     maxPercentExpressed = percentExpressed;
@@ -36,17 +36,16 @@ public class Isoform {
     }
 
     public double getAverageExpression(boolean onlySelected, boolean includeZeros) {
-        Collection<ClusterViewController.CellDataItem> cells = ControllerMediator.getInstance().getCells(onlySelected);
+        if (onlySelected)
+            return ControllerMediator.getInstance().getAverageExpressionInSelectedCells(id, null, includeZeros);
+        Collection<ClusterViewController.CellDataItem> cells = ControllerMediator.getInstance().getCells(false);
         return getAverageExpressionInCells(includeZeros, cells);
     }
 
     public double getAverageExpressionInCluster(Cluster cluster, boolean onlySelected, boolean includeZeros) {
-        Collection<ClusterViewController.CellDataItem> cellsInCluster;
         if (onlySelected)
-            cellsInCluster = ControllerMediator.getInstance().getSelectedCellsInCluster(cluster);
-        else
-            cellsInCluster = cluster.getCells();
-        return getAverageExpressionInCells(includeZeros, cellsInCluster);
+            return ControllerMediator.getInstance().getAverageExpressionInSelectedCells(id, cluster, includeZeros);
+        return getAverageExpressionInCells(includeZeros, cluster.getCells());
     }
 
     public double getMedianExpression(boolean onlySelected, boolean includeZeros) {
@@ -0,0 +1,30 @@
+package cellplot;
+
+/**
+ * Decides how each cell in the cell plot is colored. Colors are packed ARGB ints (as returned by
+ * java.awt.Color.getRGB())
+ *
+ * Only called on the JavaFX application thread. Everything drawn in the background (the base layer and
+ * tiles) is drawn from the immutable CellColoring returned by startDrawing(), never from the colorer,
+ * so the colorer can change while those are drawn
+ */
+public interface CellColorer {
+    /**
+     * Called before every draw of the plot. Returns how the cells are colored now, so state shared by
+     * all cells (ex. the isoform the plot is colored by) is looked up once per draw
+     */
+    CellColoring startDrawing();
+
+    /**
+     * Returns the cells (ex. selected cells) to draw on top of the rest, filled with the highlight
+     * color. These are drawn in their own layer, so changing them doesn't redraw every cell
+     */
+    int[] getHighlightedCells();
+
+    /**
+     * Returns true if the given cell is one of the highlighted cells
+     */
+    boolean isHighlighted(int cellNumber);
+
+    int getHighlightFillColor();
+}
@@ -0,0 +1,141 @@
+package cellplot;
+
+import java.util.Arrays;
+
+/**
+ * How every cell is colored for a draw of the cell plot: each cell's fill and outline color, the order
+ * the cells are drawn in, and (for aggregating dense regions) each cell's cluster or value. Colors are
+ * packed ARGB ints (as returned by java.awt.Color.getRGB())
+ *
+ * Immutable (the arrays it's made from mustn't be changed afterwards), so the plot can be drawn from it
+ * on background threads while the way the cells are colored changes
+ */
+public class CellColoring {
+    private final int numCells;
+    private final double outlineWidth;
+    private final DrawOrder drawOrder;
+    // when coloring by cluster
+    private final int[] cellClusterIndices;
+    private final int[] clusterColors;
+    // when coloring by value
+    private final double[] values;
+    private final int[] valueColors;
+    private final GradientLookupTable gradientLookupTable;
+    private final int valueOutlineColor;
+
+    private CellColoring(int numCells, double outlineWidth, DrawOrder drawOrder, int[] cellClusterIndices, int[] clusterColors,
+                         double[] values, int[] valueColors, GradientLookupTable gradientLookupTable, int valueOutlineColor) {
+        this.numCells = numCells;
+        this.outlineWidth = outlineWidth;
+        this.drawOrder = drawOrder;
+        this.cellClusterIndices = cellClusterIndices;
+        this.clusterColors = clusterColors;
+        this.values = values;
+        this.valueColors = valueColors;
+        this.gradientLookupTable = gradientLookupTable;
+        this.valueOutlineColor = valueOutlineColor;
+    }
+
+    /**
+     * Returns coloring that fills and outlines each cell with the color of its cluster
+     *
+     * @param cellClusterIndices index (into clusterColors) of the cluster each cell belongs to
+     */
+    public static CellColoring byCluster(int[] cellClusterIndices, int[] clusterColors, double outlineWidth) {
+        return new CellColoring(cellClusterIndices.length, outlineWidth, null, cellClusterIndices, clusterColors, null, null,
+                                null, 0);
+    }
+
+    /**
+     * Returns coloring that fills each cell with the color of its value (ex. expression of an isoform)
+     *
+     * @param valueColors color of each cell's value (gradientLookupTable.getColor(values[cell]))
+     * @param drawOrder order to draw the cells in, or null to draw them in order of their cell numbers
+     */
+    public static CellColoring byValue(double[] values, int[] valueColors, GradientLookupTable gradientLookupTable,
+                                       int outlineColor, double outlineWidth, DrawOrder drawOrder) {
+        return new CellColoring(values.length, outlineWidth, drawOrder, null, null, values, valueColors, gradientLookupTable,
+                                outlineColor);
+    }
+
+    /**
+     * Returns the number of cells this coloring has colors for (cells appended since it was made
+     * aren't drawn with it)
+     */
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * Returns the order to draw the cells in, or null to draw them in order of their cell numbers
+     */
+    public DrawOrder getDrawOrder() {
+        return drawOrder;
+    }
+
+    public int getFillColor(int cellNumber) {
+        return isColoringByValue() ? valueColors[cellNumber] : clusterColors[cellClusterIndices[cellNumber]];
+    }
+
+    public int getOutlineColor(int cellNumber) {
+        return isColoringByValue() ? valueOutlineColor : clusterColors[cellClusterIndices[cellNumber]];
+    }
+
+    /**
+     * Width (in pixels) of the outline drawn around each cell
+     */
+    public double getOutlineWidth() {
+        return outlineWidth;
+    }
+
+    public boolean isColoringByValue() {
+        return values != null;
+    }
+
+    /**
+     * Returns the index (from 0 to getNumClusters() - 1) of the cluster the given cell belongs to
+     */
+    public int getClusterIndex(int cellNumber) {
+        return cellClusterIndices[cellNumber];
+    }
+
+    public int getNumClusters() {
+        return isColoringByValue() ? 0 : clusterColors.length;
+    }
+
+    public int getClusterColor(int clusterIndex) {
+        return clusterColors[clusterIndex];
+    }
+
+    public double getValue(int cellNumber) {
+        return values[cellNumber];
+    }
+
+    public int getValueColor(double value) {
+        return gradientLookupTable.getColor(value);
+    }
+
+    /**
+     * Colorings are equal if they color the cells the same way. The per-cell arrays are compared by
+     * identity (a colorer makes new ones when the cells' clusters or values change), the cluster colors
+     * by value
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof CellColoring))
+            return false;
+        CellColoring otherColoring = (CellColoring) other;
+        return numCells == otherColoring.numCells && outlineWidth == otherColoring.outlineWidth &&
+               drawOrder == otherColoring.drawOrder && cellClusterIndices == otherColoring.cellClusterIndices &&
+               Arrays.equals(clusterColors, otherColoring.clusterColors) && values == otherColoring.values &&
+               valueColors == otherColoring.valueColors && gradientLookupTable == otherColoring.gradientLookupTable &&
+               valueOutlineColor == otherColoring.valueOutlineColor;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * numCells + Arrays.hashCode(clusterColors)) + System.identityHashCode(isColoringByValue() ? values : cellClusterIndices);
+    }
+}
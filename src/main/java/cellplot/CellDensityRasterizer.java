@@ -0,0 +1,253 @@
+package cellplot;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Draws dense cell plots by binning the visible cells into a grid of small squares of screen
+ * pixels, and coloring each square by the cells in it (instead of drawing every cell). Binning is redone
+ * in parallel on every draw, so the grid always matches the current zoom and pan. If the visible cells
+ * aren't dense enough for points to overlap much (ex. after zooming in), nothing is drawn, so the
+ * plot can draw every cell instead
+ */
+public class CellDensityRasterizer {
+    // side of a bin, in pixels
+    public static final int BIN_SIZE = 3;
+    private static final int MIN_VISIBLE_CELLS = 50000;
+    // aggregate only if the visible cells' disks would cover the data area at least this many times over
+    private static final double MIN_COVERAGE = 4;
+    private static final int MIN_COUNT_COLOR = new Color(198, 219, 239).getRGB();
+    private static final int MAX_COUNT_COLOR = new Color(8, 48, 107).getRGB();
+
+    /**
+     * Draws the given cells into the given buffer, aggregated into bins, if enough of them are visible.
+     * Returns false (and draws nothing) otherwise
+     *
+     * @param pixelViewport maps data coordinates to the buffer's pixels
+     * @param scale number of buffer pixels per Java2D unit
+     */
+    public boolean draw(PixelBuffer buffer, Viewport pixelViewport, double scale, CellPlotDataset cells, CellColoring coloring,
+                        DensityMode mode) {
+        if (cells.getNumCells() < MIN_VISIBLE_CELLS)
+            return false;
+
+        int binSize = getBinSize(scale);
+        Bins bins = new Bins(cells, coloring, null, pixelViewport, binSize, buffer.getWidth(), buffer.getHeight());
+        if (!isDense(bins.getNumVisibleCells(), buffer.getWidth(), buffer.getHeight(), scale))
+            return false;
+        fill(buffer, bins, binSize, coloring, mode, bins.getMaxCount());
+        return true;
+    }
+
+    /**
+     * Draws the given cells into the given buffer, aggregated into bins, however many of them are
+     * visible (ex. when a tile is drawn, as whether a tile is aggregated depends on its whole zoom
+     * level, not just the cells in it)
+     *
+     * @param cellNumbers cells to draw
+     * @param maxCount count given the darkest color when bins are colored by count (so neighboring
+     *                 tiles use the same scale)
+     */
+    public void drawAggregated(PixelBuffer buffer, Viewport pixelViewport, double scale, CellPlotDataset cells,
+                               CellColoring coloring, DensityMode mode, int[] cellNumbers, double maxCount) {
+        int binSize = getBinSize(scale);
+        Bins bins = new Bins(cells, coloring, cellNumbers, pixelViewport, binSize, buffer.getWidth(), buffer.getHeight());
+        fill(buffer, bins, binSize, coloring, mode, maxCount);
+    }
+
+    /**
+     * Returns true if the given number of cells, spread over an area of the given size, are dense enough
+     * to be aggregated
+     */
+    public static boolean isDense(long numVisibleCells, double width, double height, double scale) {
+        double cellArea = Math.PI * CellPlotRasterizer.CELL_RADIUS * CellPlotRasterizer.CELL_RADIUS * scale * scale;
+        double coverage = numVisibleCells * cellArea / (width * height);
+        return numVisibleCells >= MIN_VISIBLE_CELLS && coverage >= MIN_COVERAGE;
+    }
+
+    /**
+     * Returns the side of a bin, in buffer pixels
+     */
+    public static int getBinSize(double scale) {
+        return Math.max(1, (int) Math.round(BIN_SIZE * scale));
+    }
+
+    private static void fill(PixelBuffer buffer, Bins bins, int binSize, CellColoring coloring, DensityMode mode,
+                             double maxCount) {
+        int width = buffer.getWidth();
+        int[] pixels = buffer.getPixels();
+        int[] binColors = getBinColors(bins, coloring, mode, maxCount);
+        IntStream.range(0, buffer.getHeight()).parallel().forEach(y -> {
+            int rowStart = (y / binSize) * bins.getNumColumns();
+            for (int x = 0; x < width; x++)
+                pixels[y * width + x] = binColors[rowStart + x / binSize];
+        });
+    }
+
+    /**
+     * Returns the color of each bin (transparent if it has no cells)
+     */
+    private static int[] getBinColors(Bins bins, CellColoring coloring, DensityMode mode, double maxCount) {
+        int[] binColors = new int[bins.getNumBins()];
+        if (coloring.isColoringByValue()) {
+            IntStream.range(0, bins.getNumBins()).parallel().forEach(bin -> {
+                if (bins.getCount(bin) > 0) {
+                    double total = 0;
+                    for (int i = bins.getStart(bin); i < bins.getEnd(bin); i++)
+                        total += coloring.getValue(bins.getCell(i));
+                    binColors[bin] = coloring.getValueColor(total / bins.getCount(bin));
+                }
+            });
+        } else if (mode == DensityMode.CLUSTER) {
+            int numClusters = coloring.getNumClusters();
+            // bins of a row share a tally, so it isn't reallocated for every bin
+            IntStream.range(0, bins.getNumRows()).parallel().forEach(row -> {
+                int[] clusterCounts = new int[numClusters];
+                for (int bin = row * bins.getNumColumns(); bin < (row + 1) * bins.getNumColumns(); bin++) {
+                    if (bins.getCount(bin) == 0)
+                        continue;
+                    Arrays.fill(clusterCounts, 0);
+                    int dominantCluster = 0;
+                    for (int i = bins.getStart(bin); i < bins.getEnd(bin); i++) {
+                        int cluster = coloring.getClusterIndex(bins.getCell(i));
+                        clusterCounts[cluster]++;
+                        if (clusterCounts[cluster] > clusterCounts[dominantCluster])
+                            dominantCluster = cluster;
+                    }
+                    binColors[bin] = coloring.getClusterColor(dominantCluster);
+                }
+            });
+        } else {
+            // log scale, so sparse bins don't all get the same color as empty ones
+            double logMaxCount = Math.log1p(Math.max(1, maxCount));
+            IntStream.range(0, bins.getNumBins()).parallel().forEach(bin -> {
+                if (bins.getCount(bin) > 0)
+                    binColors[bin] = interpolate(MIN_COUNT_COLOR, MAX_COUNT_COLOR, Math.min(1, Math.log1p(bins.getCount(bin)) / logMaxCount));
+            });
+        }
+        return binColors;
+    }
+
+    private static int interpolate(int fromColor, int toColor, double fraction) {
+        int color = 0xff000000;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int from = (fromColor >> shift) & 0xff;
+            int to = (toColor >> shift) & 0xff;
+            color |= ((int) Math.round(from + (to - from) * fraction)) << shift;
+        }
+        return color;
+    }
+
+    /**
+     * Visible cells grouped by the bin they're in. Each chunk of cells is binned by its own thread
+     * into its own counts, which are then combined, so cells of bin b are binCells[binStarts[b]] to
+     * binCells[binStarts[b + 1] - 1]. Bins either every cell (the coloring has colors for), or only the given
+     * cell numbers
+     */
+    private static class Bins {
+        private final int numColumns;
+        private final int numRows;
+        private final int[] binStarts;
+        private final int[] binCells;
+        private final int maxCount;
+
+        Bins(CellPlotDataset cells, CellColoring coloring, int[] cellNumbers, Viewport pixelViewport, int binSize, int width,
+             int height) {
+            double[] xs = cells.getXs();
+            double[] ys = cells.getYs();
+            int numDatasetCells = CellPlotRasterizer.getNumCells(cells, xs, ys, coloring);
+            int numCells = cellNumbers == null ? numDatasetCells : cellNumbers.length;
+            // pixel = a * data coordinate + b
+            double ax = pixelViewport.getScaleX();
+            double bx = pixelViewport.getOffsetX();
+            double ay = pixelViewport.getScaleY();
+            double by = pixelViewport.getOffsetY();
+            numColumns = (width + binSize - 1) / binSize;
+            numRows = (height + binSize - 1) / binSize;
+            int numBins = numColumns * numRows;
+
+            int numChunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), numCells / 10000));
+            int chunkSize = (numCells + numChunks - 1) / numChunks;
+            int[] cellBins = new int[numCells];
+            int[][] chunkCounts = new int[numChunks][];
+            IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+                int[] counts = new int[numBins];
+                for (int i = chunk * chunkSize; i < Math.min(numCells, (chunk + 1) * chunkSize); i++) {
+                    int cell = cellNumbers == null ? i : cellNumbers[i];
+                    double px = cell < numDatasetCells ? ax * xs[cell] + bx : -1;
+                    double py = cell < numDatasetCells ? ay * ys[cell] + by : -1;
+                    if (px < 0 || py < 0 || px >= width || py >= height) {
+                        cellBins[i] = -1;
+                    } else {
+                        cellBins[i] = ((int) py / binSize) * numColumns + (int) px / binSize;
+                        counts[cellBins[i]]++;
+                    }
+                }
+                chunkCounts[chunk] = counts;
+            });
+
+            // after this, chunkCounts[chunk][bin] is where the chunk's first cell in the bin goes
+            binStarts = new int[numBins + 1];
+            int position = 0;
+            int maxCount = 0;
+            for (int bin = 0; bin < numBins; bin++) {
+                binStarts[bin] = position;
+                for (int[] counts : chunkCounts) {
+                    int count = counts[bin];
+                    counts[bin] = position;
+                    position += count;
+                }
+                maxCount = Math.max(maxCount, position - binStarts[bin]);
+            }
+            binStarts[numBins] = position;
+            this.maxCount = maxCount;
+
+            binCells = new int[position];
+            IntStream.range(0, numChunks).parallel().forEach(chunk -> {
+                int[] nextPositions = chunkCounts[chunk];
+                for (int i = chunk * chunkSize; i < Math.min(numCells, (chunk + 1) * chunkSize); i++) {
+                    if (cellBins[i] >= 0)
+                        binCells[nextPositions[cellBins[i]]++] = cellNumbers == null ? i : cellNumbers[i];
+                }
+            });
+        }
+
+        int getNumVisibleCells() {
+            return binCells.length;
+        }
+
+        int getNumColumns() {
+            return numColumns;
+        }
+
+        int getNumRows() {
+            return numRows;
+        }
+
+        int getNumBins() {
+            return numColumns * numRows;
+        }
+
+        int getMaxCount() {
+            return maxCount;
+        }
+
+        int getCount(int bin) {
+            return binStarts[bin + 1] - binStarts[bin];
+        }
+
+        int getStart(int bin) {
+            return binStarts[bin];
+        }
+
+        int getEnd(int bin) {
+            return binStarts[bin + 1];
+        }
+
+        int getCell(int i) {
+            return binCells[i];
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package cellplot;
+
+/**
+ * Uniform grid over cell positions, used to find the cells in a region of the plot without looking
+ * at every cell. Cells are bucketed by counting sort, so each bucket's cells are a contiguous range of
+ * one array. The grid is immutable, and should be rebuilt when cell positions change
+ */
+public class CellGrid {
+    private static final int TARGET_CELLS_PER_BUCKET = 4;
+
+    private final double minX;
+    private final double minY;
+    private final double bucketWidth;
+    private final double bucketHeight;
+    private final int numColumns;
+    private final int numRows;
+    // cells in bucket b are bucketCells[bucketStarts[b]] to bucketCells[bucketStarts[b + 1] - 1]
+    private final int[] bucketStarts;
+    private final int[] bucketCells;
+
+    /**
+     * Builds grid over the first numCells positions in xs and ys
+     */
+    public CellGrid(double[] xs, double[] ys, int numCells) {
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int cell = 0; cell < numCells; cell++) {
+            minX = Math.min(minX, xs[cell]);
+            maxX = Math.max(maxX, xs[cell]);
+            minY = Math.min(minY, ys[cell]);
+            maxY = Math.max(maxY, ys[cell]);
+        }
+        if (numCells == 0)
+            minX = maxX = minY = maxY = 0;
+        double width = Math.max(maxX - minX, Double.MIN_VALUE);
+        double height = Math.max(maxY - minY, Double.MIN_VALUE);
+
+        // roughly square buckets, with about TARGET_CELLS_PER_BUCKET cells each
+        double numBuckets = Math.max(1, (double) numCells / TARGET_CELLS_PER_BUCKET);
+        double bucketSide = Math.sqrt(width * height / numBuckets);
+        this.minX = minX;
+        this.minY = minY;
+        numColumns = (int) Math.max(1, Math.min(Math.ceil(width / bucketSide), numBuckets));
+        numRows = (int) Math.max(1, Math.min(Math.ceil(height / bucketSide), numBuckets));
+        bucketWidth = width / numColumns;
+        bucketHeight = height / numRows;
+
+        int[] cellBuckets = new int[numCells];
+        bucketStarts = new int[numColumns * numRows + 1];
+        for (int cell = 0; cell < numCells; cell++) {
+            cellBuckets[cell] = getRow(ys[cell]) * numColumns + getColumn(xs[cell]);
+            bucketStarts[cellBuckets[cell] + 1]++;
+        }
+        for (int bucket = 0; bucket < numColumns * numRows; bucket++)
+            bucketStarts[bucket + 1] += bucketStarts[bucket];
+        bucketCells = new int[numCells];
+        int[] nextPositions = bucketStarts.clone();
+        for (int cell = 0; cell < numCells; cell++)
+            bucketCells[nextPositions[cellBuckets[cell]]++] = cell;
+    }
+
+    /**
+     * Returns the cells in buckets overlapping the given rectangle (in data coordinates). May include
+     * cells just outside the rectangle, but includes every cell in it
+     */
+    public int[] getCellsNear(double rectMinX, double rectMinY, double rectMaxX, double rectMaxY) {
+        int firstColumn = getColumn(rectMinX);
+        int lastColumn = getColumn(rectMaxX);
+        int firstRow = getRow(rectMinY);
+        int lastRow = getRow(rectMaxY);
+
+        int numNearCells = 0;
+        for (int row = firstRow; row <= lastRow; row++)
+            numNearCells += bucketStarts[row * numColumns + lastColumn + 1] - bucketStarts[row * numColumns + firstColumn];
+        int[] nearCells = new int[numNearCells];
+        int position = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            int start = bucketStarts[row * numColumns + firstColumn];
+            int end = bucketStarts[row * numColumns + lastColumn + 1];
+            System.arraycopy(bucketCells, start, nearCells, position, end - start);
+            position += end - start;
+        }
+        return nearCells;
+    }
+
+    /**
+     * Returns the number of cells per unit of data area in the densest bucket
+     */
+    public double getMaxDensity() {
+        int maxCount = 0;
+        for (int bucket = 0; bucket < numColumns * numRows; bucket++)
+            maxCount = Math.max(maxCount, bucketStarts[bucket + 1] - bucketStarts[bucket]);
+        return maxCount / Math.max(bucketWidth * bucketHeight, Double.MIN_VALUE);
+    }
+
+    private int getColumn(double x) {
+        return clamp((int) Math.floor((x - minX) / bucketWidth), numColumns);
+    }
+
+    private int getRow(double y) {
+        return clamp((int) Math.floor((y - minY) / bucketHeight), numRows);
+    }
+
+    private static int clamp(int index, int size) {
+        return Math.max(0, Math.min(size - 1, index));
+    }
+}
@@ -0,0 +1,546 @@
+package cellplot;
+
+import javafx.application.Platform;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.MenuItem;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Polyline;
+import javafx.scene.shape.Rectangle;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * JavaFX cell plot, which draws the cells into a canvas from the primitive arrays of a
+ * CellPlotDataset. Drawing, panning, zooming and selecting all happen on the JavaFX application
+ * thread. Dragging draws a lasso (the selection follows the lasso as it's drawn), clicking selects the
+ * cells under the mouse (holding shift adds to the selection instead of replacing it), ctrl-dragging
+ * (or dragging with the middle button) pans, the mouse wheel zooms, and right-clicking shows a menu
+ * that can reset the zoom
+ *
+ * Unless the density mode is OFF, regions too dense to show every cell in are aggregated by a
+ * CellDensityRasterizer instead
+ *
+ * Cells are drawn in two cached layers: the base layer (every cell), which is only redrawn when the
+ * cells, their colors or the viewport change, and the highlight layer (ex. selected cells) on top of
+ * it, which can be redrawn on its own with redrawHighlights(). When only a few cells' highlights change
+ * (ex. as a lasso moves), only those cells are redrawn in the highlight layer. The base layer is drawn on a background
+ * thread, and until it's done (ex. while panning and zooming), the plot is drawn from the tiles of a
+ * TilePyramid instead. An overlay (ex. cluster density contours) can be drawn over both layers
+ */
+public class CellPlotCanvas extends Pane {
+    // fraction of the cells' range added on each side when the range is fit to the cells
+    private static final double RANGE_MARGIN = 0.05;
+    // how much one notch of the mouse wheel zooms by
+    private static final double ZOOM_FACTOR = 1.1;
+    private static final double WHEEL_NOTCH = 40;
+    private static final Color LASSO_FILL = Color.rgb(153, 187, 238, 0.25);
+    private static final Color LASSO_STROKE = Color.rgb(68, 114, 196);
+    // how long the viewport has to stay the same before the base layer is drawn for it, in ms
+    private static final long BASE_LAYER_DELAY = 100;
+
+    private final CellPlotDataset cells;
+    private final Canvas canvas;
+    private final Polyline lassoLine;
+    private final CellPlotRasterizer rasterizer;
+    private final CellDensityRasterizer densityRasterizer;
+    private final CellPlotLayer baseLayer;
+    private final CellPlotLayer highlightLayer;
+    // pixels of the highlight layer, kept so cells can be added to and taken out of it
+    private PixelBuffer highlightBuffer;
+    // cells whose highlights changed since the highlight layer was last drawn
+    private final BitSet changedHighlights;
+    private final TilePyramid tiles;
+    private final ExecutorService baseLayerRenderer;
+    // incremented whenever a layer has to be drawn again
+    private final AtomicInteger baseLayerVersion;
+    private final AtomicInteger highlightLayerVersion;
+    private final AtomicReference<BaseLayerRequest> baseLayerRequest;
+    private final AtomicBoolean drawRequested;
+    // created when first shown, as the plot may be created off the JavaFX application thread
+    private ContextMenu contextMenu;
+    private CellColorer colorer;
+    private CellSelectionHandler selectionHandler;
+    private CellPlotOverlay overlay;
+    private DensityMode densityMode;
+    // range of data coordinates shown; fit to the cells until the user pans or zooms
+    private boolean autoRange;
+    private double minX, maxX, minY, maxY;
+    // state of the current drag
+    private boolean panning;
+    private double lastDragX, lastDragY;
+    private IncrementalLasso lasso;
+
+    public CellPlotCanvas(CellPlotDataset cells) {
+        this.cells = cells;
+        canvas = new Canvas();
+        canvas.setManaged(false);
+        lassoLine = new Polyline();
+        lassoLine.setManaged(false);
+        lassoLine.setFill(LASSO_FILL);
+        lassoLine.setStroke(LASSO_STROKE);
+        lassoLine.setVisible(false);
+        getChildren().addAll(canvas, lassoLine);
+        setUpClip();
+
+        rasterizer = new CellPlotRasterizer();
+        densityRasterizer = new CellDensityRasterizer();
+        baseLayer = new CellPlotLayer();
+        highlightLayer = new CellPlotLayer();
+        changedHighlights = new BitSet();
+        tiles = new TilePyramid(cells, this::requestDraw);
+        baseLayerRenderer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Cell plot renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        baseLayerVersion = new AtomicInteger();
+        highlightLayerVersion = new AtomicInteger();
+        baseLayerRequest = new AtomicReference<>();
+        drawRequested = new AtomicBoolean(false);
+        densityMode = DensityMode.OFF;
+        autoRange = true;
+        setUpMouseHandling();
+    }
+
+    public void setColorer(CellColorer colorer) {
+        this.colorer = colorer;
+        redraw();
+    }
+
+    public void setSelectionHandler(CellSelectionHandler selectionHandler) {
+        this.selectionHandler = selectionHandler;
+    }
+
+    /**
+     * Sets what's drawn over the cells (null for nothing), and redraws the plot. Can be called from any thread
+     */
+    public void setOverlay(CellPlotOverlay overlay) {
+        this.overlay = overlay;
+        requestDraw();
+    }
+
+    /**
+     * Redraws only what's drawn over the cells (ex. after it changed). Can be called from any thread
+     */
+    public void redrawOverlay() {
+        requestDraw();
+    }
+
+    public void setDensityMode(DensityMode densityMode) {
+        this.densityMode = densityMode;
+        baseLayerVersion.incrementAndGet();
+        requestDraw();
+    }
+
+    /**
+     * Adds cells at the given positions to the plot, numbered from getCells().getNumCells() onwards.
+     * Can be called from any thread
+     */
+    public void appendCells(double[][] newPositions) {
+        cells.append(newPositions);
+        tiles.invalidateEmbedding();
+        redrawLayers();
+    }
+
+    /**
+     * Redraws all the cells (ex. after the way they're colored changed). Can be called from any thread
+     */
+    public void redraw() {
+        tiles.invalidateClusterColoring();
+        tiles.invalidateValueColoring();
+        redrawLayers();
+    }
+
+    /**
+     * Redraws all the cells after the colors of the clusters changed, keeping the cached tiles
+     * colored by value. Can be called from any thread
+     */
+    public void redrawClusterColoring() {
+        tiles.invalidateClusterColoring();
+        redrawLayers();
+    }
+
+    /**
+     * Redraws all the cells after the colors of their values changed (ex. the isoform the cells are
+     * colored by), keeping the cached tiles colored by cluster. Can be called from any thread
+     */
+    public void redrawValueColoring() {
+        tiles.invalidateValueColoring();
+        redrawLayers();
+    }
+
+    /**
+     * Redraws only the highlighted cells (ex. after the selection changed). Can be called from any
+     * thread
+     */
+    public void redrawHighlights() {
+        highlightLayerVersion.incrementAndGet();
+        requestDraw();
+    }
+
+    /**
+     * Redraws the highlights of only the given cells (ex. the cells that entered or left the lasso),
+     * instead of every highlighted cell. Should be called on the JavaFX application thread
+     */
+    public void redrawHighlights(int[] changedCells) {
+        for (int cell : changedCells)
+            changedHighlights.set(cell);
+        requestDraw();
+    }
+
+    /**
+     * Stops the threads drawing the plot in the background. Should be called once the plot is no longer
+     * shown
+     */
+    public void dispose() {
+        tiles.dispose();
+        baseLayerRenderer.shutdownNow();
+    }
+
+    /**
+     * Fits the shown range to the cells again, after the user panned or zoomed
+     */
+    public void resetZoom() {
+        autoRange = true;
+        requestDraw();
+    }
+
+    public CellPlotDataset getCells() {
+        return cells;
+    }
+
+    /**
+     * Returns the viewport of the plot as it's currently shown (maps data coordinates to coordinates
+     * in this node)
+     */
+    public Viewport getViewport() {
+        if (autoRange)
+            fitRangeToCells();
+        return Viewport.create(minX, maxX, minY, maxY, getWidth(), getHeight());
+    }
+
+    @Override
+    protected void layoutChildren() {
+        if (canvas.getWidth() != getWidth() || canvas.getHeight() != getHeight()) {
+            canvas.setWidth(getWidth());
+            canvas.setHeight(getHeight());
+            draw();
+        }
+    }
+
+    /**
+     * The plot fills whatever space it's given, so it shouldn't ask for the size of its canvas
+     */
+    @Override
+    protected double computePrefWidth(double height) {
+        return 0;
+    }
+
+    @Override
+    protected double computePrefHeight(double width) {
+        return 0;
+    }
+
+    /**
+     * Draws the plot on the next pulse, if it isn't already going to be drawn. Draws requested
+     * together (ex. one for each mouse wheel event) are only drawn once
+     */
+    private void requestDraw() {
+        if (drawRequested.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                drawRequested.set(false);
+                draw();
+            });
+        }
+    }
+
+    private void draw() {
+        GraphicsContext graphics = canvas.getGraphicsContext2D();
+        graphics.setFill(Color.WHITE);
+        graphics.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+
+        CellColorer colorer = this.colorer;
+        int width = (int) Math.ceil(canvas.getWidth());
+        int height = (int) Math.ceil(canvas.getHeight());
+        if (colorer == null || cells.getNumCells() == 0 || width <= 0 || height <= 0)
+            return;
+
+        // background threads draw from this snapshot, never from the colorer
+        CellColoring coloring = colorer.startDrawing();
+        Viewport viewport = getViewport();
+        int baseVersion = baseLayerVersion.get();
+        if (baseLayer.isValid(viewport, width, height, baseVersion)) {
+            baseLayer.drawTo(graphics);
+        } else {
+            // the old colors are shown until the cells are drawn with the new ones, as long as they're in the same place
+            if (baseLayer.isValid(viewport, width, height))
+                baseLayer.drawTo(graphics);
+            else
+                tiles.draw(graphics, viewport, width, height, coloring, densityMode);
+            requestBaseLayer(new BaseLayerRequest(viewport, width, height, baseVersion, coloring, densityMode));
+        }
+
+        int highlightVersion = highlightLayerVersion.get();
+        if (!highlightLayer.isValid(viewport, width, height, highlightVersion)) {
+            if (highlightBuffer == null || highlightBuffer.getWidth() != width || highlightBuffer.getHeight() != height)
+                highlightBuffer = new PixelBuffer(width, height);
+            else
+                highlightBuffer.clear();
+            rasterizer.drawHighlights(highlightBuffer, viewport, 1, cells, coloring, colorer.getHighlightedCells(), colorer.getHighlightFillColor());
+            highlightLayer.set(highlightBuffer, viewport, highlightVersion);
+            changedHighlights.clear();
+        } else if (!changedHighlights.isEmpty()) {
+            updateHighlightLayer(viewport, coloring);
+        }
+        highlightLayer.drawTo(graphics);
+
+        CellPlotOverlay overlay = this.overlay;
+        if (overlay != null)
+            overlay.draw(graphics, viewport);
+    }
+
+    /**
+     * Draws the base layer for the given request in the background, unless it's already being drawn.
+     * Requests are only drawn once the viewport has stayed the same for BASE_LAYER_DELAY, so none are
+     * drawn while the user is still panning or zooming
+     */
+    private void requestBaseLayer(BaseLayerRequest request) {
+        if (request.isSameAs(baseLayerRequest.get()) || baseLayerRenderer.isShutdown())
+            return;
+        baseLayerRequest.set(request);
+        baseLayerRenderer.execute(() -> {
+            if (baseLayerRequest.get() != request)
+                return;
+            try {
+                Thread.sleep(BASE_LAYER_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (baseLayerRequest.get() != request)
+                return;
+
+            PixelBuffer buffer = new PixelBuffer(request.width, request.height);
+            if (request.mode == DensityMode.OFF || !densityRasterizer.draw(buffer, request.viewport, 1, cells, request.coloring, request.mode))
+                rasterizer.draw(buffer, request.viewport, 1, cells, request.coloring);
+            Platform.runLater(() -> {
+                if (baseLayerRequest.get() == request && baseLayerVersion.get() == request.version) {
+                    baseLayer.set(buffer, request.viewport, request.version);
+                    requestDraw();
+                }
+            });
+        });
+    }
+
+    /**
+     * Takes the changed cells that are no longer highlighted out of the highlight layer (redrawing the
+     * highlighted cells they were drawn over), then draws the ones that are now highlighted. Only the
+     * region around the changed cells is copied into the layer
+     */
+    private void updateHighlightLayer(Viewport viewport, CellColoring coloring) {
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int numCells = CellPlotRasterizer.getNumCells(cells, xs, ys, coloring);
+        int[] changedCells = changedHighlights.stream().filter(cell -> cell < numCells).toArray();
+        changedHighlights.clear();
+        if (changedCells.length == 0)
+            return;
+
+        int[] unhighlightedCells = Arrays.stream(changedCells).filter(cell -> !colorer.isHighlighted(cell)).toArray();
+        rasterizer.clearCells(highlightBuffer, viewport, 1, cells, coloring, unhighlightedCells);
+        // highlighted cells close enough to overlap a cleared cell may have lost part of their disks
+        double extent = CellPlotRasterizer.getCellExtent(coloring.getOutlineWidth(), 1);
+        double reachX = 2 * extent / Math.abs(viewport.getScaleX());
+        double reachY = 2 * extent / Math.abs(viewport.getScaleY());
+        CellGrid grid = cells.getGrid();
+        BitSet cellsToDraw = new BitSet();
+        for (int cell : unhighlightedCells) {
+            for (int nearCell : grid.getCellsNear(xs[cell] - reachX, ys[cell] - reachY, xs[cell] + reachX, ys[cell] + reachY)) {
+                if (nearCell < numCells && colorer.isHighlighted(nearCell))
+                    cellsToDraw.set(nearCell);
+            }
+        }
+        for (int cell : changedCells) {
+            if (colorer.isHighlighted(cell))
+                cellsToDraw.set(cell);
+        }
+        int[] drawnCells = cellsToDraw.stream().toArray();
+        rasterizer.drawHighlights(highlightBuffer, viewport, 1, cells, coloring, drawnCells, colorer.getHighlightFillColor());
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int[] updatedCells : new int[][]{changedCells, drawnCells}) {
+            for (int cell : updatedCells) {
+                double x = viewport.toScreenX(xs[cell]);
+                double y = viewport.toScreenY(ys[cell]);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+        }
+        int margin = (int) Math.ceil(extent) + 1;
+        int left = (int) Math.max(0, Math.floor(minX) - margin);
+        int top = (int) Math.max(0, Math.floor(minY) - margin);
+        int right = (int) Math.min(highlightBuffer.getWidth(), Math.ceil(maxX) + margin + 1);
+        int bottom = (int) Math.min(highlightBuffer.getHeight(), Math.ceil(maxY) + margin + 1);
+        if (left < right && top < bottom)
+            highlightLayer.update(highlightBuffer, left, top, right - left, bottom - top);
+    }
+
+    private void redrawLayers() {
+        baseLayerVersion.incrementAndGet();
+        highlightLayerVersion.incrementAndGet();
+        requestDraw();
+    }
+
+    private void fitRangeToCells() {
+        double xMargin = Math.max(cells.getMaxX() - cells.getMinX(), Double.MIN_NORMAL) * RANGE_MARGIN;
+        double yMargin = Math.max(cells.getMaxY() - cells.getMinY(), Double.MIN_NORMAL) * RANGE_MARGIN;
+        minX = cells.getMinX() - xMargin;
+        maxX = cells.getMaxX() + xMargin;
+        minY = cells.getMinY() - yMargin;
+        maxY = cells.getMaxY() + yMargin;
+    }
+
+    private void setUpMouseHandling() {
+        setOnMousePressed(this::handleMousePressed);
+        setOnMouseDragged(this::handleMouseDragged);
+        setOnMouseReleased(this::handleMouseReleased);
+        setOnMouseClicked(this::handleMouseClicked);
+        setOnScroll(this::handleScroll);
+    }
+
+    private void handleMousePressed(MouseEvent event) {
+        if (contextMenu != null)
+            contextMenu.hide();
+        if (event.getButton() == MouseButton.MIDDLE || (event.getButton() == MouseButton.PRIMARY && event.isShortcutDown())) {
+            panning = true;
+            lastDragX = event.getX();
+            lastDragY = event.getY();
+        } else if (event.getButton() == MouseButton.PRIMARY) {
+            lasso = new IncrementalLasso(cells, getViewport(), CellPlotRasterizer.CELL_RADIUS, event.getX(), event.getY());
+            lassoLine.getPoints().setAll(event.getX(), event.getY());
+            if (selectionHandler != null)
+                selectionHandler.handleLassoStarted(event.isShiftDown());
+        }
+    }
+
+    private void handleMouseDragged(MouseEvent event) {
+        if (panning) {
+            Viewport viewport = getViewport();
+            double dx = (event.getX() - lastDragX) / viewport.getScaleX();
+            double dy = (event.getY() - lastDragY) / viewport.getScaleY();
+            setRange(minX - dx, maxX - dx, minY - dy, maxY - dy);
+            lastDragX = event.getX();
+            lastDragY = event.getY();
+        } else if (lasso != null) {
+            IncrementalLasso.Change change = lasso.addPoint(event.getX(), event.getY());
+            lassoLine.getPoints().addAll(event.getX(), event.getY());
+            lassoLine.setVisible(true);
+            if (selectionHandler != null && !change.isEmpty())
+                selectionHandler.handleLassoChanged(change.getEnteredCells(), change.getLeftCells());
+        }
+    }
+
+    private void handleMouseReleased(MouseEvent event) {
+        if (lasso != null && selectionHandler != null)
+            selectionHandler.handleLassoFinished();
+        panning = false;
+        lasso = null;
+        lassoLine.setVisible(false);
+        lassoLine.getPoints().clear();
+    }
+
+    private void handleMouseClicked(MouseEvent event) {
+        if (!event.isStillSincePress())
+            return;
+        if (event.getButton() == MouseButton.SECONDARY) {
+            if (contextMenu == null)
+                contextMenu = createContextMenu();
+            contextMenu.show(this, event.getScreenX(), event.getScreenY());
+        } else if (event.getButton() == MouseButton.PRIMARY && !event.isShortcutDown() && selectionHandler != null) {
+            if (!event.isShiftDown())
+                selectionHandler.clearSelection();
+            selectionHandler.select(event.getX(), event.getY());
+        }
+    }
+
+    /**
+     * Zooms in (or out) around the point under the mouse
+     */
+    private void handleScroll(ScrollEvent event) {
+        if (event.getDeltaY() == 0 || cells.getNumCells() == 0)
+            return;
+        Viewport viewport = getViewport();
+        double factor = Math.pow(ZOOM_FACTOR, -event.getDeltaY() / WHEEL_NOTCH);
+        double anchorX = viewport.toDataX(event.getX());
+        double anchorY = viewport.toDataY(event.getY());
+        setRange(anchorX - (anchorX - minX) * factor, anchorX + (maxX - anchorX) * factor,
+                 anchorY - (anchorY - minY) * factor, anchorY + (maxY - anchorY) * factor);
+        event.consume();
+    }
+
+    private void setRange(double minX, double maxX, double minY, double maxY) {
+        autoRange = false;
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        requestDraw();
+    }
+
+    private ContextMenu createContextMenu() {
+        MenuItem resetZoomItem = new MenuItem("Reset zoom");
+        resetZoomItem.setOnAction(event -> resetZoom());
+        return new ContextMenu(resetZoomItem);
+    }
+
+    /**
+     * Base layer to draw in the background. Each draw gets a new coloring snapshot, so requests are the same
+     * if their snapshots color the cells the same way
+     */
+    private static class BaseLayerRequest {
+        private final Viewport viewport;
+        private final int width;
+        private final int height;
+        private final int version;
+        private final CellColoring coloring;
+        private final DensityMode mode;
+
+        BaseLayerRequest(Viewport viewport, int width, int height, int version, CellColoring coloring, DensityMode mode) {
+            this.viewport = viewport;
+            this.width = width;
+            this.height = height;
+            this.version = version;
+            this.coloring = coloring;
+            this.mode = mode;
+        }
+
+        boolean isSameAs(BaseLayerRequest other) {
+            return other != null && viewport.equals(other.viewport) && width == other.width && height == other.height &&
+                   version == other.version && coloring.equals(other.coloring) && mode == other.mode;
+        }
+    }
+
+    /**
+     * Makes sure the lasso isn't drawn outside the plot
+     */
+    private void setUpClip() {
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+    }
+}
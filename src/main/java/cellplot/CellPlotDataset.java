@@ -0,0 +1,107 @@
+package cellplot;
+
+import java.util.Arrays;
+
+/**
+ * Positions of the cells in the cell plot, stored in primitive arrays (cell number i is at
+ * (getXs()[i], getYs()[i])). Bounds are kept up to date as cells are added, so the plot doesn't
+ * need to scan every cell to find its range. A spatial index (grid) of the positions is built when
+ * first needed, and rebuilt after cells are added
+ *
+ * Cells are appended into new arrays, which are only published once they're filled in, so threads
+ * drawing the plot while cells are appended see either the old cells or the new ones. The number of
+ * cells is published last, so it's never more than the length of the arrays a reader gets
+ */
+public class CellPlotDataset {
+    private volatile double[] xs;
+    private volatile double[] ys;
+    private volatile int numCells;
+    private volatile double minX = Double.POSITIVE_INFINITY;
+    private volatile double maxX = Double.NEGATIVE_INFINITY;
+    private volatile double minY = Double.POSITIVE_INFINITY;
+    private volatile double maxY = Double.NEGATIVE_INFINITY;
+    private CellGrid grid;
+
+    /**
+     * @param embedding embedding[i] is the position of cell number i
+     */
+    public CellPlotDataset(double[][] embedding) {
+        xs = new double[0];
+        ys = new double[0];
+        addPositions(embedding);
+    }
+
+    /**
+     * Adds cells at the given positions, numbered from getNumCells() onwards
+     */
+    public synchronized void append(double[][] newPositions) {
+        addPositions(newPositions);
+        grid = null;
+    }
+
+    /**
+     * Returns spatial index of the cells' positions
+     */
+    public synchronized CellGrid getGrid() {
+        if (grid == null)
+            grid = new CellGrid(xs, ys, numCells);
+        return grid;
+    }
+
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * Returns the x coordinates of the cells. Only the first getNumCells() values are used
+     */
+    public double[] getXs() {
+        return xs;
+    }
+
+    /**
+     * Returns the y coordinates of the cells. Only the first getNumCells() values are used
+     */
+    public double[] getYs() {
+        return ys;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    private void addPositions(double[][] positions) {
+        int numCells = this.numCells;
+        double[] newXs = Arrays.copyOf(xs, numCells + positions.length);
+        double[] newYs = Arrays.copyOf(ys, numCells + positions.length);
+        double minX = this.minX, maxX = this.maxX, minY = this.minY, maxY = this.maxY;
+        for (double[] position : positions) {
+            newXs[numCells] = position[0];
+            newYs[numCells] = position[1];
+            minX = Math.min(minX, position[0]);
+            maxX = Math.max(maxX, position[0]);
+            minY = Math.min(minY, position[1]);
+            maxY = Math.max(maxY, position[1]);
+            numCells++;
+        }
+        xs = newXs;
+        ys = newYs;
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.numCells = numCells;
+    }
+}
@@ -0,0 +1,57 @@
+package cellplot;
+
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Image of one layer of the cell plot (ex. every cell, or just the highlighted ones), as it was
+ * drawn for some viewport. The image is kept between draws, so a layer whose cells haven't changed
+ * is just copied onto the plot again. The layer's version says which cells (and colors) it was drawn
+ * with, so it can tell when it's out of date. Should only be used on the JavaFX application thread
+ */
+public class CellPlotLayer {
+    private WritableImage image;
+    private Viewport viewport;
+    private int version;
+
+    /**
+     * Sets the layer to the given pixels, drawn for the given viewport
+     */
+    public void set(PixelBuffer pixels, Viewport viewport, int version) {
+        if (image == null || image.getWidth() != pixels.getWidth() || image.getHeight() != pixels.getHeight())
+            image = new WritableImage(pixels.getWidth(), pixels.getHeight());
+        pixels.writeTo(image);
+        this.viewport = viewport;
+        this.version = version;
+    }
+
+    /**
+     * Copies the given region of the given pixels (which the layer was last set to, then drawn into) into
+     * the layer, keeping its viewport and version
+     */
+    public void update(PixelBuffer pixels, int x, int y, int width, int height) {
+        pixels.writeTo(image, x, y, width, height);
+    }
+
+    /**
+     * Returns true if the layer was drawn for the given viewport at the given size, whatever its version
+     */
+    public boolean isValid(Viewport viewport, int width, int height) {
+        return image != null && viewport.equals(this.viewport) && image.getWidth() == width && image.getHeight() == height;
+    }
+
+    /**
+     * Returns true if the layer was drawn for the given viewport at the given size, and is of the
+     * given version
+     */
+    public boolean isValid(Viewport viewport, int width, int height, int version) {
+        return isValid(viewport, width, height) && this.version == version;
+    }
+
+    /**
+     * Draws the layer onto the given graphics context, with its top left corner at (0, 0)
+     */
+    public void drawTo(GraphicsContext graphics) {
+        graphics.drawImage(image, 0, 0);
+    }
+}
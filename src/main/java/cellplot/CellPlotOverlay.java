@@ -0,0 +1,11 @@
+package cellplot;
+
+import javafx.scene.canvas.GraphicsContext;
+
+/**
+ * Something drawn over the cells of a cell plot (ex. cluster density contours), every time the plot is
+ * drawn. Drawn on the JavaFX application thread, so should be cheap
+ */
+public interface CellPlotOverlay {
+    void draw(GraphicsContext graphics, Viewport viewport);
+}
@@ -0,0 +1,183 @@
+package cellplot;
+
+import java.util.Arrays;
+
+/**
+ * Draws the cells of the cell plot straight into a pixel buffer, which is then drawn onto the plot
+ * in one call. Every cell is the same disk (a precomputed list of pixel offsets), so no shapes or
+ * paints are created per cell. Can draw into different buffers on different threads at once
+ */
+public class CellPlotRasterizer {
+    public static final double CELL_RADIUS = 3.25;
+
+    private volatile Stamp stamp;
+
+    /**
+     * Draws every cell into the given buffer. Cells are drawn in the coloring's draw order (or in order of
+     * their cell numbers), so later cells are drawn on top of earlier ones
+     *
+     * @param pixelViewport maps data coordinates to the buffer's pixels
+     * @param scale number of buffer pixels per Java2D unit
+     */
+    public void draw(PixelBuffer buffer, Viewport pixelViewport, double scale, CellPlotDataset cells, CellColoring coloring) {
+        Stamp stamp = getStamp(coloring.getOutlineWidth(), scale);
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int numCells = getNumCells(cells, xs, ys, coloring);
+        DrawOrder drawOrder = coloring.getDrawOrder();
+        if (drawOrder != null && drawOrder.getNumCells() == numCells) {
+            for (int cell : drawOrder.getCells())
+                drawCell(buffer, pixelViewport, stamp, xs[cell], ys[cell], coloring.getFillColor(cell), coloring.getOutlineColor(cell));
+        } else {
+            for (int cell = 0; cell < numCells; cell++)
+                drawCell(buffer, pixelViewport, stamp, xs[cell], ys[cell], coloring.getFillColor(cell), coloring.getOutlineColor(cell));
+        }
+    }
+
+    /**
+     * Draws only the given cells into the given buffer (ex. the ones near a tile of the plot)
+     *
+     * @param cellNumbers cells to draw, in any order. Sorted in place into the order every cell is drawn
+     *                    in, so they overlap the same way
+     */
+    public void draw(PixelBuffer buffer, Viewport pixelViewport, double scale, CellPlotDataset cells, CellColoring coloring,
+                     int[] cellNumbers) {
+        Stamp stamp = getStamp(coloring.getOutlineWidth(), scale);
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int numCells = getNumCells(cells, xs, ys, coloring);
+        DrawOrder drawOrder = coloring.getDrawOrder();
+        if (drawOrder != null && drawOrder.getNumCells() == numCells)
+            drawOrder.sort(cellNumbers);
+        else
+            Arrays.sort(cellNumbers);
+        for (int cell : cellNumbers) {
+            if (cell < numCells)
+                drawCell(buffer, pixelViewport, stamp, xs[cell], ys[cell], coloring.getFillColor(cell), coloring.getOutlineColor(cell));
+        }
+    }
+
+    /**
+     * Draws the given highlighted cells into the given buffer, filled with the highlight color
+     */
+    public void drawHighlights(PixelBuffer buffer, Viewport pixelViewport, double scale, CellPlotDataset cells, CellColoring coloring,
+                               int[] highlightedCells, int highlightFillColor) {
+        Stamp stamp = getStamp(coloring.getOutlineWidth(), scale);
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int numCells = getNumCells(cells, xs, ys, coloring);
+        for (int cell : highlightedCells) {
+            if (cell < numCells)
+                drawCell(buffer, pixelViewport, stamp, xs[cell], ys[cell], highlightFillColor, coloring.getOutlineColor(cell));
+        }
+    }
+
+    /**
+     * Makes the pixels under the given cells transparent (ex. to take cells out of the highlight layer)
+     */
+    public void clearCells(PixelBuffer buffer, Viewport pixelViewport, double scale, CellPlotDataset cells, CellColoring coloring,
+                           int[] cellsToClear) {
+        Stamp stamp = getStamp(coloring.getOutlineWidth(), scale);
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int numCells = getNumCells(cells, xs, ys, coloring);
+        for (int cell : cellsToClear) {
+            if (cell < numCells)
+                drawCell(buffer, pixelViewport, stamp, xs[cell], ys[cell], 0, 0);
+        }
+    }
+
+    /**
+     * Returns how far (in pixels) a cell's disk reaches from its center, when drawn at the given scale
+     */
+    public static double getCellExtent(double outlineWidth, double scale) {
+        return (CELL_RADIUS + outlineWidth / 2) * scale;
+    }
+
+    /**
+     * Cells may be appended on another thread while drawing, so only the cells whose positions are
+     * in the given arrays, and that the coloring has colors for, are drawn
+     */
+    static int getNumCells(CellPlotDataset cells, double[] xs, double[] ys, CellColoring coloring) {
+        return Math.min(getNumCells(cells, xs, ys), coloring.getNumCells());
+    }
+
+    /**
+     * Cells may be appended on another thread while drawing, so only the cells whose positions are
+     * in the given arrays are used
+     */
+    static int getNumCells(CellPlotDataset cells, double[] xs, double[] ys) {
+        return Math.min(cells.getNumCells(), Math.min(xs.length, ys.length));
+    }
+
+    private void drawCell(PixelBuffer buffer, Viewport pixelViewport, Stamp stamp, double x, double y, int fillColor,
+                          int outlineColor) {
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        int[] pixels = buffer.getPixels();
+        int margin = stamp.margin;
+
+        int px = (int) Math.round(pixelViewport.toScreenX(x));
+        int py = (int) Math.round(pixelViewport.toScreenY(y));
+        if (px < -margin || py < -margin || px >= width + margin || py >= height + margin)
+            return;
+
+        boolean inside = px >= margin && py >= margin && px < width - margin && py < height - margin;
+        for (int i = 0; i < stamp.xOffsets.length; i++) {
+            int stampX = px + stamp.xOffsets[i];
+            int stampY = py + stamp.yOffsets[i];
+            if (inside || (stampX >= 0 && stampY >= 0 && stampX < width && stampY < height))
+                pixels[stampY * width + stampX] = stamp.outline[i] ? outlineColor : fillColor;
+        }
+    }
+
+    private Stamp getStamp(double outlineWidth, double scale) {
+        Stamp stamp = this.stamp;
+        if (stamp == null || stamp.outlineWidth != outlineWidth || stamp.scale != scale) {
+            stamp = new Stamp(outlineWidth, scale);
+            this.stamp = stamp;
+        }
+        return stamp;
+    }
+
+    /**
+     * Pixels covered by a cell (a disk whose outline is centered on its edge, like a stroked circle),
+     * and whether each one is part of its outline
+     */
+    private static class Stamp {
+        private final double outlineWidth;
+        private final double scale;
+        private final int margin;
+        private final int[] xOffsets;
+        private final int[] yOffsets;
+        private final boolean[] outline;
+
+        Stamp(double outlineWidth, double scale) {
+            this.outlineWidth = outlineWidth;
+            this.scale = scale;
+            double outerRadius = getCellExtent(outlineWidth, scale);
+            double innerRadius = (CELL_RADIUS - outlineWidth / 2) * scale;
+            int extent = (int) Math.ceil(outerRadius);
+            margin = extent + 1;
+            int maxStampSize = (2 * extent + 1) * (2 * extent + 1);
+            int[] xOffsets = new int[maxStampSize];
+            int[] yOffsets = new int[maxStampSize];
+            boolean[] outline = new boolean[maxStampSize];
+            int stampSize = 0;
+            for (int dy = -extent; dy <= extent; dy++) {
+                for (int dx = -extent; dx <= extent; dx++) {
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    if (distance <= outerRadius) {
+                        xOffsets[stampSize] = dx;
+                        yOffsets[stampSize] = dy;
+                        outline[stampSize] = distance > innerRadius;
+                        stampSize++;
+                    }
+                }
+            }
+            this.xOffsets = Arrays.copyOf(xOffsets, stampSize);
+            this.yOffsets = Arrays.copyOf(yOffsets, stampSize);
+            this.outline = Arrays.copyOf(outline, stampSize);
+        }
+    }
+}
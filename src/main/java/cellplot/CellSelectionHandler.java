@@ -0,0 +1,33 @@
+package cellplot;
+
+/**
+ * Handles the selections the user makes in a CellPlotCanvas. Positions are in the canvas' coordinates
+ * (see CellPlotCanvas.getViewport())
+ */
+public interface CellSelectionHandler {
+    /**
+     * Called when the user starts drawing a lasso, before it's finished
+     *
+     * @param addingToSelection whether the lassoed cells are added to the current selection (instead of
+     *                          replacing it)
+     */
+    void handleLassoStarted(boolean addingToSelection);
+
+    /**
+     * Called whenever the lasso grows, with the cells that entered and left it, so the selection can
+     * follow the lasso while it's drawn
+     */
+    void handleLassoChanged(int[] enteredCells, int[] leftCells);
+
+    /**
+     * Called when the user stops drawing the lasso (the selection already has the cells in it)
+     */
+    void handleLassoFinished();
+
+    /**
+     * Selects the cells at the given point
+     */
+    void select(double x, double y);
+
+    void clearSelection();
+}
@@ -0,0 +1,226 @@
+package cellplot;
+
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+import java.util.stream.IntStream;
+
+/**
+ * Summary of where each cluster's cells are, which can be drawn over the cell plot: contours of each
+ * cluster's density (estimated with a KernelDensityEstimator), enclosing the densest CONTOUR_MASSES of
+ * its cells, and a hexagonal binning of the plot, each hexagon colored by the cluster with the most cells
+ * in it. Everything is computed once (in parallel) by compute(), so drawing only maps the results to the
+ * screen. Clusters are referred to by their index (0 to numClusters - 1), so the caller decides their
+ * colors and which of them are shown when drawing. Immutable
+ */
+public class ClusterDensityOverlay {
+    // fractions of each cluster's cells enclosed by its contours, from the outermost contour in
+    public static final double[] CONTOUR_MASSES = {0.95, 0.8, 0.5};
+    // number of hexagons across the cells' range
+    private static final int HEXBIN_COLUMNS = 60;
+    // fraction of the cells' range added on each side of the density grid, so contours aren't cut off
+    private static final double GRID_MARGIN = 0.1;
+    private static final double CONTOUR_WIDTH = 1.5;
+    private static final double MIN_HEXBIN_OPACITY = 0.2;
+    private static final double MAX_HEXBIN_OPACITY = 0.75;
+    // hexagons are pointy topped, and one column wide
+    private static final double HEX_RADIUS = 1 / Math.sqrt(3);
+    private static final double HEX_ROW_HEIGHT = 1.5 * HEX_RADIUS;
+    private static final int CELLS_PER_HEXBIN_CHUNK = 16384;
+
+    private final int numClusters;
+    // contours[cluster][level] are the segments of that cluster's contour enclosing CONTOUR_MASSES[level] of its cells
+    private final double[][][] contours;
+    // hexbin coordinates are in columns, from (minX, minY)
+    private final double minX, minY;
+    private final double columnWidth, columnHeight;
+    private final int numHexColumns, numHexRows;
+    // hexCounts[hex * numClusters + cluster] is how many cells of the cluster are in the hexagon
+    private final int[] hexCounts;
+
+    private ClusterDensityOverlay(int numClusters, double[][][] contours, double minX, double minY, double columnWidth,
+                                  double columnHeight, int numHexColumns, int numHexRows, int[] hexCounts) {
+        this.numClusters = numClusters;
+        this.contours = contours;
+        this.minX = minX;
+        this.minY = minY;
+        this.columnWidth = columnWidth;
+        this.columnHeight = columnHeight;
+        this.numHexColumns = numHexColumns;
+        this.numHexRows = numHexRows;
+        this.hexCounts = hexCounts;
+    }
+
+    /**
+     * Computes the contours and hexagonal binning of the given cells. Can take a while for many cells and
+     * clusters, so shouldn't be called on the JavaFX application thread
+     *
+     * @param cellClusters cellClusters[i] is the index of the cluster cell number i is in (or -1 if it's in none)
+     */
+    public static ClusterDensityOverlay compute(CellPlotDataset cells, int[] cellClusters, int numClusters) {
+        double rangeX = Math.max(cells.getMaxX() - cells.getMinX(), Double.MIN_NORMAL);
+        double rangeY = Math.max(cells.getMaxY() - cells.getMinY(), Double.MIN_NORMAL);
+        DensityGrid[] grids = KernelDensityEstimator.estimate(cells, cellClusters, numClusters,
+                cells.getMinX() - rangeX * GRID_MARGIN, cells.getMaxX() + rangeX * GRID_MARGIN,
+                cells.getMinY() - rangeY * GRID_MARGIN, cells.getMaxY() + rangeY * GRID_MARGIN);
+        double[][][] contours = new double[numClusters][][];
+        IntStream.range(0, numClusters).parallel().forEach(cluster -> {
+            contours[cluster] = new double[CONTOUR_MASSES.length][];
+            for (int level = 0; level < CONTOUR_MASSES.length; level++) {
+                double density = grids[cluster].getLevelEnclosing(CONTOUR_MASSES[level]);
+                contours[cluster][level] = density > 0 ? ContourTracer.trace(grids[cluster], density) : new double[0];
+            }
+        });
+
+        // hexagons whose centers are just outside the range can still have cells in them
+        double columnWidth = rangeX / HEXBIN_COLUMNS;
+        double columnHeight = rangeY / HEXBIN_COLUMNS;
+        int numHexColumns = HEXBIN_COLUMNS + 2;
+        int numHexRows = (int) Math.ceil(HEXBIN_COLUMNS / HEX_ROW_HEIGHT) + 2;
+        int[] hexCounts = binIntoHexagons(cells, cellClusters, numClusters, columnWidth, columnHeight, numHexColumns, numHexRows);
+        return new ClusterDensityOverlay(numClusters, contours, cells.getMinX(), cells.getMinY(), columnWidth, columnHeight,
+                                         numHexColumns, numHexRows, hexCounts);
+    }
+
+    /**
+     * Draws the contours of the visible clusters, in the given colors
+     *
+     * @param clusterColors  clusterColors[i] is the color of the cluster with index i
+     * @param visibleClusters visibleClusters[i] is whether the cluster with index i is drawn
+     */
+    public void drawContours(GraphicsContext graphics, Viewport viewport, Color[] clusterColors, boolean[] visibleClusters) {
+        graphics.save();
+        graphics.setLineWidth(CONTOUR_WIDTH);
+        for (int cluster = 0; cluster < numClusters; cluster++) {
+            if (!visibleClusters[cluster])
+                continue;
+            for (int level = 0; level < CONTOUR_MASSES.length; level++) {
+                // inner contours are more opaque
+                double opacity = (level + 1.0) / CONTOUR_MASSES.length;
+                graphics.setStroke(clusterColors[cluster].darker().deriveColor(0, 1, 1, opacity));
+                double[] segments = contours[cluster][level];
+                graphics.beginPath();
+                for (int i = 0; i < segments.length; i += 4) {
+                    graphics.moveTo(viewport.toScreenX(segments[i]), viewport.toScreenY(segments[i + 1]));
+                    graphics.lineTo(viewport.toScreenX(segments[i + 2]), viewport.toScreenY(segments[i + 3]));
+                }
+                graphics.stroke();
+            }
+        }
+        graphics.restore();
+    }
+
+    /**
+     * Draws the hexagons with cells of the visible clusters in them, each in the color of the visible
+     * cluster with the most cells in it. Hexagons with more cells are more opaque
+     *
+     * @param clusterColors  clusterColors[i] is the color of the cluster with index i
+     * @param visibleClusters visibleClusters[i] is whether the cluster with index i is drawn
+     */
+    public void drawHexbins(GraphicsContext graphics, Viewport viewport, Color[] clusterColors, boolean[] visibleClusters) {
+        int[] visibleCounts = new int[numHexColumns * numHexRows];
+        int[] dominantClusters = new int[visibleCounts.length];
+        int maxCount = 0;
+        for (int hex = 0; hex < visibleCounts.length; hex++) {
+            int dominantCount = 0;
+            for (int cluster = 0; cluster < numClusters; cluster++) {
+                int count = hexCounts[hex * numClusters + cluster];
+                if (visibleClusters[cluster] && count > 0) {
+                    visibleCounts[hex] += count;
+                    if (count > dominantCount) {
+                        dominantCount = count;
+                        dominantClusters[hex] = cluster;
+                    }
+                }
+            }
+            maxCount = Math.max(maxCount, visibleCounts[hex]);
+        }
+
+        double[] xs = new double[6];
+        double[] ys = new double[6];
+        graphics.save();
+        for (int row = 0; row < numHexRows; row++) {
+            for (int column = 0; column < numHexColumns; column++) {
+                int hex = row * numHexColumns + column;
+                if (visibleCounts[hex] == 0)
+                    continue;
+                double centerX = column - 1 + ((row - 1) & 1) / 2.0;
+                double centerY = (row - 1) * HEX_ROW_HEIGHT;
+                for (int corner = 0; corner < 6; corner++) {
+                    double angle = Math.PI / 6 + corner * Math.PI / 3;
+                    xs[corner] = viewport.toScreenX(minX + (centerX + HEX_RADIUS * Math.cos(angle)) * columnWidth);
+                    ys[corner] = viewport.toScreenY(minY + (centerY + HEX_RADIUS * Math.sin(angle)) * columnHeight);
+                }
+                double opacity = MIN_HEXBIN_OPACITY + (MAX_HEXBIN_OPACITY - MIN_HEXBIN_OPACITY) *
+                                 Math.log1p(visibleCounts[hex]) / Math.log1p(maxCount);
+                graphics.setFill(clusterColors[dominantClusters[hex]].deriveColor(0, 1, 1, opacity));
+                graphics.fillPolygon(xs, ys, 6);
+            }
+        }
+        graphics.restore();
+    }
+
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Counts the cells of each cluster in each hexagon. Cells are split into chunks that are counted in
+     * parallel, and the chunks' counts are then added up
+     */
+    private static int[] binIntoHexagons(CellPlotDataset cells, int[] cellClusters, int numClusters, double columnWidth,
+                                         double columnHeight, int numHexColumns, int numHexRows) {
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int numCells = Math.min(CellPlotRasterizer.getNumCells(cells, xs, ys), cellClusters.length);
+        int numCounts = numHexColumns * numHexRows * numClusters;
+        int numChunks = (numCells + CELLS_PER_HEXBIN_CHUNK - 1) / CELLS_PER_HEXBIN_CHUNK;
+        return IntStream.range(0, numChunks).parallel().mapToObj(chunk -> {
+            int[] counts = new int[numCounts];
+            int end = Math.min(numCells, (chunk + 1) * CELLS_PER_HEXBIN_CHUNK);
+            for (int cell = chunk * CELLS_PER_HEXBIN_CHUNK; cell < end; cell++) {
+                if (cellClusters[cell] < 0)
+                    continue;
+                int hex = getHexagon((xs[cell] - cells.getMinX()) / columnWidth, (ys[cell] - cells.getMinY()) / columnHeight,
+                                     numHexColumns, numHexRows);
+                counts[hex * numClusters + cellClusters[cell]]++;
+            }
+            return counts;
+        }).reduce(new int[numCounts], (counts1, counts2) -> {
+            int[] sum = new int[numCounts];
+            for (int i = 0; i < numCounts; i++)
+                sum[i] = counts1[i] + counts2[i];
+            return sum;
+        });
+    }
+
+    /**
+     * Returns the index of the hexagon whose center is closest to the given point (in columns). Hexagons
+     * in odd rows are shifted half a column right
+     */
+    private static int getHexagon(double x, double y, int numHexColumns, int numHexRows) {
+        double rowPosition = y / HEX_ROW_HEIGHT;
+        int row = (int) Math.round(rowPosition);
+        double columnPosition = x - (row & 1) / 2.0;
+        int column = (int) Math.round(columnPosition);
+        double rowOffset = rowPosition - row;
+        // near the top or bottom of the hexagon, the point may be closer to a hexagon in the next row
+        if (Math.abs(rowOffset) * 3 > 1) {
+            double columnOffset = columnPosition - column;
+            int otherRow = row + (rowPosition < row ? -1 : 1);
+            double otherColumnPosition = x - (otherRow & 1) / 2.0;
+            int otherColumn = (int) Math.round(otherColumnPosition);
+            double otherColumnOffset = otherColumnPosition - otherColumn;
+            double otherRowOffset = rowPosition - otherRow;
+            double distance = columnOffset * columnOffset + rowOffset * rowOffset * HEX_ROW_HEIGHT * HEX_ROW_HEIGHT;
+            double otherDistance = otherColumnOffset * otherColumnOffset + otherRowOffset * otherRowOffset * HEX_ROW_HEIGHT * HEX_ROW_HEIGHT;
+            if (otherDistance < distance) {
+                row = otherRow;
+                column = otherColumn;
+            }
+        }
+        row = Math.max(0, Math.min(numHexRows - 1, row + 1));
+        column = Math.max(0, Math.min(numHexColumns - 1, column + 1));
+        return row * numHexColumns + column;
+    }
+}
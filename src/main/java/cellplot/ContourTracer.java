@@ -0,0 +1,97 @@
+package cellplot;
+
+import java.util.Arrays;
+
+/**
+ * Traces the contour lines of a density grid at a given level, with marching squares
+ */
+final class ContourTracer {
+    private ContourTracer() {}
+
+    /**
+     * Returns the segments of the contour of the given grid at the given level, as
+     * {x1, y1, x2, y2, x1, y1, x2, y2...} in data coordinates
+     */
+    static double[] trace(DensityGrid grid, double level) {
+        int size = grid.getSize();
+        double[] segments = new double[64];
+        int length = 0;
+        for (int j = 0; j < size - 1; j++) {
+            for (int i = 0; i < size - 1; i++) {
+                double bottomLeft = grid.getDensity(i, j);
+                double bottomRight = grid.getDensity(i + 1, j);
+                double topRight = grid.getDensity(i + 1, j + 1);
+                double topLeft = grid.getDensity(i, j + 1);
+                int square = (bottomLeft > level ? 1 : 0) | (bottomRight > level ? 2 : 0) |
+                             (topRight > level ? 4 : 0) | (topLeft > level ? 8 : 0);
+                if (square == 0 || square == 15)
+                    continue;
+                if (length + 8 > segments.length)
+                    segments = Arrays.copyOf(segments, segments.length * 2);
+
+                double x1 = grid.getX(i), x2 = grid.getX(i + 1);
+                double y1 = grid.getY(j), y2 = grid.getY(j + 1);
+                // where the contour crosses each edge of the square
+                double bottomX = interpolate(x1, x2, bottomLeft, bottomRight, level);
+                double rightY = interpolate(y1, y2, bottomRight, topRight, level);
+                double topX = interpolate(x1, x2, topLeft, topRight, level);
+                double leftY = interpolate(y1, y2, bottomLeft, topLeft, level);
+                // saddles are resolved by the density at the center of the square
+                boolean centerAbove = (bottomLeft + bottomRight + topRight + topLeft) / 4 > level;
+                switch (square) {
+                    case 1: case 14:
+                        length = add(segments, length, x1, leftY, bottomX, y1);
+                        break;
+                    case 2: case 13:
+                        length = add(segments, length, bottomX, y1, x2, rightY);
+                        break;
+                    case 3: case 12:
+                        length = add(segments, length, x1, leftY, x2, rightY);
+                        break;
+                    case 4: case 11:
+                        length = add(segments, length, topX, y2, x2, rightY);
+                        break;
+                    case 6: case 9:
+                        length = add(segments, length, bottomX, y1, topX, y2);
+                        break;
+                    case 7: case 8:
+                        length = add(segments, length, x1, leftY, topX, y2);
+                        break;
+                    case 5:
+                        if (centerAbove) {
+                            length = add(segments, length, x1, leftY, topX, y2);
+                            length = add(segments, length, bottomX, y1, x2, rightY);
+                        } else {
+                            length = add(segments, length, x1, leftY, bottomX, y1);
+                            length = add(segments, length, topX, y2, x2, rightY);
+                        }
+                        break;
+                    case 10:
+                        if (centerAbove) {
+                            length = add(segments, length, x1, leftY, bottomX, y1);
+                            length = add(segments, length, topX, y2, x2, rightY);
+                        } else {
+                            length = add(segments, length, x1, leftY, topX, y2);
+                            length = add(segments, length, bottomX, y1, x2, rightY);
+                        }
+                        break;
+                }
+            }
+        }
+        return Arrays.copyOf(segments, length);
+    }
+
+    private static double interpolate(double position1, double position2, double value1, double value2, double level) {
+        if (value1 == value2)
+            return (position1 + position2) / 2;
+        return position1 + (level - value1) / (value2 - value1) * (position2 - position1);
+    }
+
+    private static int add(double[] segments, int length, double x1, double y1, double x2, double y2) {
+        segments[length] = x1;
+        segments[length + 1] = y1;
+        segments[length + 2] = x2;
+        segments[length + 3] = y2;
+        return length + 4;
+    }
+}
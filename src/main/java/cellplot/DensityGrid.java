@@ -0,0 +1,63 @@
+package cellplot;
+
+import java.util.Arrays;
+
+/**
+ * Density of some cells estimated at the nodes of a regular grid over the plot. Node (i, j) is at
+ * (getX(i), getY(j)), and its density is in cells per unit of data area. Immutable
+ */
+public class DensityGrid {
+    private final double[] densities;
+    private final int size;
+    private final double minX;
+    private final double minY;
+    private final double stepX;
+    private final double stepY;
+
+    /**
+     * @param densities size x size densities, row by row (rows going up the y axis)
+     */
+    DensityGrid(double[] densities, int size, double minX, double minY, double stepX, double stepY) {
+        this.densities = densities;
+        this.size = size;
+        this.minX = minX;
+        this.minY = minY;
+        this.stepX = stepX;
+        this.stepY = stepY;
+    }
+
+    /**
+     * Returns the density above which the given fraction of the cells are (ex. 0.5 gives the level of the
+     * contour around the densest half of the cells)
+     */
+    public double getLevelEnclosing(double fraction) {
+        double[] sorted = densities.clone();
+        Arrays.sort(sorted);
+        double total = 0;
+        for (double density : sorted)
+            total += density;
+        double enclosed = 0;
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            enclosed += sorted[i];
+            if (enclosed >= fraction * total)
+                return sorted[i];
+        }
+        return 0;
+    }
+
+    public double getDensity(int i, int j) {
+        return densities[j * size + i];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public double getX(int i) {
+        return minX + i * stepX;
+    }
+
+    public double getY(int j) {
+        return minY + j * stepY;
+    }
+}
@@ -0,0 +1,15 @@
+package cellplot;
+
+/**
+ * How the cell plot draws regions too dense to show every cell in. When the plot is colored by a
+ * value (see CellColorer.isColoringByValue()), aggregated regions are colored by the cells' mean value
+ * whichever mode is used
+ */
+public enum DensityMode {
+    // always draw every cell
+    OFF,
+    // aggregate dense regions, coloring them by how many cells they contain
+    COUNT,
+    // aggregate dense regions, coloring them by the cluster most of their cells belong to
+    CLUSTER
+}
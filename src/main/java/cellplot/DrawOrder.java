@@ -0,0 +1,61 @@
+package cellplot;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Order to draw the cells in, so cells drawn later end up on top of earlier ones (ex. cells with the
+ * highest values on top, so they aren't hidden under cells with none). Immutable, so can be used
+ * from many threads at once
+ */
+public class DrawOrder {
+    // cells in the order they're drawn, and each cell's position in that order
+    private final int[] cells;
+    private final int[] ranks;
+
+    private DrawOrder(int[] cells) {
+        this.cells = cells;
+        ranks = new int[cells.length];
+        IntStream.range(0, cells.length).parallel().forEach(rank -> ranks[cells[rank]] = rank);
+    }
+
+    /**
+     * Returns the order that draws cells from the lowest to the highest of the given values (which
+     * should be non-negative). Cells with equal values are drawn in order of their cell numbers. The
+     * cells are sorted in parallel
+     */
+    public static DrawOrder byAscendingValue(double[] values) {
+        // value (as float bits, which sort like the floats themselves when non-negative) in the high
+        // half, cell number in the low half, so sorting the keys sorts the cells
+        long[] keys = new long[values.length];
+        IntStream.range(0, values.length).parallel().forEach(cell ->
+            keys[cell] = ((long) Float.floatToIntBits((float) Math.max(0, values[cell])) << 32) | cell
+        );
+        Arrays.parallelSort(keys);
+        int[] cells = new int[values.length];
+        IntStream.range(0, values.length).parallel().forEach(rank -> cells[rank] = (int) keys[rank]);
+        return new DrawOrder(cells);
+    }
+
+    /**
+     * Returns the cells in the order they're drawn
+     */
+    public int[] getCells() {
+        return cells;
+    }
+
+    public int getNumCells() {
+        return cells.length;
+    }
+
+    /**
+     * Sorts the given cells (all of which should be in this order) into this order
+     */
+    public void sort(int[] cellNumbers) {
+        for (int i = 0; i < cellNumbers.length; i++)
+            cellNumbers[i] = ranks[cellNumbers[i]];
+        Arrays.sort(cellNumbers);
+        for (int i = 0; i < cellNumbers.length; i++)
+            cellNumbers[i] = cells[cellNumbers[i]];
+    }
+}
@@ -0,0 +1,83 @@
+package cellplot;
+
+import java.util.stream.IntStream;
+
+/**
+ * In-place radix-2 fast Fourier transforms of complex arrays (real and imaginary parts kept in
+ * separate arrays), whose lengths must be powers of 2
+ */
+final class FFT {
+    private FFT() {}
+
+    /**
+     * Transforms the given rows x columns array, rows and then columns, each in parallel
+     *
+     * @param inverse whether to do the inverse transform (which is scaled, so it undoes the forward one)
+     */
+    static void transform2D(double[][] re, double[][] im, boolean inverse) {
+        int numRows = re.length;
+        int numColumns = re[0].length;
+        IntStream.range(0, numRows).parallel().forEach(row -> transform(re[row], im[row], inverse));
+        IntStream.range(0, numColumns).parallel().forEach(column -> {
+            double[] columnRe = new double[numRows];
+            double[] columnIm = new double[numRows];
+            for (int row = 0; row < numRows; row++) {
+                columnRe[row] = re[row][column];
+                columnIm[row] = im[row][column];
+            }
+            transform(columnRe, columnIm, inverse);
+            for (int row = 0; row < numRows; row++) {
+                re[row][column] = columnRe[row];
+                im[row][column] = columnIm[row];
+            }
+        });
+    }
+
+    static void transform(double[] re, double[] im, boolean inverse) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1)
+                j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                double temp = re[i]; re[i] = re[j]; re[j] = temp;
+                temp = im[i]; im[i] = im[j]; im[j] = temp;
+            }
+        }
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+            double stepRe = Math.cos(angle);
+            double stepIm = Math.sin(angle);
+            for (int start = 0; start < n; start += length) {
+                double wRe = 1, wIm = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    int even = start + k;
+                    int odd = even + length / 2;
+                    double oddRe = re[odd] * wRe - im[odd] * wIm;
+                    double oddIm = re[odd] * wIm + im[odd] * wRe;
+                    re[odd] = re[even] - oddRe;
+                    im[odd] = im[even] - oddIm;
+                    re[even] += oddRe;
+                    im[even] += oddIm;
+                    double nextWRe = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = nextWRe;
+                }
+            }
+        }
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+
+    /**
+     * Returns the smallest power of 2 that's at least n
+     */
+    static int getTransformLength(int n) {
+        return Integer.highestOneBit(Math.max(1, n - 1)) << 1;
+    }
+}
@@ -0,0 +1,35 @@
+package cellplot;
+
+/**
+ * Snapshot of a color gradient as a table of packed ARGB colors, so a value's color can be looked up
+ * without interpolating colors. Values at or below the min get the first color, values at or above
+ * the max get the last. Immutable, so can be used from many threads at once
+ */
+public class GradientLookupTable {
+    private final int[] colors;
+    private final boolean logarithmic;
+    private final double min;
+    private final double max;
+
+    /**
+     * @param colors colors at evenly spaced positions along the gradient, from min to max
+     * @param logarithmic whether the positions are evenly spaced on a log scale
+     */
+    public GradientLookupTable(int[] colors, double min, double max, boolean logarithmic) {
+        this.colors = colors;
+        this.logarithmic = logarithmic;
+        this.min = logarithmic ? Math.log10(min + Double.MIN_VALUE) : min;
+        this.max = logarithmic ? Math.log10(max + Double.MIN_VALUE) : max;
+    }
+
+    public int getColor(double value) {
+        if (logarithmic)
+            value = Math.log10(value + Double.MIN_VALUE);
+        if (value <= min)
+            return colors[0];
+        else if (value >= max)
+            return colors[colors.length - 1];
+        else
+            return colors[(int) Math.round((value - min) / (max - min) * (colors.length - 1))];
+    }
+}
@@ -0,0 +1,134 @@
+package cellplot;
+
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Lasso that's evaluated while it's being drawn. Adding a point to the lasso only changes it within the
+ * triangle between its first point, its previous last point and the new point (the closing edge moves),
+ * so only the cells near that triangle (found through the cell grid) are tested again. Keeps which cells
+ * the lasso encloses, and returns the cells that entered or left it with each point, so whatever
+ * depends on the lasso can be updated by those deltas instead of from scratch
+ */
+public class IncrementalLasso {
+    private final CellPlotDataset cells;
+    private final Viewport viewport;
+    private final double radius;
+    private final Path2D.Double path;
+    private final BitSet enclosedCells;
+    private final double firstX;
+    private final double firstY;
+    private double lastX;
+    private double lastY;
+
+    /**
+     * Starts a lasso at the given point (in the viewport's screen coordinates)
+     *
+     * @param radius radius of a cell, in screen coordinates. Cells are enclosed when their whole disk is
+     */
+    public IncrementalLasso(CellPlotDataset cells, Viewport viewport, double radius, double x, double y) {
+        this.cells = cells;
+        this.viewport = viewport;
+        this.radius = radius;
+        path = new Path2D.Double();
+        path.moveTo(x, y);
+        enclosedCells = new BitSet();
+        firstX = lastX = x;
+        firstY = lastY = y;
+    }
+
+    /**
+     * Extends the lasso to the given point, and returns the cells that entered or left it
+     */
+    public Change addPoint(double x, double y) {
+        double previousX = lastX;
+        double previousY = lastY;
+        double minX = Math.min(firstX, Math.min(lastX, x)) - radius;
+        double maxX = Math.max(firstX, Math.max(lastX, x)) + radius;
+        double minY = Math.min(firstY, Math.min(lastY, y)) - radius;
+        double maxY = Math.max(firstY, Math.max(lastY, y)) + radius;
+        path.lineTo(x, y);
+        lastX = x;
+        lastY = y;
+
+        double dataX1 = viewport.toDataX(minX), dataX2 = viewport.toDataX(maxX);
+        double dataY1 = viewport.toDataY(minY), dataY2 = viewport.toDataY(maxY);
+        int[] nearCells = cells.getGrid().getCellsNear(Math.min(dataX1, dataX2), Math.min(dataY1, dataY2),
+                                                       Math.max(dataX1, dataX2), Math.max(dataY1, dataY2));
+        LassoPolygon polygon = new LassoPolygon(path);
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int[] enteredCells = new int[nearCells.length];
+        int[] leftCells = new int[nearCells.length];
+        int numEntered = 0, numLeft = 0;
+        for (int cell : nearCells) {
+            double cellX = viewport.toScreenX(xs[cell]);
+            double cellY = viewport.toScreenY(ys[cell]);
+            // testing against the triangle is cheap, and rules out most cells before the whole polygon is tested
+            if (!isNearTriangle(cellX, cellY, previousX, previousY, x, y))
+                continue;
+            boolean enclosed = polygon.containsDisk(cellX, cellY, radius);
+            if (enclosed && !enclosedCells.get(cell)) {
+                enclosedCells.set(cell);
+                enteredCells[numEntered++] = cell;
+            } else if (!enclosed && enclosedCells.get(cell)) {
+                enclosedCells.clear(cell);
+                leftCells[numLeft++] = cell;
+            }
+        }
+        return new Change(Arrays.copyOf(enteredCells, numEntered), Arrays.copyOf(leftCells, numLeft));
+    }
+
+    /**
+     * Returns true if the given point is inside the triangle between the first point, the previous last
+     * point and the new last point, or within a cell radius of its edges
+     */
+    private boolean isNearTriangle(double x, double y, double previousX, double previousY, double newX, double newY) {
+        double side1 = (previousX - firstX) * (y - firstY) - (previousY - firstY) * (x - firstX);
+        double side2 = (newX - previousX) * (y - previousY) - (newY - previousY) * (x - previousX);
+        double side3 = (firstX - newX) * (y - newY) - (firstY - newY) * (x - newX);
+        if ((side1 >= 0 && side2 >= 0 && side3 >= 0) || (side1 <= 0 && side2 <= 0 && side3 <= 0))
+            return true;
+        double radiusSquared = radius * radius;
+        return LassoPolygon.getSquaredDistanceToSegment(x, y, firstX, firstY, previousX, previousY) < radiusSquared ||
+               LassoPolygon.getSquaredDistanceToSegment(x, y, previousX, previousY, newX, newY) < radiusSquared ||
+               LassoPolygon.getSquaredDistanceToSegment(x, y, newX, newY, firstX, firstY) < radiusSquared;
+    }
+
+    /**
+     * Returns the cells the lasso currently encloses, in ascending order
+     */
+    public int[] getEnclosedCells() {
+        return enclosedCells.stream().toArray();
+    }
+
+    public int getNumEnclosedCells() {
+        return enclosedCells.cardinality();
+    }
+
+    /**
+     * Cells that entered and left the lasso when a point was added to it
+     */
+    public static class Change {
+        private final int[] enteredCells;
+        private final int[] leftCells;
+
+        Change(int[] enteredCells, int[] leftCells) {
+            this.enteredCells = enteredCells;
+            this.leftCells = leftCells;
+        }
+
+        public int[] getEnteredCells() {
+            return enteredCells;
+        }
+
+        public int[] getLeftCells() {
+            return leftCells;
+        }
+
+        public boolean isEmpty() {
+            return enteredCells.length == 0 && leftCells.length == 0;
+        }
+    }
+}
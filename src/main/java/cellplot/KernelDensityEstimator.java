@@ -0,0 +1,144 @@
+package cellplot;
+
+import java.util.stream.IntStream;
+
+/**
+ * Estimates the density of each group of cells (ex. each cluster) over a grid covering the plot, with
+ * a Gaussian kernel. Cells are first binned onto the grid (each cell's weight split between the four
+ * nodes around it), then the bins are convolved with the kernel by multiplying their Fourier transforms,
+ * so the cost depends on the size of the grid rather than on the number of cells times the kernel's
+ * size. Groups are estimated in parallel
+ */
+public class KernelDensityEstimator {
+    public static final int GRID_SIZE = 256;
+    // the kernel is cut off this many bandwidths from its center
+    private static final double KERNEL_EXTENT = 4;
+    // bounds of each group's bandwidth, in grid steps
+    private static final double MIN_BANDWIDTH = 0.75;
+    private static final double MAX_BANDWIDTH = GRID_SIZE / 16.0;
+
+    /**
+     * Returns the density of each group of cells, over a grid covering the given region
+     *
+     * @param cellGroups cellGroups[i] is the group cell number i is in, or -1 if it's in none
+     */
+    public static DensityGrid[] estimate(CellPlotDataset cells, int[] cellGroups, int numGroups, double minX, double maxX,
+                                         double minY, double maxY) {
+        double[] xs = cells.getXs();
+        double[] ys = cells.getYs();
+        int numCells = Math.min(CellPlotRasterizer.getNumCells(cells, xs, ys), cellGroups.length);
+        double stepX = Math.max(maxX - minX, Double.MIN_NORMAL) / (GRID_SIZE - 1);
+        double stepY = Math.max(maxY - minY, Double.MIN_NORMAL) / (GRID_SIZE - 1);
+
+        // cells of group g are groupCells[groupStarts[g]] to groupCells[groupStarts[g + 1] - 1]
+        int[] groupStarts = new int[numGroups + 1];
+        for (int cell = 0; cell < numCells; cell++) {
+            if (cellGroups[cell] >= 0)
+                groupStarts[cellGroups[cell] + 1]++;
+        }
+        for (int group = 0; group < numGroups; group++)
+            groupStarts[group + 1] += groupStarts[group];
+        int[] groupCells = new int[groupStarts[numGroups]];
+        int[] nextPositions = groupStarts.clone();
+        for (int cell = 0; cell < numCells; cell++) {
+            if (cellGroups[cell] >= 0)
+                groupCells[nextPositions[cellGroups[cell]]++] = cell;
+        }
+
+        DensityGrid[] grids = new DensityGrid[numGroups];
+        IntStream.range(0, numGroups).parallel().forEach(group -> {
+            double[] gridXs = new double[groupStarts[group + 1] - groupStarts[group]];
+            double[] gridYs = new double[gridXs.length];
+            for (int i = 0; i < gridXs.length; i++) {
+                int cell = groupCells[groupStarts[group] + i];
+                gridXs[i] = (xs[cell] - minX) / stepX;
+                gridYs[i] = (ys[cell] - minY) / stepY;
+            }
+            double[] densities = estimateOnGrid(gridXs, gridYs);
+            double area = stepX * stepY;
+            for (int i = 0; i < densities.length; i++)
+                densities[i] /= area;
+            grids[group] = new DensityGrid(densities, GRID_SIZE, minX, minY, stepX, stepY);
+        });
+        return grids;
+    }
+
+    /**
+     * Returns the density (in points per grid cell) of the given points, which are in grid coordinates
+     */
+    private static double[] estimateOnGrid(double[] xs, double[] ys) {
+        double[] densities = new double[GRID_SIZE * GRID_SIZE];
+        int numPoints = xs.length;
+        if (numPoints == 0)
+            return densities;
+
+        // Scott's rule
+        double bandwidthX = clampBandwidth(getStandardDeviation(xs) * Math.pow(numPoints, -1.0 / 6));
+        double bandwidthY = clampBandwidth(getStandardDeviation(ys) * Math.pow(numPoints, -1.0 / 6));
+        int kernelRadiusX = (int) Math.ceil(KERNEL_EXTENT * bandwidthX);
+        int kernelRadiusY = (int) Math.ceil(KERNEL_EXTENT * bandwidthY);
+        // padded so the convolution doesn't wrap around
+        int numColumns = FFT.getTransformLength(GRID_SIZE + 2 * kernelRadiusX);
+        int numRows = FFT.getTransformLength(GRID_SIZE + 2 * kernelRadiusY);
+
+        double[][] binsRe = new double[numRows][numColumns];
+        double[][] binsIm = new double[numRows][numColumns];
+        for (int point = 0; point < numPoints; point++) {
+            double x = Math.max(0, Math.min(GRID_SIZE - 1, xs[point]));
+            double y = Math.max(0, Math.min(GRID_SIZE - 1, ys[point]));
+            int column = Math.min(GRID_SIZE - 2, (int) x);
+            int row = Math.min(GRID_SIZE - 2, (int) y);
+            double fractionX = x - column;
+            double fractionY = y - row;
+            binsRe[row][column] += (1 - fractionX) * (1 - fractionY);
+            binsRe[row][column + 1] += fractionX * (1 - fractionY);
+            binsRe[row + 1][column] += (1 - fractionX) * fractionY;
+            binsRe[row + 1][column + 1] += fractionX * fractionY;
+        }
+
+        // centered on (0, 0), wrapping around to the other side for negative offsets
+        double[][] kernelRe = new double[numRows][numColumns];
+        double[][] kernelIm = new double[numRows][numColumns];
+        double normalization = 1 / (2 * Math.PI * bandwidthX * bandwidthY);
+        for (int dy = -kernelRadiusY; dy <= kernelRadiusY; dy++) {
+            for (int dx = -kernelRadiusX; dx <= kernelRadiusX; dx++) {
+                double u = dx / bandwidthX;
+                double v = dy / bandwidthY;
+                kernelRe[(dy + numRows) % numRows][(dx + numColumns) % numColumns] = normalization * Math.exp(-0.5 * (u * u + v * v));
+            }
+        }
+
+        FFT.transform2D(binsRe, binsIm, false);
+        FFT.transform2D(kernelRe, kernelIm, false);
+        for (int row = 0; row < numRows; row++) {
+            for (int column = 0; column < numColumns; column++) {
+                double re = binsRe[row][column] * kernelRe[row][column] - binsIm[row][column] * kernelIm[row][column];
+                double im = binsRe[row][column] * kernelIm[row][column] + binsIm[row][column] * kernelRe[row][column];
+                binsRe[row][column] = re;
+                binsIm[row][column] = im;
+            }
+        }
+        FFT.transform2D(binsRe, binsIm, true);
+
+        for (int row = 0; row < GRID_SIZE; row++) {
+            for (int column = 0; column < GRID_SIZE; column++)
+                densities[row * GRID_SIZE + column] = Math.max(0, binsRe[row][column]);
+        }
+        return densities;
+    }
+
+    private static double getStandardDeviation(double[] values) {
+        double mean = 0;
+        for (double value : values)
+            mean += value;
+        mean /= values.length;
+        double variance = 0;
+        for (double value : values)
+            variance += (value - mean) * (value - mean);
+        return Math.sqrt(variance / values.length);
+    }
+
+    private static double clampBandwidth(double bandwidth) {
+        return Math.max(MIN_BANDWIDTH, Math.min(MAX_BANDWIDTH, bandwidth));
+    }
+}
@@ -0,0 +1,93 @@
+package cellplot;
+
+import java.awt.*;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * Lasso selection flattened into closed polygons (one per subpath) of primitive vertices, for fast
+ * containment tests that can run on many threads at once (the polygon is immutable)
+ */
+public class LassoPolygon {
+    private static final double FLATNESS = 0.5;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final int numVertices;
+    // vertices of ring r are from ringStarts[r] up to (not including) ringStarts[r + 1]
+    private final int[] ringStarts;
+    private final Rectangle2D bounds;
+
+    public LassoPolygon(Shape lasso) {
+        double[] xs = new double[16];
+        double[] ys = new double[16];
+        int numVertices = 0;
+        int[] ringStarts = new int[]{0};
+        double[] coords = new double[6];
+        for (PathIterator iterator = lasso.getPathIterator(null, FLATNESS); !iterator.isDone(); iterator.next()) {
+            int segmentType = iterator.currentSegment(coords);
+            if (segmentType == PathIterator.SEG_MOVETO && numVertices > ringStarts[ringStarts.length - 1]) {
+                ringStarts = Arrays.copyOf(ringStarts, ringStarts.length + 1);
+                ringStarts[ringStarts.length - 1] = numVertices;
+            }
+            if (segmentType == PathIterator.SEG_MOVETO || segmentType == PathIterator.SEG_LINETO) {
+                if (numVertices == xs.length) {
+                    xs = Arrays.copyOf(xs, 2 * numVertices);
+                    ys = Arrays.copyOf(ys, 2 * numVertices);
+                }
+                xs[numVertices] = coords[0];
+                ys[numVertices] = coords[1];
+                numVertices++;
+            }
+        }
+        this.xs = xs;
+        this.ys = ys;
+        this.numVertices = numVertices;
+        this.ringStarts = Arrays.copyOf(ringStarts, ringStarts.length + 1);
+        this.ringStarts[ringStarts.length] = numVertices;
+        bounds = lasso.getBounds2D();
+    }
+
+    public Rectangle2D getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Returns true if the disk with the given center and radius is completely inside the polygon
+     * (its center is inside, and it doesn't cross any edge)
+     */
+    public boolean containsDisk(double x, double y, double radius) {
+        if (numVertices < 3 || x - radius < bounds.getMinX() || x + radius > bounds.getMaxX() ||
+            y - radius < bounds.getMinY() || y + radius > bounds.getMaxY())
+            return false;
+
+        boolean inside = false;
+        double radiusSquared = radius * radius;
+        for (int ring = 0; ring < ringStarts.length - 1; ring++) {
+            int ringStart = ringStarts[ring];
+            int ringEnd = ringStarts[ring + 1];
+            for (int i = ringStart, j = ringEnd - 1; i < ringEnd; j = i++) {
+                double x1 = xs[j], y1 = ys[j];
+                double x2 = xs[i], y2 = ys[i];
+                // even-odd crossing test
+                if ((y2 > y) != (y1 > y) && x < (x1 - x2) * (y - y2) / (y1 - y2) + x2)
+                    inside = !inside;
+                if (getSquaredDistanceToSegment(x, y, x1, y1, x2, y2) < radiusSquared)
+                    return false;
+            }
+        }
+        return inside;
+    }
+
+    static double getSquaredDistanceToSegment(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = (lengthSquared == 0) ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double closestX = x1 + t * dx - x;
+        double closestY = y1 + t * dy - y;
+        return closestX * closestX + closestY * closestY;
+    }
+}
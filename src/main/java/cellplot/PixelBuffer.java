@@ -0,0 +1,59 @@
+package cellplot;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.util.Arrays;
+
+/**
+ * Packed ARGB pixels (row by row) cells are drawn into. Unlike an image, can be drawn into on any
+ * thread, and is copied into an image on the JavaFX application thread once drawing is done
+ */
+public class PixelBuffer {
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+
+    /**
+     * Creates a transparent buffer of the given size
+     */
+    public PixelBuffer(int width, int height) {
+        pixels = new int[width * height];
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Makes every pixel transparent
+     */
+    public void clear() {
+        Arrays.fill(pixels, 0);
+    }
+
+    /**
+     * Copies the pixels into the top left corner of the given image
+     */
+    public void writeTo(WritableImage image) {
+        image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+    }
+
+    /**
+     * Copies the pixels in the given region into the same region of the given image
+     */
+    public void writeTo(WritableImage image, int x, int y, int regionWidth, int regionHeight) {
+        image.getPixelWriter().setPixels(x, y, regionWidth, regionHeight, PixelFormat.getIntArgbInstance(), pixels,
+                                         y * width + x, width);
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
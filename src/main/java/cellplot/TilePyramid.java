@@ -0,0 +1,355 @@
+package cellplot;
+
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Multi-resolution cache of every cell drawn at a range of zoom levels, so panning and zooming can
+ * show the cells right away instead of waiting for them all to be drawn again. Level 0 is one tile
+ * covering all the cells, and each level splits the tiles of the level above it into four (a quadtree).
+ * The plot is drawn from the level whose tiles are just sharper than the screen; missing tiles are drawn
+ * in the background, and until they're done, the matching part of a tile from a level above is scaled up
+ * in their place
+ *
+ * Tiles are kept in least recently used order, and the oldest are dropped once they use more than
+ * MEMORY_BUDGET bytes. Tiles colored by cluster and tiles colored by value are cached separately, and
+ * each is only dropped when what it depends on changes: the cells' positions, the cluster colors or
+ * the value colors
+ */
+public class TilePyramid {
+    public static final int TILE_SIZE = 256;
+    private static final int MAX_LEVEL = 12;
+    private static final long MEMORY_BUDGET = 128L * 1024 * 1024;
+    // a tile's pixels are dropped once they're copied into its image, so it only holds one copy
+    private static final long TILE_BYTES = (long) TILE_SIZE * TILE_SIZE * Integer.BYTES;
+    // fraction of the cells' range added on each side of the level 0 tile, so cells on the edge fit
+    private static final double ROOT_MARGIN = 0.05;
+
+    private final CellPlotDataset cells;
+    private final CellPlotRasterizer rasterizer;
+    private final CellDensityRasterizer densityRasterizer;
+    private final Runnable tileListener;
+    private final ExecutorService renderer;
+    // guarded by this
+    private final LinkedHashMap<Long, Tile> tiles;
+    private final Set<Long> queuedTiles;
+    private int embeddingVersion;
+    private int clusterColoringVersion;
+    private int valueColoringVersion;
+    private boolean hasRoot;
+    private double rootMinX, rootMinY, rootWidth, rootHeight;
+    // tiles needed by the last draw; queued tiles that aren't anymore (ex. after zooming past them) are skipped
+    private volatile Set<Long> wantedTiles;
+
+    /**
+     * @param tileListener called (on a background thread) whenever a tile finishes drawing
+     */
+    public TilePyramid(CellPlotDataset cells, Runnable tileListener) {
+        this.cells = cells;
+        this.tileListener = tileListener;
+        rasterizer = new CellPlotRasterizer();
+        densityRasterizer = new CellDensityRasterizer();
+        tiles = new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                return size() * TILE_BYTES > MEMORY_BUDGET;
+            }
+        };
+        queuedTiles = new HashSet<>();
+        wantedTiles = Collections.emptySet();
+        renderer = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+            Thread thread = new Thread(runnable, "Cell plot tile renderer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Draws the cached tiles covering the given viewport, and queues the missing ones to be drawn with
+     * the given coloring. Should be called on the JavaFX application thread
+     */
+    public void draw(GraphicsContext graphics, Viewport viewport, double width, double height, CellColoring coloring,
+                     DensityMode mode) {
+        boolean coloringByValue = coloring.isColoringByValue();
+        List<TileRequest> missingTiles = new ArrayList<>();
+        Set<Long> wanted = new HashSet<>();
+        synchronized (this) {
+            if (!hasRoot)
+                setRoot();
+            int level = getLevel(viewport);
+            TileRequest[][] visibleTiles = getVisibleTiles(viewport, width, height, level, coloringByValue, mode, coloring);
+            for (TileRequest[] row : visibleTiles) {
+                for (TileRequest request : row) {
+                    wanted.add(request.key);
+                    Tile tile = getValidTile(request.key, coloringByValue, mode);
+                    if (tile != null) {
+                        drawTile(graphics, viewport, tile.getImage(), 0, 0, TILE_SIZE, request);
+                    } else {
+                        drawFromAncestor(graphics, viewport, request, coloringByValue, mode);
+                        missingTiles.add(request);
+                    }
+                }
+            }
+            // the level above is drawn too, so there's something to show when zooming out
+            if (level > 0) {
+                for (TileRequest[] row : getVisibleTiles(viewport, width, height, level - 1, coloringByValue, mode, coloring)) {
+                    for (TileRequest request : row) {
+                        wanted.add(request.key);
+                        if (getValidTile(request.key, coloringByValue, mode) == null)
+                            missingTiles.add(request);
+                    }
+                }
+            }
+            wantedTiles = wanted;
+            for (TileRequest request : missingTiles) {
+                if (!renderer.isShutdown() && queuedTiles.add(request.key))
+                    renderer.execute(() -> renderTile(request));
+            }
+        }
+    }
+
+    /**
+     * Drops every tile, and fits the tiles to the cells again. Should be called after cells are added
+     * or moved. Can be called from any thread
+     */
+    public synchronized void invalidateEmbedding() {
+        embeddingVersion++;
+        hasRoot = false;
+        tiles.clear();
+    }
+
+    /**
+     * Drops the tiles colored by cluster. Can be called from any thread
+     */
+    public synchronized void invalidateClusterColoring() {
+        clusterColoringVersion++;
+        tiles.values().removeIf(tile -> !tile.coloringByValue);
+    }
+
+    /**
+     * Drops the tiles colored by value (ex. after the isoform the cells are colored by changed). Can
+     * be called from any thread
+     */
+    public synchronized void invalidateValueColoring() {
+        valueColoringVersion++;
+        tiles.values().removeIf(tile -> tile.coloringByValue);
+    }
+
+    /**
+     * Stops drawing tiles. The pyramid can't be used after this
+     */
+    public void dispose() {
+        renderer.shutdownNow();
+    }
+
+    /**
+     * Returns the level whose tiles have at least as many pixels per data unit as the viewport, so
+     * they're only ever scaled down
+     */
+    private int getLevel(Viewport viewport) {
+        double levelsX = Math.log(rootWidth * Math.abs(viewport.getScaleX()) / TILE_SIZE) / Math.log(2);
+        double levelsY = Math.log(rootHeight * Math.abs(viewport.getScaleY()) / TILE_SIZE) / Math.log(2);
+        return Math.max(0, Math.min(MAX_LEVEL, (int) Math.ceil(Math.max(levelsX, levelsY))));
+    }
+
+    private TileRequest[][] getVisibleTiles(Viewport viewport, double width, double height, int level, boolean coloringByValue,
+                                            DensityMode mode, CellColoring coloring) {
+        int numTiles = 1 << level;
+        double tileWidth = rootWidth / numTiles;
+        double tileHeight = rootHeight / numTiles;
+        double visibleMinX = Math.min(viewport.toDataX(0), viewport.toDataX(width));
+        double visibleMaxX = Math.max(viewport.toDataX(0), viewport.toDataX(width));
+        double visibleMinY = Math.min(viewport.toDataY(0), viewport.toDataY(height));
+        double visibleMaxY = Math.max(viewport.toDataY(0), viewport.toDataY(height));
+        if (visibleMaxX < rootMinX || visibleMinX > rootMinX + rootWidth || visibleMaxY < rootMinY || visibleMinY > rootMinY + rootHeight)
+            return new TileRequest[0][0];
+
+        int firstColumn = clamp((int) Math.floor((visibleMinX - rootMinX) / tileWidth), numTiles);
+        int lastColumn = clamp((int) Math.floor((visibleMaxX - rootMinX) / tileWidth), numTiles);
+        int firstRow = clamp((int) Math.floor((visibleMinY - rootMinY) / tileHeight), numTiles);
+        int lastRow = clamp((int) Math.floor((visibleMaxY - rootMinY) / tileHeight), numTiles);
+        TileRequest[][] requests = new TileRequest[lastRow - firstRow + 1][lastColumn - firstColumn + 1];
+        int coloringVersion = coloringByValue ? valueColoringVersion : clusterColoringVersion;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                requests[row - firstRow][column - firstColumn] = new TileRequest(level, column, row, coloringByValue, mode, coloring,
+                        embeddingVersion, coloringVersion, rootMinX + column * tileWidth, rootMinY + row * tileHeight,
+                        tileWidth, tileHeight);
+            }
+        }
+        return requests;
+    }
+
+    private Tile getValidTile(long key, boolean coloringByValue, DensityMode mode) {
+        Tile tile = tiles.get(key);
+        int coloringVersion = coloringByValue ? valueColoringVersion : clusterColoringVersion;
+        if (tile != null && tile.mode == mode && tile.embeddingVersion == embeddingVersion && tile.coloringVersion == coloringVersion)
+            return tile;
+        return null;
+    }
+
+    /**
+     * Draws the part of the closest cached tile above the given one that covers it, scaled up
+     */
+    private void drawFromAncestor(GraphicsContext graphics, Viewport viewport, TileRequest request, boolean coloringByValue,
+                                  DensityMode mode) {
+        for (int levelsUp = 1; levelsUp <= request.level; levelsUp++) {
+            int column = request.column >> levelsUp;
+            int row = request.row >> levelsUp;
+            Tile ancestor = getValidTile(getKey(request.level - levelsUp, column, row, coloringByValue), coloringByValue, mode);
+            if (ancestor != null) {
+                double partSize = (double) TILE_SIZE / (1 << levelsUp);
+                double partX = (request.column - (column << levelsUp)) * partSize;
+                // rows count up from the bottom of the plot, but image rows count down from the top
+                double partY = ((1 << levelsUp) - 1 - (request.row - (row << levelsUp))) * partSize;
+                drawTile(graphics, viewport, ancestor.getImage(), partX, partY, partSize, request);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Draws the given square of the given image where the requested tile goes
+     */
+    private static void drawTile(GraphicsContext graphics, Viewport viewport, Image image, double partX, double partY,
+                                 double partSize, TileRequest request) {
+        double left = viewport.toScreenX(request.minX);
+        double right = viewport.toScreenX(request.minX + request.width);
+        double top = viewport.toScreenY(request.minY + request.height);
+        double bottom = viewport.toScreenY(request.minY);
+        graphics.drawImage(image, partX, partY, partSize, partSize, Math.min(left, right), Math.min(top, bottom),
+                           Math.abs(right - left), Math.abs(bottom - top));
+    }
+
+    private void renderTile(TileRequest request) {
+        try {
+            if (!wantedTiles.contains(request.key))
+                return;
+
+            PixelBuffer buffer = new PixelBuffer(TILE_SIZE, TILE_SIZE);
+            Viewport tileViewport = Viewport.create(request.minX, request.minX + request.width, request.minY,
+                                                    request.minY + request.height, TILE_SIZE, TILE_SIZE);
+            // drawn from the coloring the tile was requested with, which doesn't change if the plot's coloring does
+            CellColoring coloring = request.coloring;
+            // cells just outside the tile still overlap it
+            double extent = CellPlotRasterizer.getCellExtent(coloring.getOutlineWidth(), 1);
+            double reachX = extent / Math.abs(tileViewport.getScaleX());
+            double reachY = extent / Math.abs(tileViewport.getScaleY());
+            CellGrid grid = cells.getGrid();
+            int[] nearCells = grid.getCellsNear(request.minX - reachX, request.minY - reachY,
+                                                request.minX + request.width + reachX, request.minY + request.height + reachY);
+            long levelSize = (long) TILE_SIZE << request.level;
+            if (request.mode != DensityMode.OFF && CellDensityRasterizer.isDense(cells.getNumCells(), levelSize, levelSize, 1)) {
+                int binSize = CellDensityRasterizer.getBinSize(1);
+                double binArea = binSize / Math.abs(tileViewport.getScaleX()) * binSize / Math.abs(tileViewport.getScaleY());
+                densityRasterizer.drawAggregated(buffer, tileViewport, 1, cells, coloring, request.mode, nearCells,
+                                                 grid.getMaxDensity() * binArea);
+            } else {
+                rasterizer.draw(buffer, tileViewport, 1, cells, coloring, nearCells);
+            }
+
+            synchronized (this) {
+                int coloringVersion = request.coloringByValue ? valueColoringVersion : clusterColoringVersion;
+                if (request.embeddingVersion != embeddingVersion || request.coloringVersion != coloringVersion)
+                    return;
+                tiles.put(request.key, new Tile(buffer, request));
+            }
+            tileListener.run();
+        } finally {
+            synchronized (this) {
+                queuedTiles.remove(request.key);
+            }
+        }
+    }
+
+    private void setRoot() {
+        double xMargin = Math.max(cells.getMaxX() - cells.getMinX(), Double.MIN_NORMAL) * ROOT_MARGIN;
+        double yMargin = Math.max(cells.getMaxY() - cells.getMinY(), Double.MIN_NORMAL) * ROOT_MARGIN;
+        rootMinX = cells.getMinX() - xMargin;
+        rootMinY = cells.getMinY() - yMargin;
+        rootWidth = cells.getMaxX() - cells.getMinX() + 2 * xMargin;
+        rootHeight = cells.getMaxY() - cells.getMinY() + 2 * yMargin;
+        hasRoot = true;
+    }
+
+    private static long getKey(int level, int column, int row, boolean coloringByValue) {
+        return ((long) level << 48) | ((coloringByValue ? 1L : 0L) << 47) | ((long) column << 20) | row;
+    }
+
+    private static int clamp(int index, int size) {
+        return Math.max(0, Math.min(size - 1, index));
+    }
+
+    /**
+     * A tile to draw, and what it's drawn with
+     */
+    private static class TileRequest {
+        private final long key;
+        private final int level;
+        private final int column;
+        private final int row;
+        private final boolean coloringByValue;
+        private final DensityMode mode;
+        private final CellColoring coloring;
+        private final int embeddingVersion;
+        private final int coloringVersion;
+        // region of the plot the tile covers, in data coordinates
+        private final double minX;
+        private final double minY;
+        private final double width;
+        private final double height;
+
+        TileRequest(int level, int column, int row, boolean coloringByValue, DensityMode mode, CellColoring coloring,
+                    int embeddingVersion, int coloringVersion, double minX, double minY, double width, double height) {
+            key = getKey(level, column, row, coloringByValue);
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.coloringByValue = coloringByValue;
+            this.mode = mode;
+            this.coloring = coloring;
+            this.embeddingVersion = embeddingVersion;
+            this.coloringVersion = coloringVersion;
+            this.minX = minX;
+            this.minY = minY;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * A drawn tile. Its pixels are copied into an image the first time it's shown (on the JavaFX
+     * application thread)
+     */
+    private static class Tile {
+        private final boolean coloringByValue;
+        private final DensityMode mode;
+        private final int embeddingVersion;
+        private final int coloringVersion;
+        private PixelBuffer pixels;
+        private WritableImage image;
+
+        Tile(PixelBuffer pixels, TileRequest request) {
+            this.pixels = pixels;
+            coloringByValue = request.coloringByValue;
+            mode = request.mode;
+            embeddingVersion = request.embeddingVersion;
+            coloringVersion = request.coloringVersion;
+        }
+
+        Image getImage() {
+            if (image == null) {
+                image = new WritableImage(TILE_SIZE, TILE_SIZE);
+                pixels.writeTo(image);
+                pixels = null;
+            }
+            return image;
+        }
+    }
+}
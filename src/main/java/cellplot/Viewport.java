@@ -0,0 +1,78 @@
+package cellplot;
+
+import java.util.Objects;
+
+/**
+ * Maps between data coordinates (positions in the embedding) and screen coordinates of the cell
+ * plot. Both axes are linear, so the mapping is screenX = scaleX * x + offsetX (and the same for y)
+ */
+public class Viewport {
+    private final double scaleX;
+    private final double offsetX;
+    private final double scaleY;
+    private final double offsetY;
+
+    private Viewport(double scaleX, double offsetX, double scaleY, double offsetY) {
+        this.scaleX = scaleX;
+        this.offsetX = offsetX;
+        this.scaleY = scaleY;
+        this.offsetY = offsetY;
+    }
+
+    /**
+     * Returns the viewport that fits the given range of data coordinates into an area of the given
+     * size, with its top left corner at (0, 0). Y increases upwards in data coordinates, and downwards
+     * on screen
+     */
+    public static Viewport create(double minX, double maxX, double minY, double maxY, double width, double height) {
+        double scaleX = width / (maxX - minX);
+        double scaleY = -height / (maxY - minY);
+        return new Viewport(scaleX, -minX * scaleX, scaleY, height - minY * scaleY);
+    }
+
+    public double toScreenX(double x) {
+        return scaleX * x + offsetX;
+    }
+
+    public double toScreenY(double y) {
+        return scaleY * y + offsetY;
+    }
+
+    public double toDataX(double screenX) {
+        return (screenX - offsetX) / scaleX;
+    }
+
+    public double toDataY(double screenY) {
+        return (screenY - offsetY) / scaleY;
+    }
+
+    public double getScaleX() {
+        return scaleX;
+    }
+
+    public double getOffsetX() {
+        return offsetX;
+    }
+
+    public double getScaleY() {
+        return scaleY;
+    }
+
+    public double getOffsetY() {
+        return offsetY;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Viewport))
+            return false;
+        Viewport otherViewport = (Viewport) other;
+        return scaleX == otherViewport.scaleX && offsetX == otherViewport.offsetX &&
+               scaleY == otherViewport.scaleY && offsetY == otherViewport.offsetY;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scaleX, offsetX, scaleY, offsetY);
+    }
+}
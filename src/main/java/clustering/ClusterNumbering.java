@@ -0,0 +1,44 @@
+package clustering;
+
+import java.util.Arrays;
+
+/**
+ * Numbering of the clusters found by the clustering algorithms
+ */
+class ClusterNumbering {
+
+    /**
+     * Renumbers the given clusters from 0 (in order of first appearance), and returns how many there are
+     */
+    static int renumber(int[] clusters) {
+        int[] newNumbers = new int[clusters.length];
+        Arrays.fill(newNumbers, -1);
+        int numClusters = 0;
+        for (int i = 0; i < clusters.length; i++) {
+            if (newNumbers[clusters[i]] < 0)
+                newNumbers[clusters[i]] = numClusters++;
+            clusters[i] = newNumbers[clusters[i]];
+        }
+        return numClusters;
+    }
+
+    /**
+     * Renumbers the given clusters from largest (0) to smallest. Clusters of the same size are
+     * numbered in order of first appearance
+     */
+    static void sortBySize(int[] clusters) {
+        int numClusters = renumber(clusters);
+        int[] sizes = new int[numClusters];
+        for (int cluster : clusters)
+            sizes[cluster]++;
+        Integer[] bySize = new Integer[numClusters];
+        for (int cluster = 0; cluster < numClusters; cluster++)
+            bySize[cluster] = cluster;
+        Arrays.sort(bySize, (a, b) -> sizes[a] != sizes[b] ? Integer.compare(sizes[b], sizes[a]) : Integer.compare(a, b));
+        int[] newNumbers = new int[numClusters];
+        for (int i = 0; i < numClusters; i++)
+            newNumbers[bySize[i]] = i;
+        for (int i = 0; i < clusters.length; i++)
+            clusters[i] = newNumbers[clusters[i]];
+    }
+}
@@ -0,0 +1,307 @@
+package clustering;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Louvain community detection (maximizing modularity with a resolution parameter) on a shared nearest
+ * neighbor graph. Higher resolutions find more, smaller communities.
+ *
+ * Each level's local moving is done in batches of nodes: the best move of every node in a batch is found
+ * in parallel, then the nodes that would move are moved one by one (rechecking the move if a neighbor
+ * moved first), so every move increases modularity and the result only depends on the seed. Like in
+ * Leiden, communities that end up disconnected are split into their connected components
+ */
+public class Louvain {
+    private static final int BATCH_SIZE = 4096;
+    private static final int MAX_SWEEPS = 32;
+    private static final int MAX_LEVELS = 32;
+
+    /**
+     * Returns the community of each cell in the given graph. Communities are numbered from 0, from
+     * largest to smallest
+     */
+    public static int[] findCommunities(SNNGraph graph, double resolution, long seed) {
+        Random random = new Random(seed);
+        int numCells = graph.getNumCells();
+        int[] cellCommunities = new int[numCells];
+        for (int cell = 0; cell < numCells; cell++)
+            cellCommunities[cell] = cell;
+
+        Graph levelGraph = new Graph(graph.getOffsets(), graph.getNeighbors(), graph.getWeights());
+        for (int level = 0; level < MAX_LEVELS; level++) {
+            int[] nodeCommunities = moveNodes(levelGraph, resolution, random);
+            int numCommunities = ClusterNumbering.renumber(nodeCommunities);
+            if (numCommunities == levelGraph.getNumNodes())
+                break;
+            for (int cell = 0; cell < numCells; cell++)
+                cellCommunities[cell] = nodeCommunities[cellCommunities[cell]];
+            levelGraph = levelGraph.aggregate(nodeCommunities, numCommunities);
+        }
+
+        splitDisconnectedCommunities(graph, cellCommunities);
+        ClusterNumbering.sortBySize(cellCommunities);
+        return cellCommunities;
+    }
+
+    /**
+     * Moves nodes of the given graph between communities (starting with each node in its own community)
+     * until no move increases modularity. Returns the community of each node
+     */
+    private static int[] moveNodes(Graph graph, double resolution, Random random) {
+        int numNodes = graph.getNumNodes();
+        int[] communities = new int[numNodes];
+        double[] communityStrengths = new double[numNodes];
+        for (int node = 0; node < numNodes; node++) {
+            communities[node] = node;
+            communityStrengths[node] = graph.strengths[node];
+        }
+        double resolutionOverTotalStrength = resolution / graph.totalStrength;
+
+        int[] order = IntStream.range(0, numNodes).toArray();
+        int[] candidates = new int[numNodes];
+        // when (sweep and position in it) each node last moved, so moves found from an outdated state are rechecked
+        int[] lastMoved = new int[numNodes];
+        Arrays.fill(lastMoved, -1);
+        ThreadLocal<double[]> neighborCommunityWeights = ThreadLocal.withInitial(() -> new double[numNodes]);
+        ThreadLocal<int[]> neighborCommunities = ThreadLocal.withInitial(() -> new int[numNodes]);
+
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            shuffle(order, random);
+            int numMoved = 0;
+            for (int batchStart = 0; batchStart < numNodes; batchStart += BATCH_SIZE) {
+                int batchEnd = Math.min(batchStart + BATCH_SIZE, numNodes);
+                int currentSweep = sweep;
+                int firstInBatch = batchStart;
+                IntStream.range(batchStart, batchEnd).parallel().forEach(i -> {
+                    int node = order[i];
+                    candidates[node] = getBestCommunity(graph, node, communities, communityStrengths, resolutionOverTotalStrength,
+                                                        neighborCommunityWeights.get(), neighborCommunities.get());
+                });
+                for (int i = batchStart; i < batchEnd; i++) {
+                    int node = order[i];
+                    int community = candidates[node];
+                    if (community == communities[node])
+                        continue;
+                    if (hasNeighborMovedSince(graph, node, lastMoved, currentSweep, firstInBatch, order)) {
+                        community = getBestCommunity(graph, node, communities, communityStrengths, resolutionOverTotalStrength,
+                                                     neighborCommunityWeights.get(), neighborCommunities.get());
+                    } else if (!isImprovement(graph, node, community, communities, communityStrengths, resolutionOverTotalStrength)) {
+                        continue;
+                    }
+                    if (community != communities[node]) {
+                        communityStrengths[communities[node]] -= graph.strengths[node];
+                        communityStrengths[community] += graph.strengths[node];
+                        communities[node] = community;
+                        lastMoved[node] = currentSweep * numNodes + i;
+                        numMoved++;
+                    }
+                }
+            }
+            if (numMoved == 0)
+                break;
+        }
+        return communities;
+    }
+
+    /**
+     * Returns the community the given node should be in (its own if no move increases modularity). The
+     * scratch arrays must have a length of at least the number of nodes, and be all zeros
+     */
+    private static int getBestCommunity(Graph graph, int node, int[] communities, double[] communityStrengths,
+                                        double resolutionOverTotalStrength, double[] neighborCommunityWeights, int[] neighborCommunities) {
+        int currentCommunity = communities[node];
+        int numNeighborCommunities = 0;
+        for (int edge = graph.offsets[node]; edge < graph.offsets[node + 1]; edge++) {
+            int neighbor = graph.neighbors[edge];
+            if (neighbor == node)
+                continue;
+            int community = communities[neighbor];
+            if (neighborCommunityWeights[community] == 0)
+                neighborCommunities[numNeighborCommunities++] = community;
+            neighborCommunityWeights[community] += graph.weights[edge];
+        }
+
+        double strength = graph.strengths[node];
+        // gain of (re)joining a community the node has been taken out of
+        double bestGain = neighborCommunityWeights[currentCommunity] -
+                          resolutionOverTotalStrength * strength * (communityStrengths[currentCommunity] - strength);
+        int bestCommunity = currentCommunity;
+        for (int i = 0; i < numNeighborCommunities; i++) {
+            int community = neighborCommunities[i];
+            if (community != currentCommunity) {
+                double gain = neighborCommunityWeights[community] - resolutionOverTotalStrength * strength * communityStrengths[community];
+                if (gain > bestGain || (gain == bestGain && community < bestCommunity && bestCommunity != currentCommunity)) {
+                    bestGain = gain;
+                    bestCommunity = community;
+                }
+            }
+            neighborCommunityWeights[community] = 0;
+        }
+        neighborCommunityWeights[currentCommunity] = 0;
+        return bestCommunity;
+    }
+
+    /**
+     * Returns true if moving the given node to the given community still increases modularity (using the
+     * current community strengths, when none of its neighbors have moved since the move was found)
+     */
+    private static boolean isImprovement(Graph graph, int node, int community, int[] communities, double[] communityStrengths,
+                                         double resolutionOverTotalStrength) {
+        int currentCommunity = communities[node];
+        double currentCommunityWeight = 0;
+        double communityWeight = 0;
+        for (int edge = graph.offsets[node]; edge < graph.offsets[node + 1]; edge++) {
+            int neighbor = graph.neighbors[edge];
+            if (neighbor == node)
+                continue;
+            if (communities[neighbor] == currentCommunity)
+                currentCommunityWeight += graph.weights[edge];
+            else if (communities[neighbor] == community)
+                communityWeight += graph.weights[edge];
+        }
+        double strength = graph.strengths[node];
+        double currentGain = currentCommunityWeight - resolutionOverTotalStrength * strength * (communityStrengths[currentCommunity] - strength);
+        double gain = communityWeight - resolutionOverTotalStrength * strength * communityStrengths[community];
+        return gain > currentGain;
+    }
+
+    /**
+     * Returns true if any neighbor of the given node moved during the current batch, before the node
+     */
+    private static boolean hasNeighborMovedSince(Graph graph, int node, int[] lastMoved, int sweep, int batchStart, int[] order) {
+        int batchStartStamp = sweep * order.length + batchStart;
+        for (int edge = graph.offsets[node]; edge < graph.offsets[node + 1]; edge++) {
+            if (lastMoved[graph.neighbors[edge]] >= batchStartStamp)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Splits each community into its connected components in the given graph, so no community is made
+     * of parts that aren't connected to each other
+     */
+    private static void splitDisconnectedCommunities(SNNGraph graph, int[] communities) {
+        int numCells = communities.length;
+        int[] offsets = graph.getOffsets();
+        int[] neighbors = graph.getNeighbors();
+        int[] components = new int[numCells];
+        Arrays.fill(components, -1);
+        int[] queue = new int[numCells];
+        int numComponents = 0;
+        for (int start = 0; start < numCells; start++) {
+            if (components[start] >= 0)
+                continue;
+            components[start] = numComponents;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            while (head < tail) {
+                int cell = queue[head++];
+                for (int edge = offsets[cell]; edge < offsets[cell + 1]; edge++) {
+                    int neighbor = neighbors[edge];
+                    if (components[neighbor] < 0 && communities[neighbor] == communities[start]) {
+                        components[neighbor] = numComponents;
+                        queue[tail++] = neighbor;
+                    }
+                }
+            }
+            numComponents++;
+        }
+        System.arraycopy(components, 0, communities, 0, numCells);
+    }
+
+    private static void shuffle(int[] array, Random random) {
+        for (int i = array.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = array[i];
+            array[i] = array[j];
+            array[j] = temp;
+        }
+    }
+
+    /**
+     * Weighted undirected graph in compressed sparse row form. Aggregated graphs have self loops (the
+     * weight of the edges inside each node's community, counted in both directions)
+     */
+    private static class Graph {
+        private final int[] offsets;
+        private final int[] neighbors;
+        private final double[] weights;
+        private final double[] strengths;
+        private final double totalStrength;
+
+        private Graph(int[] offsets, int[] neighbors, double[] weights) {
+            this.offsets = offsets;
+            this.neighbors = neighbors;
+            this.weights = weights;
+            strengths = new double[offsets.length - 1];
+            IntStream.range(0, strengths.length).parallel().forEach(node -> {
+                double strength = 0;
+                for (int edge = offsets[node]; edge < offsets[node + 1]; edge++)
+                    strength += weights[edge];
+                strengths[node] = strength;
+            });
+            totalStrength = Arrays.stream(strengths).sum();
+        }
+
+        private int getNumNodes() {
+            return strengths.length;
+        }
+
+        /**
+         * Returns the graph whose nodes are the given communities of this graph's nodes. The weight of
+         * the edge between two communities is the total weight of the edges between their nodes
+         */
+        private Graph aggregate(int[] communities, int numCommunities) {
+            int[] memberOffsets = new int[numCommunities + 1];
+            for (int community : communities)
+                memberOffsets[community + 1]++;
+            for (int community = 0; community < numCommunities; community++)
+                memberOffsets[community + 1] += memberOffsets[community];
+            int[] members = new int[communities.length];
+            int[] numAdded = new int[numCommunities];
+            for (int node = 0; node < communities.length; node++)
+                members[memberOffsets[communities[node]] + numAdded[communities[node]]++] = node;
+
+            int[][] communityNeighbors = new int[numCommunities][];
+            double[][] communityWeights = new double[numCommunities][];
+            ThreadLocal<double[]> scratchWeights = ThreadLocal.withInitial(() -> new double[numCommunities]);
+            ThreadLocal<int[]> scratchNeighbors = ThreadLocal.withInitial(() -> new int[numCommunities]);
+            IntStream.range(0, numCommunities).parallel().forEach(community -> {
+                double[] neighborWeights = scratchWeights.get();
+                int[] neighborCommunities = scratchNeighbors.get();
+                int numNeighbors = 0;
+                for (int i = memberOffsets[community]; i < memberOffsets[community + 1]; i++) {
+                    int node = members[i];
+                    for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+                        int neighborCommunity = communities[neighbors[edge]];
+                        if (neighborWeights[neighborCommunity] == 0)
+                            neighborCommunities[numNeighbors++] = neighborCommunity;
+                        neighborWeights[neighborCommunity] += weights[edge];
+                    }
+                }
+                Arrays.sort(neighborCommunities, 0, numNeighbors);
+                communityNeighbors[community] = Arrays.copyOf(neighborCommunities, numNeighbors);
+                communityWeights[community] = new double[numNeighbors];
+                for (int i = 0; i < numNeighbors; i++) {
+                    communityWeights[community][i] = neighborWeights[neighborCommunities[i]];
+                    neighborWeights[neighborCommunities[i]] = 0;
+                }
+            });
+
+            int[] aggregateOffsets = new int[numCommunities + 1];
+            for (int community = 0; community < numCommunities; community++)
+                aggregateOffsets[community + 1] = aggregateOffsets[community] + communityNeighbors[community].length;
+            int[] aggregateNeighbors = new int[aggregateOffsets[numCommunities]];
+            double[] aggregateWeights = new double[aggregateOffsets[numCommunities]];
+            for (int community = 0; community < numCommunities; community++) {
+                System.arraycopy(communityNeighbors[community], 0, aggregateNeighbors, aggregateOffsets[community], communityNeighbors[community].length);
+                System.arraycopy(communityWeights[community], 0, aggregateWeights, aggregateOffsets[community], communityWeights[community].length);
+            }
+            return new Graph(aggregateOffsets, aggregateNeighbors, aggregateWeights);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package clustering;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Mini-batch k-means (Sculley, 2010): centers are seeded with k-means++ on a sample of the points, then
+ * moved towards random batches of points (each center by a step that shrinks as it's assigned more
+ * points), and finally every point is assigned to its nearest center. Batches and the final assignment
+ * are done in parallel. Quick and rough compared to full k-means, for partitioning very large datasets.
+ * Can be cancelled from another thread
+ */
+public class MiniBatchKMeans {
+    private static final int BATCH_SIZE = 4096;
+    private static final int MAX_ITERATIONS = 300;
+    private static final int MAX_SEEDING_SAMPLE_SIZE = 50000;
+    private static final int ASSIGNMENT_BLOCK_SIZE = 1 << 16;
+    // iterations stop once centers move less than this fraction of the points' variance (per center)
+    private static final double TOLERANCE = 1e-5;
+
+    private final int numClusters;
+    private final long seed;
+    private volatile boolean cancelled;
+
+    public MiniBatchKMeans(int numClusters, long seed) {
+        this.numClusters = numClusters;
+        this.seed = seed;
+    }
+
+    /**
+     * Returns the cluster of each point, numbered from 0 from largest to smallest cluster (there can be
+     * fewer than numClusters clusters if some end up empty). Returns null if cancelled
+     */
+    public int[] cluster(double[][] points) {
+        Random random = new Random(seed);
+        int numPoints = points.length;
+        int k = Math.min(numClusters, numPoints);
+        double[][] sample = getSample(points, Math.min(numPoints, MAX_SEEDING_SAMPLE_SIZE), random);
+        double[][] centers = seedCenters(sample, k, random);
+        if (centers == null)
+            return null;
+
+        double tolerance = TOLERANCE * getVariance(sample) * k;
+        int[] counts = new int[k];
+        int batchSize = Math.min(BATCH_SIZE, numPoints);
+        int[] batch = new int[batchSize];
+        int[] batchClusters = new int[batchSize];
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            if (cancelled)
+                return null;
+            for (int i = 0; i < batchSize; i++)
+                batch[i] = random.nextInt(numPoints);
+            IntStream.range(0, batchSize).parallel().forEach(i -> batchClusters[i] = getNearestCenter(points[batch[i]], centers));
+
+            double[][] previousCenters = new double[k][];
+            for (int i = 0; i < batchSize; i++) {
+                int cluster = batchClusters[i];
+                if (previousCenters[cluster] == null)
+                    previousCenters[cluster] = centers[cluster].clone();
+                counts[cluster]++;
+                double learningRate = 1.0 / counts[cluster];
+                double[] point = points[batch[i]];
+                double[] center = centers[cluster];
+                for (int j = 0; j < center.length; j++)
+                    center[j] += learningRate * (point[j] - center[j]);
+            }
+            double shift = 0;
+            for (int cluster = 0; cluster < k; cluster++) {
+                if (previousCenters[cluster] != null)
+                    shift += getSquaredDistance(previousCenters[cluster], centers[cluster]);
+            }
+            if (shift < tolerance)
+                break;
+        }
+
+        int[] clusters = new int[numPoints];
+        for (int blockStart = 0; blockStart < numPoints; blockStart += ASSIGNMENT_BLOCK_SIZE) {
+            if (cancelled)
+                return null;
+            IntStream.range(blockStart, Math.min(blockStart + ASSIGNMENT_BLOCK_SIZE, numPoints)).parallel().forEach(point ->
+                clusters[point] = getNearestCenter(points[point], centers)
+            );
+        }
+        ClusterNumbering.sortBySize(clusters);
+        return clusters;
+    }
+
+    /**
+     * Stops clustering (cluster() returns null soon after)
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Chooses k centers from the given points with k-means++: each center is a point chosen with
+     * probability proportional to its squared distance from the nearest center already chosen. Returns
+     * null if cancelled
+     */
+    private double[][] seedCenters(double[][] points, int k, Random random) {
+        double[][] centers = new double[k][];
+        centers[0] = points[random.nextInt(points.length)].clone();
+        double[] squaredDistances = new double[points.length];
+        Arrays.fill(squaredDistances, Double.POSITIVE_INFINITY);
+        for (int cluster = 1; cluster < k; cluster++) {
+            if (cancelled)
+                return null;
+            double[] lastCenter = centers[cluster - 1];
+            IntStream.range(0, points.length).parallel().forEach(point ->
+                squaredDistances[point] = Math.min(squaredDistances[point], getSquaredDistance(points[point], lastCenter))
+            );
+            double total = 0;
+            for (double squaredDistance : squaredDistances)
+                total += squaredDistance;
+            int chosen = points.length - 1;
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int point = 0; point < points.length; point++) {
+                    target -= squaredDistances[point];
+                    if (target < 0) {
+                        chosen = point;
+                        break;
+                    }
+                }
+            } else {
+                // fewer distinct points than clusters
+                chosen = random.nextInt(points.length);
+            }
+            centers[cluster] = points[chosen].clone();
+        }
+        return centers;
+    }
+
+    private static int getNearestCenter(double[] point, double[][] centers) {
+        int nearestCenter = 0;
+        double nearestSquaredDistance = Double.POSITIVE_INFINITY;
+        for (int center = 0; center < centers.length; center++) {
+            double squaredDistance = getSquaredDistance(point, centers[center]);
+            if (squaredDistance < nearestSquaredDistance) {
+                nearestSquaredDistance = squaredDistance;
+                nearestCenter = center;
+            }
+        }
+        return nearestCenter;
+    }
+
+    private static double getSquaredDistance(double[] a, double[] b) {
+        double squaredDistance = 0;
+        for (int j = 0; j < a.length; j++) {
+            double difference = a[j] - b[j];
+            squaredDistance += difference * difference;
+        }
+        return squaredDistance;
+    }
+
+    /**
+     * Returns the total variance of the given points (sum of each dimension's variance)
+     */
+    private static double getVariance(double[][] points) {
+        int numDimensions = points[0].length;
+        double[] means = new double[numDimensions];
+        for (double[] point : points) {
+            for (int j = 0; j < numDimensions; j++)
+                means[j] += point[j] / points.length;
+        }
+        double variance = 0;
+        for (double[] point : points)
+            variance += getSquaredDistance(point, means) / points.length;
+        return variance;
+    }
+
+    /**
+     * Returns sampleSize of the given points, chosen at random without replacement (all of them, in
+     * order, if sampleSize is the number of points)
+     */
+    private static double[][] getSample(double[][] points, int sampleSize, Random random) {
+        if (sampleSize >= points.length)
+            return points;
+        int[] indices = IntStream.range(0, points.length).toArray();
+        double[][] sample = new double[sampleSize][];
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(points.length - i);
+            int temp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = temp;
+            sample[i] = points[indices[i]];
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,129 @@
+package clustering;
+
+import embedding.KNNGraph;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Shared nearest neighbor graph of the cells: two cells are connected if either is one of the other's
+ * k nearest neighbors, and the edge is weighted by the Jaccard index of their neighborhoods (each cell's
+ * k nearest neighbors and itself). Edges weighted less than MIN_WEIGHT are pruned. Undirected, and stored
+ * as adjacency lists in compressed sparse row form (the neighbors of cell i are neighbors[offsets[i]]
+ * to neighbors[offsets[i + 1] - 1])
+ */
+public class SNNGraph {
+    public static final int NUM_NEIGHBORS = 20;
+    private static final double MIN_WEIGHT = 1.0 / 15;
+
+    private final int[] offsets;
+    private final int[] neighbors;
+    private final double[] weights;
+
+    SNNGraph(int[] offsets, int[] neighbors, double[] weights) {
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.weights = weights;
+    }
+
+    public static SNNGraph build(KNNGraph knnGraph) {
+        int numCells = knnGraph.getNumCells();
+        // each cell's neighborhood (including itself), sorted so neighborhoods can be intersected by merging
+        int[][] neighborhoods = new int[numCells][];
+        IntStream.range(0, numCells).parallel().forEach(cell -> {
+            int[] cellNeighbors = knnGraph.getNeighbors(cell);
+            int[] neighborhood = Arrays.copyOf(cellNeighbors, cellNeighbors.length + 1);
+            neighborhood[cellNeighbors.length] = cell;
+            Arrays.sort(neighborhood);
+            neighborhoods[cell] = neighborhood;
+        });
+
+        // cells that have each cell as one of their nearest neighbors
+        int[] reverseOffsets = new int[numCells + 1];
+        for (int cell = 0; cell < numCells; cell++) {
+            for (int neighbor : knnGraph.getNeighbors(cell))
+                reverseOffsets[neighbor + 1]++;
+        }
+        for (int cell = 0; cell < numCells; cell++)
+            reverseOffsets[cell + 1] += reverseOffsets[cell];
+        int[] reverseNeighbors = new int[reverseOffsets[numCells]];
+        int[] reverseCounts = new int[numCells];
+        for (int cell = 0; cell < numCells; cell++) {
+            for (int neighbor : knnGraph.getNeighbors(cell))
+                reverseNeighbors[reverseOffsets[neighbor] + reverseCounts[neighbor]++] = cell;
+        }
+
+        int[][] cellNeighbors = new int[numCells][];
+        double[][] cellWeights = new double[numCells][];
+        IntStream.range(0, numCells).parallel().forEach(cell -> {
+            int[] forward = knnGraph.getNeighbors(cell);
+            int[] candidates = Arrays.copyOf(forward, forward.length + reverseOffsets[cell + 1] - reverseOffsets[cell]);
+            System.arraycopy(reverseNeighbors, reverseOffsets[cell], candidates, forward.length, reverseOffsets[cell + 1] - reverseOffsets[cell]);
+            Arrays.sort(candidates);
+            int[] edgeNeighbors = new int[candidates.length];
+            double[] edgeWeights = new double[candidates.length];
+            int numEdges = 0;
+            for (int i = 0; i < candidates.length; i++) {
+                int neighbor = candidates[i];
+                if (neighbor == cell || (i > 0 && neighbor == candidates[i - 1]))
+                    continue;
+                double weight = getJaccardIndex(neighborhoods[cell], neighborhoods[neighbor]);
+                if (weight >= MIN_WEIGHT) {
+                    edgeNeighbors[numEdges] = neighbor;
+                    edgeWeights[numEdges++] = weight;
+                }
+            }
+            cellNeighbors[cell] = Arrays.copyOf(edgeNeighbors, numEdges);
+            cellWeights[cell] = Arrays.copyOf(edgeWeights, numEdges);
+        });
+
+        int[] offsets = new int[numCells + 1];
+        for (int cell = 0; cell < numCells; cell++)
+            offsets[cell + 1] = offsets[cell] + cellNeighbors[cell].length;
+        int[] neighbors = new int[offsets[numCells]];
+        double[] weights = new double[offsets[numCells]];
+        IntStream.range(0, numCells).parallel().forEach(cell -> {
+            System.arraycopy(cellNeighbors[cell], 0, neighbors, offsets[cell], cellNeighbors[cell].length);
+            System.arraycopy(cellWeights[cell], 0, weights, offsets[cell], cellWeights[cell].length);
+        });
+        return new SNNGraph(offsets, neighbors, weights);
+    }
+
+    public int getNumCells() {
+        return offsets.length - 1;
+    }
+
+    int[] getOffsets() {
+        return offsets;
+    }
+
+    int[] getNeighbors() {
+        return neighbors;
+    }
+
+    double[] getWeights() {
+        return weights;
+    }
+
+    /**
+     * Returns the Jaccard index of the given sorted arrays (size of their intersection over size of their
+     * union)
+     */
+    private static double getJaccardIndex(int[] a, int[] b) {
+        int intersectionSize = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                intersectionSize++;
+                i++;
+                j++;
+            }
+        }
+        return (double) intersectionSize / (a.length + b.length - intersectionSize);
+    }
+}
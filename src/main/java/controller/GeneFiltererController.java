@@ -373,7 +373,7 @@ public class GeneFiltererController extends PopUpController implements Initializ
     private void updateClusterDominantIsoforms(Cluster cluster, Isoform isoform, Set<Isoform> dominantIsoforms) {
         double isoformExpression = isoform.getAverageExpressionInCluster(cluster, false, false);
         int isoformNumExpressingCells = ControllerMediator.getInstance().getNumExpressingCells(isoform.getId(), cluster, false);
-        double isoformPercentExpressed = (double) isoformNumExpressingCells / cluster.getCells().size();
+        double isoformPercentExpressed = (double) isoformNumExpressingCells / cluster.getNumCells();
         if (isoformExpression >= savedDISMin && isoformPercentExpressed * 100 >= savedDISMinPercentExpressed) {
             for (Iterator<Isoform> iterator = dominantIsoforms.iterator(); iterator.hasNext();) {
                 Isoform dominantIsoform = iterator.next();
@@ -386,14 +386,14 @@ public class GeneFiltererController extends PopUpController implements Initializ
                         iterator.remove();
                     } else {
                         int dominantIsoformNumExpressingCells = ControllerMediator.getInstance().getNumExpressingCells(dominantIsoform.getId(), cluster, false);
-                        double dominantIsoformPercentExpressed = (double) dominantIsoformNumExpressingCells / cluster.getCells().size();
+                        double dominantIsoformPercentExpressed = (double) dominantIsoformNumExpressingCells / cluster.getNumCells();
 
                         if (dominantIsoformPercentExpressed < isoformPercentExpressed)
                             iterator.remove();
                     }
                 } else {
                     int dominantIsoformNumExpressingCells = ControllerMediator.getInstance().getNumExpressingCells(dominantIsoform.getId(), cluster, false);
-                    double dominantIsoformPercentExpressed = (double) dominantIsoformNumExpressingCells / cluster.getCells().size();
+                    double dominantIsoformPercentExpressed = (double) dominantIsoformNumExpressingCells / cluster.getNumCells();
 
                     if (isoformPercentExpressed < dominantIsoformPercentExpressed)
                         return;
@@ -409,7 +409,7 @@ public class GeneFiltererController extends PopUpController implements Initializ
         for (Cluster cluster : savedDECategories) {
             double expression = isoform.getAverageExpressionInCluster(cluster, false, false);
             int numExpressingCells = ControllerMediator.getInstance().getNumExpressingCells(isoform.getId(), cluster, false);
-            double percentExpressed = (double) numExpressingCells / cluster.getCells().size();
+            double percentExpressed = (double) numExpressingCells / cluster.getNumCells();
             if (expression > maxExpression && expression >= savedDEMin && percentExpressed * 100 >= savedDEMinPercentExpressed)
                 maxExpression = expression;
             if (expression < minExpression)
@@ -423,7 +423,7 @@ public class GeneFiltererController extends PopUpController implements Initializ
         for (Cluster cluster : labelSetFilteringBy.getClusters()) {
             double expression = isoform.getAverageExpressionInCluster(cluster, false, false);
             int numExpressingCells = ControllerMediator.getInstance().getNumExpressingCells(isoform.getId(), cluster, false);
-            double percentExpressed = (double) numExpressingCells / cluster.getCells().size();
+            double percentExpressed = (double) numExpressingCells / cluster.getNumCells();
 
             if (savedCSECategories.contains(cluster)) {
                 if (expression < savedCSEMin || percentExpressed * 100 < savedCSEMinPercentExpressed)
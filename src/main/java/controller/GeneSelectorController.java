@@ -129,6 +129,13 @@ public class GeneSelectorController extends PopUpController implements Initializ
         return shownGenes;
     }
 
+    /**
+     * Returns all genes in the genes table (including ones filtered out of it)
+     */
+    public Collection<Gene> getGenes() {
+        return genes;
+    }
+
     public Collection<String> getShownGeneIDs() {
         return shownGenes.stream().map(Gene::getId).collect(Collectors.toList());
     }
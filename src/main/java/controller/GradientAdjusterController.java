@@ -1,5 +1,6 @@
 package controller;
 
+import cellplot.GradientLookupTable;
 import exceptions.RNAScoopException;
 import exceptions.InvalidExpressionCutOffException;
 import exceptions.GradientMinGreaterEqualMaxException;
@@ -193,21 +194,32 @@ public class GradientAdjusterController extends PopUpController implements Initi
      * */
     public Color getColorFromGradient(double expression) {
         Color minColor = minColorPicker.getValue();
-        Color midColor = midColorPicker.getValue();
         Color maxColor = maxColorPicker.getValue();
         if (expression <= gradientMin) {
             return minColor;
         } else if (expression >= gradientMax) {
             return maxColor;
         } else {
-            double t = getTForExpressionBetweenMaxMin(expression);
-            if (t <= 0.5)
-                return minColor.interpolate(midColor, t/0.5);
-            else
-                return midColor.interpolate(maxColor, (t - 0.5)/0.5);
+            return getColorAtT(getTForExpressionBetweenMaxMin(expression));
         }
     }
 
+    /**
+     * Returns lookup table of the gradient's colors at numColors evenly spaced points, for coloring
+     * many expression levels without interpolating colors for each one
+     */
+    public GradientLookupTable getGradientLookupTable(int numColors) {
+        int[] colors = new int[numColors];
+        for (int i = 0; i < numColors; i++) {
+            Color color = getColorAtT((double) i / (numColors - 1));
+            colors[i] = new java.awt.Color((int) Math.round(color.getRed() * 255),
+                                           (int) Math.round(color.getGreen() * 255),
+                                           (int) Math.round(color.getBlue() * 255)).getRGB();
+        }
+        boolean logarithmic = !getScaleOptionInUse().equals(GradientAdjusterController.LINEAR_SCALE_OPTION);
+        return new GradientLookupTable(colors, gradientMin, gradientMax, logarithmic);
+    }
+
     public LinearGradient getGradientFill() {
         Color minColor = minColorPicker.getValue();
         Color midColor = midColorPicker.getValue();
@@ -300,6 +312,19 @@ public class GradientAdjusterController extends PopUpController implements Initi
         return t;
     }
 
+    /**
+     * Returns color at the given position on the gradient (0 being the left, 1 being the right)
+     */
+    private Color getColorAtT(double t) {
+        Color minColor = minColorPicker.getValue();
+        Color midColor = midColorPicker.getValue();
+        Color maxColor = maxColorPicker.getValue();
+        if (t <= 0.5)
+            return minColor.interpolate(midColor, t/0.5);
+        else
+            return midColor.interpolate(maxColor, (t - 0.5)/0.5);
+    }
+
     public String getColorHexString(Color color) {
         return String.format( "#%02X%02X%02X%02X",
                 (int) (Math.round(color.getRed() * 255)),
@@ -961,7 +961,7 @@ public class IsoformPlotController implements Initializable, InteractiveElementC
                 Cluster cluster = iterator.next();
                 double expression = getIsoformExpressionInCluster(cluster, isoformGroup.getIsoform(), onlySelected);
                 int numExpressingCells = ControllerMediator.getInstance().getNumExpressingCells(isoformGroup.getIsoform().getId(), cluster, onlySelected);
-                int numCells = onlySelected? ControllerMediator.getInstance().getSelectedCellsInCluster(cluster).size() : cluster.getCells().size();
+                int numCells = onlySelected? ControllerMediator.getInstance().getSelectedCellsInCluster(cluster).size() : cluster.getNumCells();
 
                 Canvas dotPlotRowCircle = getDotPlotRowCircle(expression, numExpressingCells, numCells);
                 addExpressionLevelToolTip(expression, numExpressingCells, numCells, dotPlotRowCircle);
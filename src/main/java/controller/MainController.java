@@ -1,5 +1,6 @@
 package controller;
 
+import cellplot.DensityMode;
 import javafx.application.Platform;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
@@ -54,6 +55,12 @@ public class MainController implements InteractiveElementController {
     @FXML private CheckMenuItem showIsoformIDToggle;
     @FXML private CheckMenuItem showIsoformPlotLegendToggle;
     @FXML private CheckMenuItem colorCellPlotByIsoformToggle;
+    @FXML private CheckMenuItem drawHighExpressionOnTopToggle;
+    @FXML private CheckMenuItem showClusterContoursToggle;
+    @FXML private CheckMenuItem showClusterHexbinsToggle;
+    @FXML private RadioMenuItem drawEveryCellToggle;
+    @FXML private RadioMenuItem aggregateByCountToggle;
+    @FXML private RadioMenuItem aggregateByClusterToggle;
 
     private Stage window;
     private boolean clusterViewIsOpen;
@@ -221,6 +228,27 @@ public class MainController implements InteractiveElementController {
         return colorCellPlotByIsoformToggle.isSelected();
     }
 
+    public boolean isDrawingHighExpressionOnTop() {
+        return drawHighExpressionOnTopToggle.isSelected();
+    }
+
+    public boolean isShowingClusterContours() {
+        return showClusterContoursToggle.isSelected();
+    }
+
+    public boolean isShowingClusterHexbins() {
+        return showClusterHexbinsToggle.isSelected();
+    }
+
+    public DensityMode getCellPlotDensityMode() {
+        if (aggregateByCountToggle.isSelected())
+            return DensityMode.COUNT;
+        else if (aggregateByClusterToggle.isSelected())
+            return DensityMode.CLUSTER;
+        else
+            return DensityMode.OFF;
+    }
+
     public Window getMainWindow() {
         return window;
     }
@@ -266,6 +294,35 @@ public class MainController implements InteractiveElementController {
         }
     }
 
+    /**
+     * Appends cells from the file user selects from file chooser to the loaded dataset (on
+     * a different thread), and adds error/success messages to console
+     */
+    @FXML
+    protected void handleAppendCellsButton() {
+        if (ControllerMediator.getInstance().getNumCellsToPlot() == 0) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("A dataset must be loaded before cells can be appended to it");
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        FileChooser.ExtensionFilter jsonFilter = new FileChooser.ExtensionFilter("JSON Files", "*.json");
+        fileChooser.getExtensionFilters().add(jsonFilter);
+        File file = fileChooser.showOpenDialog(window);
+        if (file != null) {
+            disableAssociatedFunctionality();
+            try {
+                Thread cellAppenderThread = new Thread(() -> {
+                    Parser.appendCells(file.getPath());
+                    enableAssociatedFunctionality();
+                });
+                cellAppenderThread.start();
+            } catch (Exception e) {
+                enableAssociatedFunctionality();
+                ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+            }
+        }
+    }
+
     /**
      * Resets the current session to have all the default settings. Opens all panels,
      * clears all data, sets isoform view settings to default (basically sets screen so it's as if you're opening
@@ -381,6 +438,31 @@ public class MainController implements InteractiveElementController {
         }
     }
 
+    @FXML
+    protected void handleDrawHighExpressionOnTopToggle() {
+        ControllerMediator.getInstance().cellPlotHandleDrawOrderChange();
+    }
+
+    @FXML
+    protected void handleUndoCellSelectionButton() {
+        ControllerMediator.getInstance().undoCellSelection();
+    }
+
+    @FXML
+    protected void handleRedoCellSelectionButton() {
+        ControllerMediator.getInstance().redoCellSelection();
+    }
+
+    @FXML
+    protected void handleClusterOverlayToggle() {
+        ControllerMediator.getInstance().updateCellPlotOverlays();
+    }
+
+    @FXML
+    protected void handleDensityModeToggle() {
+        ControllerMediator.getInstance().updateCellPlotDensityMode();
+    }
+
     /**
      * When cluster view toggle is pressed, toggles visibility of the cluster view
      */
@@ -484,6 +566,9 @@ public class MainController implements InteractiveElementController {
         restoreShowIsoformIDToggle(prevSession);
         restoreShowIsoformPlotLegendToggle(prevSession);
         restoreColorCellPlotByIsoformToggle(prevSession);
+        restoreDrawHighExpressionOnTopToggle(prevSession);
+        restoreDensityModeToggles(prevSession);
+        restoreClusterOverlayToggles(prevSession);
     }
 
     /**
@@ -580,6 +665,44 @@ public class MainController implements InteractiveElementController {
         colorCellPlotByIsoformToggle.setSelected(wasColoringCellPlotByIsoform);
     }
 
+    /**
+     * If the draw high expression on top toggle was selected in the previous session (or the previous
+     * session didn't save it), selects it, else deselects it
+     */
+    private void restoreDrawHighExpressionOnTopToggle(JSONObject prevSession) {
+        boolean wasDrawingHighExpressionOnTop = !prevSession.has(SessionMaker.DRAW_HIGH_EXPRESSION_ON_TOP_KEY) ||
+                prevSession.getBoolean(SessionMaker.DRAW_HIGH_EXPRESSION_ON_TOP_KEY);
+        drawHighExpressionOnTopToggle.setSelected(wasDrawingHighExpressionOnTop);
+    }
+
+    /**
+     * Selects the density mode toggle that was selected in the previous session (or the draw every
+     * cell toggle, if the previous session didn't save one), deselects the rest
+     */
+    private void restoreDensityModeToggles(JSONObject prevSession) {
+        DensityMode prevDensityMode = (prevSession.has(SessionMaker.CELL_PLOT_DENSITY_MODE_KEY))?
+                DensityMode.valueOf(prevSession.getString(SessionMaker.CELL_PLOT_DENSITY_MODE_KEY)) : DensityMode.OFF;
+        if (prevDensityMode == DensityMode.COUNT)
+            aggregateByCountToggle.setSelected(true);
+        else if (prevDensityMode == DensityMode.CLUSTER)
+            aggregateByClusterToggle.setSelected(true);
+        else
+            drawEveryCellToggle.setSelected(true);
+    }
+
+    /**
+     * Selects the cluster contour and hexbin toggles if they were selected in the previous session (and
+     * saved), deselects them otherwise
+     */
+    private void restoreClusterOverlayToggles(JSONObject prevSession) {
+        boolean wasShowingClusterContours = prevSession.has(SessionMaker.SHOW_CLUSTER_CONTOURS_KEY) &&
+                prevSession.getBoolean(SessionMaker.SHOW_CLUSTER_CONTOURS_KEY);
+        boolean wasShowingClusterHexbins = prevSession.has(SessionMaker.SHOW_CLUSTER_HEXBINS_KEY) &&
+                prevSession.getBoolean(SessionMaker.SHOW_CLUSTER_HEXBINS_KEY);
+        showClusterContoursToggle.setSelected(wasShowingClusterContours);
+        showClusterHexbinsToggle.setSelected(wasShowingClusterHexbins);
+    }
+
     private void setViewTogglesToDefault() {
         revComplementToggle.setSelected(false);
         hideSingleExonIsoformsToggle.setSelected(false);
@@ -591,6 +714,10 @@ public class MainController implements InteractiveElementController {
         showIsoformIDToggle.setSelected(false);
         showIsoformPlotLegendToggle.setSelected(true);
         colorCellPlotByIsoformToggle.setSelected(false);
+        drawHighExpressionOnTopToggle.setSelected(true);
+        drawEveryCellToggle.setSelected(true);
+        showClusterContoursToggle.setSelected(false);
+        showClusterHexbinsToggle.setSelected(false);
     }
 
     /**
@@ -0,0 +1,159 @@
+package controller.clusterview;
+
+import labelset.Cluster;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Cells selected in the cell plot, as a bitmap indexed by cell number, so checking whether a cell is
+ * selected and counting the selected cells don't depend on how many are selected. The selected cells of
+ * a cluster are the AND of the selection and the cluster's bitmap, which is only computed once for each
+ * cluster, then kept up to date as cells are selected and deselected
+ */
+public class CellSelection {
+    private final BitSet selectedCells;
+    private final IntFunction<ClusterViewController.CellDataItem> cellLookup;
+    // selected cells of the clusters asked for since the selection last changed
+    private final Map<Cluster, BitSet> clusterSelections;
+    private int numSelectedCells;
+
+    /**
+     * @param cellLookup returns the cell with the given number
+     */
+    public CellSelection(IntFunction<ClusterViewController.CellDataItem> cellLookup) {
+        this.cellLookup = cellLookup;
+        selectedCells = new BitSet();
+        clusterSelections = new HashMap<>();
+    }
+
+    /**
+     * Selects the cell with the given number. Returns true if it wasn't already selected
+     */
+    public boolean select(int cellNumber) {
+        if (selectedCells.get(cellNumber))
+            return false;
+        selectedCells.set(cellNumber);
+        numSelectedCells++;
+        updateClusterSelections(cellNumber, true);
+        return true;
+    }
+
+    /**
+     * Deselects the cell with the given number. Returns true if it was selected
+     */
+    public boolean deselect(int cellNumber) {
+        if (!selectedCells.get(cellNumber))
+            return false;
+        selectedCells.clear(cellNumber);
+        numSelectedCells--;
+        updateClusterSelections(cellNumber, false);
+        return true;
+    }
+
+    /**
+     * Deselects every cell in the given cluster
+     */
+    public void deselect(Cluster cluster) {
+        selectedCells.andNot(cluster.getCellNumbers());
+        numSelectedCells = selectedCells.cardinality();
+        clusterSelections.clear();
+    }
+
+    /**
+     * Selects the cells with the given numbers, instead of the ones selected
+     */
+    public void set(BitSet cellNumbers) {
+        selectedCells.clear();
+        selectedCells.or(cellNumbers);
+        numSelectedCells = selectedCells.cardinality();
+        clusterSelections.clear();
+    }
+
+    public void clear() {
+        selectedCells.clear();
+        numSelectedCells = 0;
+        clusterSelections.clear();
+    }
+
+    /**
+     * Forgets the selected cells of each cluster, so they're computed again. Should be called when the
+     * cells in the clusters change (ex. a cluster was added or removed)
+     */
+    public void handleChangedClusters() {
+        clusterSelections.clear();
+    }
+
+    public boolean isSelected(int cellNumber) {
+        return selectedCells.get(cellNumber);
+    }
+
+    public boolean isEmpty() {
+        return numSelectedCells == 0;
+    }
+
+    public int getNumSelectedCells() {
+        return numSelectedCells;
+    }
+
+    public int getNumSelectedCellsInCluster(Cluster cluster) {
+        return getClusterSelection(cluster).cardinality();
+    }
+
+    /**
+     * Returns true if any cell in the given cluster is selected
+     */
+    public boolean isAnySelectedInCluster(Cluster cluster) {
+        return selectedCells.intersects(cluster.getCellNumbers());
+    }
+
+    /**
+     * Returns a copy of the bitmap of selected cells
+     */
+    public BitSet getSelectedCellNumbers() {
+        return (BitSet) selectedCells.clone();
+    }
+
+    /**
+     * Returns a bitmap of the selected cells in the given cluster. Shouldn't be modified, and changes
+     * with the selection
+     */
+    public BitSet getSelectedCellNumbersInCluster(Cluster cluster) {
+        return getClusterSelection(cluster);
+    }
+
+    /**
+     * Returns the selected cells. The returned set doesn't change with the selection
+     */
+    public CellSet getSelectedCells() {
+        return new CellSet(getSelectedCellNumbers(), numSelectedCells, cellLookup);
+    }
+
+    /**
+     * Returns the selected cells in the given cluster. The returned set doesn't change with the selection
+     */
+    public CellSet getSelectedCellsInCluster(Cluster cluster) {
+        BitSet clusterSelection = (BitSet) getClusterSelection(cluster).clone();
+        return new CellSet(clusterSelection, clusterSelection.cardinality(), cellLookup);
+    }
+
+    /**
+     * Selects or deselects the given cell in the selected cells of the cluster it's in (if they were computed)
+     */
+    private void updateClusterSelections(int cellNumber, boolean selected) {
+        for (Map.Entry<Cluster, BitSet> entry : clusterSelections.entrySet()) {
+            if (entry.getKey().getCellNumbers().get(cellNumber))
+                entry.getValue().set(cellNumber, selected);
+        }
+    }
+
+    private BitSet getClusterSelection(Cluster cluster) {
+        return clusterSelections.computeIfAbsent(cluster, key -> {
+            BitSet clusterSelection = (BitSet) selectedCells.clone();
+            clusterSelection.and(cluster.getCellNumbers());
+            return clusterSelection;
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package controller.clusterview;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+/**
+ * Unmodifiable set of cells backed by a bitmap of their numbers, so contains() and size() don't depend
+ * on the number of cells in it
+ */
+public class CellSet extends AbstractSet<ClusterViewController.CellDataItem> {
+    private final BitSet cellNumbers;
+    private final int size;
+    private final IntFunction<ClusterViewController.CellDataItem> cellLookup;
+
+    /**
+     * @param cellNumbers bitmap of the cells' numbers, which the set reads from (doesn't copy)
+     * @param size        number of cells in cellNumbers
+     * @param cellLookup  returns the cell with the given number
+     */
+    public CellSet(BitSet cellNumbers, int size, IntFunction<ClusterViewController.CellDataItem> cellLookup) {
+        this.cellNumbers = cellNumbers;
+        this.size = size;
+        this.cellLookup = cellLookup;
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        return object instanceof ClusterViewController.CellDataItem &&
+               cellNumbers.get(((ClusterViewController.CellDataItem) object).getCellNumber());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<ClusterViewController.CellDataItem> iterator() {
+        return new Iterator<ClusterViewController.CellDataItem>() {
+            private int nextCellNumber = cellNumbers.nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return nextCellNumber >= 0;
+            }
+
+            @Override
+            public ClusterViewController.CellDataItem next() {
+                if (nextCellNumber < 0)
+                    throw new NoSuchElementException();
+                ClusterViewController.CellDataItem cell = cellLookup.apply(nextCellNumber);
+                nextCellNumber = cellNumbers.nextSetBit(nextCellNumber + 1);
+                return cell;
+            }
+        };
+    }
+
+    /**
+     * Returns the numbers of the cells in this set, in ascending order
+     */
+    public int[] toCellNumbers() {
+        return cellNumbers.stream().toArray();
+    }
+}
@@ -1,60 +1,66 @@
 package controller.clusterview;
 
-import com.jujutsu.tsne.TSneConfiguration;
-import com.jujutsu.tsne.barneshut.BHTSne;
-import com.jujutsu.utils.TSneUtils;
+import cellplot.CellColorer;
+import cellplot.CellColoring;
+import cellplot.CellGrid;
+import cellplot.CellPlotCanvas;
+import cellplot.CellPlotDataset;
+import cellplot.CellPlotOverlay;
+import cellplot.CellPlotRasterizer;
+import cellplot.GradientLookupTable;
+import cellplot.CellSelectionHandler;
+import cellplot.ClusterDensityOverlay;
+import cellplot.DrawOrder;
+import cellplot.Viewport;
+import annotation.Gene;
 import controller.InteractiveElementController;
+import embedding.DatasetCache;
+import embedding.EmbeddingParameters;
+import embedding.LandmarkEmbedder;
+import embedding.NearestNeighborIndex;
+import embedding.OutOfSampleProjector;
+import exceptions.InvalidCellQueryException;
 import javafx.application.Platform;
-import javafx.embed.swing.SwingNode;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TextInputDialog;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import labelset.Cluster;
+import labelset.LabelSet;
 import mediator.ControllerMediator;
-import org.jfree.chart.ChartFactory;
-import org.jfree.chart.ChartPanel;
-import org.jfree.chart.JFreeChart;
-import org.jfree.chart.entity.ChartEntity;
-import org.jfree.chart.entity.DataItemEntity;
-import org.jfree.chart.entity.EntityCollection;
-import org.jfree.chart.entity.XYItemEntity;
-import org.jfree.chart.panel.selectionhandler.*;
-import org.jfree.chart.plot.XYPlot;
-import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
-import org.jfree.data.extension.DatasetSelectionExtension;
-import org.jfree.data.extension.impl.DatasetExtensionManager;
-import org.jfree.data.extension.impl.XYCursor;
-import org.jfree.data.extension.impl.XYDatasetSelectionExtension;
-import org.jfree.data.xy.XYDataItem;
-import org.jfree.data.xy.XYSeries;
-import org.jfree.data.xy.XYSeriesCollection;
 import org.json.JSONObject;
 import persistence.CurrentSession;
+import persistence.ExportWriter;
 import persistence.SessionMaker;
-import tagbio.umap.Umap;
+import query.CellQuery;
+import query.CellQueryParser;
 import ui.CategoryLabelsLegend;
-import util.Util;
 
-import javax.swing.*;
 import java.awt.*;
-import java.awt.event.MouseEvent;
 import java.awt.geom.*;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 import static javafx.application.Platform.runLater;
 
@@ -69,42 +75,35 @@ public class ClusterViewController implements Initializable, InteractiveElementC
     private static final boolean LEGEND_SHOW_ONLY_SELECTED = false;
     private static final boolean LEGEND_SHOW_BACKGROUND = true;
     private static final boolean LEGEND_IS_VERTICAL = true;
+    private static final String LASSO_SUMMARY_STYLE = "-fx-background-color: rgba(255, 255, 255, 0.85); -fx-padding: 5;";
+    private static final String CELL_QUERY_EXAMPLE = "ex. ISO-A > 5 and ISO-B == 0 and in \"T cells\"";
 
     @FXML private VBox clusterView;
     @FXML private Button drawPlotButton;
     @FXML private Button changeClusterLabelsButton;
     @FXML private Button clusterViewSettingsButton;
     @FXML private Button exportEmbeddingButton;
-    @FXML private SwingNode swingNode;
+    @FXML private Button selectByQueryButton;
     @FXML private StackPane plotHolder;
 
     private HashMap<String, Integer> isoformIndexMap;
     private double[][] cellIsoformExpressionMatrix;
+    // cells expressing each isoform (column) of the matrix
+    private ExpressionIndex expressionIndex;
     private double[][] embedding; // optional embedding user can load
-    private ChartPanel plot;
     private PlotRenderer plotRenderer;
+    private ClusterOverlayRenderer overlayRenderer;
     private ScrollPane legendHolder;
+    // shows how many cells are selected while a lasso is drawn
+    private Label lassoSummary;
     private CategoryLabelsLegend legend;
     private CellSelectionManager cellSelectionManager;
     private HashMap<Integer, CellDataItem> cellNumberCellMap;
-    private XYSeriesCollection cellsInPlot;
+    private CellPlotCanvas cellPlot;
+    private String lastCellSelectionQuery;
 
-    /**
-     * Makes plot repaint every time its holder resizes (otherwise doesn't on Windows),
-     * initializes cellsInPlot
-     */
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-        plotHolder.heightProperty().addListener((ov, oldValue, newValue) -> {
-            if (plot != null) {
-                // wrapping revalidate and repaint with runlater() helps
-                runLater(() -> {
-                    plot.revalidate();
-                    plot.repaint();
-                });
-            }
-        });
-        cellsInPlot = new XYSeriesCollection();
         cellNumberCellMap = new HashMap<>();
     }
 
@@ -123,6 +122,7 @@ public class ClusterViewController implements Initializable, InteractiveElementC
             changeClusterLabelsButton.setDisable(true);
             clusterViewSettingsButton.setDisable(true);
             exportEmbeddingButton.setDisable(true);
+            selectByQueryButton.setDisable(true);
         }
     }
 
@@ -135,12 +135,16 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         changeClusterLabelsButton.setDisable(false);
         clusterViewSettingsButton.setDisable(false);
         exportEmbeddingButton.setDisable(false);
+        selectByQueryButton.setDisable(false);
     }
 
     public void setCellIsoformExpressionMatrix(double[][] cellIsoformExpressionMatrix) {
         if (!isPlotCleared())
             clearPlot();
         this.cellIsoformExpressionMatrix = cellIsoformExpressionMatrix;
+        expressionIndex = (cellIsoformExpressionMatrix != null) ? ExpressionIndex.build(cellIsoformExpressionMatrix) : null;
+        DatasetCache.clear();
+        ControllerMediator.getInstance().clearEmbeddingSweep();
     }
 
     public void setIsoformIndexMap(HashMap<String, Integer> isoformIndexMap) {
@@ -155,18 +159,103 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         this.embedding = embedding;
     }
 
+    /**
+     * Appends given rows to the cell isoform expression matrix, and the cells they represent to every
+     * label set (labelSetLabels maps label set names to the new cells' labels in that label set).
+     * If the existing cells have positions (they're plotted, or an embedding was loaded), the new cells
+     * are projected into them using the current t-SNE/UMAP settings. Existing cells don't move.
+     * The new rows and positions are computed on the calling thread, then added to the matrix, label
+     * sets and plot all at once on the JavaFX application thread, so the plot can still be used while
+     * cells are appended. Should not be called on the JavaFX application thread
+     */
+    public void appendCells(double[][] newRows, Map<String, List<String>> labelSetLabels) throws InterruptedException, ExecutionException {
+        int numExistingCells = cellIsoformExpressionMatrix.length;
+        double[][] combinedMatrix = Arrays.copyOf(cellIsoformExpressionMatrix, numExistingCells + newRows.length);
+        System.arraycopy(newRows, 0, combinedMatrix, numExistingCells, newRows.length);
+        DatasetCache.appendRows(combinedMatrix, numExistingCells);
+
+        double[][] existingEmbedding = getCurrentEmbedding();
+        double[][] newEmbedding = null;
+        if (existingEmbedding != null) {
+            runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Projecting " + newRows.length + " new cells into the embedding..."));
+            newEmbedding = projectNewCells(combinedMatrix, numExistingCells, existingEmbedding);
+        }
+        ExpressionIndex combinedExpressionIndex = expressionIndex.append(newRows);
+        List<CellDataItem> newCells = new ArrayList<>(newRows.length);
+        for (int i = 0; i < newRows.length; i++)
+            newCells.add(new CellDataItem(combinedMatrix[numExistingCells + i], numExistingCells + i));
+
+        double[][] newCellsEmbedding = newEmbedding;
+        FutureTask<Boolean> addNewCells = new FutureTask<>(() -> {
+            cellIsoformExpressionMatrix = combinedMatrix;
+            expressionIndex = combinedExpressionIndex;
+            if (embedding != null) {
+                embedding = Arrays.copyOf(embedding, combinedMatrix.length);
+                System.arraycopy(newCellsEmbedding, 0, embedding, numExistingCells, newRows.length);
+            }
+            for (LabelSet labelSet : ControllerMediator.getInstance().getLabelSets())
+                labelSet.appendCells(labelSetLabels.get(labelSet.getName()), numExistingCells, newRows.length);
+            if (isPlotCleared())
+                return false;
+            addCellsToPlot(newCellsEmbedding, numExistingCells, newCells);
+            return true;
+        });
+        runLater(addNewCells);
+        // the max fold changes are calculated from the clusters the new cells were added to
+        if (addNewCells.get()) {
+            ControllerMediator.getInstance().calculateAndSaveMaxFoldChange(ControllerMediator.getInstance().getLabelSets());
+            ControllerMediator.getInstance().updateGenesMaxFoldChange();
+            ControllerMediator.getInstance().updateFilterCellCategories();
+            runLater(this::redrawPlot);
+        }
+    }
+
+    /**
+     * Embeds the cells with the given parameters, using at most numThreads threads. If the user chose a
+     * number of landmarks (smaller than the number of cells), only the landmarks are embedded, and the rest
+     * of the cells are placed based on their nearest landmarks. Should not be called on the JavaFX
+     * application thread
+     */
+    public double[][] embedCells(EmbeddingParameters parameters, int numThreads) {
+        double[][] matrix = cellIsoformExpressionMatrix;
+        selectHighlyVariableIsoforms(matrix);
+        double[][] reducedMatrix = DatasetCache.getReducedMatrix(matrix);
+        int numLandmarks = ControllerMediator.getInstance().getNumLandmarks();
+        if (numLandmarks <= 0 || numLandmarks >= reducedMatrix.length)
+            return parameters.embed(reducedMatrix, numThreads);
+
+        int[] landmarks = LandmarkEmbedder.chooseLandmarks(reducedMatrix.length, numLandmarks, getLandmarkStrata(reducedMatrix.length));
+        double[][] landmarkMatrix = new double[landmarks.length][];
+        for (int i = 0; i < landmarks.length; i++)
+            landmarkMatrix[i] = reducedMatrix[landmarks[i]];
+        runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Embedding " + landmarks.length + " landmark cells..."));
+        double[][] landmarkEmbedding = parameters.embed(landmarkMatrix, numThreads);
+        return LandmarkEmbedder.interpolate(reducedMatrix, landmarks, landmarkEmbedding);
+    }
+
+    /**
+     * Returns the embedding algorithm and parameters in the saved cluster view settings
+     */
+    public EmbeddingParameters getEmbeddingParameters() {
+        if (ControllerMediator.getInstance().usingUMAPSettings())
+            return EmbeddingParameters.umap(ControllerMediator.getInstance().getMinDist(), ControllerMediator.getInstance().getNearestNeighbors());
+        else
+            return EmbeddingParameters.tSNE(ControllerMediator.getInstance().getPerplexity(), ControllerMediator.getInstance().getMaxIterations());
+    }
+
     public void clearPlot() {
         if (!isPlotCleared()) {
-            JPanel whiteBackground = new JPanel();
-            whiteBackground.setBackground(Color.WHITE);
-            swingNode.setContent(whiteBackground);
-            plotHolder.getChildren().remove(legendHolder);
-            plot = null;
+            // any draw still pending shouldn't look up cells that are gone
+            cellPlot.setColorer(null);
+            cellPlot.dispose();
+            overlayRenderer.dispose();
+            plotHolder.getChildren().removeAll(cellPlot, legendHolder, lassoSummary);
+            cellPlot = null;
             plotRenderer = null;
+            overlayRenderer = null;
             legendHolder = null;
             legend = null;
             cellSelectionManager = null;
-            cellsInPlot.removeAllSeries();
             cellNumberCellMap.clear();
             ControllerMediator.getInstance().clearLabelSetClusterCells();
             ControllerMediator.getInstance().labelSetManagerHandleClearedCellPlot();
@@ -182,8 +271,7 @@ public class ClusterViewController implements Initializable, InteractiveElementC
 
             if (areCellsSelected())
                 clearSelectedCellsAndRedrawPlot();
-            else
-                redrawPlotSansLegend();
+            redrawIsoformColoring();
 
         } else if (!isPlotCleared()) {
             cellSelectionManager.selectCellsSelectedIsoformsExpressedIn();
@@ -198,21 +286,23 @@ public class ClusterViewController implements Initializable, InteractiveElementC
     public void handleClusterAddedFromSelectedCells() {
         if (!isPlotCleared()) {
             cellSelectionManager.handleClusterAddedFromSelectedCells();
-            redrawPlot();
+            overlayRenderer.invalidate(ControllerMediator.getInstance().getLabelSetInUse());
+            redrawPlotWithNewClusters();
         }
     }
 
     public void handleRemovedCluster(Cluster removedCluster, Cluster clusterMergedInto) {
         if (!isPlotCleared()) {
             cellSelectionManager.handleRemovedCluster(removedCluster, clusterMergedInto);
-            redrawPlot();
+            overlayRenderer.invalidate(ControllerMediator.getInstance().getLabelSetInUse());
+            redrawPlotWithNewClusters();
         }
     }
 
     public void handleChangedLabelSetInUse(){
         if (!isPlotCleared()) {
             cellSelectionManager.handleChangedLabelSet();
-            redrawPlot();
+            redrawPlotWithNewClusters();
         }
     }
 
@@ -221,13 +311,40 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         redrawLegend();
     }
 
+    /**
+     * Redraws the plot after the clusters of the label set in use changed. Cached parts of the plot
+     * colored by isoform don't depend on the clusters, so are kept
+     */
+    private void redrawPlotWithNewClusters() {
+        plotRenderer.invalidateCellClusters();
+        cellPlot.redrawClusterColoring();
+        redrawLegend();
+    }
+
+    /**
+     * Redraws the plot after the isoform it's colored by (or that isoform's gradient) changed. Cached
+     * parts of the plot colored by cluster are kept
+     */
+    private void redrawIsoformColoring() {
+        if (!isPlotCleared())
+            cellPlot.redrawValueColoring();
+    }
+
     public void drawPlot() {
+        drawPlot(null);
+    }
+
+    /**
+     * Draws plot with cells at the given positions (e.g. an embedding made by a parameter sweep), so the
+     * cells aren't embedded again. If precomputedEmbedding is null, cells are embedded as usual
+     */
+    public void drawPlot(double[][] precomputedEmbedding) {
         clearPlot();
         ControllerMediator.getInstance().deselectAllIsoforms();
         ControllerMediator.getInstance().updateIsoformPlot(false);
         disableAssociatedFunctionality();
         try {
-            Thread plotMaker = new Thread(new PlotMaker());
+            Thread plotMaker = new Thread(new PlotMaker(precomputedEmbedding));
             plotMaker.start();
         } catch (Exception e) {
             enableAssociatedFunctionality();
@@ -255,15 +372,111 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         cellSelectionManager.clearSelection();
     }
 
+    /**
+     * Selects the cells matching the given query (see CellQueryParser), instead of the ones selected. The
+     * query is evaluated on a pool of worker threads, and the selection changed once it's done
+     */
+    public void selectCellsMatchingQuery(String query) {
+        if (isPlotCleared()) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("Cell plot must be drawn to select cells by query");
+            return;
+        }
+        lastCellSelectionQuery = query;
+        CellQuery cellQuery;
+        try {
+            cellQuery = new CellQueryParser(new CellQueryContext()).parse(query);
+        } catch (InvalidCellQueryException e) {
+            ControllerMediator.getInstance().addConsoleErrorMessage(e.getMessage());
+            return;
+        }
+
+        double[][] matrix = cellIsoformExpressionMatrix;
+        ExpressionIndex index = expressionIndex;
+        CellSelectionManager selectionManager = cellSelectionManager;
+        Thread queryEvaluator = new Thread(() -> {
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                BitSet matchingCells = cellQuery.evaluate(matrix, index, pool);
+                runLater(() -> {
+                    // the plot might have been redrawn while the query was evaluated
+                    if (cellSelectionManager == selectionManager) {
+                        selectionManager.selectCells(matchingCells);
+                        ControllerMediator.getInstance().addConsoleMessage("Selected " + String.format("%,d", matchingCells.cardinality()) +
+                                                                           " cells matching query: " + query);
+                    }
+                });
+            } catch (Exception e) {
+                runLater(() -> ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e));
+            } finally {
+                pool.shutdown();
+            }
+        });
+        queryEvaluator.setDaemon(true);
+        queryEvaluator.start();
+    }
+
+    /**
+     * Sets how the plot draws regions too dense to show every cell in to the mode selected in
+     * the view menu, and redraws the plot
+     */
+    public void updateDensityMode() {
+        if (!isPlotCleared())
+            cellPlot.setDensityMode(ControllerMediator.getInstance().getCellPlotDensityMode());
+    }
+
+    /**
+     * Shows or hides the cluster density contours and hexbin summary drawn over the plot, depending on
+     * which of them are selected in the view menu
+     */
+    public void updateOverlays() {
+        if (!isPlotCleared())
+            cellPlot.redrawOverlay();
+    }
+
+    /**
+     * Redraws only the selected cells in the plot (the rest of the cells are unchanged)
+     */
+    public void redrawSelection() {
+        if (!isPlotCleared())
+            cellPlot.redrawHighlights();
+    }
+
+    /**
+     * Shows the given summary of the cells being lassoed in the bottom left corner of the plot, or hides
+     * it if summary is null
+     */
+    private void updateLassoSummary(String summary) {
+        if (isPlotCleared())
+            return;
+        if (lassoSummary == null) {
+            lassoSummary = new Label();
+            lassoSummary.setStyle(LASSO_SUMMARY_STYLE);
+            lassoSummary.setMouseTransparent(true);
+            StackPane.setAlignment(lassoSummary, Pos.BOTTOM_LEFT);
+        }
+        if (summary != null) {
+            lassoSummary.setText(summary);
+            if (!plotHolder.getChildren().contains(lassoSummary))
+                plotHolder.getChildren().add(lassoSummary);
+        } else {
+            plotHolder.getChildren().remove(lassoSummary);
+        }
+    }
+
     public void redrawPlotSansLegend() {
         if (!isPlotCleared())
             plotRenderer.updateOutlineAndRedraw();
     }
 
+    /**
+     * Writes the embedding in use to the given directory, unless its file was already saved and it
+     * hasn't changed since
+     */
     public void exportEmbeddingToFile(String pathToDir) throws IOException {
-        if (!isPlotCleared() && !CurrentSession.isEmbeddingSaved()) {
+        double[][] currentEmbedding = getCurrentEmbedding();
+        if (currentEmbedding != null && !CurrentSession.isEmbeddingSaved(getEmbeddingHash(currentEmbedding))) {
             Files.createDirectories(Paths.get(pathToDir));
-            exportEmbeddingToFile(new File(pathToDir + File.separator + "embedding.txt"));
+            exportEmbeddingToFile(new File(pathToDir + File.separator + "embedding.txt"), currentEmbedding);
         }
     }
 
@@ -272,6 +485,7 @@ public class ClusterViewController implements Initializable, InteractiveElementC
      * information corresponds to the previous session
      */
     public void restoreClusterViewFromPrevSession(JSONObject prevSession) {
+        lastCellSelectionQuery = prevSession.has(SessionMaker.CELL_SELECTION_QUERY_KEY) ? prevSession.getString(SessionMaker.CELL_SELECTION_QUERY_KEY) : null;
         if (!prevSession.getBoolean(SessionMaker.CELL_PLOT_CLEARED_KEY)) {
             Platform.runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Drawing previous session cell plot"));
             PlotMaker plotMaker = new PlotMaker();
@@ -294,7 +508,14 @@ public class ClusterViewController implements Initializable, InteractiveElementC
     }
 
     public boolean isPlotCleared() {
-        return plot == null;
+        return cellPlot == null;
+    }
+
+    /**
+     * Returns the last query cells were selected by (null if there wasn't one)
+     */
+    public String getLastCellSelectionQuery() {
+        return lastCellSelectionQuery;
     }
 
     public Map<Integer, CellDataItem> getCellNumberCellMap() {
@@ -303,44 +524,126 @@ public class ClusterViewController implements Initializable, InteractiveElementC
 
     public boolean areCellsSelected() {
         if (!isPlotCleared())
-            return cellSelectionManager.getSelectedCells().size() > 0;
+            return !cellSelectionManager.getSelection().isEmpty();
         return false;
     }
 
-    public Collection<Integer> getSelectedCellNumbers() {
-        return getCells(true).stream().map(CellDataItem::getCellNumber).collect(Collectors.toList());
+    /**
+     * Returns the cell with the given number (null if the plot is cleared)
+     */
+    public CellDataItem getCell(int cellNumber) {
+        return cellNumberCellMap.get(cellNumber);
+    }
+
+    /**
+     * Returns a bitmap of the selected cells' numbers
+     */
+    public BitSet getSelectedCellNumbers() {
+        if (isPlotCleared())
+            return new BitSet();
+        return cellSelectionManager.getSelection().getSelectedCellNumbers();
+    }
+
+    /**
+     * Returns the selected cells, encoded as a compressed bitmap (see CompressedBitmap.encode())
+     */
+    public String getEncodedCellSelection() {
+        if (isPlotCleared())
+            return CompressedBitmap.of(new BitSet()).encode();
+        return CompressedBitmap.of(getSelectedCellNumbers()).encode();
+    }
+
+    /**
+     * Goes back to the selection before the current one (if there is one)
+     */
+    public void undoCellSelection() {
+        if (!isPlotCleared())
+            cellSelectionManager.undo();
+    }
+
+    /**
+     * Goes forward to the selection last undone (if there is one)
+     */
+    public void redoCellSelection() {
+        if (!isPlotCleared())
+            cellSelectionManager.redo();
     }
 
     public Collection<String> getSelectedCellCategoryNames() {
         return !isPlotCleared()? legend.getSelectedCategoryNames() : new ArrayList<>();
     }
 
+    public double[][] getCellIsoformExpressionMatrix() {
+        return cellIsoformExpressionMatrix;
+    }
+
+    public HashMap<String, Integer> getIsoformIndexMap() {
+        return isoformIndexMap;
+    }
+
+    /**
+     * Returns IDs of the highly variable isoforms used as embedding input, from most to least variable
+     * (empty if all isoforms are used)
+     */
+    public Collection<String> getHighlyVariableIsoformIDs() {
+        int[] selectedColumns = DatasetCache.getSelectedColumns();
+        List<String> highlyVariableIsoformIDs = new ArrayList<>();
+        if (selectedColumns != null && isoformIndexMap != null) {
+            String[] isoformIDs = new String[isoformIndexMap.size()];
+            for (Map.Entry<String, Integer> isoformIndex : isoformIndexMap.entrySet())
+                isoformIDs[isoformIndex.getValue()] = isoformIndex.getKey();
+            for (int column : selectedColumns)
+                highlyVariableIsoformIDs.add(isoformIDs[column]);
+        }
+        return highlyVariableIsoformIDs;
+    }
+
+    /**
+     * Uses isoforms with the given IDs (e.g. the ones selected in a previous session) as the highly
+     * variable isoforms. Assumes matrix and isoform index map have been loaded
+     */
+    public void setHighlyVariableIsoformIDs(Collection<String> highlyVariableIsoformIDs) {
+        if (isoformIndexMap == null)
+            return;
+        int[] selectedColumns = highlyVariableIsoformIDs.stream().filter(isoformIndexMap::containsKey)
+                .mapToInt(isoformIndexMap::get).toArray();
+        if (selectedColumns.length > 0)
+            DatasetCache.setSelectedColumns(cellIsoformExpressionMatrix, selectedColumns, selectedColumns.length);
+    }
+
     public int getNumCellsToPlot() {
         if (cellIsoformExpressionMatrix != null)
             return cellIsoformExpressionMatrix.length;
         return 0;
     }
 
+    /**
+     * Returns the number of cells in the given cluster (only the selected ones, if onlySelected) that
+     * express the isoform with the given ID, from the expression index
+     */
     public int getNumExpressingCells(String isoformID, Cluster cluster, boolean onlySelected) {
-        int numExpressingCells = 0;
-        Collection<ClusterViewController.CellDataItem> cellsInCluster;
-        if (onlySelected)
-            cellsInCluster = getSelectedCellsInCluster(cluster);
-        else
-            cellsInCluster = cluster.getCells();
+        Integer isoformIndex = isoformIndexMap.get(isoformID);
+        if (isoformIndex == null || (onlySelected && isPlotCleared()))
+            return 0;
+        BitSet cells = onlySelected ? cellSelectionManager.getSelection().getSelectedCellNumbersInCluster(cluster) : cluster.getCellNumbers();
+        return expressionIndex.getNumExpressingCells(isoformIndex, cells);
+    }
 
-        for (ClusterViewController.CellDataItem selectedCell : cellsInCluster) {
-            if (selectedCell.getIsoformExpressionLevel(isoformID) > 0)
-                numExpressingCells++;
-        }
-        return numExpressingCells;
+    /**
+     * Returns the average expression of the isoform with the given ID in the selected cells of the given
+     * cluster (or in all selected cells, if cluster is null), from the running selection statistics
+     */
+    public double getAverageExpressionInSelectedCells(String isoformID, Cluster cluster, boolean includeZeros) {
+        if (isPlotCleared())
+            return 0;
+        return cellSelectionManager.getSelectionStatistics().getAverageExpression(isoformID, cluster, includeZeros);
     }
 
     public Collection<CellDataItem> getCells(boolean onlySelected) {
         if (isPlotCleared())
             return new HashSet<>();
         else if (onlySelected)
-            return cellSelectionManager.getSelectedCells().values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
+            return cellSelectionManager.getSelection().getSelectedCells();
         else
             return cellNumberCellMap.values();
     }
@@ -360,9 +663,21 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         return cellSelectionManager.getSelectedCellsInCluster(cluster);
     }
 
-    public void handleColoringChange() {
+    /**
+     * Redraws the plot after the user changed whether the cells expressing the isoform the plot is
+     * colored by the most are drawn on top
+     */
+    public void handleDrawOrderChange() {
         if (!isPlotCleared() && plotRenderer.isColoringByIsoform())
-            redrawPlotSansLegend();
+            redrawIsoformColoring();
+    }
+
+    public void handleColoringChange() {
+        if (!isPlotCleared()) {
+            plotRenderer.invalidateIsoformColors();
+            if (plotRenderer.isColoringByIsoform())
+                redrawIsoformColoring();
+        }
     }
 
     /**
@@ -390,6 +705,20 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         ControllerMediator.getInstance().displayClusterViewSettings();
     }
 
+    /**
+     * When select cells by query button is pressed, asks for a query (starting from the last one), and
+     * selects the cells matching it
+     */
+    @FXML
+    protected void handleSelectByQueryButton() {
+        TextInputDialog queryDialog = new TextInputDialog(lastCellSelectionQuery);
+        queryDialog.initOwner(ControllerMediator.getInstance().getMainWindow());
+        queryDialog.setTitle("Select Cells by Query");
+        queryDialog.setHeaderText(CELL_QUERY_EXAMPLE);
+        queryDialog.setContentText("Query:");
+        queryDialog.showAndWait().ifPresent(this::selectCellsMatchingQuery);
+    }
+
     /**
      * When export embedding button is pressed, if cell plot is drawn, exports
      * embedding in use to file
@@ -403,7 +732,7 @@ public class ClusterViewController implements Initializable, InteractiveElementC
             fileChooser.setInitialFileName("embedding.txt");
             File embeddingFile = fileChooser.showSaveDialog(ControllerMediator.getInstance().getMainWindow());
             if (embeddingFile != null)
-                exportEmbeddingToFile(embeddingFile);
+                exportEmbeddingToFile(embeddingFile, getCurrentEmbedding());
         } else {
             ControllerMediator.getInstance().addConsoleErrorMessage("No embedding currently in use");
         }
@@ -418,6 +747,7 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         ControllerMediator.getInstance().disableClusterViewSettings();
         ControllerMediator.getInstance().disableLabelSetManager();
         ControllerMediator.getInstance().disableGeneFilterer();
+        ControllerMediator.getInstance().disableEmbeddingSweep();
         // doesn't disable add label set view because plot should be
         // disabled when that view is active
     }
@@ -431,6 +761,7 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         ControllerMediator.getInstance().enableClusterViewSettings();
         ControllerMediator.getInstance().enableLabelSetManager();
         ControllerMediator.getInstance().enableGeneFilterer();
+        ControllerMediator.getInstance().enableEmbeddingSweep();
     }
 
     private void selectCategoriesSelectedInPrevSession(JSONObject prevSession) {
@@ -439,34 +770,137 @@ public class ClusterViewController implements Initializable, InteractiveElementC
             legend.selectCategoryWithGivenName(categoryToSelect, false, false);
     }
 
+    /**
+     * Selects the cells selected in the previous session. Sessions saved before the selection was saved as
+     * a compressed bitmap have a list of the selected cells' numbers instead
+     */
     private void selectCellsSelectedInPrevSession(JSONObject prevSession) {
-        Collection<Integer> cellsToSelect = (List<Integer>)(List<?>) prevSession.getJSONArray(SessionMaker.CELLS_SELECTED_KEY).toList();
-        cellSelectionManager.selectCellsWithGivenNumbers(cellsToSelect);
+        if (prevSession.has(SessionMaker.CELL_SELECTION_KEY)) {
+            try {
+                CompressedBitmap cellsToSelect = CompressedBitmap.decode(prevSession.getString(SessionMaker.CELL_SELECTION_KEY));
+                cellSelectionManager.restoreSelection(cellsToSelect);
+            } catch (IOException | IllegalArgumentException e) {
+                Platform.runLater(() -> ControllerMediator.getInstance().addConsoleErrorMessage("Could not restore the cells selected in the previous session"));
+            }
+        } else if (prevSession.has(SessionMaker.CELLS_SELECTED_KEY)) {
+            Collection<Integer> cellsToSelect = (List<Integer>)(List<?>) prevSession.getJSONArray(SessionMaker.CELLS_SELECTED_KEY).toList();
+            cellSelectionManager.selectCellsWithGivenNumbers(cellsToSelect);
+        }
     }
 
     /**
-     * Writes embedding used to generate cell plot to given file
+     * Returns the positions of the cells in the plot, or the loaded embedding if the plot is cleared
+     * (null if there's neither)
      */
-    private void exportEmbeddingToFile(File embeddingFile) {
-        StringBuilder embedding = new StringBuilder();
-        for (CellDataItem cellDataItem : getCells(false))
-            embedding.append(cellDataItem.getX()).append("\t").append(cellDataItem.getY()).append("\n");
+    public double[][] getCurrentEmbedding() {
+        if (isPlotCleared())
+            return embedding;
+        CellPlotDataset cells = cellPlot.getCells();
+        double[][] currentEmbedding = new double[cells.getNumCells()][];
+        for (int cellNumber = 0; cellNumber < currentEmbedding.length; cellNumber++)
+            currentEmbedding[cellNumber] = new double[]{cells.getXs()[cellNumber], cells.getYs()[cellNumber]};
+        return currentEmbedding;
+    }
 
+    /**
+     * Selects the number of highly variable isoforms chosen by the user as the embedding input (if they
+     * weren't already), and lists them in the console
+     */
+    private void selectHighlyVariableIsoforms(double[][] matrix) {
+        int numHighlyVariableIsoforms = ControllerMediator.getInstance().getNumHighlyVariableIsoforms();
+        if (DatasetCache.selectHighlyVariableColumns(matrix, numHighlyVariableIsoforms)) {
+            List<String> highlyVariableIsoformIDs = new ArrayList<>(getHighlyVariableIsoformIDs());
+            if (highlyVariableIsoformIDs.size() > 0) {
+                String mostVariable = String.join(", ", highlyVariableIsoformIDs.subList(0, Math.min(10, highlyVariableIsoformIDs.size())));
+                runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Embedding input is the " + highlyVariableIsoformIDs.size() +
+                        " most highly variable isoforms (most variable: " + mostVariable + ")"));
+            } else {
+                runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Embedding input is all isoforms"));
+            }
+        }
+    }
+
+    /**
+     * Returns, for each of the given number of cells, the number of the cluster it belongs to in the label
+     * set in use (landmarks are balanced across these clusters), or null if there is no label set in use
+     */
+    private int[] getLandmarkStrata(int numCells) {
+        LabelSet labelSetInUse = ControllerMediator.getInstance().getLabelSetInUse();
+        if (labelSetInUse == null)
+            return null;
+        Map<Cluster, Integer> clusterNumbers = new HashMap<>();
+        int[] strata = new int[numCells];
+        for (int cellNumber = 0; cellNumber < numCells; cellNumber++) {
+            Cluster cluster = labelSetInUse.getCellCluster(cellNumber);
+            strata[cellNumber] = clusterNumbers.computeIfAbsent(cluster, labelSetInUse::getClusterNumber);
+        }
+        return strata;
+    }
+
+    /**
+     * Returns positions of the cells after the first numExistingCells of the given matrix, projected into
+     * the existing cells' embedding. Their neighbors are looked up in the existing cells' cached index
+     */
+    private double[][] projectNewCells(double[][] combinedMatrix, int numExistingCells, double[][] existingEmbedding) {
+        double[][] reducedMatrix = DatasetCache.getReducedMatrix(combinedMatrix);
+        if (ControllerMediator.getInstance().usingUMAPSettings()) {
+            int nearestNeighbors = ControllerMediator.getInstance().getNearestNeighbors();
+            NearestNeighborIndex existingCellIndex = DatasetCache.getNearestNeighborIndex(combinedMatrix, numExistingCells, nearestNeighbors);
+            OutOfSampleProjector projector = new OutOfSampleProjector(reducedMatrix, numExistingCells, existingEmbedding, existingCellIndex);
+            return projector.projectUMAP(nearestNeighbors, ControllerMediator.getInstance().getMinDist());
+        } else {
+            double perplexity = ControllerMediator.getInstance().getPerplexity();
+            NearestNeighborIndex existingCellIndex = DatasetCache.getNearestNeighborIndex(combinedMatrix, numExistingCells, (int) (3 * perplexity));
+            OutOfSampleProjector projector = new OutOfSampleProjector(reducedMatrix, numExistingCells, existingEmbedding, existingCellIndex);
+            return projector.projectTSNE(perplexity);
+        }
+    }
+
+    /**
+     * Adds the given cells (numbered firstCellNumber onwards) to the plot (newEmbedding has their
+     * positions), and to the clusters they belong to. Should be called on the JavaFX application thread
+     */
+    private void addCellsToPlot(double[][] newEmbedding, int firstCellNumber, List<CellDataItem> newCells) {
+        for (CellDataItem cell : newCells)
+            cellNumberCellMap.put(cell.getCellNumber(), cell);
+        for (LabelSet labelSet : ControllerMediator.getInstance().getLabelSets())
+            labelSet.addCellsToClusters(firstCellNumber, newCells.size());
+        cellPlot.appendCells(newEmbedding);
+        overlayRenderer.clear();
+    }
+
+    /**
+     * Writes given embedding (the one used to generate cell plot) to given file
+     */
+    private void exportEmbeddingToFile(File embeddingFile, double[][] currentEmbedding) {
         try {
-            FileWriter fileWriter = new FileWriter(embeddingFile);
-            fileWriter.write(embedding.toString());
-            fileWriter.close();
+            ExportWriter.writeRows(embeddingFile, currentEmbedding.length, (cellNumber, embeddingText) ->
+                embeddingText.append(currentEmbedding[cellNumber][0]).append("\t").append(currentEmbedding[cellNumber][1]).append("\n")
+            );
             ControllerMediator.getInstance().addConsoleMessage("Exported embedding to: " + embeddingFile.getPath());
-            CurrentSession.saveEmbeddingPath(embeddingFile.getAbsolutePath());
+            CurrentSession.saveEmbeddingPath(embeddingFile.getAbsolutePath(), getEmbeddingHash(currentEmbedding));
         } catch (IOException e) {
             ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
         }
     }
 
+    /**
+     * Returns a hash of the given embedding's coordinates, used to check whether it changed since it
+     * was last saved
+     */
+    private static long getEmbeddingHash(double[][] embedding) {
+        long hash = 1125899906842597L;
+        for (double[] cellCoords : embedding) {
+            for (double coord : cellCoords)
+                hash = 31 * hash + Double.doubleToLongBits(coord);
+        }
+        return hash;
+    }
+
     /**
      * Represents a cell in the plot
      */
-    public class CellDataItem extends XYDataItem {
+    public class CellDataItem {
         /**
          * Each number is the level of expression of some isoform in this cell.
          */
@@ -474,12 +908,11 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         /**
          * The row in the cell isoform expression matrix that this cell represents
          * (first row is represented by cell 0). This is also the index of this cell in the
-         * series that is used to plot the plot
+         * plot's dataset
          */
         private int cellNumber;
 
-        private CellDataItem(Number x, Number y, double[] isoformExpressionLevels, int cellNumber) {
-            super(x, y);
+        private CellDataItem(double[] isoformExpressionLevels, int cellNumber) {
             this.isoformExpressionLevels = isoformExpressionLevels;
             this.cellNumber = cellNumber;
         }
@@ -504,69 +937,174 @@ public class ClusterViewController implements Initializable, InteractiveElementC
     }
 
     /**
-     * Is the plot lasso selection tool
+     * Colors the cells in the plot. Only used on the JavaFX application thread: the plot is drawn (on
+     * background threads too) from the immutable CellColoring returned by startDrawing()
      */
-    private class PlotFreeRegionSelectionHandler extends FreeRegionSelectionHandler {
-        @Override
-        public void mousePressed(MouseEvent e) {
-            super.mousePressed(e);
-            if (ControllerMediator.getInstance().areIsoformGraphicsSelected()) {
-                runLater(() -> {
-                    ControllerMediator.getInstance().deselectAllIsoforms();
-                    if (ControllerMediator.getInstance().isColoringCellPlotBySelectedIsoform())
-                        redrawPlotSansLegend();
-                });
-            }
+    private class PlotRenderer implements CellColorer {
+        private static final double DEFAULT_OUTLINE_WIDTH = 2;
+        private static final int GRADIENT_LOOKUP_TABLE_SIZE = 1024;
+        private static final double COLORING_BY_ISOFORM_OUTLINE_WIDTH = 0.5;
+        private final int COLORING_BY_ISOFORM_OUTLINE_COLOR = Color.BLACK.getRGB();
+        private final int SELECTED_CELL_FILL_COLOR = Color.WHITE.getRGB();
+
+        private final CellPlotDataset cells;
+
+        private boolean coloringByIsoform;
+        private String isoformColoringBy;
+        // index of the cluster (in clustersInUse) each cell belongs to in the label set in use, only
+        // recomputed when the label set in use or its clusters change
+        private int[] cellClusterIndices;
+        private LabelSet cellClusterIndicesLabelSet;
+        private List<Cluster> clustersInUse;
+        // expression of the isoform the plot is colored by in each cell, only recomputed when the isoform changes
+        private double[] isoformExpression;
+        private String isoformExpressionIsoform;
+        // colors of the cells when coloring by isoform, only recomputed when the isoform or gradient changes
+        private int[] isoformColors;
+        private String isoformColorsIsoform;
+        private GradientLookupTable gradientLookupTable;
+        // order of the cells when coloring by isoform (highest expression drawn last), only recomputed when the isoform changes
+        private DrawOrder isoformDrawOrder;
+        private String isoformDrawOrderIsoform;
+
+        public PlotRenderer(CellPlotDataset cells) {
+            this.cells = cells;
         }
-    }
 
-    private class PlotRenderer extends XYLineAndShapeRenderer {
-        private final BasicStroke DEFAULT_BASIC_STROKE = new BasicStroke(2f);
-        private final BasicStroke COLORING_BY_ISOFORM_BASIC_STROKE = new BasicStroke(0.5f);
-        private final Shape CELL_SHAPE = new Ellipse2D.Double(0, 0, 6.5, 6.5);
+        /**
+         * Returns a snapshot of the cells' colors. Everything in it is either rebuilt for the snapshot
+         * (cluster colors) or cached until it changes and then replaced, never modified, so draws still
+         * using an older snapshot aren't affected by changes
+         */
+        @Override
+        public CellColoring startDrawing() {
+            int numCells = cells.getNumCells();
+            coloringByIsoform = isColoringByIsoform();
+            if (coloringByIsoform) {
+                isoformColoringBy = ControllerMediator.getInstance().getSelectedIsoformIDs().iterator().next();
+                double[] isoformExpression = getIsoformExpression(numCells);
+                if (isoformColors == null || isoformColors.length != numCells || !isoformColoringBy.equals(isoformColorsIsoform))
+                    computeIsoformColors(numCells);
+                // cells expressing the isoform the most can be drawn on top, so they aren't hidden under
+                // cells that don't express it
+                DrawOrder drawOrder = null;
+                if (ControllerMediator.getInstance().isDrawingHighExpressionOnTop()) {
+                    if (isoformDrawOrder == null || isoformDrawOrder.getNumCells() != numCells || !isoformColoringBy.equals(isoformDrawOrderIsoform))
+                        computeIsoformDrawOrder(numCells);
+                    drawOrder = isoformDrawOrder;
+                }
+                return CellColoring.byValue(isoformExpression, isoformColors, gradientLookupTable, COLORING_BY_ISOFORM_OUTLINE_COLOR,
+                                            COLORING_BY_ISOFORM_OUTLINE_WIDTH, drawOrder);
+            }
 
-        public PlotRenderer() {
-            super(false, true);
-            setUseOutlinePaint(true);
-            updateOutlineAndRedraw();
+            LabelSet labelSetInUse = ControllerMediator.getInstance().getLabelSetInUse();
+            if (cellClusterIndices == null || cellClusterIndices.length != numCells || labelSetInUse != cellClusterIndicesLabelSet)
+                computeCellClusterIndices(labelSetInUse, numCells);
+            int[] clusterColors = new int[clustersInUse.size()];
+            for (int i = 0; i < clusterColors.length; i++)
+                clusterColors[i] = clustersInUse.get(i).getColor().getRGB();
+            return CellColoring.byCluster(cellClusterIndices, clusterColors, DEFAULT_OUTLINE_WIDTH);
         }
 
+        /**
+         * Selected cells are highlighted, unless the plot is colored by isoform
+         */
         @Override
-        public Paint getItemPaint(int series, int cellNumber) {
-            CellDataItem cell = cellNumberCellMap.get(cellNumber);
-
-            if (isColoringByIsoform()) {
-                Collection<String> selectedIsoformIDs = ControllerMediator.getInstance().getSelectedIsoformIDs();
-                String id = selectedIsoformIDs.iterator().next();
-                javafx.scene.paint.Color javaFXColor = ControllerMediator.getInstance().getColorFromGradient(cell.getIsoformExpressionLevel(id));
-                return new Color((int) Math.round(javaFXColor.getRed() * 255),
-                                 (int) Math.round(javaFXColor.getGreen() * 255),
-                                 (int) Math.round(javaFXColor.getBlue() * 255));
-            } else if (cellSelectionManager.isCellSelected(cell)) {
-                return Color.WHITE;
-            } else {
-                return ControllerMediator.getInstance().getLabelSetInUse().getCellCluster(cellNumber).getColor();
-            }
+        public int[] getHighlightedCells() {
+            if (coloringByIsoform)
+                return new int[0];
+            return cellSelectionManager.getSelection().getSelectedCells().toCellNumbers();
         }
 
         @Override
-        public Paint getItemOutlinePaint(int series, int cellNumber) {
-            if (isColoringByIsoform())
-                return Color.black;
-            else
-                return ControllerMediator.getInstance().getLabelSetInUse().getCellCluster(cellNumber).getColor();
+        public boolean isHighlighted(int cellNumber) {
+            return !coloringByIsoform && cellSelectionManager.getSelection().isSelected(cellNumber);
         }
 
         @Override
-        public Shape getItemShape(int row, int column) {
-            return CELL_SHAPE;
+        public int getHighlightFillColor() {
+            return SELECTED_CELL_FILL_COLOR;
+        }
+
+        /**
+         * Makes the colors of the cells (when coloring by isoform) be recomputed on the next draw. Should be
+         * called when the gradient changes
+         */
+        public void invalidateIsoformColors() {
+            isoformColors = null;
+        }
+
+        /**
+         * Makes the cluster each cell belongs to be looked up again on the next draw. Should be called when
+         * the clusters of the label set in use change
+         */
+        public void invalidateCellClusters() {
+            cellClusterIndices = null;
+        }
+
+        /**
+         * Computes the index of the cluster each cell belongs to in the given label set (in parallel)
+         */
+        private void computeCellClusterIndices(LabelSet labelSetInUse, int numCells) {
+            List<Cluster> clustersInUse = new ArrayList<>(labelSetInUse.getClusters());
+            Map<Cluster, Integer> clusterIndexMap = new HashMap<>();
+            for (int i = 0; i < clustersInUse.size(); i++)
+                clusterIndexMap.put(clustersInUse.get(i), i);
+            int[] cellClusterIndices = new int[numCells];
+            IntStream.range(0, numCells).parallel().forEach(cellNumber ->
+                cellClusterIndices[cellNumber] = clusterIndexMap.get(labelSetInUse.getCellCluster(cellNumber))
+            );
+            this.clustersInUse = clustersInUse;
+            this.cellClusterIndices = cellClusterIndices;
+            cellClusterIndicesLabelSet = labelSetInUse;
+        }
+
+        /**
+         * Computes the color of each cell from its expression of the isoform the plot is colored by,
+         * using a lookup table of the gradient's colors
+         */
+        private void computeIsoformColors(int numCells) {
+            GradientLookupTable gradientLookupTable = ControllerMediator.getInstance().getGradientLookupTable(GRADIENT_LOOKUP_TABLE_SIZE);
+            double[] isoformExpression = getIsoformExpression(numCells);
+            int[] isoformColors = new int[numCells];
+            IntStream.range(0, numCells).parallel().forEach(cellNumber ->
+                isoformColors[cellNumber] = gradientLookupTable.getColor(isoformExpression[cellNumber])
+            );
+            this.gradientLookupTable = gradientLookupTable;
+            this.isoformColorsIsoform = isoformColoringBy;
+            this.isoformColors = isoformColors;
+        }
+
+        /**
+         * Returns each cell's expression of the isoform the plot is colored by (0 if the matrix doesn't
+         * have it), read straight from the isoform's column of the expression matrix. Only recomputed when
+         * the isoform or the number of cells changes
+         */
+        private double[] getIsoformExpression(int numCells) {
+            double[] isoformExpression = this.isoformExpression;
+            if (isoformExpression == null || isoformExpression.length != numCells || !isoformColoringBy.equals(isoformExpressionIsoform)) {
+                Integer column = isoformIndexMap.get(isoformColoringBy);
+                double[][] matrix = cellIsoformExpressionMatrix;
+                double[] newIsoformExpression = new double[numCells];
+                if (column != null)
+                    IntStream.range(0, numCells).parallel().forEach(cellNumber -> newIsoformExpression[cellNumber] = matrix[cellNumber][column]);
+                isoformExpressionIsoform = isoformColoringBy;
+                this.isoformExpression = newIsoformExpression;
+                isoformExpression = newIsoformExpression;
+            }
+            return isoformExpression;
+        }
+
+        /**
+         * Sorts the cells by their expression of the isoform the plot is colored by (in parallel)
+         */
+        private void computeIsoformDrawOrder(int numCells) {
+            isoformDrawOrderIsoform = isoformColoringBy;
+            isoformDrawOrder = DrawOrder.byAscendingValue(getIsoformExpression(numCells));
         }
 
         public void updateOutlineAndRedraw() {
-            if (isColoringByIsoform())
-                setSeriesOutlineStroke(0, COLORING_BY_ISOFORM_BASIC_STROKE); // triggers redraw
-            else
-                setSeriesOutlineStroke(0, DEFAULT_BASIC_STROKE); // triggers redraw
+            cellPlot.redraw();
         }
 
         public boolean isColoringByIsoform() {
@@ -577,72 +1115,255 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         }
     }
 
+    /**
+     * Draws the density contours and hexbin summary of the clusters in the label set in use over the plot
+     * (whichever are selected in the view menu), only for the clusters selected in the legend if any are.
+     * Overlays are computed in the background the first time they're needed, and kept for each label
+     * set until its clusters change
+     */
+    private class ClusterOverlayRenderer implements CellPlotOverlay {
+        private final CellPlotDataset cells;
+        private final CellPlotCanvas cellPlot;
+        private final ExecutorService overlayComputer;
+        // only used on the JavaFX application thread
+        private final Map<LabelSet, ComputedOverlay> overlays;
+        private final Map<LabelSet, Object> overlayRequests;
+
+        public ClusterOverlayRenderer(CellPlotDataset cells, CellPlotCanvas cellPlot) {
+            this.cells = cells;
+            this.cellPlot = cellPlot;
+            overlayComputer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Cluster overlay computer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            overlays = new WeakHashMap<>();
+            overlayRequests = new WeakHashMap<>();
+        }
+
+        @Override
+        public void draw(GraphicsContext graphics, Viewport viewport) {
+            boolean showingContours = ControllerMediator.getInstance().isShowingClusterContours();
+            boolean showingHexbins = ControllerMediator.getInstance().isShowingClusterHexbins();
+            LabelSet labelSetInUse = ControllerMediator.getInstance().getLabelSetInUse();
+            if ((!showingContours && !showingHexbins) || labelSetInUse == null)
+                return;
+            ComputedOverlay computedOverlay = overlays.get(labelSetInUse);
+            if (computedOverlay == null) {
+                requestOverlay(labelSetInUse);
+                return;
+            }
+
+            List<Cluster> clusters = computedOverlay.clusters;
+            Collection<String> selectedClusterNames = legend != null ? legend.getSelectedCategoryNames() : new HashSet<>();
+            javafx.scene.paint.Color[] clusterColors = new javafx.scene.paint.Color[clusters.size()];
+            boolean[] visibleClusters = new boolean[clusters.size()];
+            for (int i = 0; i < clusters.size(); i++) {
+                clusterColors[i] = clusters.get(i).getJavaFXColor();
+                visibleClusters[i] = selectedClusterNames.isEmpty() || selectedClusterNames.contains(clusters.get(i).getName());
+            }
+            if (showingHexbins)
+                computedOverlay.overlay.drawHexbins(graphics, viewport, clusterColors, visibleClusters);
+            if (showingContours)
+                computedOverlay.overlay.drawContours(graphics, viewport, clusterColors, visibleClusters);
+        }
+
+        /**
+         * Makes the overlay of the given label set be computed again when next drawn. Should be called when
+         * its clusters change
+         */
+        public void invalidate(LabelSet labelSet) {
+            overlays.remove(labelSet);
+            overlayRequests.remove(labelSet);
+        }
+
+        /**
+         * Makes the overlays of every label set be computed again when next drawn (ex. after cells were
+         * added to the plot)
+         */
+        public void clear() {
+            overlays.clear();
+            overlayRequests.clear();
+            cellPlot.redrawOverlay();
+        }
+
+        public void dispose() {
+            overlayComputer.shutdownNow();
+        }
+
+        /**
+         * Computes the overlay of the given label set in the background (unless it's already being computed,
+         * or failed since the label set was last invalidated), and redraws the plot once it's done
+         */
+        private void requestOverlay(LabelSet labelSet) {
+            if (overlayRequests.containsKey(labelSet) || overlayComputer.isShutdown())
+                return;
+            Object request = new Object();
+            overlayRequests.put(labelSet, request);
+            List<Cluster> clusters = new ArrayList<>(labelSet.getClusters());
+            overlayComputer.execute(() -> {
+                try {
+                    Map<Cluster, Integer> clusterIndexMap = new HashMap<>();
+                    for (int i = 0; i < clusters.size(); i++)
+                        clusterIndexMap.put(clusters.get(i), i);
+                    int[] cellClusters = new int[cells.getNumCells()];
+                    for (int cellNumber = 0; cellNumber < cellClusters.length; cellNumber++)
+                        cellClusters[cellNumber] = clusterIndexMap.getOrDefault(labelSet.getCellCluster(cellNumber), -1);
+                    ClusterDensityOverlay overlay = ClusterDensityOverlay.compute(cells, cellClusters, clusters.size());
+                    runLater(() -> {
+                        if (overlayRequests.get(labelSet) == request) {
+                            overlays.put(labelSet, new ComputedOverlay(clusters, overlay));
+                            cellPlot.redrawOverlay();
+                        }
+                    });
+                } catch (Exception e) {
+                    // the failed request is kept until the label set's clusters (or the cells) change, so
+                    // it isn't computed (and reported) again every time the plot is drawn
+                    runLater(() -> {
+                        if (overlayRequests.get(labelSet) == request)
+                            ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Overlay of a label set, with the clusters it was computed for (cluster index i is clusters.get(i))
+     */
+    private static class ComputedOverlay {
+        private final List<Cluster> clusters;
+        private final ClusterDensityOverlay overlay;
+
+        private ComputedOverlay(List<Cluster> clusters, ClusterDensityOverlay overlay) {
+            this.clusters = clusters;
+            this.overlay = overlay;
+        }
+    }
+
+    /**
+     * Looks up the isoforms, genes and clusters named in cell selection queries
+     */
+    private class CellQueryContext implements CellQueryParser.Context {
+        @Override
+        public Integer getIsoformColumn(String isoformID) {
+            return isoformIndexMap.get(isoformID);
+        }
+
+        @Override
+        public int[] getGeneColumns(String geneIDOrName) {
+            for (Gene gene : ControllerMediator.getInstance().getGenes()) {
+                if (gene.getId().equals(geneIDOrName) || geneIDOrName.equals(gene.getName()))
+                    return gene.getIsoformsMap().keySet().stream().filter(isoformIndexMap::containsKey).mapToInt(isoformIndexMap::get).toArray();
+            }
+            return null;
+        }
+
+        @Override
+        public BitSet getClusterCells(String clusterName, String labelSetName) {
+            LabelSet labelSet = null;
+            if (labelSetName == null) {
+                labelSet = ControllerMediator.getInstance().getLabelSetInUse();
+            } else {
+                for (LabelSet otherLabelSet : ControllerMediator.getInstance().getLabelSets()) {
+                    if (otherLabelSet.getName().equals(labelSetName))
+                        labelSet = otherLabelSet;
+                }
+            }
+            Cluster cluster = labelSet != null ? labelSet.getClusterWithName(clusterName) : null;
+            return cluster != null ? (BitSet) cluster.getCellNumbers().clone() : null;
+        }
+    }
+
     /**
      * Manages selection/deselection of cells in the plot
      */
-    private class CellSelectionManager implements SelectionManager {
-        private HashMap<Cluster, Collection<CellDataItem>> selectedCells;
+    private class CellSelectionManager implements CellSelectionHandler {
+        private CellSelection selection;
+        private SelectionStatistics selectionStatistics;
         private boolean redrawOnClear;
+        // cells selected before the current lasso was started, which stay selected whatever the lasso does
+        private BitSet cellsSelectedBeforeLasso;
+        private final AtomicBoolean lassoUpdateRequested;
+        private final SelectionHistory history;
+        private final AtomicBoolean historyRecordRequested;
+        // number of selected cells in each cluster of the label set in use (by the cluster's index in
+        // countedClusters), changed by one as each cell is selected or deselected
+        private int[] numSelectedCellsInClusters;
+        private int[] cellClusterIndices;
+        private List<Cluster> countedClusters;
+        private Map<Cluster, Integer> countedClusterIndexMap;
+        private LabelSet countedLabelSet;
 
         public CellSelectionManager() {
-            selectedCells = new HashMap<>();
+            selection = new CellSelection(cellNumberCellMap::get);
+            selectionStatistics = new SelectionStatistics(selection, this::getSelectedClusters, this::getNumSelectedCellsInCluster);
             redrawOnClear = true;
+            lassoUpdateRequested = new AtomicBoolean(false);
+            history = new SelectionHistory();
+            historyRecordRequested = new AtomicBoolean(false);
         }
 
         public boolean isCellSelected(CellDataItem cellDataItem) {
-            for (Collection<CellDataItem> selectedCellsInCluster : selectedCells.values()) {
-                if (selectedCellsInCluster.contains(cellDataItem))
-                    return true;
-            }
-            return false;
+            return selection.isSelected(cellDataItem.getCellNumber());
+        }
+
+        public SelectionStatistics getSelectionStatistics() {
+            return selectionStatistics;
         }
 
+        /**
+         * Returns the clusters (of the label set in use) with selected cells in them, in order
+         */
         public List<Cluster> getSelectedClusters() {
-            return Util.asSortedList(selectedCells.keySet());
+            List<Cluster> selectedClusters = new ArrayList<>();
+            if (!selection.isEmpty()) {
+                int[] numSelectedCellsInClusters = getNumSelectedCellsInClusters();
+                for (int i = 0; i < numSelectedCellsInClusters.length; i++) {
+                    if (numSelectedCellsInClusters[i] > 0)
+                        selectedClusters.add(countedClusters.get(i));
+                }
+            }
+            return selectedClusters;
+        }
+
+        /**
+         * Returns the number of selected cells in the given cluster (of the label set in use)
+         */
+        public int getNumSelectedCellsInCluster(Cluster cluster) {
+            int[] numSelectedCellsInClusters = getNumSelectedCellsInClusters();
+            Integer clusterIndex = countedClusterIndexMap.get(cluster);
+            return clusterIndex == null ? 0 : numSelectedCellsInClusters[clusterIndex];
         }
 
         public Collection<CellDataItem> getSelectedCellsInCluster(Cluster cluster) {
-            if (selectedCells.containsKey(cluster))
-                return selectedCells.get(cluster);
-            return new ArrayList<>();
+            return selection.getSelectedCellsInCluster(cluster);
         }
 
         /*
-        The below three functions fix selected cells map so that it correctly maps selected
-        clusters to the cells in them that are selected, after there are changes to the label set
-        in use
+        The below three functions should be called after there are changes to the label set in use.
+        Which cells are selected doesn't change, but the clusters they're in might have
          */
 
         public void handleClusterAddedFromSelectedCells() {
-            if (selectedCells.size() > 0) {
-                Collection<CellDataItem> selectedCellsSubset = selectedCells.values().iterator().next();
-                CellDataItem selectedCell = selectedCellsSubset.iterator().next();
-                Cluster addCluster = ControllerMediator.getInstance().getLabelSetInUse().getCellCluster(selectedCell.getCellNumber());
-                selectedCells.clear();
-                selectedCells.put(addCluster, new ArrayList<>(addCluster.getCells()));
-            }
+            selection.handleChangedClusters();
+            selectionStatistics.reset();
+            numSelectedCellsInClusters = null;
+            cellClusterIndices = null;
         }
 
         public void handleRemovedCluster(Cluster removedCluster, Cluster clusterMergedWith) {
-            if (selectedCells.containsKey(removedCluster)) {
-                Collection<CellDataItem> cellsToMove = selectedCells.get(removedCluster);
-                Collection<CellDataItem> cellsInClusterMergedWith;
-                if (selectedCells.containsKey(clusterMergedWith)) {
-                    cellsInClusterMergedWith = selectedCells.get(clusterMergedWith);
-                } else {
-                    cellsInClusterMergedWith = new ArrayList<>();
-                    selectedCells.put(clusterMergedWith, cellsInClusterMergedWith);
-                }
-                cellsInClusterMergedWith.addAll(cellsToMove);
-                selectedCells.remove(removedCluster);
-            }
+            selection.handleChangedClusters();
+            selectionStatistics.reset();
+            numSelectedCellsInClusters = null;
+            cellClusterIndices = null;
         }
 
         public void handleChangedLabelSet() {
-            Collection<CellDataItem> cellsToMove = selectedCells.values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
-            selectedCells.clear();
-            for (CellDataItem cell : cellsToMove)
-                select(cell);
+            selection.handleChangedClusters();
+            selectionStatistics.reset();
+            numSelectedCellsInClusters = null;
+            cellClusterIndices = null;
         }
 
         /**
@@ -651,46 +1372,111 @@ public class ClusterViewController implements Initializable, InteractiveElementC
          */
         public void selectCellsSelectedIsoformsExpressedIn() {
             Collection<String> isoformIDs = ControllerMediator.getInstance().getSelectedIsoformIDs();
-            List<XYSeries> cellGroups = cellsInPlot.getSeries();
             redrawOnClear = false;
             clearSelection();
-            if (isoformIDs.size() > 0) {
-                for (XYSeries cellGroup : cellGroups) {
-                    for (XYDataItem dataItem : cellGroup.getItems()) {
-                        CellDataItem cell = (CellDataItem) dataItem;
-                        if (shouldSelectCell(cell, isoformIDs))
-                            select(cell);
-
-                    }
-                }
+            if (isoformIDs.size() > 0 && isoformIDs.stream().allMatch(isoformIndexMap::containsKey)) {
+                int[] isoformIndices = isoformIDs.stream().mapToInt(isoformIndexMap::get).toArray();
+                BitSet cellsToSelect = expressionIndex.getCellsExpressingAll(isoformIndices);
+                for (int cellNumber = cellsToSelect.nextSetBit(0); cellNumber >= 0; cellNumber = cellsToSelect.nextSetBit(cellNumber + 1))
+                    select(cellNumberCellMap.get(cellNumber));
             }
-            redrawPlotSansLegend();
+            redrawSelection();
             runLater(() -> ControllerMediator.getInstance().updateIsoformGraphicsAndDotPlot());
             redrawOnClear = true;
+            requestHistoryRecord();
         }
 
         public void selectCluster(Cluster cluster, boolean unselectRest, boolean updateIsoformView) {
-            if (unselectRest)
-                selectedCells.clear();
-            for (CellDataItem cell : cluster.getCells())
-                select(cell);
-            redrawPlotSansLegend();
+            if (unselectRest) {
+                selection.clear();
+                selectionStatistics.reset();
+                numSelectedCellsInClusters = null;
+            }
+            BitSet cellsToSelect = cluster.getCellNumbers();
+            for (int cellNumber = cellsToSelect.nextSetBit(0); cellNumber >= 0; cellNumber = cellsToSelect.nextSetBit(cellNumber + 1))
+                select(cellNumberCellMap.get(cellNumber));
+            redrawSelection();
             if (updateIsoformView)
                 runLater(() -> ControllerMediator.getInstance().updateIsoformGraphicsAndDotPlot());
+            requestHistoryRecord();
         }
 
         public void unselectCluster(Cluster cluster) {
-            if (selectedCells.containsKey(cluster)) {
-                selectedCells.remove(cluster);
-                redrawPlotSansLegend();
+            if (selection.isAnySelectedInCluster(cluster)) {
+                selection.deselect(cluster);
+                selectionStatistics.handleClusterDeselected(cluster);
+                numSelectedCellsInClusters = null;
+                redrawSelection();
+                requestHistoryRecord();
+            }
+        }
+
+        /**
+         * Selects the cells with the given numbers instead of the selected ones (ex. the cells matching a
+         * query), deselecting any selected isoforms so the selection is shown
+         */
+        public void selectCells(BitSet cellNumbers) {
+            setSelection(cellNumbers);
+            requestHistoryRecord();
+        }
+
+        /**
+         * Selects the cells selected in a previous session, which becomes the start of the selection history.
+         * Cells that aren't in the dataset anymore are skipped (and reported)
+         */
+        public void restoreSelection(CompressedBitmap cellNumbers) {
+            BitSet cellsToSelect = cellNumbers.toBitSet();
+            int numCells = cellNumberCellMap.size();
+            if (cellsToSelect.length() > numCells) {
+                reportUnknownCells(cellsToSelect.get(numCells, cellsToSelect.length()).cardinality());
+                cellsToSelect.clear(numCells, cellsToSelect.length());
+                cellNumbers = CompressedBitmap.of(cellsToSelect);
             }
+            setSelection(cellsToSelect);
+            history.reset(cellNumbers);
+        }
+
+        /**
+         * Goes back to the selection before the current one (if there is one)
+         */
+        public void undo() {
+            BitSet previousSelection = history.undo();
+            if (previousSelection != null)
+                setSelection(previousSelection);
         }
 
+        /**
+         * Goes forward to the selection last undone (if there is one)
+         */
+        public void redo() {
+            BitSet nextSelection = history.redo();
+            if (nextSelection != null)
+                setSelection(nextSelection);
+        }
+
+        /**
+         * Selects the cells with the given numbers (ex. ones saved in a previous session). Numbers of cells
+         * that aren't in the dataset are skipped (and reported)
+         */
         public void selectCellsWithGivenNumbers(Collection<Integer> cellNumbers) {
+            int numUnknownCells = 0;
             for (int cellNumber : cellNumbers) {
-                select(cellNumberCellMap.get(cellNumber));
+                CellDataItem cell = cellNumberCellMap.get(cellNumber);
+                if (cell != null)
+                    select(cell);
+                else
+                    numUnknownCells++;
             }
-            redrawPlotSansLegend();
+            if (numUnknownCells > 0)
+                reportUnknownCells(numUnknownCells);
+            redrawSelection();
+            requestHistoryRecord();
+        }
+
+        private void reportUnknownCells(int numUnknownCells) {
+            runLater(() -> ControllerMediator.getInstance().addConsoleErrorMessage(
+                    "Could not select " + numUnknownCells + (numUnknownCells == 1 ? " cell" : " cells") +
+                    " selected in the previous session, as the dataset doesn't have them"));
         }
 
         /**
@@ -698,78 +1484,72 @@ public class ClusterViewController implements Initializable, InteractiveElementC
          */
         @Override
         public void select(double x, double y) {
-            double scaleX = plot.getScaleX();
-            double scaleY = plot.getScaleY();
-            if (scaleX != 1.0D || scaleY != 1.0D) {
-                x /= scaleX;
-                y /= scaleY;
-            }
             boolean shouldRedraw = false;
-            EntityCollection entities = plot.getChartRenderingInfo().getEntityCollection();
-            for (ChartEntity chartEntity : entities.getEntities()) {
-                if (chartEntity instanceof DataItemEntity) {
-                    XYItemEntity xyItemEntity = (XYItemEntity) chartEntity;
-                    if (xyItemEntity.getArea().contains(new Point2D.Double(x, y))) {
-                        select(xyItemEntity);
-                        if (!shouldRedraw)
-                            shouldRedraw = true;
-                    }
+            Viewport viewport = getViewport();
+            CellPlotDataset cells = cellPlot.getCells();
+            double radius = CellPlotRasterizer.CELL_RADIUS;
+            for (int cellNumber : getCellsNear(viewport, new Rectangle2D.Double(x - radius, y - radius, 2 * radius, 2 * radius))) {
+                double dx = viewport.toScreenX(cells.getXs()[cellNumber]) - x;
+                double dy = viewport.toScreenY(cells.getYs()[cellNumber]) - y;
+                if (dx * dx + dy * dy <= radius * radius) {
+                    select(cellNumberCellMap.get(cellNumber));
+                    shouldRedraw = true;
                 }
             }
             if (shouldRedraw) {
                 runLater(() -> ControllerMediator.getInstance().updateIsoformGraphicsAndDotPlot());
-                redrawPlotSansLegend();
+                redrawSelection();
+                requestHistoryRecord();
             }
         }
 
         /**
-         * Selects any cells contained in given lasso selection
+         * When the user starts a lasso selection, deselects any selected isoforms (and any selected
+         * cells, unless the lassoed cells are being added to them)
          */
         @Override
-        public void select(GeneralPath pathSelection) {
-            double scaleX = plot.getScaleX();
-            double scaleY = plot.getScaleY();
-            GeneralPath selection;
-            if (scaleX == 1.0D && scaleY == 1.0D) {
-                selection = pathSelection;
-            } else {
-                AffineTransform st = AffineTransform.getScaleInstance(1.0D / scaleX, 1.0D / scaleY);
-                Area selectionArea = new Area(pathSelection);
-                selectionArea.transform(st);
-                selection = new GeneralPath(selectionArea);
-            }
-            boolean shouldRedraw = false;
-            EntityCollection entities = plot.getChartRenderingInfo().getEntityCollection();
-            for (ChartEntity chartEntity : entities.getEntities()) {
-                if (chartEntity instanceof XYItemEntity) {
-                    XYItemEntity xyItemEntity = (XYItemEntity) chartEntity;
-                    Area selectionShape = new Area(selection);
-                    Area entityShape = new Area(xyItemEntity.getArea());
-                    if (selectionShape.contains(entityShape.getBounds())) {
-                        select(xyItemEntity);
-                        if (!shouldRedraw)
-                            shouldRedraw = true;
-                    } else {
-                        entityShape.subtract(selectionShape);
-                        if (entityShape.isEmpty()) {
-                            select(xyItemEntity);
-                            if (!shouldRedraw)
-                                shouldRedraw = true;
-                        }
-                    }
-                }
+        public void handleLassoStarted(boolean addingToSelection) {
+            if (ControllerMediator.getInstance().areIsoformGraphicsSelected()) {
+                ControllerMediator.getInstance().deselectAllIsoforms();
+                if (ControllerMediator.getInstance().isColoringCellPlotBySelectedIsoform())
+                    redrawIsoformColoring();
             }
-            if (shouldRedraw) {
-                runLater(() -> ControllerMediator.getInstance().updateIsoformGraphicsAndDotPlot());
-                redrawPlotSansLegend();
+            if (!addingToSelection)
+                clearSelection();
+            cellsSelectedBeforeLasso = selection.getSelectedCellNumbers();
+        }
+
+        /**
+         * Selects the cells that entered the lasso, and deselects the ones that left it (unless they were
+         * selected before the lasso was started). The isoform view and lasso summary are updated from
+         * the selection statistics, which only change by the cells that entered or left
+         */
+        @Override
+        public void handleLassoChanged(int[] enteredCells, int[] leftCells) {
+            if (cellsSelectedBeforeLasso == null)
+                return;
+            for (int cellNumber : enteredCells)
+                select(cellNumberCellMap.get(cellNumber));
+            for (int cellNumber : leftCells) {
+                if (!cellsSelectedBeforeLasso.get(cellNumber))
+                    deselect(cellNumberCellMap.get(cellNumber));
             }
+            // only the cells that entered or left the lasso are redrawn
+            cellPlot.redrawHighlights(enteredCells);
+            cellPlot.redrawHighlights(leftCells);
+            requestLassoUpdate();
         }
 
         /**
-         * Unnecessary therefore not implemented
+         * The selection already has the lassoed cells in it, so only the lasso summary is hidden (after
+         * any last update)
          */
         @Override
-        public void select(Rectangle2D rectangle2D) {}
+        public void handleLassoFinished() {
+            cellsSelectedBeforeLasso = null;
+            requestLassoUpdate();
+            requestHistoryRecord();
+        }
 
         /**
          * Clears all selected cells in cell plot and selected legend elements
@@ -781,63 +1561,193 @@ public class ClusterViewController implements Initializable, InteractiveElementC
             boolean clearedSelectedCells = false;
 
             if (areCellsSelected()) {
-                selectedCells.clear();
+                selection.clear();
+                selectionStatistics.reset();
+                numSelectedCellsInClusters = null;
                 clearedSelectedCells = true;
+                requestHistoryRecord();
             }
 
             legend.clearSelectedCategories();
 
             if (redrawOnClear && clearedSelectedCells) {
-                redrawPlotSansLegend();
+                redrawSelection();
                 Platform.runLater(() -> ControllerMediator.getInstance().updateIsoformGraphicsAndDotPlot());
             }
 
         }
 
-        public HashMap<Cluster, Collection<CellDataItem>> getSelectedCells() {
-            return selectedCells;
+        public CellSelection getSelection() {
+            return selection;
         }
 
         /**
          * Selects given cell
          */
         private void select(CellDataItem cell) {
-            Cluster cluster = ControllerMediator.getInstance().getLabelSetInUse().getCellCluster(cell.getCellNumber());
-            Collection<CellDataItem> selectedCellsOfSameCluster;
-            if (selectedCells.containsKey(cluster)) {
-                selectedCellsOfSameCluster =  selectedCells.get(cluster);
-            } else {
-                selectedCellsOfSameCluster = new ArrayList<>();
-                selectedCells.put(cluster, selectedCellsOfSameCluster);
+            if (selection.select(cell.getCellNumber())) {
+                Cluster cluster = ControllerMediator.getInstance().getLabelSetInUse().getCellCluster(cell.getCellNumber());
+                selectionStatistics.handleCellSelected(cell, cluster);
+                updateNumSelectedCellsInCluster(cell.getCellNumber(), 1);
             }
-            selectedCellsOfSameCluster.add(cell);
         }
 
         /**
-         * Selects cell in plot given the object that represents its graphic
-         * in the plot
+         * Deselects given cell
          */
-        private void select(XYItemEntity xyItemEntity) {
-            int cellNumber = xyItemEntity.getItem();
-            select(cellNumberCellMap.get(cellNumber));
+        private void deselect(CellDataItem cell) {
+            if (selection.deselect(cell.getCellNumber())) {
+                Cluster cluster = ControllerMediator.getInstance().getLabelSetInUse().getCellCluster(cell.getCellNumber());
+                selectionStatistics.handleCellDeselected(cell, cluster);
+                updateNumSelectedCellsInCluster(cell.getCellNumber(), -1);
+            }
         }
 
         /**
-         * Returns true if cell expresses one or more of the isoforms associated with the
-         * given isoform IDs
+         * Adds the given change to the number of selected cells in the given cell's cluster, if the cells
+         * in each cluster are being counted (otherwise they're counted from the selection when next needed)
          */
-        private boolean shouldSelectCell(CellDataItem cell, Collection<String> isoformIDs) {
-            for (String isoformID : isoformIDs) {
-                if (cell.getIsoformExpressionLevel(isoformID) == 0)
-                    return false;
+        private void updateNumSelectedCellsInCluster(int cellNumber, int change) {
+            if (numSelectedCellsInClusters == null || cellClusterIndices == null || cellNumber >= cellClusterIndices.length)
+                numSelectedCellsInClusters = null;
+            else if (cellClusterIndices[cellNumber] >= 0)
+                numSelectedCellsInClusters[cellClusterIndices[cellNumber]] += change;
+        }
+
+        /**
+         * Returns the number of selected cells in each cluster of the label set in use (by index in
+         * countedClusters). They're counted from the selection after it was changed in bulk (ex. cleared),
+         * or the label set in use or its clusters changed, and kept up to date by select() and deselect()
+         * after that
+         */
+        private int[] getNumSelectedCellsInClusters() {
+            LabelSet labelSetInUse = ControllerMediator.getInstance().getLabelSetInUse();
+            int numCells = cellPlot.getCells().getNumCells();
+            if (numSelectedCellsInClusters != null && labelSetInUse == countedLabelSet && cellClusterIndices != null &&
+                cellClusterIndices.length == numCells)
+                return numSelectedCellsInClusters;
+
+            if (labelSetInUse != countedLabelSet || cellClusterIndices == null || cellClusterIndices.length != numCells) {
+                List<Cluster> clusters = new ArrayList<>(labelSetInUse.getClusters());
+                Map<Cluster, Integer> clusterIndexMap = new HashMap<>();
+                for (int i = 0; i < clusters.size(); i++)
+                    clusterIndexMap.put(clusters.get(i), i);
+                int[] cellClusterIndices = new int[numCells];
+                IntStream.range(0, numCells).parallel().forEach(cellNumber ->
+                    cellClusterIndices[cellNumber] = clusterIndexMap.getOrDefault(labelSetInUse.getCellCluster(cellNumber), -1)
+                );
+                countedLabelSet = labelSetInUse;
+                countedClusters = clusters;
+                countedClusterIndexMap = clusterIndexMap;
+                this.cellClusterIndices = cellClusterIndices;
             }
-            return true;
+            int[] numSelectedCellsInClusters = new int[countedClusters.size()];
+            BitSet selectedCells = selection.getSelectedCellNumbers();
+            for (int cellNumber = selectedCells.nextSetBit(0); cellNumber >= 0 && cellNumber < numCells; cellNumber = selectedCells.nextSetBit(cellNumber + 1)) {
+                if (cellClusterIndices[cellNumber] >= 0)
+                    numSelectedCellsInClusters[cellClusterIndices[cellNumber]]++;
+            }
+            this.numSelectedCellsInClusters = numSelectedCellsInClusters;
+            return numSelectedCellsInClusters;
+        }
+
+        /**
+         * Selects the cells with the given numbers instead of the selected ones, without going through
+         * them one by one, then updates the isoform view once
+         */
+        private void setSelection(BitSet cellNumbers) {
+            if (ControllerMediator.getInstance().areIsoformGraphicsSelected()) {
+                ControllerMediator.getInstance().deselectAllIsoforms();
+                if (ControllerMediator.getInstance().isColoringCellPlotBySelectedIsoform())
+                    redrawIsoformColoring();
+            }
+            redrawOnClear = false;
+            clearSelection();
+            redrawOnClear = true;
+            selection.set(cellNumbers);
+            selectionStatistics.reset();
+            numSelectedCellsInClusters = null;
+            redrawSelection();
+            runLater(() -> ControllerMediator.getInstance().updateIsoformGraphicsAndDotPlot());
+        }
+
+        /**
+         * Records the selection in the history on the next pulse, if it isn't already going to be. Changes
+         * that come together (ex. clearing the selection, then selecting several clusters) are recorded
+         * as one, and a lasso's selection is only recorded once it's finished
+         */
+        private void requestHistoryRecord() {
+            if (historyRecordRequested.compareAndSet(false, true)) {
+                runLater(() -> {
+                    historyRecordRequested.set(false);
+                    if (cellsSelectedBeforeLasso == null)
+                        history.record(selection.getSelectedCellNumbers());
+                });
+            }
+        }
+
+        /**
+         * Updates the isoform view and lasso summary on the next pulse, if they aren't already going to
+         * be. Lasso changes that come together (ex. from several mouse events) only update them once
+         */
+        private void requestLassoUpdate() {
+            if (lassoUpdateRequested.compareAndSet(false, true)) {
+                runLater(() -> {
+                    lassoUpdateRequested.set(false);
+                    updateLassoSummary(cellsSelectedBeforeLasso == null ? null : getLassoSummaryText());
+                    ControllerMediator.getInstance().updateIsoformGraphicsAndDotPlot();
+                });
+            }
+        }
+
+        /**
+         * Returns the number of selected cells, in total and in each cluster
+         */
+        private String getLassoSummaryText() {
+            StringBuilder summary = new StringBuilder();
+            int numSelectedCells = 0;
+            int[] numSelectedCellsInClusters = getNumSelectedCellsInClusters();
+            for (int i = 0; i < numSelectedCellsInClusters.length; i++) {
+                int numSelectedCellsInCluster = numSelectedCellsInClusters[i];
+                if (numSelectedCellsInCluster > 0) {
+                    numSelectedCells += numSelectedCellsInCluster;
+                    summary.append("\n").append(countedClusters.get(i).getName()).append(": ").append(String.format("%,d", numSelectedCellsInCluster));
+                }
+            }
+            return String.format("%,d", numSelectedCells) + (numSelectedCells == 1 ? " cell selected" : " cells selected") + summary;
+        }
+
+        private Viewport getViewport() {
+            return cellPlot.getViewport();
+        }
+
+        /**
+         * Returns the cells that might be in the given region of the plot (in plot coordinates)
+         */
+        private int[] getCellsNear(Viewport viewport, Rectangle2D region) {
+            double x1 = viewport.toDataX(region.getMinX());
+            double x2 = viewport.toDataX(region.getMaxX());
+            double y1 = viewport.toDataY(region.getMinY());
+            double y2 = viewport.toDataY(region.getMaxY());
+            CellGrid grid = cellPlot.getCells().getGrid();
+            return grid.getCellsNear(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2));
         }
     }
 
     private class PlotMaker implements Runnable {
 
-        private XYSeriesCollection cellsInNewPlot;
+        private final double[][] precomputedEmbedding;
+
+        public PlotMaker() {
+            this(null);
+        }
+
+        /**
+         * @param precomputedEmbedding if not null, cells are drawn at these positions instead of being embedded
+         */
+        public PlotMaker(double[][] precomputedEmbedding) {
+            this.precomputedEmbedding = precomputedEmbedding;
+        }
 
         /**
          * Draws the plot and sets the gradient values
@@ -856,8 +1766,11 @@ public class ClusterViewController implements Initializable, InteractiveElementC
         }
 
         public void drawPlotAndUpdateAssociatedComponents(boolean updateIsoformPlot, boolean updateGradientValues) {
-            cellsInNewPlot = new XYSeriesCollection();
-            double[][] matrix = (embedding == null ? generatePlotMatrix() : embedding);
+            double[][] matrix;
+            if (precomputedEmbedding != null)
+                matrix = precomputedEmbedding;
+            else
+                matrix = (embedding == null ? embedCells(getEmbeddingParameters(), Runtime.getRuntime().availableProcessors()) : embedding);
             drawPlot(matrix);
             ControllerMediator.getInstance().addCellsToLabelSetClusters();
             ControllerMediator.getInstance().calculateAndSaveMaxFoldChange(ControllerMediator.getInstance().getLabelSets());
@@ -869,35 +1782,18 @@ public class ClusterViewController implements Initializable, InteractiveElementC
                 setGradientValues();
         }
 
-        private double[][] generatePlotMatrix() {
-            if (ControllerMediator.getInstance().usingUMAPSettings())
-                return generateUMAPMatrix();
-            else
-                return generateTSNEMatrix();
-        }
-
-
         /**
          * Plots given matrix
          */
         private void drawPlot(double[][] matrix) {
-            createDataSet(matrix);
-            DatasetSelectionExtension<XYCursor> datasetExtension
-                    = new XYDatasetSelectionExtension(cellsInNewPlot);
-
-            JFreeChart chart = createPlot(datasetExtension);
-            ChartPanel panel = new ChartPanel(chart);
-            panel.setMouseWheelEnabled(true);
-
-            addSelectionHandler(panel);
-            addSelectionManager(datasetExtension, panel);
-            plot = panel;
-            plot.setPreferredSize(new Dimension(500, Integer.MAX_VALUE));
-            chart.removeLegend();
-            Platform.runLater(this::addLegend);
-
-            cellsInPlot = cellsInNewPlot;
-            swingNode.setContent(plot);
+            createCells(matrix);
+            CellPlotCanvas newCellPlot = createPlot(new CellPlotDataset(matrix));
+            addSelectionManager(newCellPlot);
+            cellPlot = newCellPlot;
+            Platform.runLater(() -> {
+                plotHolder.getChildren().add(0, newCellPlot);
+                addLegend();
+            });
         }
 
         private void setGradientValues() {
@@ -944,55 +1840,24 @@ public class ClusterViewController implements Initializable, InteractiveElementC
             setGradientMaxMinToRecommended(sampleExpressionVals);
         }
 
-        private double[][] generateTSNEMatrix() {
-            int initial_dims = 55;
-            double perplexity = ControllerMediator.getInstance().getPerplexity();
-            int maxIterations = ControllerMediator.getInstance().getMaxIterations();
-
-            BHTSne tSNE = new BHTSne();
-            TSneConfiguration config = TSneUtils.buildConfig(cellIsoformExpressionMatrix, 2, initial_dims, perplexity,
-                    maxIterations, false, 0.5D, false);
-            return tSNE.tsne(config);
-        }
-
-        private double[][] generateUMAPMatrix() {
-            float minDist = ControllerMediator.getInstance().getMinDist();
-            int nearestNeighbors = ControllerMediator.getInstance().getNearestNeighbors();
-            final Umap umap = new Umap();
-            umap.setNumberComponents(2); // number of dimensions in generated matrix
-            umap.setMinDist(minDist);
-            umap.setNumberNearestNeighbours(nearestNeighbors);
-            umap.setThreads(Runtime.getRuntime().availableProcessors());
-            return umap.fitTransform(cellIsoformExpressionMatrix);
-        }
-
         /**
-         * Given a matrix of 2D coordinates, creates a series of cells that can be plotted.
+         * Given a matrix of 2D coordinates, creates the cells that can be plotted.
          */
-        private void createDataSet(double[][] matrix) {
-            XYSeries cells = new XYSeries("Cells", false);
-            cellsInNewPlot.addSeries(cells);
+        private void createCells(double[][] matrix) {
             for (int cellNumber = 0; cellNumber < matrix.length; cellNumber++) {
-                double cellX = matrix[cellNumber][0];
-                double cellY = matrix[cellNumber][1];
-                CellDataItem cellDataItem = new CellDataItem(cellX, cellY, cellIsoformExpressionMatrix[cellNumber], cellNumber);
-                cells.add(cellDataItem);
+                CellDataItem cellDataItem = new CellDataItem(cellIsoformExpressionMatrix[cellNumber], cellNumber);
                 cellNumberCellMap.put(cellDataItem.getCellNumber(), cellDataItem);
             }
         }
 
-        private JFreeChart createPlot(DatasetSelectionExtension<XYCursor> ext) {
-            JFreeChart chart = ChartFactory.createScatterPlot("", " ", " ", cellsInNewPlot);
-
-            XYPlot plot = (XYPlot) chart.getPlot();
-            setPlotViewProperties(plot);
-            plotRenderer = new PlotRenderer();
-            plot.setRenderer(plotRenderer);
-
-            //register plot as selection change listener
-            ext.addChangeListener(plot);
-
-            return chart;
+        private CellPlotCanvas createPlot(CellPlotDataset cells) {
+            CellPlotCanvas newCellPlot = new CellPlotCanvas(cells);
+            plotRenderer = new PlotRenderer(cells);
+            newCellPlot.setColorer(plotRenderer);
+            overlayRenderer = new ClusterOverlayRenderer(cells, newCellPlot);
+            newCellPlot.setOverlay(overlayRenderer);
+            newCellPlot.setDensityMode(ControllerMediator.getInstance().getCellPlotDensityMode());
+            return newCellPlot;
         }
 
         private void addLegend() {
@@ -1011,29 +1876,9 @@ public class ClusterViewController implements Initializable, InteractiveElementC
             //});
         }
 
-        private void addSelectionManager(DatasetSelectionExtension<XYCursor> datasetExtension, ChartPanel panel) {
-            DatasetExtensionManager dExManager = new DatasetExtensionManager();
-            dExManager.registerDatasetExtension(datasetExtension);
+        private void addSelectionManager(CellPlotCanvas cellPlot) {
             cellSelectionManager = new CellSelectionManager();
-            panel.setSelectionManager(cellSelectionManager);
-        }
-
-        private void addSelectionHandler(ChartPanel panel) {
-            RegionSelectionHandler selectionHandler = new PlotFreeRegionSelectionHandler();
-            panel.addMouseHandler(selectionHandler);
-            panel.addMouseHandler(new MouseClickSelectionHandler());
-            panel.removeMouseHandler(panel.getZoomHandler());
-        }
-
-        private void setPlotViewProperties(XYPlot plot) {
-            plot.setDomainPannable(true);
-            plot.setRangePannable(true);
-            plot.setDomainGridlinesVisible(false);
-            plot.setRangeGridlinesVisible(false);
-            plot.getDomainAxis().setTickMarksVisible(false);
-            plot.getDomainAxis().setTickLabelsVisible(false);
-            plot.getRangeAxis().setTickMarksVisible(false);
-            plot.getRangeAxis().setTickLabelsVisible(false);
+            cellPlot.setSelectionHandler(cellSelectionManager);
         }
 
         /**
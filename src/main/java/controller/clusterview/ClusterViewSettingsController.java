@@ -1,6 +1,9 @@
 package controller.clusterview;
 
 import controller.PopUpController;
+import exceptions.InvalidNumHighlyVariableIsoformsException;
+import exceptions.InvalidNumLandmarksException;
+import exceptions.RNAScoopException;
 import javafx.fxml.FXML;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -8,6 +11,7 @@ import javafx.scene.control.Button;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.SingleSelectionModel;
+import javafx.scene.control.TextField;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import mediator.ControllerMediator;
@@ -16,18 +20,29 @@ import persistence.SessionMaker;
 import ui.Main;
 
 public class ClusterViewSettingsController extends PopUpController {
-    private static final float CLUSTER_VIEW_SETTINGS_HEIGHT = 160;
+    private static final float CLUSTER_VIEW_SETTINGS_HEIGHT = 240;
     private static final float CLUSTER_VIEW_SETTINGS_WIDTH = 440;
     private static final String UMAP_OPTION = "UMAP";
     private static final String T_SNE_OPTION = "t-SNE";
+    private static final int DEFAULT_NUM_LANDMARKS = 0;
+    private static final int DEFAULT_NUM_HIGHLY_VARIABLE_ISOFORMS = 2000;
 
     @FXML private ScrollPane clusterViewSettings;
     @FXML private ComboBox<String> algorithmComboBox;
+    @FXML private TextField numLandmarksField;
+    @FXML private TextField numHighlyVariableIsoformsField;
     @FXML private Button okButton;
+    @FXML private Button parameterSweepButton;
     @FXML private VBox holder;
 
     // whether or not using UMAP settings, only updated when "OK" button is pressed
     private boolean savedUsingUMAPSettings;
+    // number of landmark cells embedded (0 if all cells are embedded), only updated when "OK" button is pressed
+    private int savedNumLandmarks;
+    private int tempNumLandmarks;
+    // number of highly variable isoforms used as embedding input (0 if all isoforms are used), only updated when "OK" button is pressed
+    private int savedNumHighlyVariableIsoforms;
+    private int tempNumHighlyVariableIsoforms;
 
     private Parent tsneSettings;
     private Parent umapSettings;
@@ -36,27 +51,47 @@ public class ClusterViewSettingsController extends PopUpController {
         this.tsneSettings = tsneSettings;
         this.umapSettings = umapSettings;
         setUpAlgorithmComboBox();
+        setUpNumLandmarksField();
+        setUpNumHighlyVariableIsoformsField();
         setUpWindow();
     }
 
     public void disable() {
         algorithmComboBox.setDisable(true);
+        numLandmarksField.setDisable(true);
+        numHighlyVariableIsoformsField.setDisable(true);
         holder.setDisable(true);
         okButton.setDisable(true);
+        parameterSweepButton.setDisable(true);
     }
 
     public void enable() {
         algorithmComboBox.setDisable(false);
+        numLandmarksField.setDisable(false);
+        numHighlyVariableIsoformsField.setDisable(false);
         holder.setDisable(false);
         okButton.setDisable(false);
+        parameterSweepButton.setDisable(false);
     }
 
     public boolean usingUMAPSettings() {
         return savedUsingUMAPSettings;
     }
 
+    public int getNumLandmarks() {
+        return savedNumLandmarks;
+    }
+
+    public int getNumHighlyVariableIsoforms() {
+        return savedNumHighlyVariableIsoforms;
+    }
+
     public void setSettingsToDefault() {
         useUMAPSettings();
+        setTempNumLandmarks(DEFAULT_NUM_LANDMARKS);
+        savedNumLandmarks = tempNumLandmarks;
+        setTempNumHighlyVariableIsoforms(DEFAULT_NUM_HIGHLY_VARIABLE_ISOFORMS);
+        savedNumHighlyVariableIsoforms = tempNumHighlyVariableIsoforms;
         ControllerMediator.getInstance().setUMAPSettingsToDefault();
         ControllerMediator.getInstance().setTSNESettingsToDefault();
     }
@@ -66,6 +101,11 @@ public class ClusterViewSettingsController extends PopUpController {
             useUMAPSettings();
         else
             useTSNESettings();
+        setTempNumLandmarks(prevSession.optInt(SessionMaker.NUM_LANDMARKS_KEY, DEFAULT_NUM_LANDMARKS));
+        savedNumLandmarks = tempNumLandmarks;
+        // sessions saved before highly variable isoforms were selected used all isoforms
+        setTempNumHighlyVariableIsoforms(prevSession.optInt(SessionMaker.NUM_HIGHLY_VARIABLE_ISOFORMS_KEY, 0));
+        savedNumHighlyVariableIsoforms = tempNumHighlyVariableIsoforms;
 
         ControllerMediator.getInstance().restoreUMAPSettingsFromPrevSession(prevSession);
         ControllerMediator.getInstance().restoreTSNESettingsFromPrevSession(prevSession);
@@ -80,15 +120,47 @@ public class ClusterViewSettingsController extends PopUpController {
         }
     }
 
+    @FXML
+    protected void handleChangedNumLandmarks() {
+        try {
+            updateNumLandmarks();
+        } catch (RNAScoopException e) {
+            numLandmarksField.setText(String.valueOf(tempNumLandmarks));
+            e.addToMessage(". Changed number of landmark cells back to previous value");
+            ControllerMediator.getInstance().addConsoleErrorMessage(e.getMessage());
+        }
+    }
+
+    @FXML
+    protected void handleChangedNumHighlyVariableIsoforms() {
+        try {
+            updateNumHighlyVariableIsoforms();
+        } catch (RNAScoopException e) {
+            numHighlyVariableIsoformsField.setText(String.valueOf(tempNumHighlyVariableIsoforms));
+            e.addToMessage(". Changed number of highly variable isoforms back to previous value");
+            ControllerMediator.getInstance().addConsoleErrorMessage(e.getMessage());
+        }
+    }
+
     @FXML
     protected void handleOKButton() {
         saveAlgorithmInUseSetting();
+        savedNumLandmarks = tempNumLandmarks;
+        savedNumHighlyVariableIsoforms = tempNumHighlyVariableIsoforms;
         ControllerMediator.getInstance().saveUMAPSettings();
         ControllerMediator.getInstance().saveTSNESettings();
         ControllerMediator.getInstance().drawCellPlot();
         window.hide();
     }
 
+    /**
+     * Opens the parameter sweep window, where cells can be embedded with several parameter values at once
+     */
+    @FXML
+    protected void handleParameterSweepButton() {
+        ControllerMediator.getInstance().displayEmbeddingSweep();
+    }
+
     private void useUMAPSettings() {
         SingleSelectionModel<String> selectionModel = algorithmComboBox.getSelectionModel();
         if (!selectionModel.getSelectedItem().equals(UMAP_OPTION))
@@ -114,6 +186,8 @@ public class ClusterViewSettingsController extends PopUpController {
             algorithmComboBox.getSelectionModel().select(UMAP_OPTION);
         else
             algorithmComboBox.getSelectionModel().select(T_SNE_OPTION);
+        setTempNumLandmarks(savedNumLandmarks);
+        setTempNumHighlyVariableIsoforms(savedNumHighlyVariableIsoforms);
 
         ControllerMediator.getInstance().restoreUMAPSettingsToSaved();
         ControllerMediator.getInstance().restoreTSNESettingsToSaved();
@@ -126,6 +200,66 @@ public class ClusterViewSettingsController extends PopUpController {
         saveAlgorithmInUseSetting();
     }
 
+    private void setTempNumLandmarks(int tempNumLandmarks) {
+        this.tempNumLandmarks = tempNumLandmarks;
+        numLandmarksField.setText(Integer.toString(tempNumLandmarks));
+    }
+
+    private void updateNumLandmarks() throws InvalidNumLandmarksException {
+        int newNumLandmarks;
+
+        try {
+            newNumLandmarks = Integer.parseInt(numLandmarksField.getText());
+        } catch (NumberFormatException e) {
+            throw new InvalidNumLandmarksException();
+        }
+
+        if (newNumLandmarks < 0 || newNumLandmarks == 1)
+            throw new InvalidNumLandmarksException();
+
+        tempNumLandmarks = newNumLandmarks;
+    }
+
+    private void setUpNumLandmarksField() {
+        setTempNumLandmarks(DEFAULT_NUM_LANDMARKS);
+        savedNumLandmarks = tempNumLandmarks;
+        numLandmarksField.focusedProperty().addListener((arg0, oldValue, newValue) -> {
+            if (!newValue) { //when focus lost
+                handleChangedNumLandmarks();
+            }
+        });
+    }
+
+    private void setTempNumHighlyVariableIsoforms(int tempNumHighlyVariableIsoforms) {
+        this.tempNumHighlyVariableIsoforms = tempNumHighlyVariableIsoforms;
+        numHighlyVariableIsoformsField.setText(Integer.toString(tempNumHighlyVariableIsoforms));
+    }
+
+    private void updateNumHighlyVariableIsoforms() throws InvalidNumHighlyVariableIsoformsException {
+        int newNumHighlyVariableIsoforms;
+
+        try {
+            newNumHighlyVariableIsoforms = Integer.parseInt(numHighlyVariableIsoformsField.getText());
+        } catch (NumberFormatException e) {
+            throw new InvalidNumHighlyVariableIsoformsException();
+        }
+
+        if (newNumHighlyVariableIsoforms < 0)
+            throw new InvalidNumHighlyVariableIsoformsException();
+
+        tempNumHighlyVariableIsoforms = newNumHighlyVariableIsoforms;
+    }
+
+    private void setUpNumHighlyVariableIsoformsField() {
+        setTempNumHighlyVariableIsoforms(DEFAULT_NUM_HIGHLY_VARIABLE_ISOFORMS);
+        savedNumHighlyVariableIsoforms = tempNumHighlyVariableIsoforms;
+        numHighlyVariableIsoformsField.focusedProperty().addListener((arg0, oldValue, newValue) -> {
+            if (!newValue) { //when focus lost
+                handleChangedNumHighlyVariableIsoforms();
+            }
+        });
+    }
+
     /**
      * Sets up cluster view settings window
      * Makes it so window is hidden when X button is pressed, UMAP
@@ -0,0 +1,307 @@
+package controller.clusterview;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+
+/**
+ * Compressed, immutable set of cell numbers. Cell numbers are split into chunks of 65,536 by their
+ * high 16 bits, and each chunk with cells in it is stored as whichever is smallest of:
+ *  - a sorted array of the cells' low 16 bits (few cells)
+ *  - a list of runs of consecutive cells (ex. whole clusters of cells numbered in order)
+ *  - a bitmap (many scattered cells)
+ * Converting to and from a BitSet takes time proportional to the size of the compressed bitmap
+ */
+public class CompressedBitmap {
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int WORDS_PER_CHUNK = CHUNK_SIZE / Long.SIZE;
+    private static final byte ARRAY = 0;
+    private static final byte RUNS = 1;
+    private static final byte BITMAP = 2;
+
+    // high 16 bits of the cell numbers in each container, in ascending order
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private CompressedBitmap(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int cardinality = 0;
+        for (Container container : containers)
+            cardinality += container.getCardinality();
+        this.cardinality = cardinality;
+    }
+
+    public static CompressedBitmap of(BitSet cells) {
+        long[] words = cells.toLongArray();
+        int numChunks = (words.length + WORDS_PER_CHUNK - 1) / WORDS_PER_CHUNK;
+        char[] keys = new char[numChunks];
+        Container[] containers = new Container[numChunks];
+        int numContainers = 0;
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            Container container = Container.of(words, chunk * WORDS_PER_CHUNK);
+            if (container != null) {
+                keys[numContainers] = (char) chunk;
+                containers[numContainers++] = container;
+            }
+        }
+        return new CompressedBitmap(Arrays.copyOf(keys, numContainers), Arrays.copyOf(containers, numContainers));
+    }
+
+    /**
+     * Returns the bitmap encoded by encode()
+     */
+    public static CompressedBitmap decode(String encoding) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(encoding)));
+        int numContainers = input.readInt();
+        char[] keys = new char[numContainers];
+        Container[] containers = new Container[numContainers];
+        for (int i = 0; i < numContainers; i++) {
+            keys[i] = input.readChar();
+            containers[i] = Container.read(input);
+        }
+        return new CompressedBitmap(keys, containers);
+    }
+
+    public BitSet toBitSet() {
+        if (keys.length == 0)
+            return new BitSet();
+        long[] words = new long[(keys[keys.length - 1] + 1) * WORDS_PER_CHUNK];
+        for (int i = 0; i < keys.length; i++)
+            containers[i].addTo(words, keys[i] * WORDS_PER_CHUNK);
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Returns this bitmap as a string (to save in a session)
+     */
+    public String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(getSizeInBytes() + 4);
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                output.writeChar(keys[i]);
+                containers[i].write(output);
+            }
+        } catch (IOException e) {
+            // can't happen when writing to a byte array
+            throw new RuntimeException(e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Returns the approximate number of bytes this bitmap takes up
+     */
+    public int getSizeInBytes() {
+        int sizeInBytes = 2 * keys.length;
+        for (Container container : containers)
+            sizeInBytes += container.getSizeInBytes();
+        return sizeInBytes;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object)
+            return true;
+        if (!(object instanceof CompressedBitmap))
+            return false;
+        CompressedBitmap other = (CompressedBitmap) object;
+        return cardinality == other.cardinality && Arrays.equals(keys, other.keys) && Arrays.equals(containers, other.containers);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(keys) + Arrays.hashCode(containers);
+    }
+
+    /**
+     * Cells in one chunk, as an array, runs or a bitmap. Each chunk is always stored the same way,
+     * so equal sets of cells have equal containers
+     */
+    private static class Container {
+        private final byte type;
+        // low 16 bits of each cell (ARRAY), or the start and length - 1 of each run (RUNS)
+        private final char[] values;
+        // BITMAP only
+        private final long[] words;
+        private final int cardinality;
+
+        private Container(byte type, char[] values, long[] words, int cardinality) {
+            this.type = type;
+            this.values = values;
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        /**
+         * Returns the container of the chunk whose words start at the given offset (null if the chunk
+         * is empty)
+         */
+        private static Container of(long[] words, int offset) {
+            int end = Math.min(offset + WORDS_PER_CHUNK, words.length);
+            int cardinality = 0;
+            int numRuns = 0;
+            long previousWord = 0;
+            for (int i = offset; i < end; i++) {
+                long word = words[i];
+                cardinality += Long.bitCount(word);
+                // a run starts at each set bit whose previous bit isn't set
+                numRuns += Long.bitCount(word & ~((word << 1) | (previousWord >>> 63)));
+                previousWord = word;
+            }
+            if (cardinality == 0)
+                return null;
+
+            int arraySize = 2 * cardinality;
+            int runsSize = 4 * numRuns;
+            int bitmapSize = 8 * WORDS_PER_CHUNK;
+            if (runsSize < arraySize && runsSize < bitmapSize)
+                return new Container(RUNS, getRuns(words, offset, end, numRuns), null, cardinality);
+            if (arraySize < bitmapSize)
+                return new Container(ARRAY, getValues(words, offset, end, cardinality), null, cardinality);
+            return new Container(BITMAP, null, Arrays.copyOfRange(words, offset, offset + WORDS_PER_CHUNK), cardinality);
+        }
+
+        private static char[] getValues(long[] words, int offset, int end, int cardinality) {
+            char[] values = new char[cardinality];
+            int numValues = 0;
+            for (int i = offset; i < end; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1)
+                    values[numValues++] = (char) ((i - offset) * Long.SIZE + Long.numberOfTrailingZeros(word));
+            }
+            return values;
+        }
+
+        private static char[] getRuns(long[] words, int offset, int end, int numRuns) {
+            char[] runs = new char[2 * numRuns];
+            int numValues = 0;
+            int runStart = -1;
+            for (int i = offset; i < end; i++) {
+                long word = words[i];
+                int bit = 0;
+                while (bit < Long.SIZE) {
+                    if (runStart < 0) {
+                        long remaining = word >>> bit;
+                        if (remaining == 0)
+                            break;
+                        bit += Long.numberOfTrailingZeros(remaining);
+                        runStart = (i - offset) * Long.SIZE + bit;
+                    } else {
+                        long remaining = ~word >>> bit;
+                        if (remaining == 0)
+                            break;
+                        bit += Long.numberOfTrailingZeros(remaining);
+                        runs[numValues++] = (char) runStart;
+                        runs[numValues++] = (char) ((i - offset) * Long.SIZE + bit - 1 - runStart);
+                        runStart = -1;
+                    }
+                }
+            }
+            if (runStart >= 0) {
+                runs[numValues++] = (char) runStart;
+                runs[numValues] = (char) ((end - offset) * Long.SIZE - 1 - runStart);
+            }
+            return runs;
+        }
+
+        private static Container read(DataInputStream input) throws IOException {
+            byte type = input.readByte();
+            if (type == BITMAP) {
+                long[] words = new long[WORDS_PER_CHUNK];
+                int cardinality = 0;
+                for (int i = 0; i < WORDS_PER_CHUNK; i++) {
+                    words[i] = input.readLong();
+                    cardinality += Long.bitCount(words[i]);
+                }
+                return new Container(type, null, words, cardinality);
+            }
+            char[] values = new char[input.readInt()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = input.readChar();
+            int cardinality = values.length;
+            if (type == RUNS) {
+                cardinality = 0;
+                for (int i = 1; i < values.length; i += 2)
+                    cardinality += values[i] + 1;
+            }
+            return new Container(type, values, null, cardinality);
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeByte(type);
+            if (type == BITMAP) {
+                for (long word : words)
+                    output.writeLong(word);
+            } else {
+                output.writeInt(values.length);
+                for (char value : values)
+                    output.writeChar(value);
+            }
+        }
+
+        /**
+         * Sets the bits of this container's cells in the given words, whose chunk starts at offset
+         */
+        private void addTo(long[] words, int offset) {
+            if (type == BITMAP) {
+                System.arraycopy(this.words, 0, words, offset, WORDS_PER_CHUNK);
+            } else if (type == ARRAY) {
+                for (char value : values)
+                    words[offset + (value >>> 6)] |= 1L << value;
+            } else {
+                for (int i = 0; i < values.length; i += 2)
+                    setRange(words, offset * Long.SIZE + values[i], offset * Long.SIZE + values[i] + values[i + 1] + 1);
+            }
+        }
+
+        /**
+         * Sets bits from (inclusive) to to (exclusive) in the given words
+         */
+        private static void setRange(long[] words, int from, int to) {
+            int firstWord = from >>> 6;
+            int lastWord = (to - 1) >>> 6;
+            long firstMask = -1L << from;
+            long lastMask = -1L >>> -to;
+            if (firstWord == lastWord) {
+                words[firstWord] |= firstMask & lastMask;
+            } else {
+                words[firstWord] |= firstMask;
+                for (int i = firstWord + 1; i < lastWord; i++)
+                    words[i] = -1L;
+                words[lastWord] |= lastMask;
+            }
+        }
+
+        private int getCardinality() {
+            return cardinality;
+        }
+
+        private int getSizeInBytes() {
+            return type == BITMAP ? 8 * WORDS_PER_CHUNK : 2 * values.length;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Container))
+                return false;
+            Container other = (Container) object;
+            return type == other.type && Arrays.equals(values, other.values) && Arrays.equals(words, other.words);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type + (type == BITMAP ? Arrays.hashCode(words) : Arrays.hashCode(values));
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package controller.clusterview;
+
+import controller.PopUpController;
+import embedding.EmbeddingParameters;
+import embedding.EmbeddingSweep;
+import exceptions.InvalidMinDistException;
+import exceptions.InvalidNearestNeighborsException;
+import exceptions.InvalidPerplexityException;
+import exceptions.RNAScoopException;
+import javafx.fxml.FXML;
+import javafx.fxml.Initializable;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TextField;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.FlowPane;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Text;
+import javafx.stage.Stage;
+import labelset.LabelSet;
+import mediator.ControllerMediator;
+import ui.Main;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+
+import static javafx.application.Platform.runLater;
+
+/**
+ * Window where the user can embed the cells with several parameter values at once (a parameter sweep),
+ * compare the results as thumbnails, and draw any of them in the cell plot without embedding again
+ */
+public class EmbeddingSweepController extends PopUpController implements Initializable {
+    private static final float EMBEDDING_SWEEP_HEIGHT = 600;
+    private static final float EMBEDDING_SWEEP_WIDTH = 720;
+    private static final String UMAP_OPTION = "UMAP";
+    private static final String T_SNE_OPTION = "t-SNE";
+    private static final String DEFAULT_PERPLEXITIES = "5, 10, 20, 30, 50";
+    private static final String DEFAULT_MIN_DISTS = "0.1, 0.5";
+    private static final String DEFAULT_NEAREST_NEIGHBORS = "5, 15, 30";
+    private static final int THUMBNAIL_SIZE = 160;
+    private static final int THUMBNAIL_POINT_SIZE = 2;
+    private static final Color THUMBNAIL_BACKGROUND_COLOR = Color.WHITE;
+    private static final Color THUMBNAIL_DEFAULT_POINT_COLOR = Color.GRAY;
+
+    @FXML private ScrollPane embeddingSweep;
+    @FXML private ComboBox<String> algorithmComboBox;
+    @FXML private TextField perplexitiesField;
+    @FXML private TextField minDistsField;
+    @FXML private TextField nearestNeighborsField;
+    @FXML private Button startSweepButton;
+    @FXML private Button cancelSweepButton;
+    @FXML private FlowPane thumbnailHolder;
+
+    private EmbeddingSweep sweep;
+    // incremented whenever a sweep is started or cancelled, so results of old sweeps are ignored
+    private int sweepNumber;
+    private List<Thumbnail> thumbnails;
+    private boolean disabled;
+
+    @Override
+    public void initialize(URL location, ResourceBundle resources) {
+        thumbnails = new ArrayList<>();
+        setUpAlgorithmComboBox();
+        perplexitiesField.setText(DEFAULT_PERPLEXITIES);
+        minDistsField.setText(DEFAULT_MIN_DISTS);
+        nearestNeighborsField.setText(DEFAULT_NEAREST_NEIGHBORS);
+        cancelSweepButton.setDisable(true);
+        setUpWindow();
+    }
+
+    /**
+     * Disables starting a sweep and drawing sweep embeddings in the cell plot. A running sweep
+     * isn't stopped
+     */
+    public void disable() {
+        disabled = true;
+        startSweepButton.setDisable(true);
+        for (Thumbnail thumbnail : thumbnails)
+            thumbnail.useButton.setDisable(true);
+    }
+
+    public void enable() {
+        disabled = false;
+        startSweepButton.setDisable(false);
+        for (Thumbnail thumbnail : thumbnails)
+            thumbnail.useButton.setDisable(thumbnail.embedding == null);
+    }
+
+    /**
+     * Cancels the running sweep (if there is one) and removes all thumbnails. Should be called when
+     * the cells change, as sweep embeddings no longer match them
+     */
+    public void clearSweep() {
+        runLater(() -> {
+            cancelSweep();
+            thumbnails.clear();
+            thumbnailHolder.getChildren().clear();
+        });
+    }
+
+    @FXML
+    protected void handleAlgorithmChange() {
+        boolean usingUMAP = algorithmComboBox.getValue().equals(UMAP_OPTION);
+        perplexitiesField.setDisable(usingUMAP);
+        minDistsField.setDisable(!usingUMAP);
+        nearestNeighborsField.setDisable(!usingUMAP);
+    }
+
+    /**
+     * Embeds the cells once for every combination of the parameter values in the fields (other
+     * parameters are taken from the cluster view settings). Thumbnails of the embeddings are shown as
+     * they finish
+     */
+    @FXML
+    protected void handleStartSweepButton() {
+        double[][] matrix = ControllerMediator.getInstance().getCellIsoformExpressionMatrix();
+        if (matrix == null) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("Cannot start parameter sweep: no cells have been loaded");
+            return;
+        }
+
+        List<EmbeddingParameters> sweepParameters;
+        try {
+            sweepParameters = getSweepParameters();
+        } catch (RNAScoopException e) {
+            e.addToMessage(". Parameter sweep was not started");
+            ControllerMediator.getInstance().addConsoleErrorMessage(e.getMessage());
+            return;
+        }
+
+        clearSweep();
+        runLater(() -> startSweep(matrix, sweepParameters));
+    }
+
+    @FXML
+    protected void handleCancelSweepButton() {
+        cancelSweep();
+        for (Thumbnail thumbnail : thumbnails) {
+            if (thumbnail.embedding == null && !thumbnail.failed)
+                thumbnail.setStatus("Cancelled");
+        }
+        ControllerMediator.getInstance().addConsoleMessage("Cancelled parameter sweep");
+    }
+
+    private void startSweep(double[][] matrix, List<EmbeddingParameters> sweepParameters) {
+        for (EmbeddingParameters parameters : sweepParameters) {
+            Thumbnail thumbnail = new Thumbnail(parameters);
+            thumbnails.add(thumbnail);
+            thumbnailHolder.getChildren().add(thumbnail.holder);
+        }
+        sweepNumber++;
+        sweep = new EmbeddingSweep(sweepParameters, ControllerMediator.getInstance()::embedCells, new SweepListener(matrix));
+        cancelSweepButton.setDisable(false);
+        ControllerMediator.getInstance().addConsoleMessage("Started parameter sweep of " + sweepParameters.size() + " embeddings...");
+        sweep.start();
+    }
+
+    private void cancelSweep() {
+        if (sweep != null) {
+            sweep.cancel();
+            sweep = null;
+            sweepNumber++;
+        }
+        cancelSweepButton.setDisable(true);
+    }
+
+    /**
+     * Draws the given thumbnail's embedding in the cell plot, if the cells haven't changed since the
+     * sweep was started
+     */
+    private void useEmbedding(Thumbnail thumbnail) {
+        if (thumbnail.matrix != ControllerMediator.getInstance().getCellIsoformExpressionMatrix()) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("Cannot draw " + thumbnail.parameters +
+                    " embedding: cells have changed since the parameter sweep was started");
+            return;
+        }
+        ControllerMediator.getInstance().addConsoleMessage("Using parameter sweep embedding: " + thumbnail.parameters);
+        ControllerMediator.getInstance().drawCellPlot(thumbnail.embedding);
+    }
+
+    private List<EmbeddingParameters> getSweepParameters() throws InvalidPerplexityException, InvalidMinDistException,
+                                                                  InvalidNearestNeighborsException {
+        List<EmbeddingParameters> sweepParameters = new ArrayList<>();
+        if (algorithmComboBox.getValue().equals(UMAP_OPTION)) {
+            List<Float> minDists = getMinDists();
+            List<Integer> nearestNeighbors = getNearestNeighbors();
+            for (int numNearestNeighbors : nearestNeighbors) {
+                for (float minDist : minDists)
+                    sweepParameters.add(EmbeddingParameters.umap(minDist, numNearestNeighbors));
+            }
+        } else {
+            int maxIterations = ControllerMediator.getInstance().getMaxIterations();
+            for (double perplexity : getPerplexities())
+                sweepParameters.add(EmbeddingParameters.tSNE(perplexity, maxIterations));
+        }
+        return sweepParameters;
+    }
+
+    private List<Double> getPerplexities() throws InvalidPerplexityException {
+        List<Double> perplexities = new ArrayList<>();
+        try {
+            for (String value : getFieldValues(perplexitiesField))
+                perplexities.add(Double.parseDouble(value));
+        } catch (NumberFormatException e) {
+            throw new InvalidPerplexityException();
+        }
+        if (perplexities.isEmpty() || perplexities.stream().anyMatch(perplexity -> perplexity < 0))
+            throw new InvalidPerplexityException();
+        return perplexities;
+    }
+
+    private List<Float> getMinDists() throws InvalidMinDistException {
+        List<Float> minDists = new ArrayList<>();
+        try {
+            for (String value : getFieldValues(minDistsField))
+                minDists.add(Float.parseFloat(value));
+        } catch (NumberFormatException e) {
+            throw new InvalidMinDistException();
+        }
+        if (minDists.isEmpty() || minDists.stream().anyMatch(minDist -> minDist < 0 || minDist > 1))
+            throw new InvalidMinDistException();
+        return minDists;
+    }
+
+    private List<Integer> getNearestNeighbors() throws InvalidNearestNeighborsException {
+        List<Integer> nearestNeighbors = new ArrayList<>();
+        try {
+            for (String value : getFieldValues(nearestNeighborsField))
+                nearestNeighbors.add(Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            throw new InvalidNearestNeighborsException();
+        }
+        if (nearestNeighbors.isEmpty() || nearestNeighbors.stream().anyMatch(numNearestNeighbors -> numNearestNeighbors < 2))
+            throw new InvalidNearestNeighborsException();
+        return nearestNeighbors;
+    }
+
+    /**
+     * Returns the comma separated values in the given field
+     */
+    private List<String> getFieldValues(TextField field) {
+        List<String> values = new ArrayList<>();
+        for (String value : field.getText().split(",")) {
+            if (!value.trim().isEmpty())
+                values.add(value.trim());
+        }
+        return values;
+    }
+
+    private void setUpAlgorithmComboBox() {
+        algorithmComboBox.getItems().addAll(UMAP_OPTION, T_SNE_OPTION);
+        algorithmComboBox.setValue(UMAP_OPTION);
+        handleAlgorithmChange();
+    }
+
+    /**
+     * Sets up embedding sweep window
+     * Makes it so window is hidden when X button is pressed (a running sweep keeps going)
+     */
+    private void setUpWindow() {
+        window = new Stage();
+        window.setTitle("RNA-Scoop - Parameter Sweep");
+        window.getIcons().add(Main.RNA_SCOOP_LOGO);
+        window.setScene(new Scene(embeddingSweep, EMBEDDING_SWEEP_WIDTH, EMBEDDING_SWEEP_HEIGHT));
+        window.setOnCloseRequest(event -> {
+            event.consume();
+            window.hide();
+        });
+    }
+
+    private class SweepListener implements EmbeddingSweep.Listener {
+        private final int listenedSweepNumber = sweepNumber;
+        private final List<Thumbnail> sweepThumbnails = new ArrayList<>(thumbnails);
+        private final double[][] matrix;
+
+        private SweepListener(double[][] matrix) {
+            this.matrix = matrix;
+        }
+
+        @Override
+        public void handleFinishedEmbedding(int embeddingNumber, double[][] embedding) {
+            runLater(() -> {
+                if (listenedSweepNumber != sweepNumber)
+                    return;
+                sweepThumbnails.get(embeddingNumber).setEmbedding(matrix, embedding);
+                handlePossiblyFinishedSweep();
+            });
+        }
+
+        @Override
+        public void handleFailedEmbedding(int embeddingNumber, Exception e) {
+            runLater(() -> {
+                if (listenedSweepNumber != sweepNumber)
+                    return;
+                Thumbnail thumbnail = sweepThumbnails.get(embeddingNumber);
+                thumbnail.failed = true;
+                thumbnail.setStatus("Failed");
+                ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+                handlePossiblyFinishedSweep();
+            });
+        }
+
+        private void handlePossiblyFinishedSweep() {
+            if (sweepThumbnails.stream().allMatch(thumbnail -> thumbnail.embedding != null || thumbnail.failed)) {
+                ControllerMediator.getInstance().addConsoleMessage("Finished parameter sweep");
+                cancelSweepButton.setDisable(true);
+            }
+        }
+    }
+
+    /**
+     * Thumbnail of one embedding in the sweep, with a button to draw it in the cell plot
+     */
+    private class Thumbnail {
+        private final EmbeddingParameters parameters;
+        private final VBox holder;
+        private final StackPane imageHolder;
+        private final Button useButton;
+        private double[][] matrix;
+        private double[][] embedding;
+        private boolean failed;
+
+        private Thumbnail(EmbeddingParameters parameters) {
+            this.parameters = parameters;
+            imageHolder = new StackPane();
+            imageHolder.setPrefSize(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            imageHolder.setStyle("-fx-border-color: #c2c2c2; -fx-background-color: white;");
+            Text description = new Text(parameters.toString());
+            description.setWrappingWidth(THUMBNAIL_SIZE);
+            useButton = new Button("Use in cell plot");
+            useButton.setDisable(true);
+            useButton.setOnAction(event -> useEmbedding(this));
+            holder = new VBox(5, imageHolder, description, useButton);
+            holder.setAlignment(Pos.TOP_CENTER);
+            holder.setPadding(new Insets(5));
+            setStatus("Running...");
+        }
+
+        private void setStatus(String status) {
+            imageHolder.getChildren().setAll(new Text(status));
+        }
+
+        private void setEmbedding(double[][] matrix, double[][] embedding) {
+            this.matrix = matrix;
+            this.embedding = embedding;
+            imageHolder.getChildren().setAll(new ImageView(drawImage()));
+            useButton.setDisable(disabled);
+        }
+
+        /**
+         * Draws the cells, colored by their cluster in the label set in use
+         */
+        private WritableImage drawImage() {
+            WritableImage image = new WritableImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            PixelWriter pixelWriter = image.getPixelWriter();
+            for (int x = 0; x < THUMBNAIL_SIZE; x++) {
+                for (int y = 0; y < THUMBNAIL_SIZE; y++)
+                    pixelWriter.setColor(x, y, THUMBNAIL_BACKGROUND_COLOR);
+            }
+
+            double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (double[] position : embedding) {
+                minX = Math.min(minX, position[0]);
+                maxX = Math.max(maxX, position[0]);
+                minY = Math.min(minY, position[1]);
+                maxY = Math.max(maxY, position[1]);
+            }
+            int drawableSize = THUMBNAIL_SIZE - THUMBNAIL_POINT_SIZE;
+            double scale = drawableSize / Math.max(Math.max(maxX - minX, maxY - minY), Double.MIN_VALUE);
+
+            LabelSet labelSetInUse = ControllerMediator.getInstance().getLabelSetInUse();
+            for (int cellNumber = 0; cellNumber < embedding.length; cellNumber++) {
+                Color color = THUMBNAIL_DEFAULT_POINT_COLOR;
+                if (labelSetInUse != null && labelSetInUse.getCellCluster(cellNumber) != null)
+                    color = labelSetInUse.getCellCluster(cellNumber).getJavaFXColor();
+                int pixelX = (int) ((embedding[cellNumber][0] - minX) * scale);
+                // y axis points up in the cell plot
+                int pixelY = drawableSize - (int) ((embedding[cellNumber][1] - minY) * scale);
+                for (int dx = 0; dx < THUMBNAIL_POINT_SIZE; dx++) {
+                    for (int dy = 0; dy < THUMBNAIL_POINT_SIZE; dy++)
+                        pixelWriter.setColor(pixelX + dx, pixelY + dy, color);
+                }
+            }
+            return image;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package controller.clusterview;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Inverted index of the cell isoform expression matrix: for each isoform (column), the cells that express
+ * it. Finding the cells that express several isoforms, or counting the cells of a cluster that express an
+ * isoform, are then intersections of bitmaps instead of scans through the whole matrix
+ *
+ * Each column's cells are kept as a sorted array of cell numbers if few cells express the isoform, or as a
+ * bitmap otherwise, whichever is smaller. Immutable
+ */
+public class ExpressionIndex {
+    // columns are indexed in blocks, so each row is read in contiguous runs
+    private static final int COLUMNS_PER_BLOCK = 64;
+    // a column is kept as a bitmap once more than 1 in this many cells express it
+    private static final int SPARSE_LIMIT = 32;
+
+    private final PostingList[] postingLists;
+    private final int numCells;
+
+    private ExpressionIndex(PostingList[] postingLists, int numCells) {
+        this.postingLists = postingLists;
+        this.numCells = numCells;
+    }
+
+    /**
+     * Indexes the given matrix (rows are cells, columns are isoforms), in parallel
+     */
+    public static ExpressionIndex build(double[][] matrix) {
+        return new ExpressionIndex(buildPostingLists(matrix, 0), matrix.length);
+    }
+
+    /**
+     * Returns the index of this index's matrix with the given rows appended to it
+     */
+    public ExpressionIndex append(double[][] newRows) {
+        PostingList[] newPostingLists = buildPostingLists(newRows, numCells);
+        int numCombinedCells = numCells + newRows.length;
+        PostingList[] combinedPostingLists = new PostingList[postingLists.length];
+        IntStream.range(0, postingLists.length).parallel().forEach(column ->
+            combinedPostingLists[column] = PostingList.concatenate(postingLists[column], newPostingLists[column], numCombinedCells)
+        );
+        return new ExpressionIndex(combinedPostingLists, numCombinedCells);
+    }
+
+    /**
+     * Returns the cells that express all of the isoforms in the given columns (every cell if there are no
+     * columns)
+     */
+    public BitSet getCellsExpressingAll(int[] columns) {
+        BitSet cells = new BitSet(numCells);
+        cells.set(0, numCells);
+        for (int column : columns)
+            postingLists[column].retainIn(cells);
+        return cells;
+    }
+
+    /**
+     * Returns the number of the given cells that express the isoform in the given column
+     */
+    public int getNumExpressingCells(int column, BitSet cells) {
+        return postingLists[column].getIntersectionCardinality(cells);
+    }
+
+    /**
+     * Returns the cells that express the isoform in the given column, in ascending order. Shouldn't be
+     * modified
+     */
+    public int[] getExpressingCells(int column) {
+        return postingLists[column].toCellNumbers();
+    }
+
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * Builds the posting list of each column of the given rows, numbering the cells from firstCellNumber on
+     */
+    private static PostingList[] buildPostingLists(double[][] rows, int firstCellNumber) {
+        int numColumns = rows.length > 0 ? rows[0].length : 0;
+        int numCells = firstCellNumber + rows.length;
+        PostingList[] postingLists = new PostingList[numColumns];
+        int numBlocks = (numColumns + COLUMNS_PER_BLOCK - 1) / COLUMNS_PER_BLOCK;
+        IntStream.range(0, numBlocks).parallel().forEach(block -> {
+            int firstColumn = block * COLUMNS_PER_BLOCK;
+            int numBlockColumns = Math.min(COLUMNS_PER_BLOCK, numColumns - firstColumn);
+            int[][] cellNumbers = new int[numBlockColumns][16];
+            int[] numExpressingCells = new int[numBlockColumns];
+            for (int row = 0; row < rows.length; row++) {
+                double[] expressionLevels = rows[row];
+                for (int i = 0; i < numBlockColumns; i++) {
+                    if (expressionLevels[firstColumn + i] > 0) {
+                        if (numExpressingCells[i] == cellNumbers[i].length)
+                            cellNumbers[i] = Arrays.copyOf(cellNumbers[i], cellNumbers[i].length * 2);
+                        cellNumbers[i][numExpressingCells[i]++] = firstCellNumber + row;
+                    }
+                }
+            }
+            for (int i = 0; i < numBlockColumns; i++)
+                postingLists[firstColumn + i] = PostingList.of(Arrays.copyOf(cellNumbers[i], numExpressingCells[i]), numCells);
+        });
+        return postingLists;
+    }
+
+    /**
+     * Cells that express one isoform, as either a sorted array of their numbers or a bitmap
+     */
+    private static class PostingList {
+        private final int[] cellNumbers;
+        private final BitSet bitmap;
+        private final int cardinality;
+
+        private PostingList(int[] cellNumbers, BitSet bitmap, int cardinality) {
+            this.cellNumbers = cellNumbers;
+            this.bitmap = bitmap;
+            this.cardinality = cardinality;
+        }
+
+        /**
+         * Returns the posting list of the given cells (in ascending order), out of numCells cells
+         */
+        private static PostingList of(int[] cellNumbers, int numCells) {
+            if ((long) cellNumbers.length * SPARSE_LIMIT <= numCells)
+                return new PostingList(cellNumbers, null, cellNumbers.length);
+            BitSet bitmap = new BitSet(numCells);
+            for (int cellNumber : cellNumbers)
+                bitmap.set(cellNumber);
+            return new PostingList(null, bitmap, cellNumbers.length);
+        }
+
+        /**
+         * Returns the posting list of the cells in both given lists, whose cells are all numbered lower
+         * in first than in second
+         */
+        private static PostingList concatenate(PostingList first, PostingList second, int numCells) {
+            int cardinality = first.cardinality + second.cardinality;
+            if ((long) cardinality * SPARSE_LIMIT <= numCells) {
+                int[] cellNumbers = Arrays.copyOf(first.toCellNumbers(), cardinality);
+                System.arraycopy(second.toCellNumbers(), 0, cellNumbers, first.cardinality, second.cardinality);
+                return new PostingList(cellNumbers, null, cardinality);
+            }
+            BitSet bitmap = first.toBitmap();
+            bitmap.or(second.toBitmap());
+            return new PostingList(null, bitmap, cardinality);
+        }
+
+        /**
+         * Clears the cells in the given bitmap that aren't in this list
+         */
+        private void retainIn(BitSet cells) {
+            if (bitmap != null) {
+                cells.and(bitmap);
+            } else {
+                BitSet retainedCells = new BitSet();
+                for (int cellNumber : cellNumbers) {
+                    if (cells.get(cellNumber))
+                        retainedCells.set(cellNumber);
+                }
+                cells.and(retainedCells);
+            }
+        }
+
+        private int getIntersectionCardinality(BitSet cells) {
+            if (bitmap != null) {
+                BitSet intersection = (BitSet) bitmap.clone();
+                intersection.and(cells);
+                return intersection.cardinality();
+            }
+            int intersectionCardinality = 0;
+            for (int cellNumber : cellNumbers) {
+                if (cells.get(cellNumber))
+                    intersectionCardinality++;
+            }
+            return intersectionCardinality;
+        }
+
+        private int[] toCellNumbers() {
+            return cellNumbers != null ? cellNumbers : bitmap.stream().toArray();
+        }
+
+        private BitSet toBitmap() {
+            if (bitmap != null)
+                return (BitSet) bitmap.clone();
+            BitSet cells = new BitSet();
+            for (int cellNumber : cellNumbers)
+                cells.set(cellNumber);
+            return cells;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package controller.clusterview;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Past (and undone) cell selections, so selection changes can be undone and redone. Each selection is
+ * stored as a CompressedBitmap, and once the stored selections take up more than MAX_SIZE_IN_BYTES, the
+ * oldest ones are forgotten
+ */
+public class SelectionHistory {
+    private static final long MAX_SIZE_IN_BYTES = 32L * 1024 * 1024;
+
+    // most recent first
+    private final Deque<CompressedBitmap> undoStates;
+    private final Deque<CompressedBitmap> redoStates;
+    private CompressedBitmap currentState;
+    private long sizeInBytes;
+
+    public SelectionHistory() {
+        undoStates = new ArrayDeque<>();
+        redoStates = new ArrayDeque<>();
+        currentState = CompressedBitmap.of(new BitSet());
+        sizeInBytes = currentState.getSizeInBytes();
+    }
+
+    /**
+     * Makes the given selection the current one, if it's different from the current one. Anything that
+     * was undone can't be redone after
+     *
+     * @return true if the selection was recorded
+     */
+    public boolean record(BitSet selection) {
+        CompressedBitmap state = CompressedBitmap.of(selection);
+        if (state.equals(currentState))
+            return false;
+        while (!redoStates.isEmpty())
+            sizeInBytes -= redoStates.pop().getSizeInBytes();
+        undoStates.push(currentState);
+        currentState = state;
+        sizeInBytes += state.getSizeInBytes();
+        while (sizeInBytes > MAX_SIZE_IN_BYTES && !undoStates.isEmpty())
+            sizeInBytes -= undoStates.removeLast().getSizeInBytes();
+        return true;
+    }
+
+    /**
+     * Makes the given (restored) selection the current one, forgetting every other selection
+     */
+    public void reset(CompressedBitmap state) {
+        undoStates.clear();
+        redoStates.clear();
+        currentState = state;
+        sizeInBytes = state.getSizeInBytes();
+    }
+
+    public boolean canUndo() {
+        return !undoStates.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStates.isEmpty();
+    }
+
+    /**
+     * Goes back to the selection before the current one, and returns it (null if there isn't one)
+     */
+    public BitSet undo() {
+        if (undoStates.isEmpty())
+            return null;
+        redoStates.push(currentState);
+        currentState = undoStates.pop();
+        return currentState.toBitSet();
+    }
+
+    /**
+     * Goes forward to the selection last undone, and returns it (null if there isn't one)
+     */
+    public BitSet redo() {
+        if (redoStates.isEmpty())
+            return null;
+        undoStates.push(currentState);
+        currentState = redoStates.pop();
+        return currentState.toBitSet();
+    }
+}
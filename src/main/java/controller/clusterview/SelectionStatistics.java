@@ -0,0 +1,135 @@
+package controller.clusterview;
+
+import labelset.Cluster;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Running totals of isoform expression in the selected cells (for each isoform and cluster, the sum of
+ * the isoform's expression in the selected cells of that cluster, and how many of them express it).
+ * Totals are updated by the cells added to and removed from the selection, so the isoform view can
+ * get averages without going through every selected cell again. An isoform's totals are only computed
+ * (from the selected cells) once something asks for them, and at most MAX_TRACKED_ISOFORMS isoforms
+ * are kept up to date at once
+ */
+public class SelectionStatistics {
+    private static final int MAX_TRACKED_ISOFORMS = 256;
+
+    private final CellSelection selection;
+    private final Supplier<? extends Collection<Cluster>> selectedClusters;
+    private final ToIntFunction<Cluster> numSelectedCellsInCluster;
+    private final Map<String, Map<Cluster, Totals>> isoformTotals;
+
+    /**
+     * @param selection        the selection whose totals are kept. Changes to it have to be passed on to
+     *                         these statistics
+     * @param selectedClusters returns the clusters with selected cells in them
+     * @param numSelectedCellsInCluster returns the number of selected cells in the given cluster
+     */
+    public SelectionStatistics(CellSelection selection, Supplier<? extends Collection<Cluster>> selectedClusters,
+                               ToIntFunction<Cluster> numSelectedCellsInCluster) {
+        this.selection = selection;
+        this.selectedClusters = selectedClusters;
+        this.numSelectedCellsInCluster = numSelectedCellsInCluster;
+        isoformTotals = new HashMap<>();
+    }
+
+    /**
+     * Should be called when the given cell (in the given cluster) is added to the selection
+     */
+    public void handleCellSelected(ClusterViewController.CellDataItem cell, Cluster cluster) {
+        update(cell, cluster, 1);
+    }
+
+    /**
+     * Should be called when the given cell (in the given cluster) is removed from the selection
+     */
+    public void handleCellDeselected(ClusterViewController.CellDataItem cell, Cluster cluster) {
+        update(cell, cluster, -1);
+    }
+
+    /**
+     * Should be called when every selected cell in the given cluster is deselected
+     */
+    public void handleClusterDeselected(Cluster cluster) {
+        for (Map<Cluster, Totals> clusterTotals : isoformTotals.values())
+            clusterTotals.remove(cluster);
+    }
+
+    /**
+     * Forgets all totals (ex. after the selection was cleared, or the selected cells changed clusters).
+     * They're computed again when next needed
+     */
+    public void reset() {
+        isoformTotals.clear();
+    }
+
+    /**
+     * Returns the average expression of the given isoform in the selected cells of the given cluster (or
+     * of every cluster if cluster is null)
+     *
+     * @param includeZeros whether cells that don't express the isoform count towards the average
+     */
+    public double getAverageExpression(String isoformID, Cluster cluster, boolean includeZeros) {
+        double expressionSum = 0;
+        int numExpressingCells = 0;
+        for (Map.Entry<Cluster, Totals> entry : getTotals(isoformID).entrySet()) {
+            if (cluster == null || cluster.equals(entry.getKey())) {
+                expressionSum += entry.getValue().expressionSum;
+                numExpressingCells += entry.getValue().numExpressingCells;
+            }
+        }
+        int numCells = includeZeros ? getNumSelectedCells(cluster) : numExpressingCells;
+        if (numCells == 0)
+            return 0;
+        return expressionSum / numCells;
+    }
+
+    private void update(ClusterViewController.CellDataItem cell, Cluster cluster, int sign) {
+        for (Map.Entry<String, Map<Cluster, Totals>> entry : isoformTotals.entrySet()) {
+            double expression = cell.getIsoformExpressionLevel(entry.getKey());
+            if (expression > 0) {
+                Totals totals = entry.getValue().computeIfAbsent(cluster, key -> new Totals());
+                totals.expressionSum += sign * expression;
+                totals.numExpressingCells += sign;
+            }
+        }
+    }
+
+    private Map<Cluster, Totals> getTotals(String isoformID) {
+        Map<Cluster, Totals> clusterTotals = isoformTotals.get(isoformID);
+        if (clusterTotals == null) {
+            if (isoformTotals.size() >= MAX_TRACKED_ISOFORMS)
+                isoformTotals.clear();
+            clusterTotals = new HashMap<>();
+            for (Cluster selectedCluster : selectedClusters.get()) {
+                Totals totals = new Totals();
+                for (ClusterViewController.CellDataItem cell : selection.getSelectedCellsInCluster(selectedCluster)) {
+                    double expression = cell.getIsoformExpressionLevel(isoformID);
+                    if (expression > 0) {
+                        totals.expressionSum += expression;
+                        totals.numExpressingCells++;
+                    }
+                }
+                clusterTotals.put(selectedCluster, totals);
+            }
+            isoformTotals.put(isoformID, clusterTotals);
+        }
+        return clusterTotals;
+    }
+
+    private int getNumSelectedCells(Cluster cluster) {
+        if (cluster != null)
+            return numSelectedCellsInCluster.applyAsInt(cluster);
+        return selection.getNumSelectedCells();
+    }
+
+    private static class Totals {
+        private double expressionSum;
+        private int numExpressingCells;
+    }
+}
@@ -1,6 +1,10 @@
 package controller.labelsetmanager;
 
+import clustering.Louvain;
+import clustering.MiniBatchKMeans;
+import clustering.SNNGraph;
 import controller.PopUpController;
+import embedding.DatasetCache;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.FXCollections;
@@ -8,13 +12,17 @@ import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import labelset.Cluster;
 import labelset.LabelSet;
+import labelset.LabelSetComparison;
 import mediator.ControllerMediator;
 import org.json.JSONObject;
 import parser.Parser;
 import persistence.CurrentSession;
+import persistence.ExportWriter;
 import persistence.SessionMaker;
 import ui.LabelSetManagerWindow;
 
@@ -29,17 +37,33 @@ import java.util.stream.Collectors;
 import static javafx.application.Platform.runLater;
 
 public class LabelSetManagerController extends PopUpController {
+    private static final double DEFAULT_CLUSTERING_RESOLUTION = 1;
+    private static final int DEFAULT_NUM_K_MEANS_CLUSTERS = 10;
+    private static final long CLUSTERING_SEED = 0;
+    private static final String CELL_PLOT_COORDINATES = "Cell plot coordinates";
+    private static final String PCA_COMPONENTS = "PCA components";
+
     @FXML private ScrollPane labelSetManager;
     @FXML private ListView labelSetsListView;
     @FXML private MenuButton addLabelSetButton;
     @FXML private MenuItem addFromCellSelectionOption;
     @FXML private Button removeLabelSetButton;
     @FXML private Button exportLabelSetButton;
+    @FXML private Button cancelClusteringButton;
+    @FXML private Button compareLabelSetsButton;
+    @FXML private VBox labelSetComparisonBox;
+    @FXML private TextArea labelSetComparisonTextArea;
 
     private ObservableList<LabelSet> labelSets;
     private LabelSet labelSetInUse;
     private boolean calculatingLabelSetInUseFoldChanges;
     private int numLabelSetsExported;
+    private double clusteringResolution;
+    private int numKMeansClusters;
+    // k-means clustering being run (null if there isn't one)
+    private MiniBatchKMeans kMeans;
+    // comparisons of each pair of label sets last compared (null if label sets weren't compared)
+    private List<LabelSetComparison> labelSetComparisons;
 
     public void initializeLabelSetManager(LabelSetManagerWindow window) {
         this.window = window;
@@ -47,6 +71,10 @@ public class LabelSetManagerController extends PopUpController {
         addFromCellSelectionOption.setDisable(true);
         calculatingLabelSetInUseFoldChanges = false;
         numLabelSetsExported = 0;
+        clusteringResolution = DEFAULT_CLUSTERING_RESOLUTION;
+        numKMeansClusters = DEFAULT_NUM_K_MEANS_CLUSTERS;
+        setCancelClusteringButtonShown(false);
+        setLabelSetComparisons(null);
     }
 
     /**
@@ -57,6 +85,7 @@ public class LabelSetManagerController extends PopUpController {
         removeLabelSetButton.setDisable(true);
         addLabelSetButton.setDisable(true);
         exportLabelSetButton.setDisable(true);
+        compareLabelSetsButton.setDisable(true);
     }
 
     /**
@@ -67,6 +96,7 @@ public class LabelSetManagerController extends PopUpController {
         removeLabelSetButton.setDisable(false);
         exportLabelSetButton.setDisable(false);
         addLabelSetButton.setDisable(false);
+        compareLabelSetsButton.setDisable(false);
         if (!ControllerMediator.getInstance().isCellPlotCleared() && addFromCellSelectionOption.isDisable())
             addFromCellSelectionOption.setDisable(false);
 
@@ -104,6 +134,7 @@ public class LabelSetManagerController extends PopUpController {
     public void clearLabelSets() {
         labelSets.clear();
         labelSetInUse = null;
+        setLabelSetComparisons(null);
         ControllerMediator.getInstance().unfilterGenes();
         ControllerMediator.getInstance().updateFilterCellCategories();
     }
@@ -125,14 +156,28 @@ public class LabelSetManagerController extends PopUpController {
         }
     }
 
+    /**
+     * Writes each label set whose file wasn't saved, or that changed since it was, to the given directory.
+     * A changed label set's file is rewritten if it's in that directory (it was written when the session
+     * was last saved there), otherwise the label set is written to a new file
+     */
     public void exportLabelSetsToFiles(String pathToDir) throws IOException {
+        File dir = new File(pathToDir).getAbsoluteFile();
         for (LabelSet labelSet : labelSets) {
-            if (!CurrentSession.isLabelSetPathSaved(labelSet)) {
+            if (!CurrentSession.isLabelSetSaved(labelSet, labelSet.getContentHash())) {
                 Files.createDirectories(Paths.get(pathToDir));
-                numLabelSetsExported += 1;
-                String name = "labelset" + numLabelSetsExported + ".txt";
-                File labelSetFile = new File(pathToDir + File.separator + name);
-                exportLabelSetToFile(labelSetFile, labelSet);
+                String savedPath = CurrentSession.getLabelSetPath(labelSet);
+                File labelSetFile;
+                // only files this session wrote are overwritten (never ones the label sets were loaded from)
+                if (savedPath != null && CurrentSession.isWrittenLabelSetPath(savedPath) && dir.equals(new File(savedPath).getParentFile())) {
+                    labelSetFile = new File(savedPath);
+                } else {
+                    numLabelSetsExported += 1;
+                    String name = "labelset" + numLabelSetsExported + ".txt";
+                    labelSetFile = new File(pathToDir + File.separator + name);
+                }
+                if (exportLabelSetToFile(labelSetFile, labelSet))
+                    CurrentSession.addWrittenLabelSetPath(labelSetFile.getAbsolutePath());
             }
         }
     }
@@ -228,7 +273,7 @@ public class LabelSetManagerController extends PopUpController {
             boolean successfullyAdded = Parser.loadLabelSet(labelSetFile);
             if (calculatingLabelSetInUseFoldChanges && successfullyAdded) {
                 try {
-                    Thread foldChangeUpdaterThread = new Thread(new CalculateAndUpdateFoldChangeThread());
+                    Thread foldChangeUpdaterThread = new Thread(new CalculateAndUpdateFoldChangeThread("Successfully loaded label set"));
                     foldChangeUpdaterThread.start();
                 } catch (Exception e) {
                     enableCalculatingFoldChangeAssociatedFunctionality();
@@ -243,6 +288,112 @@ public class LabelSetManagerController extends PopUpController {
         }
     }
 
+    /**
+     * When "Add label set by clustering cells" option is pressed, asks for the resolution to cluster at
+     * (starting from the last one used), then clusters the cells into a new label set in the background.
+     * Clustering again reuses the cells' nearest neighbor graph, so only the community detection is redone
+     */
+    @FXML
+    protected void handleAddByClusteringOption() {
+        double[][] cellIsoformExpressionMatrix = ControllerMediator.getInstance().getCellIsoformExpressionMatrix();
+        if (cellIsoformExpressionMatrix == null || cellIsoformExpressionMatrix.length < 2) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("At least two cells must be loaded to cluster them");
+            return;
+        }
+        TextInputDialog resolutionDialog = new TextInputDialog(Double.toString(clusteringResolution));
+        resolutionDialog.initOwner(window);
+        resolutionDialog.setTitle("Cluster Cells");
+        resolutionDialog.setHeaderText("Higher resolutions find more, smaller clusters");
+        resolutionDialog.setContentText("Resolution:");
+        Optional<String> resolutionInput = resolutionDialog.showAndWait();
+        if (!resolutionInput.isPresent())
+            return;
+
+        double resolution;
+        try {
+            resolution = Double.parseDouble(resolutionInput.get().trim());
+        } catch (NumberFormatException e) {
+            resolution = -1;
+        }
+        if (!(resolution > 0) || Double.isInfinite(resolution)) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("Clustering resolution must be a positive number");
+            return;
+        }
+        clusteringResolution = resolution;
+        disableCalculatingFoldChangeAssociatedFunctionality();
+        ControllerMediator.getInstance().addConsoleMessage("Clustering cells at resolution " + resolution + "...");
+        Thread clusteringThread = new Thread(new ClusterCellsThread(cellIsoformExpressionMatrix, resolution));
+        clusteringThread.setDaemon(true);
+        clusteringThread.start();
+    }
+
+    /**
+     * When "Add label set by k-means" option is pressed, asks for the number of clusters and whether to
+     * cluster the cell plot coordinates or the cells' PCA components, then runs mini-batch k-means in the
+     * background (which can be cancelled) and adds the clusters as a new label set
+     */
+    @FXML
+    protected void handleAddByKMeansOption() {
+        double[][] cellIsoformExpressionMatrix = ControllerMediator.getInstance().getCellIsoformExpressionMatrix();
+        if (cellIsoformExpressionMatrix == null || cellIsoformExpressionMatrix.length == 0) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("Cells must be loaded to cluster them");
+            return;
+        }
+        TextField numClustersField = new TextField(Integer.toString(numKMeansClusters));
+        ChoiceBox<String> coordinatesChoiceBox = new ChoiceBox<>(FXCollections.observableArrayList(CELL_PLOT_COORDINATES, PCA_COMPONENTS));
+        coordinatesChoiceBox.setValue(ControllerMediator.getInstance().getCurrentEmbedding() != null ? CELL_PLOT_COORDINATES : PCA_COMPONENTS);
+        GridPane settings = new GridPane();
+        settings.setHgap(10);
+        settings.setVgap(10);
+        settings.addRow(0, new Label("Number of clusters:"), numClustersField);
+        settings.addRow(1, new Label("Cluster by:"), coordinatesChoiceBox);
+        Dialog<ButtonType> kMeansDialog = new Dialog<>();
+        kMeansDialog.initOwner(window);
+        kMeansDialog.setTitle("Cluster Cells with K-Means");
+        kMeansDialog.getDialogPane().setContent(settings);
+        kMeansDialog.getDialogPane().getButtonTypes().addAll(ButtonType.OK, ButtonType.CANCEL);
+        if (kMeansDialog.showAndWait().orElse(ButtonType.CANCEL) != ButtonType.OK)
+            return;
+
+        int numClusters;
+        try {
+            numClusters = Integer.parseInt(numClustersField.getText().trim());
+        } catch (NumberFormatException e) {
+            numClusters = 0;
+        }
+        if (numClusters < 1) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("Number of clusters must be a positive whole number");
+            return;
+        }
+        boolean clusteringCellPlotCoordinates = coordinatesChoiceBox.getValue().equals(CELL_PLOT_COORDINATES);
+        double[][] embedding = clusteringCellPlotCoordinates ? ControllerMediator.getInstance().getCurrentEmbedding() : null;
+        if (clusteringCellPlotCoordinates && embedding == null) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("Cell plot must be drawn (or an embedding loaded) to cluster its coordinates");
+            return;
+        }
+        numKMeansClusters = numClusters;
+        kMeans = new MiniBatchKMeans(numClusters, CLUSTERING_SEED);
+        disableCalculatingFoldChangeAssociatedFunctionality();
+        setCancelClusteringButtonShown(true);
+        ControllerMediator.getInstance().addConsoleMessage("Clustering cells into " + numClusters + " clusters with k-means...");
+        Thread kMeansThread = new Thread(new KMeansThread(kMeans, cellIsoformExpressionMatrix, embedding));
+        kMeansThread.setDaemon(true);
+        kMeansThread.start();
+    }
+
+    /**
+     * When Cancel Clustering button is pressed, stops the k-means clustering being run
+     */
+    @FXML
+    protected void handleCancelClusteringButton() {
+        if (kMeans != null) {
+            kMeans.cancel();
+            kMeans = null;
+            setCancelClusteringButtonShown(false);
+            ControllerMediator.getInstance().addConsoleMessage("Cancelled clustering");
+            enableCalculatingFoldChangeAssociatedFunctionality();
+        }
+    }
 
     /**
      * When Remove Label Set button is pressed, removes selected label set (unless
@@ -275,6 +426,53 @@ public class LabelSetManagerController extends PopUpController {
         }
     }
 
+    /**
+     * When Compare Label Sets button is pressed, compares every pair of label sets (in the background) and
+     * shows their contingency tables, adjusted Rand indices and cluster overlaps
+     */
+    @FXML
+    protected void handleCompareLabelSetsButton() {
+        if (labelSets.size() < 2) {
+            ControllerMediator.getInstance().addConsoleErrorMessage("There must be at least two label sets to compare");
+            return;
+        }
+        disableCalculatingFoldChangeAssociatedFunctionality();
+        ControllerMediator.getInstance().addConsoleMessage("Comparing label sets...");
+        Thread compareLabelSetsThread = new Thread(new CompareLabelSetsThread(new ArrayList<>(labelSets)));
+        compareLabelSetsThread.setDaemon(true);
+        compareLabelSetsThread.start();
+    }
+
+    /**
+     * When Export Comparison button is pressed, lets user save the label set comparisons shown to a file
+     */
+    @FXML
+    protected void handleExportLabelSetComparisonButton() {
+        if (labelSetComparisons != null) {
+            ControllerMediator.getInstance().disableMain();
+
+            FileChooser fileChooser = new FileChooser();
+            FileChooser.ExtensionFilter textFileFilter = new FileChooser.ExtensionFilter("Text Files", "*.txt");
+            fileChooser.getExtensionFilters().add(textFileFilter);
+            fileChooser.setInitialFileName("labelset_comparison.txt");
+            File comparisonFile = fileChooser.showSaveDialog(window);
+            if (comparisonFile != null) {
+                try {
+                    FileWriter fileWriter = new FileWriter(comparisonFile);
+                    fileWriter.write(labelSetComparisonTextArea.getText());
+                    fileWriter.close();
+                    ControllerMediator.getInstance().addConsoleMessage("Exported label set comparison to: " + comparisonFile.getPath());
+                } catch (Exception e) {
+                    ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+                }
+            }
+
+            ControllerMediator.getInstance().enableMain();
+        } else {
+            ControllerMediator.getInstance().addConsoleErrorMessage("No label set comparison to export");
+        }
+    }
+
     private void enableCalculatingFoldChangeAssociatedFunctionality() {
         enable();
         ControllerMediator.getInstance().enableMain();
@@ -293,15 +491,60 @@ public class LabelSetManagerController extends PopUpController {
         ControllerMediator.getInstance().disableGeneFilterer();
     }
 
-    private void exportLabelSetToFile(File labelSetFile, LabelSet labelSet) {
+    /**
+     * Shows the given label set comparisons (hides the comparison section if given null)
+     */
+    private void setLabelSetComparisons(List<LabelSetComparison> labelSetComparisons) {
+        this.labelSetComparisons = labelSetComparisons;
+        boolean shown = labelSetComparisons != null;
+        labelSetComparisonBox.setVisible(shown);
+        labelSetComparisonBox.setManaged(shown);
+        labelSetComparisonTextArea.setText(shown ? labelSetComparisons.stream().map(LabelSetComparison::toString).collect(Collectors.joining("\n\n")) : "");
+    }
+
+    private void setCancelClusteringButtonShown(boolean shown) {
+        cancelClusteringButton.setVisible(shown);
+        cancelClusteringButton.setManaged(shown);
+    }
+
+    /**
+     * Adds a label set with the given cluster of each cell (clusters are numbered from 0) as the label set
+     * in use, and calculates its fold changes if the cell plot is drawn. Nothing is added if a different
+     * matrix was loaded since clustering started
+     */
+    private void addClusteringLabelSet(double[][] clusteredMatrix, int[] cellClusters, String labelSetName, String finishedMessage) {
+        if (clusteredMatrix != ControllerMediator.getInstance().getCellIsoformExpressionMatrix()) {
+            enableCalculatingFoldChangeAssociatedFunctionality();
+            return;
+        }
+        int numClusters = Arrays.stream(cellClusters).max().orElse(-1) + 1;
+        List<Cluster> clusters = new ArrayList<>();
+        for (int cluster = 0; cluster < numClusters; cluster++)
+            clusters.add(new Cluster("Cluster " + (cluster + 1)));
+        addLabelSet(new LabelSet(cellClusters, clusters, getUniqueLabelSetName(labelSetName)));
+        if (!ControllerMediator.getInstance().isCellPlotCleared()) {
+            Thread foldChangeUpdaterThread = new Thread(new CalculateAndUpdateFoldChangeThread(finishedMessage));
+            foldChangeUpdaterThread.start();
+        } else {
+            ControllerMediator.getInstance().addConsoleMessage(finishedMessage);
+            enableCalculatingFoldChangeAssociatedFunctionality();
+        }
+    }
+
+    /**
+     * Writes the given label set to the given file. Returns true if it was written
+     */
+    private boolean exportLabelSetToFile(File labelSetFile, LabelSet labelSet) {
         try {
-            FileWriter fileWriter = new FileWriter(labelSetFile);
-            fileWriter.write(labelSet.toString());
-            fileWriter.close();
+            ExportWriter.writeRows(labelSetFile, ControllerMediator.getInstance().getNumCellsToPlot(), (cellNumber, labelSetText) ->
+                labelSetText.append(labelSet.getCellCluster(cellNumber).getName()).append("\n")
+            );
             ControllerMediator.getInstance().addConsoleMessage("Exported label set to: " + labelSetFile.getPath());
-            CurrentSession.saveLabelSetPath(labelSet, labelSetFile.getAbsolutePath());
+            CurrentSession.saveLabelSetPath(labelSet, labelSetFile.getAbsolutePath(), labelSet.getContentHash());
+            return true;
         } catch (Exception e) {
             ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+            return false;
         }
     }
 
@@ -355,13 +598,123 @@ public class LabelSetManagerController extends PopUpController {
      * calculating fold change values can take a while)
      */
     private class CalculateAndUpdateFoldChangeThread implements Runnable {
+        private final String finishedMessage;
+
+        /**
+         * @param finishedMessage console message shown once the fold change values are updated
+         */
+        public CalculateAndUpdateFoldChangeThread(String finishedMessage) {
+            this.finishedMessage = finishedMessage;
+        }
 
         @Override
         public void run() {
             ControllerMediator.getInstance().calculateAndSaveMaxFoldChange(Collections.singletonList(labelSetInUse));
             ControllerMediator.getInstance().updateGenesMaxFoldChange();
-            Platform.runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Successfully loaded label set"));
+            Platform.runLater(() -> ControllerMediator.getInstance().addConsoleMessage(finishedMessage));
             Platform.runLater(LabelSetManagerController.this::enableCalculatingFoldChangeAssociatedFunctionality);
         }
     }
+
+    /**
+     * Thread which clusters the cells (Louvain community detection on their shared nearest neighbor graph)
+     * and adds the clusters as a new label set, which becomes the label set in use
+     */
+    private class ClusterCellsThread implements Runnable {
+        private final double[][] cellIsoformExpressionMatrix;
+        private final double resolution;
+
+        public ClusterCellsThread(double[][] cellIsoformExpressionMatrix, double resolution) {
+            this.cellIsoformExpressionMatrix = cellIsoformExpressionMatrix;
+            this.resolution = resolution;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SNNGraph graph = DatasetCache.getSNNGraph(cellIsoformExpressionMatrix);
+                int[] cellClusters = Louvain.findCommunities(graph, resolution, CLUSTERING_SEED);
+                int numClusters = Arrays.stream(cellClusters).max().orElse(-1) + 1;
+                String finishedMessage = "Found " + numClusters + (numClusters == 1 ? " cluster" : " clusters") + " at resolution " + resolution;
+                Platform.runLater(() -> addClusteringLabelSet(cellIsoformExpressionMatrix, cellClusters, "Clusters (resolution " + resolution + ")", finishedMessage));
+            } catch (Exception e) {
+                Platform.runLater(() -> {
+                    ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+                    enableCalculatingFoldChangeAssociatedFunctionality();
+                });
+            }
+        }
+    }
+
+    /**
+     * Thread which compares every pair of the given label sets
+     */
+    private class CompareLabelSetsThread implements Runnable {
+        private final List<LabelSet> labelSetsToCompare;
+
+        public CompareLabelSetsThread(List<LabelSet> labelSetsToCompare) {
+            this.labelSetsToCompare = labelSetsToCompare;
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<LabelSetComparison> comparisons = LabelSetComparison.compareAll(labelSetsToCompare);
+                Platform.runLater(() -> {
+                    setLabelSetComparisons(comparisons);
+                    ControllerMediator.getInstance().addConsoleMessage("Finished comparing label sets");
+                    enableCalculatingFoldChangeAssociatedFunctionality();
+                });
+            } catch (Exception e) {
+                Platform.runLater(() -> {
+                    ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+                    enableCalculatingFoldChangeAssociatedFunctionality();
+                });
+            }
+        }
+    }
+
+    /**
+     * Thread which runs mini-batch k-means on the cell plot coordinates (or, if there aren't any given, the
+     * cells' PCA components) and adds the clusters as a new label set, unless the clustering is cancelled
+     */
+    private class KMeansThread implements Runnable {
+        private final MiniBatchKMeans kMeans;
+        private final double[][] cellIsoformExpressionMatrix;
+        private final double[][] embedding;
+
+        public KMeansThread(MiniBatchKMeans kMeans, double[][] cellIsoformExpressionMatrix, double[][] embedding) {
+            this.kMeans = kMeans;
+            this.cellIsoformExpressionMatrix = cellIsoformExpressionMatrix;
+            this.embedding = embedding;
+        }
+
+        @Override
+        public void run() {
+            try {
+                double[][] points = (embedding != null) ? embedding : DatasetCache.getReducedMatrix(cellIsoformExpressionMatrix);
+                int[] cellClusters = kMeans.cluster(points);
+                Platform.runLater(() -> {
+                    // if this clustering was cancelled, everything was already re-enabled
+                    if (cellClusters == null || LabelSetManagerController.this.kMeans != kMeans)
+                        return;
+                    LabelSetManagerController.this.kMeans = null;
+                    setCancelClusteringButtonShown(false);
+                    int numClusters = Arrays.stream(cellClusters).max().orElse(-1) + 1;
+                    String labelSetName = "K-Means (" + numClusters + (embedding != null ? " clusters, cell plot)" : " clusters, PCA)");
+                    String finishedMessage = "Found " + numClusters + (numClusters == 1 ? " cluster" : " clusters") + " with k-means";
+                    addClusteringLabelSet(cellIsoformExpressionMatrix, cellClusters, labelSetName, finishedMessage);
+                });
+            } catch (Exception e) {
+                Platform.runLater(() -> {
+                    if (LabelSetManagerController.this.kMeans != kMeans)
+                        return;
+                    LabelSetManagerController.this.kMeans = null;
+                    setCancelClusteringButtonShown(false);
+                    ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e);
+                    enableCalculatingFoldChangeAssociatedFunctionality();
+                });
+            }
+        }
+    }
 }
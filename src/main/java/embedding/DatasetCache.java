@@ -0,0 +1,253 @@
+package embedding;
+
+import clustering.SNNGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Holds values derived from the loaded cell isoform expression matrix (the highly variable isoforms
+ * selected as embedding input, their PCA, the PCA-reduced matrix, the cells' nearest neighbor
+ * index and graph, and their shared nearest neighbor graph), so they are computed at most once per dataset. Should be cleared whenever a new
+ * matrix is loaded
+ */
+public class DatasetCache {
+    public static final int NUM_PCA_COMPONENTS = 50;
+    public static final String KNN_GRAPH_FILE_NAME = "knn_graph.bin";
+    private static final int FINGERPRINT_SAMPLE_ROWS = 1000;
+
+    private static double[][] matrix;
+    /**
+     * Columns of the highly variable isoforms everything else is derived from (null if all columns
+     * are used), and the number of highly variable isoforms that was asked for
+     */
+    private static int[] selectedColumns;
+    private static int numHighlyVariableColumns;
+    private static PCA pca;
+    private static double[][] reducedMatrix;
+    private static NearestNeighborIndex nearestNeighborIndex;
+    private static KNNGraph knnGraph;
+    private static SNNGraph snnGraph;
+    private static long fingerprint;
+
+    public static synchronized void clear() {
+        matrix = null;
+        selectedColumns = null;
+        numHighlyVariableColumns = 0;
+        clearDerivedValues();
+    }
+
+    /**
+     * Selects the given number of highly variable isoforms as the embedding input (0 selects all
+     * isoforms). If they were already selected for the given matrix, nothing is recomputed. Returns
+     * true if the selection changed
+     */
+    public static synchronized boolean selectHighlyVariableColumns(double[][] cellIsoformExpressionMatrix, int numColumns) {
+        setMatrix(cellIsoformExpressionMatrix);
+        if (numColumns == numHighlyVariableColumns)
+            return false;
+        int[] columns = (numColumns <= 0 || numColumns >= matrix[0].length) ? null : FeatureSelector.selectHighlyVariableColumns(matrix, numColumns);
+        setSelectedColumns(columns, numColumns);
+        return true;
+    }
+
+    /**
+     * Sets the highly variable isoform columns (e.g. ones saved in a previous session), selected when
+     * numColumns isoforms were asked for
+     */
+    public static synchronized void setSelectedColumns(double[][] cellIsoformExpressionMatrix, int[] columns, int numColumns) {
+        setMatrix(cellIsoformExpressionMatrix);
+        setSelectedColumns(columns, numColumns);
+    }
+
+    /**
+     * Returns the columns of the selected highly variable isoforms, from most to least variable
+     * (null if all isoforms are used)
+     */
+    public static synchronized int[] getSelectedColumns() {
+        return selectedColumns;
+    }
+
+    private static void setSelectedColumns(int[] columns, int numColumns) {
+        selectedColumns = columns;
+        numHighlyVariableColumns = numColumns;
+        clearDerivedValues();
+        fingerprint = getFingerprint(matrix, selectedColumns);
+    }
+
+    private static void clearDerivedValues() {
+        pca = null;
+        reducedMatrix = null;
+        nearestNeighborIndex = null;
+        knnGraph = null;
+        snnGraph = null;
+    }
+
+    /**
+     * Should be called when cells are appended to the loaded matrix (combinedMatrix is the loaded
+     * matrix followed by the new rows). The PCA is kept, so existing cells' reduced rows don't
+     * change and the new rows are projected onto the same components. The nearest neighbor index of
+     * the existing cells is kept (ex. to project the new cells with), and the graph is rebuilt when
+     * next needed
+     */
+    public static synchronized void appendRows(double[][] combinedMatrix, int numExistingRows) {
+        double[][] previousMatrix = matrix;
+        int[] previousSelectedColumns = selectedColumns;
+        int previousNumHighlyVariableColumns = numHighlyVariableColumns;
+        PCA previousPCA = pca;
+        double[][] previousReducedMatrix = reducedMatrix;
+        NearestNeighborIndex previousNearestNeighborIndex = nearestNeighborIndex;
+        setMatrix(combinedMatrix);
+        if (previousMatrix == null || previousMatrix.length != numExistingRows)
+            return;
+
+        // isoforms selected based on the existing cells are kept
+        setSelectedColumns(previousSelectedColumns, previousNumHighlyVariableColumns);
+        if (previousReducedMatrix == null)
+            return;
+        pca = previousPCA;
+        if (previousNearestNeighborIndex != null && previousNearestNeighborIndex.getPoints() == previousReducedMatrix)
+            nearestNeighborIndex = previousNearestNeighborIndex;
+        reducedMatrix = Arrays.copyOf(previousReducedMatrix, combinedMatrix.length);
+        IntStream.range(numExistingRows, combinedMatrix.length).parallel().forEach(row ->
+                reducedMatrix[row] = (previousPCA == null) ? selectColumns(combinedMatrix[row]) : previousPCA.transform(combinedMatrix[row]));
+    }
+
+    /**
+     * Returns the given matrix's selected highly variable isoform columns, projected onto their first
+     * NUM_PCA_COMPONENTS principal components. If there are no more selected columns than that,
+     * returns the selected columns themselves
+     */
+    public static synchronized double[][] getReducedMatrix(double[][] cellIsoformExpressionMatrix) {
+        setMatrix(cellIsoformExpressionMatrix);
+        if (reducedMatrix == null) {
+            PCA matrixPCA = getPCA(cellIsoformExpressionMatrix);
+            if (matrixPCA != null)
+                reducedMatrix = matrixPCA.transform(matrix);
+            else if (selectedColumns == null)
+                reducedMatrix = matrix;
+            else
+                reducedMatrix = Arrays.stream(matrix).parallel().map(DatasetCache::selectColumns).toArray(double[][]::new);
+        }
+        return reducedMatrix;
+    }
+
+    /**
+     * Returns PCA fit on the selected columns of the given matrix, or null if there are no more
+     * than NUM_PCA_COMPONENTS selected columns (in which case they aren't reduced)
+     */
+    public static synchronized PCA getPCA(double[][] cellIsoformExpressionMatrix) {
+        setMatrix(cellIsoformExpressionMatrix);
+        int numColumns = (selectedColumns == null) ? matrix[0].length : selectedColumns.length;
+        if (pca == null && matrix.length > 0 && numColumns > NUM_PCA_COMPONENTS)
+            pca = PCA.fit(matrix, selectedColumns, NUM_PCA_COMPONENTS);
+        return pca;
+    }
+
+    public static synchronized NearestNeighborIndex getNearestNeighborIndex(double[][] cellIsoformExpressionMatrix, int k) {
+        return getNearestNeighborIndex(cellIsoformExpressionMatrix, cellIsoformExpressionMatrix.length, k);
+    }
+
+    /**
+     * Returns the nearest neighbor index of the first numRows cells (in PCA-reduced space), ex. the cells
+     * there were before others were appended. The cached index is reused if it indexes those cells and
+     * was built for at least k neighbors
+     */
+    public static synchronized NearestNeighborIndex getNearestNeighborIndex(double[][] cellIsoformExpressionMatrix, int numRows, int k) {
+        double[][] reduced = getReducedMatrix(cellIsoformExpressionMatrix);
+        if (nearestNeighborIndex == null || nearestNeighborIndex.getPoints().length != numRows || !nearestNeighborIndex.isBuiltFor(k))
+            nearestNeighborIndex = NearestNeighborIndex.build((numRows == reduced.length) ? reduced : Arrays.copyOf(reduced, numRows), k);
+        return nearestNeighborIndex;
+    }
+
+    /**
+     * Returns the k nearest neighbors of every cell (in PCA-reduced space). The graph is only
+     * rebuilt if the cached one has fewer than k neighbors per cell
+     */
+    public static synchronized KNNGraph getKNNGraph(double[][] cellIsoformExpressionMatrix, int k) {
+        setMatrix(cellIsoformExpressionMatrix);
+        int realK = Math.min(k, matrix.length - 1);
+        if (knnGraph == null || knnGraph.getK() < realK)
+            knnGraph = getNearestNeighborIndex(cellIsoformExpressionMatrix, realK).getKNNGraph(realK);
+        return knnGraph.truncate(realK);
+    }
+
+    /**
+     * Returns the shared nearest neighbor graph of the cells, built from their SNNGraph.NUM_NEIGHBORS
+     * nearest neighbors (so clustering again, ex. at a different resolution, doesn't rebuild it)
+     */
+    public static synchronized SNNGraph getSNNGraph(double[][] cellIsoformExpressionMatrix) {
+        KNNGraph graph = getKNNGraph(cellIsoformExpressionMatrix, SNNGraph.NUM_NEIGHBORS);
+        if (snnGraph == null)
+            snnGraph = SNNGraph.build(graph);
+        return snnGraph;
+    }
+
+    /**
+     * Writes the cached kNN graph (if there is one) to the given directory, and returns the
+     * path to the written file (null if nothing was written)
+     */
+    public static synchronized String exportKNNGraphToFile(String pathToDir) throws IOException {
+        if (knnGraph == null)
+            return null;
+        Files.createDirectories(Paths.get(pathToDir));
+        File knnGraphFile = new File(pathToDir + File.separator + KNN_GRAPH_FILE_NAME);
+        knnGraph.write(knnGraphFile, fingerprint);
+        return knnGraphFile.getAbsolutePath();
+    }
+
+    /**
+     * Loads kNN graph written by exportKNNGraphToFile(). Assumes the matrix the graph was built for
+     * has already been loaded. The graph is ignored if it was built for a different matrix
+     */
+    public static synchronized boolean loadKNNGraph(String knnGraphPath, double[][] cellIsoformExpressionMatrix) throws IOException {
+        File knnGraphFile = new File(knnGraphPath);
+        if (!knnGraphFile.exists())
+            return false;
+        setMatrix(cellIsoformExpressionMatrix);
+        KNNGraph loadedGraph = KNNGraph.read(knnGraphFile, fingerprint);
+        if (loadedGraph == null || loadedGraph.getNumCells() != matrix.length)
+            return false;
+        knnGraph = loadedGraph;
+        return true;
+    }
+
+    private static void setMatrix(double[][] cellIsoformExpressionMatrix) {
+        if (matrix != cellIsoformExpressionMatrix) {
+            clear();
+            matrix = cellIsoformExpressionMatrix;
+            fingerprint = getFingerprint(cellIsoformExpressionMatrix, null);
+        }
+    }
+
+    private static double[] selectColumns(double[] row) {
+        if (selectedColumns == null)
+            return row;
+        double[] selected = new double[selectedColumns.length];
+        for (int j = 0; j < selectedColumns.length; j++)
+            selected[j] = row[selectedColumns[j]];
+        return selected;
+    }
+
+    /**
+     * Hash of the matrix's dimensions, of a sample of its rows and of the selected columns, used to
+     * check that a persisted graph belongs to the loaded matrix
+     */
+    private static long getFingerprint(double[][] matrix, int[] selectedColumns) {
+        long hash = 1125899906842597L;
+        if (selectedColumns != null)
+            hash = 31 * hash + Arrays.hashCode(selectedColumns);
+        hash = 31 * hash + matrix.length;
+        hash = 31 * hash + (matrix.length > 0 ? matrix[0].length : 0);
+        int step = Math.max(1, matrix.length / FINGERPRINT_SAMPLE_ROWS);
+        for (int row = 0; row < matrix.length; row += step) {
+            for (double value : matrix[row])
+                hash = 31 * hash + Double.doubleToLongBits(value);
+        }
+        return hash;
+    }
+}
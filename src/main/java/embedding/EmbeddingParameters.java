@@ -0,0 +1,83 @@
+package embedding;
+
+import com.jujutsu.tsne.TSneConfiguration;
+import com.jujutsu.tsne.barneshut.BHTSne;
+import com.jujutsu.utils.TSneUtils;
+import tagbio.umap.Umap;
+
+/**
+ * Algorithm (t-SNE or UMAP) and parameters used to embed cells
+ */
+public class EmbeddingParameters {
+    private final boolean usingUMAP;
+    private final double perplexity;
+    private final int maxIterations;
+    private final float minDist;
+    private final int nearestNeighbors;
+
+    private EmbeddingParameters(boolean usingUMAP, double perplexity, int maxIterations, float minDist, int nearestNeighbors) {
+        this.usingUMAP = usingUMAP;
+        this.perplexity = perplexity;
+        this.maxIterations = maxIterations;
+        this.minDist = minDist;
+        this.nearestNeighbors = nearestNeighbors;
+    }
+
+    public static EmbeddingParameters tSNE(double perplexity, int maxIterations) {
+        return new EmbeddingParameters(false, perplexity, maxIterations, 0, 0);
+    }
+
+    public static EmbeddingParameters umap(float minDist, int nearestNeighbors) {
+        return new EmbeddingParameters(true, 0, 0, minDist, nearestNeighbors);
+    }
+
+    /**
+     * Returns 2D embedding of the rows of the given matrix (usually already PCA-reduced, so t-SNE
+     * doesn't reduce it again). UMAP uses the given number of threads, t-SNE always runs on one
+     */
+    public double[][] embed(double[][] matrix, int numThreads) {
+        if (usingUMAP) {
+            final Umap umap = new Umap();
+            umap.setNumberComponents(2); // number of dimensions in generated matrix
+            umap.setMinDist(minDist);
+            umap.setNumberNearestNeighbours(nearestNeighbors);
+            umap.setThreads(numThreads);
+            return umap.fitTransform(matrix);
+        } else {
+            BHTSne tSNE = new BHTSne();
+            // PCA is off, so the number of initial dimensions is just the number of columns used
+            int initialDims = (matrix.length == 0) ? 0 : Math.min(DatasetCache.NUM_PCA_COMPONENTS, matrix[0].length);
+            TSneConfiguration config = TSneUtils.buildConfig(matrix, 2, initialDims, perplexity,
+                    maxIterations, false, 0.5D, false);
+            return tSNE.tsne(config);
+        }
+    }
+
+    public boolean isUsingUMAP() {
+        return usingUMAP;
+    }
+
+    public double getPerplexity() {
+        return perplexity;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public float getMinDist() {
+        return minDist;
+    }
+
+    public int getNearestNeighbors() {
+        return nearestNeighbors;
+    }
+
+    @Override
+    public String toString() {
+        if (usingUMAP)
+            return "UMAP (min distance " + minDist + ", " + nearestNeighbors + " nearest neighbors)";
+        else
+            return "t-SNE (perplexity " + perplexity + ", " + maxIterations + " max iterations)";
+    }
+}
@@ -0,0 +1,93 @@
+package embedding;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several embeddings (e.g. with different perplexities) in the background, under a global
+ * CPU budget of one thread per available processor. At most that many embeddings run at once,
+ * and the budget is split evenly between them. Only UMAP can use more than one thread, so t-SNE
+ * runs are given one each: a t-SNE sweep with fewer runs than processors leaves the rest of the
+ * budget unused. Sweep threads have low priority, so the rest of the application stays responsive
+ */
+public class EmbeddingSweep {
+    public static final int CPU_BUDGET = Runtime.getRuntime().availableProcessors();
+
+    private final List<EmbeddingParameters> parameters;
+    private final Embedder embedder;
+    private final Listener listener;
+    private final ExecutorService executor;
+    private final int threadsPerEmbedding;
+    private volatile boolean cancelled;
+
+    public EmbeddingSweep(List<EmbeddingParameters> parameters, Embedder embedder, Listener listener) {
+        this.parameters = parameters;
+        this.embedder = embedder;
+        this.listener = listener;
+        int numConcurrentEmbeddings = Math.max(1, Math.min(parameters.size(), CPU_BUDGET));
+        threadsPerEmbedding = Math.max(1, CPU_BUDGET / numConcurrentEmbeddings);
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(numConcurrentEmbeddings, runnable -> {
+            Thread thread = new Thread(runnable, "embedding-sweep-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules all embeddings. The listener is called (on a sweep thread) as each one finishes
+     */
+    public void start() {
+        for (int i = 0; i < parameters.size(); i++) {
+            int embeddingNumber = i;
+            executor.execute(() -> {
+                if (cancelled)
+                    return;
+                try {
+                    EmbeddingParameters embeddingParameters = parameters.get(embeddingNumber);
+                    int numThreads = embeddingParameters.isUsingUMAP() ? threadsPerEmbedding : 1;
+                    double[][] embedding = embedder.embed(embeddingParameters, numThreads);
+                    if (!cancelled)
+                        listener.handleFinishedEmbedding(embeddingNumber, embedding);
+                } catch (Exception e) {
+                    if (!cancelled)
+                        listener.handleFailedEmbedding(embeddingNumber, e);
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Stops scheduling embeddings. Embeddings that are already running finish in the background,
+     * but the listener isn't told about them
+     */
+    public void cancel() {
+        cancelled = true;
+        executor.shutdownNow();
+    }
+
+    public boolean isFinished() {
+        return executor.isTerminated();
+    }
+
+    public List<EmbeddingParameters> getParameters() {
+        return parameters;
+    }
+
+    public interface Embedder {
+        /**
+         * Returns embedding of the cells made with the given parameters, using at most numThreads threads
+         */
+        double[][] embed(EmbeddingParameters parameters, int numThreads) throws Exception;
+    }
+
+    public interface Listener {
+        void handleFinishedEmbedding(int embeddingNumber, double[][] embedding);
+
+        void handleFailedEmbedding(int embeddingNumber, Exception e);
+    }
+}
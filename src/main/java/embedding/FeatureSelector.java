@@ -0,0 +1,107 @@
+package embedding;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Selects the highly variable isoforms (columns) of the cell isoform expression matrix
+ *
+ * Each isoform's mean and dispersion (variance / mean) are computed in one pass over the
+ * matrix, split across rows in parallel and skipping zeros. Isoforms are binned by mean
+ * expression, and each isoform's log dispersion is normalized (z-scored) within its bin, so
+ * highly expressed isoforms aren't favoured just because they're highly expressed
+ */
+public class FeatureSelector {
+    private static final int NUM_MEAN_BINS = 20;
+
+    /**
+     * Returns the columns of the numColumns most highly variable isoforms, from most to least
+     * variable. Isoforms not expressed in any cell are never selected
+     */
+    public static int[] selectHighlyVariableColumns(double[][] matrix, int numColumns) {
+        int totalColumns = matrix[0].length;
+        double[][] sums = getSumsAndSquaredSums(matrix);
+        double[] means = new double[totalColumns];
+        double[] logDispersions = new double[totalColumns];
+        for (int j = 0; j < totalColumns; j++) {
+            means[j] = sums[0][j] / matrix.length;
+            double variance = (matrix.length > 1) ? (sums[1][j] - matrix.length * means[j] * means[j]) / (matrix.length - 1) : 0;
+            logDispersions[j] = (means[j] > 0 && variance > 0) ? Math.log(variance / means[j]) : Double.NEGATIVE_INFINITY;
+        }
+
+        double[] normalizedDispersions = normalizeWithinMeanBins(means, logDispersions);
+        return IntStream.range(0, totalColumns).boxed()
+                .filter(j -> means[j] > 0)
+                .sorted(Comparator.comparingDouble((Integer j) -> normalizedDispersions[j]).reversed())
+                .limit(numColumns)
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Returns the sum (index 0) and sum of squares (index 1) of every column of the matrix
+     */
+    private static double[][] getSumsAndSquaredSums(double[][] matrix) {
+        int numCols = matrix[0].length;
+        return IntStream.range(0, matrix.length).parallel().collect(() -> new double[2][numCols], (acc, row) -> {
+            double[] values = matrix[row];
+            for (int j = 0; j < numCols; j++) {
+                double value = values[j];
+                if (value != 0) {
+                    acc[0][j] += value;
+                    acc[1][j] += value * value;
+                }
+            }
+        }, (a, b) -> {
+            for (int j = 0; j < numCols; j++) {
+                a[0][j] += b[0][j];
+                a[1][j] += b[1][j];
+            }
+        });
+    }
+
+    /**
+     * Splits the range of (log) means into equal width bins, and z-scores the log dispersions
+     * of the isoforms in each bin. Isoforms alone in their bin (or in a bin where all dispersions
+     * are the same) get a normalized dispersion of 0
+     */
+    private static double[] normalizeWithinMeanBins(double[] means, double[] logDispersions) {
+        int numCols = means.length;
+        double minLogMean = Double.POSITIVE_INFINITY;
+        double maxLogMean = Double.NEGATIVE_INFINITY;
+        for (double mean : means) {
+            if (mean > 0) {
+                minLogMean = Math.min(minLogMean, Math.log1p(mean));
+                maxLogMean = Math.max(maxLogMean, Math.log1p(mean));
+            }
+        }
+        double binWidth = (maxLogMean - minLogMean) / NUM_MEAN_BINS;
+
+        int[] bins = new int[numCols];
+        double[] binSums = new double[NUM_MEAN_BINS];
+        double[] binSquaredSums = new double[NUM_MEAN_BINS];
+        int[] binCounts = new int[NUM_MEAN_BINS];
+        for (int j = 0; j < numCols; j++) {
+            if (logDispersions[j] == Double.NEGATIVE_INFINITY)
+                continue;
+            int bin = (binWidth > 0) ? (int) ((Math.log1p(means[j]) - minLogMean) / binWidth) : 0;
+            bins[j] = Math.min(bin, NUM_MEAN_BINS - 1);
+            binSums[bins[j]] += logDispersions[j];
+            binSquaredSums[bins[j]] += logDispersions[j] * logDispersions[j];
+            binCounts[bins[j]]++;
+        }
+
+        double[] normalized = new double[numCols];
+        Arrays.fill(normalized, Double.NEGATIVE_INFINITY);
+        for (int j = 0; j < numCols; j++) {
+            if (logDispersions[j] == Double.NEGATIVE_INFINITY)
+                continue;
+            int bin = bins[j];
+            double binMean = binSums[bin] / binCounts[bin];
+            double binVariance = (binCounts[bin] > 1) ? (binSquaredSums[bin] - binCounts[bin] * binMean * binMean) / (binCounts[bin] - 1) : 0;
+            normalized[j] = (binVariance > 0) ? (logDispersions[j] - binMean) / Math.sqrt(binVariance) : 0;
+        }
+        return normalized;
+    }
+}
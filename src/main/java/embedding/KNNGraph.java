@@ -0,0 +1,178 @@
+package embedding;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The k nearest neighbors of every cell. Neighbors of a cell are sorted by increasing distance,
+ * and never include the cell itself. Cells can have different numbers of neighbors (rows are never
+ * padded), k is the number every cell has
+ */
+public class KNNGraph {
+    private static final int FILE_MAGIC_NUMBER = 0x524B4E4E; // "RKNN"
+    private static final int FILE_VERSION = 2;
+    private static final int CALIBRATION_STEPS = 64;
+    private static final double CALIBRATION_TOLERANCE = 1e-5;
+
+    private final int[][] neighbors;
+    private final float[][] distances;
+    private final int k;
+
+    public KNNGraph(int[][] neighbors, float[][] distances) {
+        this.neighbors = neighbors;
+        this.distances = distances;
+        k = Arrays.stream(neighbors).mapToInt(cellNeighbors -> cellNeighbors.length).min().orElse(0);
+    }
+
+    /**
+     * Reads graph written by write(). Returns null if the file was written for a matrix
+     * with a different fingerprint, or by an older version (whose rows may not be valid)
+     */
+    public static KNNGraph read(File file, long expectedFingerprint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC_NUMBER)
+                throw new IOException("Unrecognized nearest neighbor graph file: " + file.getPath());
+            if (in.readInt() != FILE_VERSION || in.readLong() != expectedFingerprint)
+                return null;
+            int numCells = in.readInt();
+            int[][] neighbors = new int[numCells][];
+            float[][] distances = new float[numCells][];
+            for (int cell = 0; cell < numCells; cell++) {
+                int numNeighbors = in.readInt();
+                neighbors[cell] = new int[numNeighbors];
+                distances[cell] = new float[numNeighbors];
+                for (int i = 0; i < numNeighbors; i++)
+                    neighbors[cell][i] = in.readInt();
+                for (int i = 0; i < numNeighbors; i++)
+                    distances[cell][i] = in.readFloat();
+            }
+            return new KNNGraph(neighbors, distances);
+        }
+    }
+
+    public void write(File file, long fingerprint) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC_NUMBER);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(getNumCells());
+            for (int cell = 0; cell < getNumCells(); cell++) {
+                out.writeInt(neighbors[cell].length);
+                for (int neighbor : neighbors[cell])
+                    out.writeInt(neighbor);
+                for (float distance : distances[cell])
+                    out.writeFloat(distance);
+            }
+        }
+    }
+
+    /**
+     * Returns graph containing only the (at most) k nearest neighbors of each cell
+     */
+    public KNNGraph truncate(int k) {
+        if (Arrays.stream(neighbors).allMatch(cellNeighbors -> cellNeighbors.length <= k))
+            return this;
+        int[][] truncatedNeighbors = new int[getNumCells()][];
+        float[][] truncatedDistances = new float[getNumCells()][];
+        IntStream.range(0, getNumCells()).parallel().forEach(cell -> {
+            int numNeighbors = Math.min(k, neighbors[cell].length);
+            truncatedNeighbors[cell] = Arrays.copyOf(neighbors[cell], numNeighbors);
+            truncatedDistances[cell] = Arrays.copyOf(distances[cell], numNeighbors);
+        });
+        return new KNNGraph(truncatedNeighbors, truncatedDistances);
+    }
+
+    /**
+     * Returns the t-SNE conditional probabilities p(j|i) of a point's neighbors, given the distances
+     * from the point to them, with the point's Gaussian bandwidth calibrated so the distribution has
+     * the given perplexity
+     */
+    public static double[] getPerplexityCalibratedWeights(float[] neighborDistances, double perplexity) {
+        double targetEntropy = Math.log(perplexity);
+        double beta = 1;
+        double minBeta = 0;
+        double maxBeta = Double.POSITIVE_INFINITY;
+        double[] weights = new double[neighborDistances.length];
+        for (int step = 0; step < CALIBRATION_STEPS; step++) {
+            double sum = 0;
+            double weightedDistanceSum = 0;
+            for (int i = 0; i < neighborDistances.length; i++) {
+                double squaredDistance = (double) neighborDistances[i] * neighborDistances[i];
+                weights[i] = Math.exp(-beta * squaredDistance);
+                sum += weights[i];
+                weightedDistanceSum += squaredDistance * weights[i];
+            }
+            if (sum == 0) {
+                // bandwidth too narrow, widen it
+                maxBeta = beta;
+                beta = (minBeta + maxBeta) / 2;
+                continue;
+            }
+            double entropy = Math.log(sum) + beta * weightedDistanceSum / sum;
+            for (int i = 0; i < weights.length; i++)
+                weights[i] /= sum;
+            double difference = entropy - targetEntropy;
+            if (Math.abs(difference) < CALIBRATION_TOLERANCE)
+                break;
+            if (difference > 0) {
+                minBeta = beta;
+                beta = (maxBeta == Double.POSITIVE_INFINITY) ? beta * 2 : (beta + maxBeta) / 2;
+            } else {
+                maxBeta = beta;
+                beta = (beta + minBeta) / 2;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the UMAP membership strength of the edge from a point to each of its neighbors, given
+     * the distances from the point to them (distance to the nearest neighbor is subtracted, and the
+     * point's bandwidth is chosen so its strengths sum to log2(k))
+     */
+    public static double[] getFuzzyMembershipWeights(float[] neighborDistances) {
+        double target = Math.log(neighborDistances.length) / Math.log(2);
+        double rho = neighborDistances.length > 0 ? neighborDistances[0] : 0;
+        double sigma = 1;
+        double minSigma = 0;
+        double maxSigma = Double.POSITIVE_INFINITY;
+        double[] weights = new double[neighborDistances.length];
+        for (int step = 0; step < CALIBRATION_STEPS; step++) {
+            double sum = 0;
+            for (int i = 0; i < neighborDistances.length; i++) {
+                weights[i] = Math.exp(-Math.max(0, neighborDistances[i] - rho) / sigma);
+                sum += weights[i];
+            }
+            if (Math.abs(sum - target) < CALIBRATION_TOLERANCE)
+                break;
+            if (sum > target) {
+                maxSigma = sigma;
+                sigma = (minSigma + maxSigma) / 2;
+            } else {
+                minSigma = sigma;
+                sigma = (maxSigma == Double.POSITIVE_INFINITY) ? sigma * 2 : (minSigma + maxSigma) / 2;
+            }
+        }
+        return weights;
+    }
+
+    public int[] getNeighbors(int cell) {
+        return neighbors[cell];
+    }
+
+    public float[] getDistances(int cell) {
+        return distances[cell];
+    }
+
+    public int getNumCells() {
+        return neighbors.length;
+    }
+
+    /**
+     * Returns the number of neighbors every cell has (the fewest any cell has)
+     */
+    public int getK() {
+        return k;
+    }
+}
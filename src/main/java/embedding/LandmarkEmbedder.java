@@ -0,0 +1,95 @@
+package embedding;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Embeds large datasets by only running the (slow) embedding algorithm on a subsample of
+ * "landmark" cells. Every other cell is placed at the weighted average of the positions of its
+ * nearest landmarks, where neighbors are found in PCA-reduced space
+ */
+public class LandmarkEmbedder {
+    public static final int NUM_INTERPOLATION_NEIGHBORS = 10;
+    private static final long SEED = 42;
+
+    /**
+     * Chooses numLandmarks cells, balanced across the given strata (strata[cell] is the
+     * stratum the cell belongs to, e.g. its cluster). Each stratum gets an equal share of the
+     * landmarks; if a stratum has fewer cells than its share, the rest is split among the
+     * other strata. If strata is null all cells are in one stratum. Returned cell numbers are sorted
+     */
+    public static int[] chooseLandmarks(int numCells, int numLandmarks, int[] strata) {
+        if (numLandmarks >= numCells)
+            return IntStream.range(0, numCells).toArray();
+
+        Map<Integer, List<Integer>> stratumCells = new LinkedHashMap<>();
+        for (int cell = 0; cell < numCells; cell++) {
+            int stratum = (strata == null) ? 0 : strata[cell];
+            stratumCells.computeIfAbsent(stratum, key -> new ArrayList<>()).add(cell);
+        }
+
+        // smallest strata first, so what they can't use is passed on to bigger ones
+        List<List<Integer>> strataBySize = new ArrayList<>(stratumCells.values());
+        strataBySize.sort(Comparator.comparingInt(List::size));
+        Random random = new Random(SEED);
+        int[] landmarks = new int[numLandmarks];
+        int numChosen = 0;
+        for (int i = 0; i < strataBySize.size(); i++) {
+            List<Integer> cells = strataBySize.get(i);
+            int share = (numLandmarks - numChosen) / (strataBySize.size() - i);
+            if (i == strataBySize.size() - 1)
+                share = numLandmarks - numChosen;
+            share = Math.min(share, cells.size());
+            Collections.shuffle(cells, random);
+            for (int j = 0; j < share; j++)
+                landmarks[numChosen++] = cells.get(j);
+        }
+
+        landmarks = Arrays.copyOf(landmarks, numChosen);
+        Arrays.sort(landmarks);
+        return landmarks;
+    }
+
+    /**
+     * Returns embedding of all cells, given the embedding of the landmarks. Landmarks keep their
+     * position, the rest of the cells are interpolated (in parallel) from their nearest landmarks
+     *
+     * @param reducedMatrix PCA-reduced cell isoform expression matrix
+     * @param landmarks cell numbers of the landmarks (sorted)
+     * @param landmarkEmbedding landmarkEmbedding[i] is the position of cell landmarks[i]
+     */
+    public static double[][] interpolate(double[][] reducedMatrix, int[] landmarks, double[][] landmarkEmbedding) {
+        int numCells = reducedMatrix.length;
+        int numDimensions = landmarkEmbedding[0].length;
+        double[][] landmarkPoints = new double[landmarks.length][];
+        for (int i = 0; i < landmarks.length; i++)
+            landmarkPoints[i] = reducedMatrix[landmarks[i]];
+        NearestNeighborIndex landmarkIndex = NearestNeighborIndex.build(landmarkPoints, NUM_INTERPOLATION_NEIGHBORS);
+
+        double[][] embedding = new double[numCells][];
+        for (int i = 0; i < landmarks.length; i++)
+            embedding[landmarks[i]] = landmarkEmbedding[i];
+
+        IntStream.range(0, numCells).parallel().filter(cell -> embedding[cell] == null).forEach(cell -> {
+            double[] point = reducedMatrix[cell];
+            int[] neighbors = landmarkIndex.query(point, NUM_INTERPOLATION_NEIGHBORS, null);
+            float[] distances = new float[neighbors.length];
+            for (int i = 0; i < neighbors.length; i++)
+                distances[i] = (float) NearestNeighborIndex.distance(point, landmarkPoints[neighbors[i]]);
+            double[] weights = KNNGraph.getFuzzyMembershipWeights(distances);
+
+            double[] position = new double[numDimensions];
+            double weightSum = 0;
+            for (int i = 0; i < neighbors.length; i++) {
+                double[] neighborPosition = landmarkEmbedding[neighbors[i]];
+                for (int d = 0; d < numDimensions; d++)
+                    position[d] += weights[i] * neighborPosition[d];
+                weightSum += weights[i];
+            }
+            for (int d = 0; d < numDimensions; d++)
+                position[d] /= weightSum;
+            embedding[cell] = position;
+        });
+        return embedding;
+    }
+}
@@ -0,0 +1,555 @@
+package embedding;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate nearest neighbor index over a set of points (usually the PCA-reduced cells)
+ *
+ * The index is a forest of random projection trees, built in parallel (one tree per task). Candidate
+ * neighbors of a point are the points that share a leaf with it in any tree. The kNN graph of the
+ * indexed points is refined with nearest neighbor descent (a neighbor of a neighbor is likely to be a
+ * neighbor): each round, points are compared with a sample of their neighbors' neighbors, skipping
+ * pairs already compared in earlier rounds, until a round barely changes the graph
+ */
+public class NearestNeighborIndex {
+    private static final int DEFAULT_NUM_TREES = 8;
+    private static final int MIN_LEAF_SIZE = 32;
+    private static final int MAX_TREE_DEPTH = 64;
+    private static final int MAX_REFINEMENT_ROUNDS = 10;
+    // fraction of k neighbors (and reverse neighbors) of each point sampled as candidates each round
+    private static final double SAMPLE_RATE = 0.5;
+    // refinement stops once a round changes fewer than this fraction of the graph's edges
+    private static final double MIN_UPDATE_FRACTION = 0.001;
+    private static final long SEED = 42;
+
+    private final double[][] points;
+    private final RandomProjectionTree[] trees;
+    private final int leafSize;
+
+    private NearestNeighborIndex(double[][] points, RandomProjectionTree[] trees, int leafSize) {
+        this.points = points;
+        this.trees = trees;
+        this.leafSize = leafSize;
+    }
+
+    /**
+     * Builds an index whose leaves are large enough to hold the k nearest neighbors of a point
+     */
+    public static NearestNeighborIndex build(double[][] points, int k) {
+        int leafSize = Math.max(MIN_LEAF_SIZE, 2 * k);
+        RandomProjectionTree[] trees = new RandomProjectionTree[DEFAULT_NUM_TREES];
+        IntStream.range(0, DEFAULT_NUM_TREES).parallel().forEach(tree -> trees[tree] = new RandomProjectionTree(points, leafSize, SEED + tree));
+        return new NearestNeighborIndex(points, trees, leafSize);
+    }
+
+    /**
+     * Returns true if the index's leaves are large enough to hold the k nearest neighbors of a point
+     * (it was built for at least k neighbors)
+     */
+    public boolean isBuiltFor(int k) {
+        return leafSize >= Math.max(MIN_LEAF_SIZE, 2 * k);
+    }
+
+    /**
+     * Returns the (approximate) k nearest neighbors of every indexed point
+     */
+    public KNNGraph getKNNGraph(int k) {
+        int numPoints = points.length;
+        int realK = Math.min(k, numPoints - 1);
+        int[][] neighbors = new int[numPoints][];
+        float[][] distances = new float[numPoints][];
+        ThreadLocal<VisitedSet> visitedSets = ThreadLocal.withInitial(() -> new VisitedSet(numPoints));
+
+        IntStream.range(0, numPoints).parallel().forEach(point -> {
+            NeighborHeap heap = new NeighborHeap(realK);
+            VisitedSet visited = visitedSets.get();
+            visited.clear();
+            visited.add(point);
+            for (RandomProjectionTree tree : trees) {
+                for (int candidate : tree.getLeaf(points[point])) {
+                    if (visited.add(candidate))
+                        heap.offer(candidate, (float) distance(points[point], points[candidate]));
+                }
+            }
+            // a point's leaves can hold fewer than k other points (ex. an uneven split leaves a
+            // small leaf), so it's topped up with points starting from a random one. Refinement
+            // then replaces these with closer ones
+            if (heap.getSize() < realK) {
+                int candidate = new Random(SEED + point).nextInt(numPoints);
+                while (heap.getSize() < realK) {
+                    if (visited.add(candidate))
+                        heap.offer(candidate, (float) distance(points[point], points[candidate]));
+                    candidate = (candidate + 1) % numPoints;
+                }
+            }
+            neighbors[point] = heap.getSortedNeighbors();
+            distances[point] = heap.getSortedDistances(neighbors[point].length);
+        });
+
+        refine(neighbors, distances, realK, visitedSets);
+        return new KNNGraph(neighbors, distances);
+    }
+
+    /**
+     * Returns the (approximate) k nearest indexed points to the given point, sorted by
+     * increasing distance. If graph (the kNN graph of the indexed points) isn't null, neighbors
+     * of the candidates are also considered
+     */
+    public int[] query(double[] point, int k, KNNGraph graph) {
+        NeighborHeap heap = new NeighborHeap(Math.min(k, points.length));
+        Set<Integer> visited = new HashSet<>();
+        for (RandomProjectionTree tree : trees) {
+            for (int candidate : tree.getLeaf(point)) {
+                if (visited.add(candidate))
+                    heap.offer(candidate, (float) distance(point, points[candidate]));
+            }
+        }
+        if (graph != null) {
+            for (int candidate : heap.getSortedNeighbors()) {
+                for (int neighbor : graph.getNeighbors(candidate)) {
+                    if (visited.add(neighbor))
+                        heap.offer(neighbor, (float) distance(point, points[neighbor]));
+                }
+            }
+        }
+        return heap.getSortedNeighbors();
+    }
+
+    public double[][] getPoints() {
+        return points;
+    }
+
+    public static double distance(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            double difference = a[i] - b[i];
+            sum += difference * difference;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Nearest neighbor descent. Each round, every point gets a sample of its neighbors found since the
+     * last round ("new"), and of the rest ("old"), each including points that have it as a neighbor. Two
+     * points in the same point's samples are compared if either is new (old pairs were compared in an
+     * earlier round). Points keep all of their neighbors, so none end up with fewer than k
+     */
+    private void refine(int[][] neighbors, float[][] distances, int k, ThreadLocal<VisitedSet> visitedSets) {
+        int numPoints = points.length;
+        int maxCandidates = Math.max(1, (int) Math.ceil(SAMPLE_RATE * k));
+        boolean[][] isNew = new boolean[numPoints][];
+        for (int point = 0; point < numPoints; point++) {
+            isNew[point] = new boolean[neighbors[point].length];
+            Arrays.fill(isNew[point], true);
+        }
+        Random random = new Random(SEED);
+
+        for (int round = 0; round < MAX_REFINEMENT_ROUNDS; round++) {
+            CandidateLists newCandidates = new CandidateLists(numPoints, maxCandidates);
+            CandidateLists oldCandidates = new CandidateLists(numPoints, maxCandidates);
+            int[] newIndices = new int[k];
+            for (int point = 0; point < numPoints; point++) {
+                int numNew = 0;
+                for (int i = 0; i < neighbors[point].length; i++) {
+                    if (isNew[point][i]) {
+                        newIndices[numNew++] = i;
+                    } else {
+                        oldCandidates.add(point, neighbors[point][i], random);
+                        oldCandidates.addReverse(neighbors[point][i], point, random);
+                    }
+                }
+                // sampled new neighbors are old from now on, as they'll have been compared
+                for (int i = 0; i < Math.min(numNew, maxCandidates); i++) {
+                    int chosen = i + random.nextInt(numNew - i);
+                    int index = newIndices[chosen];
+                    newIndices[chosen] = newIndices[i];
+                    isNew[point][index] = false;
+                    newCandidates.add(point, neighbors[point][index], random);
+                    newCandidates.addReverse(neighbors[point][index], point, random);
+                }
+            }
+
+            // each point compares itself with the points it's sampled with, so only its own neighbors change
+            int[][] newSamples = newCandidates.getAll();
+            int[][] oldSamples = oldCandidates.getAll();
+            int[][] newSampledWith = invert(newSamples);
+            int[][] oldSampledWith = invert(oldSamples);
+            long numUpdates = IntStream.range(0, numPoints).parallel().mapToLong(point -> {
+                NeighborHeap heap = new NeighborHeap(k);
+                VisitedSet visited = visitedSets.get();
+                visited.clear();
+                visited.add(point);
+                for (int i = 0; i < neighbors[point].length; i++) {
+                    heap.offer(neighbors[point][i], distances[point][i], isNew[point][i]);
+                    visited.add(neighbors[point][i]);
+                }
+                long pointUpdates = 0;
+                for (int sampledWith : newSampledWith[point]) {
+                    pointUpdates += join(heap, visited, point, newSamples[sampledWith]);
+                    pointUpdates += join(heap, visited, point, oldSamples[sampledWith]);
+                }
+                for (int sampledWith : oldSampledWith[point])
+                    pointUpdates += join(heap, visited, point, newSamples[sampledWith]);
+                if (pointUpdates > 0) {
+                    neighbors[point] = heap.getSortedNeighbors();
+                    distances[point] = heap.getSortedDistances(neighbors[point].length);
+                    isNew[point] = heap.getSortedIsNew(neighbors[point].length);
+                }
+                return pointUpdates;
+            }).sum();
+
+            if (numUpdates <= MIN_UPDATE_FRACTION * numPoints * k)
+                break;
+        }
+    }
+
+    /**
+     * Returns, for every point, the points whose candidates it's in
+     */
+    private static int[][] invert(int[][] candidates) {
+        int numPoints = candidates.length;
+        int[] counts = new int[numPoints];
+        for (int[] pointCandidates : candidates) {
+            for (int candidate : pointCandidates)
+                counts[candidate]++;
+        }
+        int[][] inverted = new int[numPoints][];
+        for (int point = 0; point < numPoints; point++)
+            inverted[point] = new int[counts[point]];
+        int[] filled = new int[numPoints];
+        for (int point = 0; point < numPoints; point++) {
+            for (int candidate : candidates[point])
+                inverted[candidate][filled[candidate]++] = point;
+        }
+        return inverted;
+    }
+
+    /**
+     * Offers the given candidates (that haven't been offered yet) to the given point's heap as new
+     * neighbors. Returns how many of them it kept
+     */
+    private int join(NeighborHeap heap, VisitedSet visited, int point, int[] candidates) {
+        int numUpdates = 0;
+        for (int candidate : candidates) {
+            if (visited.add(candidate) && heap.offer(candidate, (float) distance(points[point], points[candidate]), true))
+                numUpdates++;
+        }
+        return numUpdates;
+    }
+
+    /**
+     * For every point, a random sample of at most maxSize of its neighbors, and of at most maxSize of the
+     * points it's a neighbor of (reservoir sampling, so every one added is equally likely to be kept).
+     * They're sampled separately, so a point's own sampled neighbors are never pushed out by the others
+     */
+    private static class CandidateLists {
+        private static final int NEIGHBORS = 0;
+        private static final int REVERSE_NEIGHBORS = 1;
+
+        private final int maxSize;
+        // samples[NEIGHBORS][point] and samples[REVERSE_NEIGHBORS][point] are the point's two samples
+        private final int[][][] samples;
+        private final int[][] sizes;
+        private final int[][] numAdded;
+
+        public CandidateLists(int numPoints, int maxSize) {
+            this.maxSize = maxSize;
+            samples = new int[2][numPoints][maxSize];
+            sizes = new int[2][numPoints];
+            numAdded = new int[2][numPoints];
+        }
+
+        /**
+         * Adds one of the given point's neighbors
+         */
+        public void add(int point, int neighbor, Random random) {
+            add(NEIGHBORS, point, neighbor, random);
+        }
+
+        /**
+         * Adds a point the given point is a neighbor of
+         */
+        public void addReverse(int point, int reverseNeighbor, Random random) {
+            add(REVERSE_NEIGHBORS, point, reverseNeighbor, random);
+        }
+
+        /**
+         * Returns each point's candidates (both samples)
+         */
+        public int[][] getAll() {
+            int numPoints = sizes[NEIGHBORS].length;
+            int[][] candidates = new int[numPoints][];
+            for (int point = 0; point < numPoints; point++) {
+                int numNeighbors = sizes[NEIGHBORS][point];
+                candidates[point] = Arrays.copyOf(samples[NEIGHBORS][point], numNeighbors + sizes[REVERSE_NEIGHBORS][point]);
+                System.arraycopy(samples[REVERSE_NEIGHBORS][point], 0, candidates[point], numNeighbors, sizes[REVERSE_NEIGHBORS][point]);
+            }
+            return candidates;
+        }
+
+        private void add(int sample, int point, int candidate, Random random) {
+            numAdded[sample][point]++;
+            if (sizes[sample][point] < maxSize) {
+                samples[sample][point][sizes[sample][point]++] = candidate;
+            } else {
+                int index = random.nextInt(numAdded[sample][point]);
+                if (index < maxSize)
+                    samples[sample][point][index] = candidate;
+            }
+        }
+    }
+
+    /**
+     * Set of point numbers that can be cleared in constant time (each point is marked with the number of
+     * the clear it was added after). Used instead of a hash set, to skip points already compared with
+     */
+    private static class VisitedSet {
+        private final int[] stamps;
+        private int stamp;
+
+        public VisitedSet(int numPoints) {
+            stamps = new int[numPoints];
+        }
+
+        public void clear() {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+        }
+
+        /**
+         * Adds the given point. Returns true if it wasn't already in the set
+         */
+        public boolean add(int point) {
+            if (stamps[point] == stamp)
+                return false;
+            stamps[point] = stamp;
+            return true;
+        }
+    }
+
+    /**
+     * Random projection tree. Each internal node splits its points by the hyperplane equidistant to
+     * two randomly chosen points
+     */
+    private static class RandomProjectionTree {
+        private final double[][] points;
+        private final int[] indices;
+        private final List<double[]> hyperplaneNormals;
+        private final List<Double> hyperplaneOffsets;
+        // for internal nodes children are node numbers, for leaves (start, end) range in indices
+        private final List<int[]> nodes;
+        private final List<Boolean> isLeaf;
+
+        public RandomProjectionTree(double[][] points, int leafSize, long seed) {
+            this.points = points;
+            indices = IntStream.range(0, points.length).toArray();
+            hyperplaneNormals = new ArrayList<>();
+            hyperplaneOffsets = new ArrayList<>();
+            nodes = new ArrayList<>();
+            isLeaf = new ArrayList<>();
+            build(0, points.length, leafSize, new Random(seed), 0);
+        }
+
+        /**
+         * Returns the indexed points in the leaf the given point falls in
+         */
+        public int[] getLeaf(double[] point) {
+            int node = 0;
+            while (!isLeaf.get(node)) {
+                int[] children = nodes.get(node);
+                node = (side(point, node) < 0) ? children[0] : children[1];
+            }
+            int[] range = nodes.get(node);
+            return Arrays.copyOfRange(indices, range[0], range[1]);
+        }
+
+        private int build(int start, int end, int leafSize, Random random, int depth) {
+            int node = nodes.size();
+            nodes.add(null);
+            isLeaf.add(false);
+            hyperplaneNormals.add(null);
+            hyperplaneOffsets.add(0d);
+
+            int mid = -1;
+            if (end - start > leafSize && depth < MAX_TREE_DEPTH) {
+                setRandomHyperplane(node, start, end, random);
+                mid = partition(node, start, end, random);
+            }
+            if (mid <= start || mid >= end) {
+                nodes.set(node, new int[]{start, end});
+                isLeaf.set(node, true);
+                hyperplaneNormals.set(node, null);
+            } else {
+                int left = build(start, mid, leafSize, random, depth + 1);
+                int right = build(mid, end, leafSize, random, depth + 1);
+                nodes.set(node, new int[]{left, right});
+            }
+            return node;
+        }
+
+        private void setRandomHyperplane(int node, int start, int end, Random random) {
+            double[] a = points[indices[start + random.nextInt(end - start)]];
+            double[] b = points[indices[start + random.nextInt(end - start)]];
+            double[] normal = new double[a.length];
+            double offset = 0;
+            for (int i = 0; i < a.length; i++) {
+                normal[i] = a[i] - b[i];
+                offset -= normal[i] * (a[i] + b[i]) / 2;
+            }
+            hyperplaneNormals.set(node, normal);
+            hyperplaneOffsets.set(node, offset);
+        }
+
+        /**
+         * Moves points on the negative side of the node's hyperplane to the front of the range and
+         * returns the index of the first point on the positive side. Points exactly on the hyperplane
+         * (e.g. duplicates) are assigned randomly so the split stays balanced
+         */
+        private int partition(int node, int start, int end, Random random) {
+            int i = start;
+            int j = end - 1;
+            while (i <= j) {
+                double side = side(points[indices[i]], node);
+                if (side < 0 || (side == 0 && random.nextBoolean())) {
+                    i++;
+                } else {
+                    int temp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = temp;
+                    j--;
+                }
+            }
+            return i;
+        }
+
+        private double side(double[] point, int node) {
+            double[] normal = hyperplaneNormals.get(node);
+            double side = hyperplaneOffsets.get(node);
+            for (int i = 0; i < normal.length; i++)
+                side += normal[i] * point[i];
+            return side;
+        }
+    }
+
+    /**
+     * Bounded max-heap keeping the closest neighbors offered to it
+     */
+    private static class NeighborHeap {
+        private final int capacity;
+        private final int[] heapNeighbors;
+        private final float[] heapDistances;
+        private final boolean[] heapIsNew;
+        private int size;
+
+        public NeighborHeap(int capacity) {
+            this.capacity = capacity;
+            heapNeighbors = new int[capacity];
+            heapDistances = new float[capacity];
+            heapIsNew = new boolean[capacity];
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public void offer(int neighbor, float distance) {
+            offer(neighbor, distance, true);
+        }
+
+        /**
+         * Offers the given neighbor, flagged as new (found since the last refinement round) or not.
+         * Returns true if it was kept
+         */
+        public boolean offer(int neighbor, float distance, boolean isNew) {
+            if (capacity == 0)
+                return false;
+            if (size < capacity) {
+                heapNeighbors[size] = neighbor;
+                heapDistances[size] = distance;
+                heapIsNew[size] = isNew;
+                siftUp(size++);
+                return true;
+            } else if (distance < heapDistances[0]) {
+                heapNeighbors[0] = neighbor;
+                heapDistances[0] = distance;
+                heapIsNew[0] = isNew;
+                siftDown(0);
+                return true;
+            }
+            return false;
+        }
+
+        public int[] getSortedNeighbors() {
+            Integer[] order = getSortedOrder();
+            int[] sorted = new int[size];
+            for (int i = 0; i < size; i++)
+                sorted[i] = heapNeighbors[order[i]];
+            return sorted;
+        }
+
+        public float[] getSortedDistances(int length) {
+            Integer[] order = getSortedOrder();
+            float[] sorted = new float[length];
+            for (int i = 0; i < length; i++)
+                sorted[i] = heapDistances[order[i]];
+            return sorted;
+        }
+
+        public boolean[] getSortedIsNew(int length) {
+            Integer[] order = getSortedOrder();
+            boolean[] sorted = new boolean[length];
+            for (int i = 0; i < length; i++)
+                sorted[i] = heapIsNew[order[i]];
+            return sorted;
+        }
+
+        private Integer[] getSortedOrder() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> Float.compare(heapDistances[a], heapDistances[b]));
+            return order;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heapDistances[parent] >= heapDistances[i])
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && heapDistances[left] > heapDistances[largest])
+                    largest = left;
+                if (right < size && heapDistances[right] > heapDistances[largest])
+                    largest = right;
+                if (largest == i)
+                    break;
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int tempNeighbor = heapNeighbors[i];
+            heapNeighbors[i] = heapNeighbors[j];
+            heapNeighbors[j] = tempNeighbor;
+            float tempDistance = heapDistances[i];
+            heapDistances[i] = heapDistances[j];
+            heapDistances[j] = tempDistance;
+            boolean tempIsNew = heapIsNew[i];
+            heapIsNew[i] = heapIsNew[j];
+            heapIsNew[j] = tempIsNew;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package embedding;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Places new cells into an existing t-SNE/UMAP embedding without moving the cells already in it
+ *
+ * Each new cell starts at the weighted average position of its nearest existing cells (in
+ * PCA-reduced space), then only its own coordinates are optimized against the fixed existing
+ * positions, using the same objective as the algorithm that made the embedding. New cells are
+ * independent of each other, so they are projected in parallel
+ */
+public class OutOfSampleProjector {
+    private static final int TSNE_ITERATIONS = 300;
+    private static final int TSNE_REPULSION_SAMPLES = 64;
+    private static final double TSNE_LEARNING_RATE = 1;
+    private static final double TSNE_MOMENTUM = 0.5;
+    private static final int UMAP_EPOCHS = 100;
+    private static final int UMAP_NEGATIVE_SAMPLE_RATE = 5;
+    private static final double UMAP_SPREAD = 1;
+    private static final double MAX_GRADIENT = 4;
+    private static final long SEED = 42;
+
+    private final double[][] reducedMatrix;
+    private final int numExistingCells;
+    private final double[][] existingEmbedding;
+    private final NearestNeighborIndex existingCellIndex;
+
+    /**
+     * @param reducedMatrix     PCA-reduced expression of all cells. The first numExistingCells rows
+     *                          are the cells in existingEmbedding, the rest are the new cells
+     * @param existingCellIndex nearest neighbor index of the existing cells (ex. the one cached by
+     *                          DatasetCache), which new cells' neighbors are looked up in
+     */
+    public OutOfSampleProjector(double[][] reducedMatrix, int numExistingCells, double[][] existingEmbedding,
+                                NearestNeighborIndex existingCellIndex) {
+        this.reducedMatrix = reducedMatrix;
+        this.numExistingCells = numExistingCells;
+        this.existingEmbedding = existingEmbedding;
+        this.existingCellIndex = existingCellIndex;
+    }
+
+    /**
+     * Returns positions of the new cells, found by minimizing the KL divergence between each new
+     * cell's (perplexity calibrated) neighbor distribution and its Student-t distribution in the
+     * embedding. The repulsion from far away cells is estimated from a random sample of them
+     */
+    public double[][] projectTSNE(double perplexity) {
+        int k = (int) Math.min(3 * perplexity, numExistingCells);
+        return project(k, (cell, neighbors, distances, position) -> {
+            double[] p = KNNGraph.getPerplexityCalibratedWeights(distances, perplexity);
+            Random random = new Random(SEED + cell);
+            double[] velocity = new double[2];
+            int numFarCells = numExistingCells - neighbors.length;
+            double farCellScale = (double) numFarCells / TSNE_REPULSION_SAMPLES;
+
+            for (int iteration = 0; iteration < TSNE_ITERATIONS; iteration++) {
+                double attractionX = 0, attractionY = 0;
+                double repulsionX = 0, repulsionY = 0;
+                double z = 0;
+                for (int i = 0; i < neighbors.length; i++) {
+                    double[] neighborPosition = existingEmbedding[neighbors[i]];
+                    double dx = position[0] - neighborPosition[0];
+                    double dy = position[1] - neighborPosition[1];
+                    double w = 1 / (1 + dx * dx + dy * dy);
+                    attractionX += p[i] * w * dx;
+                    attractionY += p[i] * w * dy;
+                    repulsionX += w * w * dx;
+                    repulsionY += w * w * dy;
+                    z += w;
+                }
+                if (numFarCells > 0) {
+                    for (int s = 0; s < TSNE_REPULSION_SAMPLES; s++) {
+                        double[] samplePosition = existingEmbedding[random.nextInt(numExistingCells)];
+                        double dx = position[0] - samplePosition[0];
+                        double dy = position[1] - samplePosition[1];
+                        double w = 1 / (1 + dx * dx + dy * dy);
+                        repulsionX += farCellScale * w * w * dx;
+                        repulsionY += farCellScale * w * w * dy;
+                        z += farCellScale * w;
+                    }
+                }
+                double gradientX = clip(attractionX - repulsionX / z);
+                double gradientY = clip(attractionY - repulsionY / z);
+                velocity[0] = TSNE_MOMENTUM * velocity[0] - TSNE_LEARNING_RATE * gradientX;
+                velocity[1] = TSNE_MOMENTUM * velocity[1] - TSNE_LEARNING_RATE * gradientY;
+                position[0] += velocity[0];
+                position[1] += velocity[1];
+            }
+        });
+    }
+
+    /**
+     * Returns positions of the new cells, found with UMAP's stochastic gradient descent restricted
+     * to the edges between each new cell and its nearest existing cells (plus negative samples)
+     */
+    public double[][] projectUMAP(int nearestNeighbors, float minDist) {
+        int k = Math.min(nearestNeighbors, numExistingCells);
+        double[] ab = findABParams(minDist);
+        double a = ab[0];
+        double b = ab[1];
+        return project(k, (cell, neighbors, distances, position) -> {
+            double[] weights = KNNGraph.getFuzzyMembershipWeights(distances);
+            Random random = new Random(SEED + cell);
+
+            for (int epoch = 0; epoch < UMAP_EPOCHS; epoch++) {
+                double alpha = 1 - (double) epoch / UMAP_EPOCHS;
+                for (int i = 0; i < neighbors.length; i++) {
+                    double[] neighborPosition = existingEmbedding[neighbors[i]];
+                    double dx = position[0] - neighborPosition[0];
+                    double dy = position[1] - neighborPosition[1];
+                    double squaredDistance = dx * dx + dy * dy;
+                    if (squaredDistance > 0) {
+                        double coefficient = -2 * a * b * Math.pow(squaredDistance, b - 1) / (1 + a * Math.pow(squaredDistance, b));
+                        position[0] += alpha * weights[i] * clip(coefficient * dx);
+                        position[1] += alpha * weights[i] * clip(coefficient * dy);
+                    }
+                    for (int s = 0; s < UMAP_NEGATIVE_SAMPLE_RATE; s++) {
+                        double[] samplePosition = existingEmbedding[random.nextInt(numExistingCells)];
+                        dx = position[0] - samplePosition[0];
+                        dy = position[1] - samplePosition[1];
+                        squaredDistance = dx * dx + dy * dy;
+                        double coefficient = 2 * b / ((0.001 + squaredDistance) * (1 + a * Math.pow(squaredDistance, b)));
+                        position[0] += alpha * weights[i] * clip(coefficient * dx);
+                        position[1] += alpha * weights[i] * clip(coefficient * dy);
+                    }
+                }
+            }
+        });
+    }
+
+    private double[][] project(int k, PositionOptimizer optimizer) {
+        int numNewCells = reducedMatrix.length - numExistingCells;
+        double[][] newEmbedding = new double[numNewCells][];
+        IntStream.range(0, numNewCells).parallel().forEach(i -> {
+            double[] point = reducedMatrix[numExistingCells + i];
+            int[] neighbors = existingCellIndex.query(point, k, null);
+            float[] distances = new float[neighbors.length];
+            for (int j = 0; j < neighbors.length; j++)
+                distances[j] = (float) NearestNeighborIndex.distance(point, reducedMatrix[neighbors[j]]);
+
+            double[] position = getInitialPosition(neighbors, KNNGraph.getFuzzyMembershipWeights(distances));
+            optimizer.optimize(numExistingCells + i, neighbors, distances, position);
+            newEmbedding[i] = position;
+        });
+        return newEmbedding;
+    }
+
+    private double[] getInitialPosition(int[] neighbors, double[] weights) {
+        double[] position = new double[2];
+        double weightSum = 0;
+        for (int i = 0; i < neighbors.length; i++) {
+            position[0] += weights[i] * existingEmbedding[neighbors[i]][0];
+            position[1] += weights[i] * existingEmbedding[neighbors[i]][1];
+            weightSum += weights[i];
+        }
+        if (weightSum > 0) {
+            position[0] /= weightSum;
+            position[1] /= weightSum;
+        }
+        return position;
+    }
+
+    private static double clip(double value) {
+        return Math.max(-MAX_GRADIENT, Math.min(MAX_GRADIENT, value));
+    }
+
+    /**
+     * Finds UMAP's a and b parameters, so that 1 / (1 + a * x^(2b)) best fits the curve that is 1
+     * up to minDist and decays exponentially after it
+     */
+    private static double[] findABParams(float minDist) {
+        int numSamples = 300;
+        double[] xs = new double[numSamples];
+        double[] ys = new double[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            xs[i] = 3 * UMAP_SPREAD * i / (numSamples - 1);
+            ys[i] = (xs[i] < minDist) ? 1 : Math.exp(-(xs[i] - minDist) / UMAP_SPREAD);
+        }
+
+        double bestA = 1;
+        double bestB = 1;
+        double bestError = Double.POSITIVE_INFINITY;
+        double aStep = 0.1;
+        double bStep = 0.1;
+        // coarse grid search, then refine around the best point
+        for (int refinement = 0; refinement < 4; refinement++) {
+            double centerA = bestA;
+            double centerB = bestB;
+            for (int i = -20; i <= 20; i++) {
+                double a = (refinement == 0) ? Math.pow(10, i / 10.0) : centerA + i * aStep;
+                if (a <= 0)
+                    continue;
+                for (int j = -20; j <= 20; j++) {
+                    double b = (refinement == 0) ? 1 + j * 0.05 : centerB + j * bStep;
+                    if (b <= 0)
+                        continue;
+                    double error = 0;
+                    for (int s = 0; s < numSamples; s++) {
+                        double difference = 1 / (1 + a * Math.pow(xs[s], 2 * b)) - ys[s];
+                        error += difference * difference;
+                    }
+                    if (error < bestError) {
+                        bestError = error;
+                        bestA = a;
+                        bestB = b;
+                    }
+                }
+            }
+            aStep = bestA / Math.pow(10, refinement + 1);
+            bStep /= 10;
+            if (refinement == 0)
+                bStep = 0.01;
+        }
+        return new double[]{bestA, bestB};
+    }
+
+    private interface PositionOptimizer {
+        /**
+         * Optimizes (in place) the position of the given new cell, given its nearest existing cells
+         */
+        void optimize(int cell, int[] neighbors, float[] distances, double[] position);
+    }
+}
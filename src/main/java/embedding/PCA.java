@@ -0,0 +1,329 @@
+package embedding;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Principal component analysis of the cell isoform expression matrix
+ *
+ * Components are found with randomized subspace iteration, so only a few passes over the
+ * matrix are needed. Every pass skips zero entries, and is split across rows in parallel
+ */
+public class PCA {
+    private static final int OVERSAMPLING = 10;
+    private static final int POWER_ITERATIONS = 2;
+    private static final long SEED = 42;
+
+    /**
+     * Columns of the matrix the components were fit on (null if all columns were used)
+     */
+    private final int[] columns;
+    private final double[] means;
+    /**
+     * components[c] is the loading vector of component c (one value per used matrix column)
+     */
+    private final double[][] components;
+
+    private PCA(int[] columns, double[] means, double[][] components) {
+        this.columns = columns;
+        this.means = means;
+        this.components = components;
+    }
+
+    /**
+     * Finds the first numComponents principal components of the given matrix (rows are cells,
+     * columns are isoforms)
+     */
+    public static PCA fit(double[][] matrix, int numComponents) {
+        return fit(matrix, null, numComponents);
+    }
+
+    /**
+     * Finds the first numComponents principal components of the given matrix, only using the given
+     * columns (all columns if null)
+     */
+    public static PCA fit(double[][] matrix, int[] columns, int numComponents) {
+        int numRows = matrix.length;
+        int numCols = (columns == null) ? matrix[0].length : columns.length;
+        int k = Math.min(numComponents, Math.min(numRows, numCols));
+        int l = Math.min(k + OVERSAMPLING, Math.min(numRows, numCols));
+
+        double[] means = getColumnMeans(matrix, columns, numCols);
+        double[][] omega = getGaussianMatrix(numCols, l);
+
+        // Q spans the range of the centered matrix
+        double[][] q = orthonormalizeColumns(multiply(matrix, columns, means, omega, l));
+        for (int i = 0; i < POWER_ITERATIONS; i++) {
+            double[][] z = orthonormalizeRows(multiplyTransposed(matrix, columns, means, q, l));
+            q = orthonormalizeColumns(multiply(matrix, columns, means, transpose(z), l));
+        }
+
+        // B = Q^T * (X - means) is small (l x numCols), its right singular vectors are the components
+        double[][] b = multiplyTransposed(matrix, columns, means, q, l);
+        double[][] bbt = new double[l][l];
+        for (int i = 0; i < l; i++) {
+            for (int j = i; j < l; j++) {
+                double dot = dot(b[i], b[j]);
+                bbt[i][j] = dot;
+                bbt[j][i] = dot;
+            }
+        }
+        double[] eigenvalues = new double[l];
+        double[][] eigenvectors = symmetricEigen(bbt, eigenvalues);
+        Integer[] order = IntStream.range(0, l).boxed().sorted((i, j) -> Double.compare(eigenvalues[j], eigenvalues[i])).toArray(Integer[]::new);
+
+        double[][] components = new double[k][numCols];
+        for (int c = 0; c < k; c++) {
+            int e = order[c];
+            double singularValue = Math.sqrt(Math.max(eigenvalues[e], 0));
+            if (singularValue == 0)
+                continue;
+            double[] component = components[c];
+            for (int i = 0; i < l; i++) {
+                double weight = eigenvectors[i][e] / singularValue;
+                double[] bRow = b[i];
+                for (int j = 0; j < numCols; j++)
+                    component[j] += weight * bRow[j];
+            }
+        }
+        return new PCA(columns, means, components);
+    }
+
+    /**
+     * Projects every row of the given matrix onto the components
+     */
+    public double[][] transform(double[][] matrix) {
+        double[][] reduced = new double[matrix.length][];
+        IntStream.range(0, matrix.length).parallel().forEach(row -> reduced[row] = transform(matrix[row]));
+        return reduced;
+    }
+
+    /**
+     * Projects given row (must have the same number of columns as the matrix the components
+     * were fit on) onto the components
+     */
+    public double[] transform(double[] row) {
+        double[] projected = new double[components.length];
+        for (int c = 0; c < components.length; c++) {
+            double[] component = components[c];
+            double sum = 0;
+            for (int j = 0; j < means.length; j++)
+                sum += (value(row, columns, j) - means[j]) * component[j];
+            projected[c] = sum;
+        }
+        return projected;
+    }
+
+    public int getNumComponents() {
+        return components.length;
+    }
+
+    /**
+     * Returns value of the j-th used column in the given row
+     */
+    private static double value(double[] row, int[] columns, int j) {
+        return (columns == null) ? row[j] : row[columns[j]];
+    }
+
+    private static double[] getColumnMeans(double[][] matrix, int[] columns, int numCols) {
+        double[] sums = IntStream.range(0, matrix.length).parallel().collect(() -> new double[numCols], (acc, row) -> {
+            double[] values = matrix[row];
+            for (int j = 0; j < numCols; j++) {
+                double value = value(values, columns, j);
+                if (value != 0)
+                    acc[j] += value;
+            }
+        }, PCA::addInto);
+        for (int j = 0; j < numCols; j++)
+            sums[j] /= matrix.length;
+        return sums;
+    }
+
+    private static double[][] getGaussianMatrix(int numRows, int numCols) {
+        Random random = new Random(SEED);
+        double[][] gaussian = new double[numRows][numCols];
+        for (double[] row : gaussian) {
+            for (int j = 0; j < numCols; j++)
+                row[j] = random.nextGaussian();
+        }
+        return gaussian;
+    }
+
+    /**
+     * Returns (X - means) * m, stored column major (l columns, one value per row of X). X is the
+     * matrix restricted to the used columns
+     */
+    private static double[][] multiply(double[][] matrix, int[] columns, double[] means, double[][] m, int l) {
+        double[] meansTimesM = new double[l];
+        for (int j = 0; j < means.length; j++) {
+            if (means[j] != 0) {
+                for (int c = 0; c < l; c++)
+                    meansTimesM[c] += means[j] * m[j][c];
+            }
+        }
+        double[][] product = new double[l][matrix.length];
+        IntStream.range(0, matrix.length).parallel().forEach(row -> {
+            double[] values = matrix[row];
+            double[] sums = new double[l];
+            for (int j = 0; j < means.length; j++) {
+                double value = value(values, columns, j);
+                if (value != 0) {
+                    double[] mRow = m[j];
+                    for (int c = 0; c < l; c++)
+                        sums[c] += value * mRow[c];
+                }
+            }
+            for (int c = 0; c < l; c++)
+                product[c][row] = sums[c] - meansTimesM[c];
+        });
+        return product;
+    }
+
+    /**
+     * Returns q^T * (X - means), where q is stored column major (l columns, one value per
+     * row of X). The result has l rows and one column per column of X
+     */
+    private static double[][] multiplyTransposed(double[][] matrix, int[] columns, double[] means, double[][] q, int l) {
+        int numCols = means.length;
+        double[][] product = IntStream.range(0, matrix.length).parallel().collect(() -> new double[l][numCols], (acc, row) -> {
+            double[] values = matrix[row];
+            for (int j = 0; j < numCols; j++) {
+                double value = value(values, columns, j);
+                if (value != 0) {
+                    for (int c = 0; c < l; c++)
+                        acc[c][j] += q[c][row] * value;
+                }
+            }
+        }, (a, b) -> {
+            for (int c = 0; c < l; c++)
+                addInto(a[c], b[c]);
+        });
+        for (int c = 0; c < l; c++) {
+            double columnSum = 0;
+            for (double v : q[c])
+                columnSum += v;
+            for (int j = 0; j < numCols; j++)
+                product[c][j] -= columnSum * means[j];
+        }
+        return product;
+    }
+
+    /**
+     * Orthonormalizes the given vectors (in place) with modified Gram-Schmidt
+     */
+    private static double[][] orthonormalizeColumns(double[][] vectors) {
+        for (int i = 0; i < vectors.length; i++) {
+            double[] vector = vectors[i];
+            for (int j = 0; j < i; j++) {
+                double[] other = vectors[j];
+                double projection = parallelDot(vector, other);
+                IntStream.range(0, vector.length).parallel().forEach(r -> vector[r] -= projection * other[r]);
+            }
+            double norm = Math.sqrt(parallelDot(vector, vector));
+            if (norm > 0)
+                IntStream.range(0, vector.length).parallel().forEach(r -> vector[r] /= norm);
+        }
+        return vectors;
+    }
+
+    private static double[][] orthonormalizeRows(double[][] vectors) {
+        for (int i = 0; i < vectors.length; i++) {
+            double[] vector = vectors[i];
+            for (int j = 0; j < i; j++) {
+                double[] other = vectors[j];
+                double projection = dot(vector, other);
+                for (int r = 0; r < vector.length; r++)
+                    vector[r] -= projection * other[r];
+            }
+            double norm = Math.sqrt(dot(vector, vector));
+            if (norm > 0) {
+                for (int r = 0; r < vector.length; r++)
+                    vector[r] /= norm;
+            }
+        }
+        return vectors;
+    }
+
+    private static double[][] transpose(double[][] m) {
+        double[][] transposed = new double[m[0].length][m.length];
+        for (int i = 0; i < m.length; i++) {
+            for (int j = 0; j < m[0].length; j++)
+                transposed[j][i] = m[i][j];
+        }
+        return transposed;
+    }
+
+    /**
+     * Eigen decomposition of a small symmetric matrix using cyclic Jacobi rotations. Fills
+     * eigenvalues and returns the eigenvectors as columns
+     */
+    private static double[][] symmetricEigen(double[][] symmetric, double[] eigenvalues) {
+        int size = symmetric.length;
+        double[][] a = new double[size][];
+        for (int i = 0; i < size; i++)
+            a[i] = symmetric[i].clone();
+        double[][] v = new double[size][size];
+        for (int i = 0; i < size; i++)
+            v[i][i] = 1;
+
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double offDiagonal = 0;
+            for (int p = 0; p < size; p++) {
+                for (int q = p + 1; q < size; q++)
+                    offDiagonal += a[p][q] * a[p][q];
+            }
+            if (offDiagonal < 1e-22)
+                break;
+
+            for (int p = 0; p < size; p++) {
+                for (int q = p + 1; q < size; q++) {
+                    if (a[p][q] == 0)
+                        continue;
+                    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0)
+                        t = 1;
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int r = 0; r < size; r++) {
+                        double arp = a[r][p];
+                        double arq = a[r][q];
+                        a[r][p] = c * arp - s * arq;
+                        a[r][q] = s * arp + c * arq;
+                    }
+                    for (int r = 0; r < size; r++) {
+                        double apr = a[p][r];
+                        double aqr = a[q][r];
+                        a[p][r] = c * apr - s * aqr;
+                        a[q][r] = s * apr + c * aqr;
+                    }
+                    for (int r = 0; r < size; r++) {
+                        double vrp = v[r][p];
+                        double vrq = v[r][q];
+                        v[r][p] = c * vrp - s * vrq;
+                        v[r][q] = s * vrp + c * vrq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < size; i++)
+            eigenvalues[i] = a[i][i];
+        return v;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++)
+            sum += a[i] * b[i];
+        return sum;
+    }
+
+    private static double parallelDot(double[] a, double[] b) {
+        return IntStream.range(0, a.length).parallel().mapToDouble(i -> a[i] * b[i]).sum();
+    }
+
+    private static void addInto(double[] a, double[] b) {
+        for (int i = 0; i < a.length; i++)
+            a[i] += b[i];
+    }
+}
@@ -0,0 +1,9 @@
+package exceptions;
+
+public class InvalidCellQueryException extends RNAScoopException {
+
+    public InvalidCellQueryException(String reason) {
+        message = "Invalid cell selection query: " + reason;
+    }
+
+}
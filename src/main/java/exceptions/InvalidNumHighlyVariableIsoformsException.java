@@ -0,0 +1,9 @@
+package exceptions;
+
+public class InvalidNumHighlyVariableIsoformsException extends RNAScoopException {
+
+    public InvalidNumHighlyVariableIsoformsException() {
+        message = "Number of highly variable isoforms must be 0 (use all isoforms) or a positive integer";
+    }
+
+}
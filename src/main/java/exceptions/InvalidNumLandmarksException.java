@@ -0,0 +1,9 @@
+package exceptions;
+
+public class InvalidNumLandmarksException extends RNAScoopException {
+
+    public InvalidNumLandmarksException() {
+        message = "Number of landmark cells must be 0 (embed all cells) or an integer greater or equal to 2";
+    }
+
+}
@@ -1,10 +1,12 @@
 package labelset;
 
+import controller.clusterview.CellSet;
 import controller.clusterview.ClusterViewController;
+import mediator.ControllerMediator;
 import ui.PointColor;
 
 import java.awt.*;
-import java.util.HashSet;
+import java.util.BitSet;
 import java.util.Set;
 
 /**
@@ -14,11 +16,13 @@ public class Cluster implements Comparable<Cluster> {
     private String name;
     private Color color;
     private LabelSet labelSet;
-    private Set<ClusterViewController.CellDataItem> cells;
+    // numbers of the cells in this cluster
+    private final BitSet cellNumbers;
+    private int numCells;
 
     public Cluster(String name) {
         this.name = name;
-        cells = new HashSet<>();
+        cellNumbers = new BitSet();
         color = PointColor.getColor();
     }
 
@@ -27,19 +31,25 @@ public class Cluster implements Comparable<Cluster> {
         this.labelSet = labelSet;
     }
 
-    public Cluster(String name, LabelSet labelSet, Set<ClusterViewController.CellDataItem> cells) {
-        this.name = name;
-        this.labelSet = labelSet;
-        this.cells = cells;
-        color = PointColor.getColor();
+    /**
+     * Adds the cells with the given numbers to this cluster
+     */
+    public void addCells(BitSet cellsToAdd) {
+        cellNumbers.or(cellsToAdd);
+        numCells = cellNumbers.cardinality();
     }
 
-    public void addCell(ClusterViewController.CellDataItem cell) {
-        cells.add(cell);
+    /**
+     * Removes the cells with the given numbers from this cluster
+     */
+    public void removeCells(BitSet cellsToRemove) {
+        cellNumbers.andNot(cellsToRemove);
+        numCells = cellNumbers.cardinality();
     }
 
     public void clearCells(){
-        cells.clear();
+        cellNumbers.clear();
+        numCells = 0;
     }
 
     public void setLabelSet(LabelSet labelSet) {
@@ -87,7 +97,23 @@ public class Cluster implements Comparable<Cluster> {
                                              (double) color.getBlue() / 255);
     }
 
+    /**
+     * Returns the cells in this cluster (read from its bitmap of cell numbers, so the returned set
+     * shouldn't be kept after cells are added or removed)
+     */
     public Set<ClusterViewController.CellDataItem> getCells() {
-        return cells;
+        return new CellSet(cellNumbers, numCells, ControllerMediator.getInstance()::getCell);
+    }
+
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * Returns a bitmap of the numbers of the cells in this cluster (bit i is set if cell number i is
+     * in it). Shouldn't be modified
+     */
+    public BitSet getCellNumbers() {
+        return cellNumbers;
     }
 }
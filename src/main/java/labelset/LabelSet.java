@@ -1,38 +1,43 @@
 package labelset;
 
-import controller.clusterview.ClusterViewController;
 import exceptions.AddClusterWhenNoCellsSelectedException;
 import exceptions.AddingClusterMakesEmptyClustersException;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import mediator.ControllerMediator;
 
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public class LabelSet {
-    private final Map<Integer, Cluster> cellNumberClusterMap;
+    public static final String UNLABELED_CLUSTER_NAME = "Unlabeled";
+
+    // id of the cluster each cell (by number) belongs to. A cluster's id is its index in clustersByID
+    private int[] cellClusterIDs;
+    // ids of removed clusters aren't reused, their entries are null
+    private final List<Cluster> clustersByID;
     private final ObservableList<Cluster> clusters;
     private String name;
 
     public LabelSet() {
         clusters = FXCollections.observableArrayList();
-        cellNumberClusterMap = new HashMap<>();
+        clustersByID = new ArrayList<>();
+        cellClusterIDs = new int[ControllerMediator.getInstance().getNumCellsToPlot()];
         name = ControllerMediator.getInstance().getUniqueLabelSetName("Label Set " + (ControllerMediator.getInstance().getNumLabelSets() + 1));
         setUpClusters();
     }
 
-    public LabelSet(Map<Integer, Cluster> cellNumberClusterMap, String name) {
-        clusters = FXCollections.observableArrayList();
+    /**
+     * @param cellClusterIDs the cluster each cell belongs to, as an index into clusters
+     * @param clusters       the label set's clusters, in order
+     */
+    public LabelSet(int[] cellClusterIDs, List<Cluster> clusters, String name) {
+        this.clusters = FXCollections.observableArrayList(clusters);
         this.name = name;
-        this.cellNumberClusterMap = cellNumberClusterMap;
-        for (Cluster cluster: new LinkedHashSet<>(cellNumberClusterMap.values())) {
-            clusters.add(cluster);
+        this.cellClusterIDs = cellClusterIDs;
+        clustersByID = new ArrayList<>(clusters);
+        for (Cluster cluster : clusters)
             cluster.setLabelSet(this);
-        }
         if (!ControllerMediator.getInstance().isCellPlotCleared())
             addCellsToClusters();
     }
@@ -41,36 +46,86 @@ public class LabelSet {
      * Adds all cells in cell plot to appropriate clusters
      */
     public void addCellsToClusters() {
-        for (ClusterViewController.CellDataItem cell : ControllerMediator.getInstance().getCells(false))
-            addCell(cell);
+        addCellsToClusters(0, Math.min(cellClusterIDs.length, ControllerMediator.getInstance().getNumCellsToPlot()));
+    }
+
+    /**
+     * Adds numCells cells (that are in the cell plot), numbered from firstCellNumber on, to the clusters
+     * they belong to
+     */
+    public void addCellsToClusters(int firstCellNumber, int numCells) {
+        BitSet[] clusterCells = new BitSet[clustersByID.size()];
+        for (int cellNumber = firstCellNumber; cellNumber < firstCellNumber + numCells; cellNumber++) {
+            int clusterID = cellClusterIDs[cellNumber];
+            if (clusterCells[clusterID] == null)
+                clusterCells[clusterID] = new BitSet();
+            clusterCells[clusterID].set(cellNumber);
+        }
+        for (int clusterID = 0; clusterID < clusterCells.length; clusterID++) {
+            if (clusterCells[clusterID] != null)
+                clustersByID.get(clusterID).addCells(clusterCells[clusterID]);
+        }
+    }
+
+    /**
+     * Adds numCells cells appended to the expression matrix (numbered from firstCellNumber on) to
+     * this label set. The i-th new cell belongs to the cluster labelled labels.get(i), which is
+     * created if this label set doesn't have it. If labels is null (the new cells weren't labelled
+     * for this label set), all new cells belong to the UNLABELED_CLUSTER_NAME cluster.
+     * NOTE: the new cells still need to be added to the clusters' collections (with addCellsToClusters())
+     */
+    public void appendCells(List<String> labels, int firstCellNumber, int numCells) {
+        Map<String, Integer> clusterIDMap = new HashMap<>();
+        for (int clusterID = 0; clusterID < clustersByID.size(); clusterID++) {
+            if (clustersByID.get(clusterID) != null)
+                clusterIDMap.put(clustersByID.get(clusterID).getName(), clusterID);
+        }
+
+        cellClusterIDs = Arrays.copyOf(cellClusterIDs, firstCellNumber + numCells);
+        for (int i = 0; i < numCells; i++) {
+            String label = (labels == null) ? UNLABELED_CLUSTER_NAME : labels.get(i);
+            Integer clusterID = clusterIDMap.get(label);
+            if (clusterID == null) {
+                clusterID = addCluster(new Cluster(label, this));
+                clusterIDMap.put(label, clusterID);
+            }
+            cellClusterIDs[firstCellNumber + i] = clusterID;
+        }
     }
 
     /**
      * Adds new cluster to label set containing the selected cells in the t-SNE plot
      */
     public void addClusterFromSelectedCells() throws AddClusterWhenNoCellsSelectedException, AddingClusterMakesEmptyClustersException {
-        Set<ClusterViewController.CellDataItem> selectedCells = (Set<ClusterViewController.CellDataItem>) ControllerMediator.getInstance().getCells(true);
+        BitSet selectedCells = ControllerMediator.getInstance().getSelectedCellNumbers();
 
-        // check if adding new clusters will result in clusters with no cells
-        if (selectedCells.size() == 0)
+        // check if adding new clusters will result in clusters with no cells (a cluster is left empty if
+        // all of its cells are selected)
+        if (selectedCells.isEmpty())
             throw new AddClusterWhenNoCellsSelectedException();
+        List<Cluster> clustersWithSelectedCells = new ArrayList<>();
+        BitSet selectedCellsInCluster = new BitSet();
         for (Cluster cluster : clusters) {
-            if (selectedCells.containsAll(cluster.getCells()))
+            BitSet clusterCells = cluster.getCellNumbers();
+            if (clusterCells.intersects(selectedCells)) {
+                selectedCellsInCluster.clear();
+                selectedCellsInCluster.or(clusterCells);
+                selectedCellsInCluster.and(selectedCells);
+                if (selectedCellsInCluster.cardinality() == cluster.getNumCells())
+                    throw new AddingClusterMakesEmptyClustersException(cluster.getName());
+                clustersWithSelectedCells.add(cluster);
+            } else if (cluster.getNumCells() == 0) {
                 throw new AddingClusterMakesEmptyClustersException(cluster.getName());
-        }
-
-        Cluster newCluster = new Cluster(getNewClusterName(), this, selectedCells);
-        for (ClusterViewController.CellDataItem selectedCell : selectedCells) {
-            for (Cluster cluster : clusters) {
-                Set<ClusterViewController.CellDataItem> clusterCells = cluster.getCells();
-                if (clusterCells.contains(selectedCell)) {
-                    clusterCells.remove(selectedCell);
-                    break;
-                }
             }
-            cellNumberClusterMap.put(selectedCell.getCellNumber(), newCluster);
         }
-        clusters.add(newCluster);
+
+        for (Cluster cluster : clustersWithSelectedCells)
+            cluster.removeCells(selectedCells);
+        Cluster newCluster = new Cluster(getNewClusterName(), this);
+        newCluster.addCells(selectedCells);
+        int newClusterID = addCluster(newCluster);
+        for (int cellNumber = selectedCells.nextSetBit(0); cellNumber >= 0; cellNumber = selectedCells.nextSetBit(cellNumber + 1))
+            cellClusterIDs[cellNumber] = newClusterID;
     }
 
     /**
@@ -89,9 +144,21 @@ public class LabelSet {
         Cluster clusterToCombineWith = getClusterToCombineWith(cluster);
         int indexOfClusterToRemove = clusters.lastIndexOf(cluster);
         clusters.remove(indexOfClusterToRemove);
-        for (ClusterViewController.CellDataItem cell : cluster.getCells()) {
-            cellNumberClusterMap.put(cell.getCellNumber(), clusterToCombineWith);
-            clusterToCombineWith.addCell(cell);
+
+        int removedClusterID = clustersByID.indexOf(cluster);
+        int combinedClusterID = clustersByID.indexOf(clusterToCombineWith);
+        clustersByID.set(removedClusterID, null);
+        if (ControllerMediator.getInstance().isCellPlotCleared()) {
+            // the clusters' bitmaps are empty, so every cell has to be checked
+            for (int cellNumber = 0; cellNumber < cellClusterIDs.length; cellNumber++) {
+                if (cellClusterIDs[cellNumber] == removedClusterID)
+                    cellClusterIDs[cellNumber] = combinedClusterID;
+            }
+        } else {
+            BitSet removedCells = cluster.getCellNumbers();
+            for (int cellNumber = removedCells.nextSetBit(0); cellNumber >= 0; cellNumber = removedCells.nextSetBit(cellNumber + 1))
+                cellClusterIDs[cellNumber] = combinedClusterID;
+            clusterToCombineWith.addCells(removedCells);
         }
     }
 
@@ -113,13 +180,15 @@ public class LabelSet {
 
     /**
      * Returns the cluster a cell with the given number belongs to in this
-     * label set
+     * label set (null if this label set doesn't have that cell)
      * NOTE: if cell1 belongs to cluster1, this does not mean it has been added to cluster1's
-     * collection of cells. It just means that, according to the cell number -> cluster map,
-     * it should be there, and if addCell(cell1) was called, cell1 would be added to the collection.
+     * collection of cells. It just means that, according to the cell number -> cluster array,
+     * it should be there, and if addCellsToClusters() was called, cell1 would be added to the collection.
      */
-    public Cluster getCellCluster(Integer cellNumber) {
-        return cellNumberClusterMap.get(cellNumber);
+    public Cluster getCellCluster(int cellNumber) {
+        if (cellNumber < 0 || cellNumber >= cellClusterIDs.length)
+            return null;
+        return clustersByID.get(cellClusterIDs[cellNumber]);
     }
 
     /**
@@ -135,14 +204,48 @@ public class LabelSet {
     }
 
     public int getNumCellsInLabelSet() {
-        return cellNumberClusterMap.size();
+        return cellClusterIDs.length;
+    }
+
+    /**
+     * Returns the id of the cluster each cell (by number) belongs to. Shouldn't be modified
+     */
+    int[] getCellClusterIDs() {
+        return cellClusterIDs;
+    }
+
+    /**
+     * Returns the cluster with the given id (null if it was removed)
+     */
+    Cluster getClusterWithID(int clusterID) {
+        return clustersByID.get(clusterID);
+    }
+
+    int getNumClusterIDs() {
+        return clustersByID.size();
+    }
+
+    /**
+     * Returns a hash of the label set's contents (the name of the cluster each cell belongs to), used to
+     * check whether it changed since it was last saved
+     */
+    public long getContentHash() {
+        long[] clusterNameHashes = new long[clustersByID.size()];
+        for (int clusterID = 0; clusterID < clusterNameHashes.length; clusterID++) {
+            if (clustersByID.get(clusterID) != null)
+                clusterNameHashes[clusterID] = clustersByID.get(clusterID).getName().hashCode();
+        }
+        long hash = 1125899906842597L;
+        for (int clusterID : cellClusterIDs)
+            hash = 31 * hash + clusterNameHashes[clusterID];
+        return hash;
     }
 
     @Override
     public String toString() {
         StringBuilder labelSetString = new StringBuilder();
         for (int i = 0; i < ControllerMediator.getInstance().getNumCellsToPlot(); i++) {
-            Cluster cluster = cellNumberClusterMap.get(i);
+            Cluster cluster = getCellCluster(i);
             labelSetString.append(cluster.getName()).append("\n");
         }
 
@@ -150,12 +253,12 @@ public class LabelSet {
     }
 
     /**
-     * Adds given cell to the cluster it belongs
+     * Adds the given cluster to the end of this label set's list of clusters, and returns its id
      */
-    private void addCell(ClusterViewController.CellDataItem cell) {
-        Cluster cluster = cellNumberClusterMap.get(cell.getCellNumber());
-        if (cluster != null)
-            cluster.addCell(cell);
+    private int addCluster(Cluster cluster) {
+        clusters.add(cluster);
+        clustersByID.add(cluster);
+        return clustersByID.size() - 1;
     }
 
     /**
@@ -181,16 +284,9 @@ public class LabelSet {
      */
     private void setUpClusters() {
         Cluster cluster = new Cluster("Cluster 1", this);
-        clusters.add(cluster);
-        if (!ControllerMediator.getInstance().isCellPlotCleared()) {
-            for (ClusterViewController.CellDataItem cell : ControllerMediator.getInstance().getCells(false)) {
-                cluster.addCell(cell);
-                cellNumberClusterMap.put(cell.getCellNumber(), cluster);
-            }
-        } else {
-            // when the t-SNE plot is drawn, all cells should belong to this cluster
-            for (int i = 0; i < ControllerMediator.getInstance().getNumCellsToPlot(); i++)
-                cellNumberClusterMap.put(i, cluster);
-        }
+        // every cell is in the first cluster, whose id is 0
+        addCluster(cluster);
+        if (!ControllerMediator.getInstance().isCellPlotCleared())
+            addCellsToClusters();
     }
 }
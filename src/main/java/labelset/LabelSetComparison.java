@@ -0,0 +1,172 @@
+package labelset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * How the clusters of one label set map onto the clusters of another: the contingency table (number of
+ * cells in each pair of clusters), the adjusted Rand index of the two label sets, and each cluster's
+ * Jaccard overlap with its best matching cluster in the other label set. Everything is derived from
+ * the contingency table, which is counted in a single pass over the label sets' cell assignments.
+ * Only cells both label sets have are compared
+ */
+public class LabelSetComparison {
+    private final LabelSet firstLabelSet;
+    private final LabelSet secondLabelSet;
+    private final List<Cluster> firstClusters;
+    private final List<Cluster> secondClusters;
+    // number of cells in each cluster of the first label set (rows) and each cluster of the second (columns)
+    private final int[][] contingencyTable;
+    private final int[] firstClusterSizes;
+    private final int[] secondClusterSizes;
+    private final int numCells;
+
+    public LabelSetComparison(LabelSet firstLabelSet, LabelSet secondLabelSet) {
+        this.firstLabelSet = firstLabelSet;
+        this.secondLabelSet = secondLabelSet;
+        firstClusters = new ArrayList<>(firstLabelSet.getClusters());
+        secondClusters = new ArrayList<>(secondLabelSet.getClusters());
+        int[] firstRows = getClusterIndices(firstLabelSet, firstClusters);
+        int[] secondColumns = getClusterIndices(secondLabelSet, secondClusters);
+
+        int[] firstCellClusterIDs = firstLabelSet.getCellClusterIDs();
+        int[] secondCellClusterIDs = secondLabelSet.getCellClusterIDs();
+        numCells = Math.min(firstCellClusterIDs.length, secondCellClusterIDs.length);
+        contingencyTable = new int[firstClusters.size()][secondClusters.size()];
+        for (int cellNumber = 0; cellNumber < numCells; cellNumber++)
+            contingencyTable[firstRows[firstCellClusterIDs[cellNumber]]][secondColumns[secondCellClusterIDs[cellNumber]]]++;
+
+        firstClusterSizes = new int[firstClusters.size()];
+        secondClusterSizes = new int[secondClusters.size()];
+        for (int row = 0; row < firstClusterSizes.length; row++) {
+            for (int column = 0; column < secondClusterSizes.length; column++) {
+                firstClusterSizes[row] += contingencyTable[row][column];
+                secondClusterSizes[column] += contingencyTable[row][column];
+            }
+        }
+    }
+
+    /**
+     * Compares every pair of the given label sets (in parallel), in the order the pairs appear in the list
+     */
+    public static List<LabelSetComparison> compareAll(List<LabelSet> labelSets) {
+        List<LabelSet[]> pairs = new ArrayList<>();
+        for (int i = 0; i < labelSets.size(); i++) {
+            for (int j = i + 1; j < labelSets.size(); j++)
+                pairs.add(new LabelSet[]{labelSets.get(i), labelSets.get(j)});
+        }
+        return pairs.parallelStream().map(pair -> new LabelSetComparison(pair[0], pair[1])).collect(Collectors.toList());
+    }
+
+    public LabelSet getFirstLabelSet() {
+        return firstLabelSet;
+    }
+
+    public LabelSet getSecondLabelSet() {
+        return secondLabelSet;
+    }
+
+    /**
+     * Returns the number of cells in each cluster of the first label set (rows, in the order of its list
+     * of clusters) and each cluster of the second label set (columns). Shouldn't be modified
+     */
+    public int[][] getContingencyTable() {
+        return contingencyTable;
+    }
+
+    /**
+     * Returns the adjusted Rand index of the two label sets: 1 if they cluster the cells the same way,
+     * around 0 if they agree no more than random clusterings with the same cluster sizes would
+     */
+    public double getAdjustedRandIndex() {
+        double index = 0;
+        for (int[] row : contingencyTable) {
+            for (int count : row)
+                index += getNumPairs(count);
+        }
+        double firstPairs = IntStream.of(firstClusterSizes).mapToDouble(LabelSetComparison::getNumPairs).sum();
+        double secondPairs = IntStream.of(secondClusterSizes).mapToDouble(LabelSetComparison::getNumPairs).sum();
+        double expectedIndex = (numCells < 2) ? 0 : firstPairs * secondPairs / getNumPairs(numCells);
+        double maxIndex = (firstPairs + secondPairs) / 2;
+        if (maxIndex == expectedIndex)
+            return 1;
+        return (index - expectedIndex) / (maxIndex - expectedIndex);
+    }
+
+    /**
+     * Returns the Jaccard index of the given cluster of the first label set (row) and cluster of the second
+     * label set (column): the number of cells in both over the number of cells in either
+     */
+    public double getJaccardIndex(int row, int column) {
+        int union = firstClusterSizes[row] + secondClusterSizes[column] - contingencyTable[row][column];
+        return (union == 0) ? 0 : (double) contingencyTable[row][column] / union;
+    }
+
+    /**
+     * Returns a tab-separated report of the comparison: the adjusted Rand index, the contingency table, and
+     * the cluster each cluster overlaps the most with in the other label set (and their Jaccard index)
+     */
+    @Override
+    public String toString() {
+        StringBuilder comparisonString = new StringBuilder();
+        comparisonString.append(firstLabelSet.getName()).append(" vs. ").append(secondLabelSet.getName()).append("\n");
+        comparisonString.append("Adjusted Rand index\t").append(String.format("%.4f", getAdjustedRandIndex())).append("\n\n");
+
+        comparisonString.append("Contingency table (rows: ").append(firstLabelSet.getName()).append(", columns: ")
+                        .append(secondLabelSet.getName()).append(")\n");
+        for (Cluster cluster : secondClusters)
+            comparisonString.append("\t").append(cluster.getName());
+        comparisonString.append("\n");
+        for (int row = 0; row < firstClusters.size(); row++) {
+            comparisonString.append(firstClusters.get(row).getName());
+            for (int count : contingencyTable[row])
+                comparisonString.append("\t").append(count);
+            comparisonString.append("\n");
+        }
+        comparisonString.append("\n");
+
+        comparisonString.append("Cluster\tBest match\tJaccard index\n");
+        for (int row = 0; row < firstClusters.size(); row++) {
+            int bestColumn = 0;
+            for (int column = 1; column < secondClusters.size(); column++) {
+                if (getJaccardIndex(row, column) > getJaccardIndex(row, bestColumn))
+                    bestColumn = column;
+            }
+            appendBestMatch(comparisonString, firstLabelSet, firstClusters.get(row), secondLabelSet, secondClusters.get(bestColumn), getJaccardIndex(row, bestColumn));
+        }
+        for (int column = 0; column < secondClusters.size(); column++) {
+            int bestRow = 0;
+            for (int row = 1; row < firstClusters.size(); row++) {
+                if (getJaccardIndex(row, column) > getJaccardIndex(bestRow, column))
+                    bestRow = row;
+            }
+            appendBestMatch(comparisonString, secondLabelSet, secondClusters.get(column), firstLabelSet, firstClusters.get(bestRow), getJaccardIndex(bestRow, column));
+        }
+        return comparisonString.toString();
+    }
+
+    private static void appendBestMatch(StringBuilder comparisonString, LabelSet labelSet, Cluster cluster, LabelSet bestMatchLabelSet,
+                                        Cluster bestMatch, double jaccardIndex) {
+        comparisonString.append(labelSet.getName()).append(": ").append(cluster.getName()).append("\t")
+                        .append(bestMatchLabelSet.getName()).append(": ").append(bestMatch.getName()).append("\t")
+                        .append(String.format("%.4f", jaccardIndex)).append("\n");
+    }
+
+    /**
+     * Returns the index of each of the given label set's clusters (by id) in the given list of its clusters
+     */
+    private static int[] getClusterIndices(LabelSet labelSet, List<Cluster> clusters) {
+        int[] clusterIndices = new int[labelSet.getNumClusterIDs()];
+        for (int clusterID = 0; clusterID < clusterIndices.length; clusterID++) {
+            Cluster cluster = labelSet.getClusterWithID(clusterID);
+            clusterIndices[clusterID] = (cluster == null) ? -1 : clusters.indexOf(cluster);
+        }
+        return clusterIndices;
+    }
+
+    private static double getNumPairs(int n) {
+        return (double) n * (n - 1) / 2;
+    }
+}
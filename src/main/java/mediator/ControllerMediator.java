@@ -1,13 +1,17 @@
 package mediator;
 
 import annotation.Gene;
+import cellplot.DensityMode;
+import cellplot.GradientLookupTable;
 import controller.*;
 import controller.clusterview.ClusterViewController;
 import controller.clusterview.ClusterViewSettingsController;
+import controller.clusterview.EmbeddingSweepController;
 import controller.clusterview.TSNESettingsController;
 import controller.clusterview.UMAPSettingsController;
 import controller.labelsetmanager.AddLabelSetViewController;
 import controller.labelsetmanager.LabelSetManagerController;
+import embedding.EmbeddingParameters;
 import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.layout.Pane;
@@ -21,6 +25,7 @@ import ui.LabelSetManagerWindow;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 public class ControllerMediator implements Mediator{
     private MainController mainController;
@@ -37,6 +42,7 @@ public class ControllerMediator implements Mediator{
     private UMAPSettingsController umapSettingsController;
     private TSNESettingsController tsneSettingsController;
     private ImageExporterController imageExporterController;
+    private EmbeddingSweepController embeddingSweepController;
 
     // Register controllers
     @Override
@@ -109,6 +115,11 @@ public class ControllerMediator implements Mediator{
         this.imageExporterController = imageExporterController;
     }
 
+    @Override
+    public void registerEmbeddingSweepController(EmbeddingSweepController embeddingSweepController) {
+        this.embeddingSweepController = embeddingSweepController;
+    }
+
     // Change Main Display
     public void initializeMain(Parent console, Parent isoformPlot, Parent clusterView) {
         mainController.initializeMain(console, isoformPlot, clusterView);
@@ -340,10 +351,26 @@ public class ControllerMediator implements Mediator{
         clusterViewSettingsController.display();
     }
 
+    public void displayEmbeddingSweep() {
+        embeddingSweepController.display();
+    }
+
     public boolean usingUMAPSettings() {
         return clusterViewSettingsController.usingUMAPSettings();
     }
 
+    public int getNumLandmarks() {
+        return clusterViewSettingsController.getNumLandmarks();
+    }
+
+    public int getNumHighlyVariableIsoforms() {
+        return clusterViewSettingsController.getNumHighlyVariableIsoforms();
+    }
+
+    public Collection<String> getHighlyVariableIsoformIDs() {
+        return clusterViewController.getHighlyVariableIsoformIDs();
+    }
+
     public void saveUMAPSettings() {
         umapSettingsController.saveSettings();
     }
@@ -400,6 +427,14 @@ public class ControllerMediator implements Mediator{
         clusterViewController.clearSelectedCellsAndRedrawPlot();
     }
 
+    public void undoCellSelection() {
+        clusterViewController.undoCellSelection();
+    }
+
+    public void redoCellSelection() {
+        clusterViewController.redoCellSelection();
+    }
+
     public void labelSetManagerHandleClearedCellPlot() {
         labelSetManagerController.handleClearedCellPlot();
     }
@@ -412,6 +447,18 @@ public class ControllerMediator implements Mediator{
         clusterViewController.redrawPlotSansLegend();
     }
 
+    public void updateCellPlotDensityMode() {
+        clusterViewController.updateDensityMode();
+    }
+
+    public void cellPlotHandleDrawOrderChange() {
+        clusterViewController.handleDrawOrderChange();
+    }
+
+    public void updateCellPlotOverlays() {
+        clusterViewController.updateOverlays();
+    }
+
     public void clusterViewHandleChangedIsoformSelection() {
         clusterViewController.handleChangedIsoformSelection();
     }
@@ -436,6 +483,18 @@ public class ControllerMediator implements Mediator{
         clusterViewController.drawPlot();
     }
 
+    public void drawCellPlot(double[][] precomputedEmbedding) {
+        clusterViewController.drawPlot(precomputedEmbedding);
+    }
+
+    public double[][] embedCells(EmbeddingParameters parameters, int numThreads) {
+        return clusterViewController.embedCells(parameters, numThreads);
+    }
+
+    public void clearEmbeddingSweep() {
+        embeddingSweepController.clearSweep();
+    }
+
     public void redrawLegend() {
         clusterViewController.redrawLegend();
     }
@@ -529,6 +588,10 @@ public class ControllerMediator implements Mediator{
         return geneSelectorController.getShownGenes();
     }
 
+    public Collection<Gene> getGenes() {
+        return geneSelectorController.getGenes();
+    }
+
     public Collection<String> getShownGeneIDs() {
         return geneSelectorController.getShownGeneIDs();
     }
@@ -605,6 +668,10 @@ public class ControllerMediator implements Mediator{
         return clusterViewController.areCellsSelected();
     }
 
+    public double getAverageExpressionInSelectedCells(String isoformID, Cluster cluster, boolean includeZeros) {
+        return clusterViewController.getAverageExpressionInSelectedCells(isoformID, cluster, includeZeros);
+    }
+
     public Collection<ClusterViewController.CellDataItem> getCells(boolean onlySelected) {
         return clusterViewController.getCells(onlySelected);
     }
@@ -633,6 +700,10 @@ public class ControllerMediator implements Mediator{
         return gradientAdjusterController.getColorFromGradient(expression);
     }
 
+    public GradientLookupTable getGradientLookupTable(int numColors) {
+        return gradientAdjusterController.getGradientLookupTable(numColors);
+    }
+
     public String getGradientMinColorCode() {
         return gradientAdjusterController.getGradientMinColorCode();
     }
@@ -657,10 +728,34 @@ public class ControllerMediator implements Mediator{
         return clusterViewController.getNumCellsToPlot();
     }
 
-    public Collection<Integer> getSelectedCellNumbers() {
+    public double[][] getCellIsoformExpressionMatrix() {
+        return clusterViewController.getCellIsoformExpressionMatrix();
+    }
+
+    public double[][] getCurrentEmbedding() {
+        return clusterViewController.getCurrentEmbedding();
+    }
+
+    public HashMap<String, Integer> getIsoformIndexMap() {
+        return clusterViewController.getIsoformIndexMap();
+    }
+
+    public ClusterViewController.CellDataItem getCell(int cellNumber) {
+        return clusterViewController.getCell(cellNumber);
+    }
+
+    public BitSet getSelectedCellNumbers() {
         return clusterViewController.getSelectedCellNumbers();
     }
 
+    public String getEncodedCellSelection() {
+        return clusterViewController.getEncodedCellSelection();
+    }
+
+    public String getLastCellSelectionQuery() {
+        return clusterViewController.getLastCellSelectionQuery();
+    }
+
     public Collection<String> getSelectedCellCategoryNames() {
         return clusterViewController.getSelectedCellCategoryNames();
     }
@@ -745,6 +840,22 @@ public class ControllerMediator implements Mediator{
         return mainController.isColoringCellPlotBySelectedIsoform();
     }
 
+    public DensityMode getCellPlotDensityMode() {
+        return mainController.getCellPlotDensityMode();
+    }
+
+    public boolean isDrawingHighExpressionOnTop() {
+        return mainController.isDrawingHighExpressionOnTop();
+    }
+
+    public boolean isShowingClusterContours() {
+        return mainController.isShowingClusterContours();
+    }
+
+    public boolean isShowingClusterHexbins() {
+        return mainController.isShowingClusterHexbins();
+    }
+
     public boolean isConsoleOpen() {
         return mainController.isConsoleOpen();
     }
@@ -782,6 +893,14 @@ public class ControllerMediator implements Mediator{
         clusterViewController.setEmbedding(embedding);
     }
 
+    public void setHighlyVariableIsoformIDs(Collection<String> highlyVariableIsoformIDs) {
+        clusterViewController.setHighlyVariableIsoformIDs(highlyVariableIsoformIDs);
+    }
+
+    public void appendCells(double[][] newRows, Map<String, List<String>> labelSetLabels) throws InterruptedException, ExecutionException {
+        clusterViewController.appendCells(newRows, labelSetLabels);
+    }
+
     public void setExpressionUnit(String expressionUnit) {
         isoformPlotController.setExpressionUnit(expressionUnit);
     }
@@ -835,6 +954,10 @@ public class ControllerMediator implements Mediator{
         geneFiltererController.disable();
     }
 
+    public void disableEmbeddingSweep() {
+        embeddingSweepController.disable();
+    }
+
     public void disableGradientAdjuster() {
         gradientAdjusterController.disable();
     }
@@ -868,6 +991,10 @@ public class ControllerMediator implements Mediator{
         geneFiltererController.enable();
     }
 
+    public void enableEmbeddingSweep() {
+        embeddingSweepController.enable();
+    }
+
     public void enableGradientAdjuster() {
         gradientAdjusterController.enable();
     }
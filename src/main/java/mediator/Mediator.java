@@ -3,6 +3,7 @@ package mediator;
 import controller.*;
 import controller.clusterview.ClusterViewController;
 import controller.clusterview.ClusterViewSettingsController;
+import controller.clusterview.EmbeddingSweepController;
 import controller.clusterview.TSNESettingsController;
 import controller.clusterview.UMAPSettingsController;
 import controller.labelsetmanager.AddLabelSetViewController;
@@ -23,4 +24,5 @@ public interface Mediator {
     void registerUMAPSettingsController(UMAPSettingsController umapSettingsController);
     void registerTSNESettingsController(TSNESettingsController tsneSettingsController);
     void registerImageExporterController(ImageExporterController imageExporterController);
+    void registerEmbeddingSweepController(EmbeddingSweepController embeddingSweepController);
 }
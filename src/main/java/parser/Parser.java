@@ -3,6 +3,7 @@ package parser;
 import annotation.Exon;
 import annotation.Gene;
 import annotation.Isoform;
+import embedding.DatasetCache;
 import exceptions.*;
 import javafx.application.Platform;
 import labelset.Cluster;
@@ -62,7 +63,7 @@ public class Parser {
             runLater(() ->  ControllerMediator.getInstance().addConsoleMessage("Parsing GTF file..."));
             GTFLoader.loadGTF(gtf);
             runLater(() ->  ControllerMediator.getInstance().addConsoleMessage("Parsing matrix files..."));
-            Map<LabelSet, String> labelSetPathMap = CellPlotInfoLoader.loadCellPlotInfo(matrix, isoformLabels, labelSets, embedding);
+            Map<LabelSet, String> labelSetPathMap = CellPlotInfoLoader.loadCellPlotInfo(matrix, isoformLabels, labelSets, embedding, new ArrayList<>());
             ControllerMediator.getInstance().setExpressionUnit(expressionUnit);
             runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Successfully loaded file from path: " + pathToPaths));
             CurrentSession.saveLoadedPaths(gtf, matrix, isoformLabels, labelSetPathMap, embedding);
@@ -86,13 +87,28 @@ public class Parser {
             Map<String, String> labelSets = (Map<String, String>)(Map<String, ?>) prevSession.getJSONObject(SessionMaker.CELL_LABELS_PATH_KEY).toMap();
             String embedding = (prevSession.has(SessionMaker.EMBEDDING_PATH_KEY))? prevSession.getString(SessionMaker.EMBEDDING_PATH_KEY) : null;
             String expressionUnit = (prevSession.has(SessionMaker.EXPRESSION_UNIT_KEY))? prevSession.getString(SessionMaker.EXPRESSION_UNIT_KEY) : null;
+            String knnGraph = (prevSession.has(SessionMaker.KNN_GRAPH_PATH_KEY))? prevSession.getString(SessionMaker.KNN_GRAPH_PATH_KEY) : null;
+            List<String> appendedCells = new ArrayList<>();
+            if (prevSession.has(SessionMaker.APPENDED_CELLS_PATHS_KEY)) {
+                for (Object appendedCellsPath : prevSession.getJSONArray(SessionMaker.APPENDED_CELLS_PATHS_KEY))
+                    appendedCells.add((String) appendedCellsPath);
+            }
 
             runLater(() ->  ControllerMediator.getInstance().addConsoleMessage("Parsing previous session GTF file..."));
             GTFLoader.loadGTF(gtf);
             runLater(() ->  ControllerMediator.getInstance().addConsoleMessage("Parsing previous session matrix files..."));
-            Map<LabelSet, String> labelSetPathMap = CellPlotInfoLoader.loadCellPlotInfo(matrix, isoformLabels, labelSets, embedding);
+            Map<LabelSet, String> labelSetPathMap = CellPlotInfoLoader.loadCellPlotInfo(matrix, isoformLabels, labelSets, embedding, appendedCells);
             ControllerMediator.getInstance().setExpressionUnit(expressionUnit);
             CurrentSession.saveLoadedPaths(gtf, matrix, isoformLabels, labelSetPathMap, embedding);
+            CurrentSession.saveAppendedCellsPaths(appendedCells);
+            if (prevSession.has(SessionMaker.HIGHLY_VARIABLE_ISOFORMS_KEY)) {
+                List<String> highlyVariableIsoforms = new ArrayList<>();
+                for (Object isoformID : prevSession.getJSONArray(SessionMaker.HIGHLY_VARIABLE_ISOFORMS_KEY))
+                    highlyVariableIsoforms.add((String) isoformID);
+                ControllerMediator.getInstance().setHighlyVariableIsoformIDs(highlyVariableIsoforms);
+            }
+            if (knnGraph != null && DatasetCache.loadKNNGraph(knnGraph, ControllerMediator.getInstance().getCellIsoformExpressionMatrix()))
+                CurrentSession.saveKNNGraphPath(knnGraph);
             runLater(() ->  ControllerMediator.getInstance().addConsoleMessage("Finished parsing previous session dataset files"));
             return true;
         } catch (RNAScoopException e){
@@ -115,7 +131,7 @@ public class Parser {
             LabelSet labelSet = getLabelSet(labelSetFile, nameWithoutExtension);
             if (labelSet.getNumCellsInLabelSet() == ControllerMediator.getInstance().getNumCellsToPlot()) {
                 ControllerMediator.getInstance().addLabelSet(labelSet);
-                CurrentSession.saveLabelSetPath(labelSet, labelSetFile.getAbsolutePath());
+                CurrentSession.saveLabelSetPath(labelSet, labelSetFile.getAbsolutePath(), labelSet.getContentHash());
                 return true;
             } else {
                 ControllerMediator.getInstance().addConsoleErrorMessage("Uploaded label set does not have the same number of cells as the expression matrix");
@@ -134,33 +150,60 @@ public class Parser {
     }
 
     /**
-     * Creates a label set from given label set file. Label set is made based on map of cells
-     * (represented by their numbers) and the clusters they belong to.
+     * Reads in JSON file at given path, which specifies the expression matrix of new cells (and, optionally,
+     * the isoform IDs of its columns and the new cells' labels for each loaded label set). Appends the new
+     * cells to the loaded dataset. The new cells are put in the "Unlabeled" cluster of label sets they
+     * have no labels for
+     */
+    public static boolean appendCells(String pathToAppendedCells) {
+        try {
+            runLater(() ->  ControllerMediator.getInstance().addConsoleMessage("Appending cells from path: " + pathToAppendedCells));
+            HashMap<String, Integer> isoformIndexMap = ControllerMediator.getInstance().getIsoformIndexMap();
+            double[][] newRows = CellPlotInfoLoader.getAppendedCellsMatrix(pathToAppendedCells, isoformIndexMap);
+            Map<String, List<String>> labelSetLabels = CellPlotInfoLoader.getAppendedCellsLabels(pathToAppendedCells, newRows.length);
+            ControllerMediator.getInstance().appendCells(newRows, labelSetLabels);
+            CurrentSession.addAppendedCellsPath(new File(pathToAppendedCells).getAbsolutePath());
+            runLater(() -> ControllerMediator.getInstance().addConsoleMessage("Successfully appended " + newRows.length + " cells"));
+            return true;
+        } catch (RNAScoopException e){
+            runLater(() -> ControllerMediator.getInstance().addConsoleErrorMessage(e.getMessage()));
+            return false;
+        } catch (Exception e) {
+            runLater(() -> ControllerMediator.getInstance().addConsoleUnexpectedExceptionMessage(e));
+            return false;
+        }
+    }
+
+    /**
+     * Creates a label set from given label set file. Label set is made based on an array of the
+     * clusters each cell (represented by its number) belongs to.
      * If the first line of the cell labels file says "T Cells", the cell represented by the first
-     * row of the matrix should be in the cluster labelled "T Cells". The map from which the
-     * label set is produced will map 0 to a cluster with label "T Cells"
+     * row of the matrix should be in the cluster labelled "T Cells". The array from which the
+     * label set is produced will have the id of the cluster with label "T Cells" at index 0
      */
     public static LabelSet getLabelSet(File labelSetFile, String labelSetName) throws IOException {
-        Map<Integer, Cluster> cellNumberClusterMap = new LinkedHashMap<>();
-        Map<String, Cluster> clusterMap = new HashMap<>();
+        int[] cellClusterIDs = new int[1024];
+        List<Cluster> clusters = new ArrayList<>();
+        Map<String, Integer> clusterIDMap = new HashMap<>();
 
         String currentLabel;
-        Cluster cluster;
         int cellNumber = 0;
 
         BufferedReader reader= new BufferedReader(new FileReader(labelSetFile));
         while ((currentLabel = reader.readLine()) != null) {
-            if (clusterMap.containsKey(currentLabel)) {
-                cluster = clusterMap.get(currentLabel);
-            } else {
-                cluster = new Cluster(currentLabel);
-                clusterMap.put(currentLabel, cluster);
+            Integer clusterID = clusterIDMap.get(currentLabel);
+            if (clusterID == null) {
+                clusterID = clusters.size();
+                clusters.add(new Cluster(currentLabel));
+                clusterIDMap.put(currentLabel, clusterID);
             }
-            cellNumberClusterMap.put(cellNumber, cluster);
+            if (cellNumber == cellClusterIDs.length)
+                cellClusterIDs = Arrays.copyOf(cellClusterIDs, cellClusterIDs.length * 2);
+            cellClusterIDs[cellNumber] = clusterID;
             cellNumber++;
         }
 
-        return new LabelSet(cellNumberClusterMap, labelSetName);
+        return new LabelSet(Arrays.copyOf(cellClusterIDs, cellNumber), clusters, labelSetName);
     }
 
     public static Set<String> loadGeneSelectionFile(File geneSelectionFile) {
@@ -391,9 +434,11 @@ public class Parser {
 
         /**
          * Loads cell plot info (matrix, isoform labels, label sets, embedding), and returns map containing the loaded
-         * label sets and their respective paths
+         * label sets and their respective paths. Cells from the given appended cells files (see appendCells()) are
+         * added to the end of the matrix, and are expected to be in the label sets and embedding
          */
-        public static Map<LabelSet, String> loadCellPlotInfo(String pathToMatrix, String pathToIsoformLabels, Map<String, String> pathsToLabelSets, String pathToEmbedding) throws IOException, RNAScoopException {
+        public static Map<LabelSet, String> loadCellPlotInfo(String pathToMatrix, String pathToIsoformLabels, Map<String, String> pathsToLabelSets, String pathToEmbedding,
+                                                             List<String> pathsToAppendedCells) throws IOException, RNAScoopException {
             HashMap<String, Integer> isoformIndexMap = getIsoformIndexMap(pathToIsoformLabels);
             int numIsoforms = isoformIndexMap.size();
             List<LabelSet> labelSets = new ArrayList<>();
@@ -414,7 +459,25 @@ public class Parser {
                 labelSetPathMap.put(labelSet, path);
             }
 
-            double[][] cellIsoformExpressionMatrix = getCellIsoformExpressionMatrix(pathToMatrix, numCells, numIsoforms);
+            List<double[][]> appendedCellsMatrices = new ArrayList<>();
+            int numAppendedCells = 0;
+            for (String pathToAppendedCells : pathsToAppendedCells) {
+                double[][] appendedCellsMatrix = getAppendedCellsMatrix(pathToAppendedCells, isoformIndexMap);
+                appendedCellsMatrices.add(appendedCellsMatrix);
+                numAppendedCells += appendedCellsMatrix.length;
+            }
+            if (numAppendedCells >= numCells)
+                throw new RowLabelsLengthException();
+
+            double[][] cellIsoformExpressionMatrix = getCellIsoformExpressionMatrix(pathToMatrix, numCells - numAppendedCells, numIsoforms);
+            if (numAppendedCells > 0) {
+                int numLoadedCells = cellIsoformExpressionMatrix.length;
+                cellIsoformExpressionMatrix = Arrays.copyOf(cellIsoformExpressionMatrix, numCells);
+                for (double[][] appendedCellsMatrix : appendedCellsMatrices) {
+                    System.arraycopy(appendedCellsMatrix, 0, cellIsoformExpressionMatrix, numLoadedCells, appendedCellsMatrix.length);
+                    numLoadedCells += appendedCellsMatrix.length;
+                }
+            }
 
             if (pathToEmbedding != null) {
                 double[][] embedding = getEmbedding(pathToEmbedding);
@@ -435,6 +498,70 @@ public class Parser {
             return labelSetPathMap;
         }
 
+        /**
+         * Reads the matrix of the cells in the given appended cells file. If the file specifies the isoform IDs of
+         * the matrix's columns, the columns are rearranged to match the loaded matrix's (expression of isoforms
+         * the loaded matrix doesn't have is dropped, and isoforms missing from the appended matrix get 0).
+         * Otherwise the matrix must have the same columns as the loaded matrix
+         */
+        private static double[][] getAppendedCellsMatrix(String pathToAppendedCells, HashMap<String, Integer> isoformIndexMap) throws IOException, RNAScoopException {
+            Path appendedCellsPath = Paths.get(pathToAppendedCells);
+            String parent = appendedCellsPath.toAbsolutePath().getParent().toString();
+            JSONObject appendedCells = new JSONObject(new String(Files.readAllBytes(appendedCellsPath), Charset.defaultCharset()));
+            String matrix = resolveRelativePath(appendedCells.getString(SessionMaker.MATRIX_PATH_KEY), parent);
+
+            double[][] appendedCellsMatrix = parse2DMatrix(matrix, "\t");
+            if (appendedCellsMatrix.length == 0)
+                throw new MatrixSizeZeroException();
+
+            int[] columnIndices = null;
+            int numColumns = isoformIndexMap.size();
+            if (appendedCells.has(SessionMaker.ISOFORM_LABELS_PATH_KEY)) {
+                String isoformLabels = resolveRelativePath(appendedCells.getString(SessionMaker.ISOFORM_LABELS_PATH_KEY), parent);
+                HashMap<String, Integer> appendedIsoformIndexMap = getIsoformIndexMap(isoformLabels);
+                numColumns = appendedIsoformIndexMap.size();
+                columnIndices = new int[numColumns];
+                for (Map.Entry<String, Integer> isoformIndex : appendedIsoformIndexMap.entrySet())
+                    columnIndices[isoformIndex.getValue()] = isoformIndexMap.getOrDefault(isoformIndex.getKey(), -1);
+            }
+
+            for (int i = 0; i < appendedCellsMatrix.length; i++) {
+                if (appendedCellsMatrix[i].length != numColumns)
+                    throw new ColumnLabelsLengthException();
+                if (columnIndices != null) {
+                    double[] row = new double[isoformIndexMap.size()];
+                    for (int j = 0; j < numColumns; j++) {
+                        if (columnIndices[j] >= 0)
+                            row[columnIndices[j]] = appendedCellsMatrix[i][j];
+                    }
+                    appendedCellsMatrix[i] = row;
+                }
+            }
+            return appendedCellsMatrix;
+        }
+
+        /**
+         * Returns map of label set names to the labels of the cells in the given appended cells file (for the label
+         * sets the file specifies labels for)
+         */
+        private static Map<String, List<String>> getAppendedCellsLabels(String pathToAppendedCells, int numAppendedCells) throws IOException, RNAScoopException {
+            Path appendedCellsPath = Paths.get(pathToAppendedCells);
+            String parent = appendedCellsPath.toAbsolutePath().getParent().toString();
+            JSONObject appendedCells = new JSONObject(new String(Files.readAllBytes(appendedCellsPath), Charset.defaultCharset()));
+            Map<String, List<String>> labelSetLabels = new HashMap<>();
+            if (appendedCells.has(SessionMaker.CELL_LABELS_PATH_KEY)) {
+                JSONObject labelSetsJSONObject = appendedCells.getJSONObject(SessionMaker.CELL_LABELS_PATH_KEY);
+                for (String labelSetName : labelSetsJSONObject.keySet()) {
+                    String labelSetPath = resolveRelativePath(labelSetsJSONObject.getString(labelSetName), parent);
+                    List<String> labels = Files.readAllLines(Paths.get(labelSetPath));
+                    if (labels.size() != numAppendedCells)
+                        throw new RowLabelsLengthException();
+                    labelSetLabels.put(labelSetName, labels);
+                }
+            }
+            return labelSetLabels;
+        }
+
         /**
          * Creates a cell isoform expression matrix by reading the given data file
          * Throws exceptions if size of the matrix is 0, or if the matrix contains negative
@@ -2,15 +2,27 @@ package persistence;
 
 import labelset.LabelSet;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class CurrentSession {
     private static String gtfPath;
     private static String matrixPath;
     private static String isoformIDsPath;
     private static Map<LabelSet, String> labelSetPaths;
+    // content hashes of the label sets when their files were loaded/written
+    private static Map<LabelSet, Long> labelSetHashes = new HashMap<>();
+    // label set files this session wrote when saving (which can be rewritten when it's saved again)
+    private static Set<String> writtenLabelSetPaths = new HashSet<>();
     private static String embeddingPath;
+    // content hash of the embedding when its file was written (null if the embedding was loaded from it)
+    private static Long embeddingHash;
+    private static String knnGraphPath;
+    private static List<String> appendedCellsPaths = new ArrayList<>();
 
     /**
      * Saves paths of loaded dataset files. Should be called when new input JSON file is loaded
@@ -22,6 +34,13 @@ public class CurrentSession {
         CurrentSession.isoformIDsPath = isoformIDsPath;
         CurrentSession.labelSetPaths = labelSetPaths;
         CurrentSession.embeddingPath = embeddingPath;
+        CurrentSession.embeddingHash = null;
+        labelSetHashes = new HashMap<>();
+        writtenLabelSetPaths = new HashSet<>();
+        if (labelSetPaths != null) {
+            for (LabelSet labelSet : labelSetPaths.keySet())
+                labelSetHashes.put(labelSet, labelSet.getContentHash());
+        }
     }
 
     public static void clearSavedPaths() {
@@ -30,36 +49,103 @@ public class CurrentSession {
         CurrentSession.isoformIDsPath = null;
         CurrentSession.labelSetPaths = null;
         CurrentSession.embeddingPath = null;
+        CurrentSession.embeddingHash = null;
+        CurrentSession.labelSetHashes = new HashMap<>();
+        CurrentSession.writtenLabelSetPaths = new HashSet<>();
+        CurrentSession.knnGraphPath = null;
+        CurrentSession.appendedCellsPaths = new ArrayList<>();
     }
 
     /**
      * Saves path to embedding file currently in use
      */
-    public static void saveEmbeddingPath(String embeddingPath) {
+    public static void saveEmbeddingPath(String embeddingPath, long embeddingHash) {
         CurrentSession.embeddingPath = embeddingPath;
+        CurrentSession.embeddingHash = embeddingHash;
+    }
+
+    /**
+     * Saves path to the nearest neighbor graph file of the loaded matrix
+     */
+    public static void saveKNNGraphPath(String knnGraphPath) {
+        CurrentSession.knnGraphPath = knnGraphPath;
+    }
+
+    /**
+     * Saves path to file of cells appended to the loaded dataset. The saved label set, embedding and
+     * nearest neighbor graph paths are cleared, as those files don't include the new cells
+     */
+    public static void addAppendedCellsPath(String appendedCellsPath) {
+        appendedCellsPaths.add(appendedCellsPath);
+        if (labelSetPaths != null)
+            labelSetPaths.clear();
+        labelSetHashes.clear();
+        embeddingPath = null;
+        embeddingHash = null;
+        knnGraphPath = null;
+    }
+
+    /**
+     * Saves paths to files of cells appended to the loaded dataset. Should be called when a previous
+     * session (in which the label sets and embedding were saved with the appended cells) is loaded
+     */
+    public static void saveAppendedCellsPaths(List<String> appendedCellsPaths) {
+        CurrentSession.appendedCellsPaths = new ArrayList<>(appendedCellsPaths);
     }
 
     /**
      * Saves path to label set file loaded/generated in RNA-Scoop
      */
-    public static void saveLabelSetPath(LabelSet labelSet, String labelSetPath) {
+    public static void saveLabelSetPath(LabelSet labelSet, String labelSetPath, long labelSetHash) {
         labelSetPaths.put(labelSet, labelSetPath);
+        labelSetHashes.put(labelSet, labelSetHash);
+    }
+
+    /**
+     * Saves path to label set file this session wrote when saving, so it can be rewritten when the
+     * session is saved again
+     */
+    public static void addWrittenLabelSetPath(String labelSetPath) {
+        writtenLabelSetPaths.add(labelSetPath);
+    }
+
+    /**
+     * Returns true if this session wrote the label set file at the given path when saving (files that
+     * were loaded, or exported by the user, weren't)
+     */
+    public static boolean isWrittenLabelSetPath(String labelSetPath) {
+        return writtenLabelSetPaths.contains(labelSetPath);
     }
 
     public static void clearEmbeddingPath() {
         embeddingPath = null;
+        embeddingHash = null;
     }
 
     public static void removeLabelSetPath(LabelSet labelSet) {
         labelSetPaths.remove(labelSet);
+        labelSetHashes.remove(labelSet);
     }
 
-    public static boolean isLabelSetPathSaved(LabelSet labelSet) {
-        return labelSetPaths.containsKey(labelSet);
+    /**
+     * Returns true if the given label set's file was saved and the label set hasn't changed (its content
+     * hash is the given one) since
+     */
+    public static boolean isLabelSetSaved(LabelSet labelSet, long labelSetHash) {
+        Long savedHash = labelSetHashes.get(labelSet);
+        return labelSetPaths.containsKey(labelSet) && savedHash != null && savedHash == labelSetHash;
     }
 
-    public static boolean isEmbeddingSaved() {
-        return embeddingPath != null;
+    /**
+     * Returns true if the embedding's file was saved and, if it was written (rather than loaded), the
+     * embedding hasn't changed (its content hash is the given one) since
+     */
+    public static boolean isEmbeddingSaved(long embeddingHash) {
+        return embeddingPath != null && (CurrentSession.embeddingHash == null || CurrentSession.embeddingHash == embeddingHash);
+    }
+
+    public static String getLabelSetPath(LabelSet labelSet) {
+        return labelSetPaths.get(labelSet);
     }
 
     public static String getGTFPath() {
@@ -87,4 +173,12 @@ public class CurrentSession {
     public static String getEmbeddingPath() {
         return embeddingPath;
     }
+
+    public static String getKNNGraphPath() {
+        return knnGraphPath;
+    }
+
+    public static List<String> getAppendedCellsPaths() {
+        return appendedCellsPaths;
+    }
 }
@@ -0,0 +1,53 @@
+package persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Writes text files with a line per row (ex. exported label sets and embeddings) without building the
+ * whole file in memory. Rows are formatted in chunks, a batch of chunks at a time in parallel, and each
+ * batch is written in order through a file channel before the next is formatted
+ */
+public class ExportWriter {
+    private static final int ROWS_PER_CHUNK = 1 << 14;
+    private static final int CHUNKS_PER_BATCH = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Appends a row (including its line separator) to the text of the chunk it's in
+     */
+    public interface RowFormatter {
+        void appendRow(int row, StringBuilder chunkText);
+    }
+
+    /**
+     * Writes rows 0 to numRows - 1 to the given file (replacing its contents). The formatter is called
+     * from several threads at once
+     */
+    public static void writeRows(File file, int numRows, RowFormatter rowFormatter) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int batchStart = 0; batchStart < numRows; batchStart += ROWS_PER_CHUNK * CHUNKS_PER_BATCH) {
+                int firstBatchRow = batchStart;
+                int numBatchRows = Math.min(ROWS_PER_CHUNK * CHUNKS_PER_BATCH, numRows - batchStart);
+                ByteBuffer[] chunks = new ByteBuffer[(numBatchRows + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK];
+                IntStream.range(0, chunks.length).parallel().forEach(chunk -> {
+                    int firstRow = firstBatchRow + chunk * ROWS_PER_CHUNK;
+                    int lastRow = Math.min(firstRow + ROWS_PER_CHUNK, firstBatchRow + numBatchRows);
+                    StringBuilder chunkText = new StringBuilder();
+                    for (int row = firstRow; row < lastRow; row++)
+                        rowFormatter.appendRow(row, chunkText);
+                    chunks[chunk] = ByteBuffer.wrap(chunkText.toString().getBytes(StandardCharsets.UTF_8));
+                });
+                for (ByteBuffer chunk : chunks) {
+                    while (chunk.hasRemaining())
+                        channel.write(chunk);
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package persistence;
 
+import embedding.DatasetCache;
 import labelset.LabelSet;
 import org.json.JSONObject;
 
@@ -13,10 +14,15 @@ public class SessionMaker {
     public static final String ISOFORM_LABELS_PATH_KEY = "isoform_ids";
     public static final String CELL_LABELS_PATH_KEY = "cell_labels";
     public static final String EMBEDDING_PATH_KEY = "embedding";
+    public static final String KNN_GRAPH_PATH_KEY = "knn_graph";
+    public static final String APPENDED_CELLS_PATHS_KEY = "appended_cells";
     public static final String EXPRESSION_UNIT_KEY = "expression_unit";
     public static final String CELL_PLOT_CLEARED_KEY = "cell_plot_cleared";
+    // only in sessions saved before the selection was saved as a compressed bitmap
     public static final String CELLS_SELECTED_KEY = "cells_selected";
+    public static final String CELL_SELECTION_KEY = "cell_selection";
     public static final String CELL_CATEGORIES_SELECTED_KEY = "cell_categories_selected";
+    public static final String CELL_SELECTION_QUERY_KEY = "cell_selection_query";
     public static final String LABEL_SET_IN_USE_KEY = "label_set_in_use";
     public static final String NUM_LABEL_SETS_EXPORTED_KEY = "num_label_sets_exported";
     public static final String GENES_SHOWN_KEY = "genes_shown";
@@ -37,6 +43,10 @@ public class SessionMaker {
     public static final String SHOW_ISOFORM_NAME_KEY = "show_isoform_name";
     public static final String SHOW_ISOFORM_ID_KEY = "show_isoform_id";
     public static final String COLOR_CELL_PLOT_BY_ISOFORM_KEY = "color_cell_plot_by_isoform";
+    public static final String CELL_PLOT_DENSITY_MODE_KEY = "cell_plot_density_mode";
+    public static final String DRAW_HIGH_EXPRESSION_ON_TOP_KEY = "draw_high_expression_on_top";
+    public static final String SHOW_CLUSTER_CONTOURS_KEY = "show_cluster_contours";
+    public static final String SHOW_CLUSTER_HEXBINS_KEY = "show_cluster_hexbins";
     public static final String MIN_GRADIENT_KEY = "min_gradient_key";
     public static final String MAX_GRADIENT_KEY = "max_gradient_key";
     public static final String MIN_COLOR_KEY = "min_color_key";
@@ -60,6 +70,9 @@ public class SessionMaker {
     public static final String MAX_ITERATIONS_KEY = "max_iterations_key";
     public static final String MIN_DIST_KEY = "min_dist_key";
     public static final String NEAREST_NEIGHBORS_KEY = "nearest_neighbors_key";
+    public static final String NUM_LANDMARKS_KEY = "num_landmarks_key";
+    public static final String NUM_HIGHLY_VARIABLE_ISOFORMS_KEY = "num_highly_variable_isoforms_key";
+    public static final String HIGHLY_VARIABLE_ISOFORMS_KEY = "highly_variable_isoforms";
     public static final String FIGURE_SCALE_KEY = "figure_scale";
     public static final String FIGURE_TYPE_EXPORTING_KEY = "figure_type_exporting";
     public static final String FIGURE_CELL_PLOT_X_AXIS_LABEL_KEY = "figure_cell_plot_x_axis_label";
@@ -75,18 +88,22 @@ public class SessionMaker {
     public static JSONObject makeSession(String pathToDir) throws IOException {
         ControllerMediator.getInstance().exportEmbeddingToFile(pathToDir);
         ControllerMediator.getInstance().exportLabelSetsToFiles(pathToDir);
+        String knnGraphPath = DatasetCache.exportKNNGraphToFile(pathToDir);
+        if (knnGraphPath != null)
+            CurrentSession.saveKNNGraphPath(knnGraphPath);
         JSONObject session = new JSONObject();
         session.put(GTF_PATH_KEY, CurrentSession.getGTFPath());
         session.put(MATRIX_PATH_KEY, CurrentSession.getMatrixPath());
         session.put(ISOFORM_LABELS_PATH_KEY, CurrentSession.getIsoformIDsPath());
         session.put(CELL_LABELS_PATH_KEY, CurrentSession.getLabelSetPaths());
         session.put(EMBEDDING_PATH_KEY, CurrentSession.getEmbeddingPath());
+        session.put(KNN_GRAPH_PATH_KEY, CurrentSession.getKNNGraphPath());
+        session.put(APPENDED_CELLS_PATHS_KEY, CurrentSession.getAppendedCellsPaths());
         session.put(EXPRESSION_UNIT_KEY, ControllerMediator.getInstance().getExpressionUnit());
         session.put(CELL_PLOT_CLEARED_KEY, ControllerMediator.getInstance().isCellPlotCleared());
-        session.put(CELLS_SELECTED_KEY, ControllerMediator.getInstance().getSelectedCellNumbers());
-        session.put(CELL_CATEGORIES_SELECTED_KEY, ControllerMediator.getInstance().getSelectedCellCategoryNames());
-        session.put(CELLS_SELECTED_KEY, ControllerMediator.getInstance().getSelectedCellNumbers());
+        session.put(CELL_SELECTION_KEY, ControllerMediator.getInstance().getEncodedCellSelection());
         session.put(CELL_CATEGORIES_SELECTED_KEY, ControllerMediator.getInstance().getSelectedCellCategoryNames());
+        session.put(CELL_SELECTION_QUERY_KEY, ControllerMediator.getInstance().getLastCellSelectionQuery());
         session.put(GENES_SHOWN_KEY, ControllerMediator.getInstance().getShownGeneIDs());
         session.put(ISOFORMS_SELECTED_KEY, ControllerMediator.getInstance().getSelectedIsoformIDs());
         session.put(ISOFORM_PLOT_OPEN_KEY, ControllerMediator.getInstance().isIsoformPlotOpen());
@@ -105,6 +122,10 @@ public class SessionMaker {
         session.put(SHOW_ISOFORM_NAME_KEY, ControllerMediator.getInstance().isShowingIsoformName());
         session.put(SHOW_ISOFORM_ID_KEY, ControllerMediator.getInstance().isShowingIsoformID());
         session.put(COLOR_CELL_PLOT_BY_ISOFORM_KEY, ControllerMediator.getInstance().isColoringCellPlotBySelectedIsoform());
+        session.put(CELL_PLOT_DENSITY_MODE_KEY, ControllerMediator.getInstance().getCellPlotDensityMode().name());
+        session.put(DRAW_HIGH_EXPRESSION_ON_TOP_KEY, ControllerMediator.getInstance().isDrawingHighExpressionOnTop());
+        session.put(SHOW_CLUSTER_CONTOURS_KEY, ControllerMediator.getInstance().isShowingClusterContours());
+        session.put(SHOW_CLUSTER_HEXBINS_KEY, ControllerMediator.getInstance().isShowingClusterHexbins());
         session.put(MIN_GRADIENT_KEY, ControllerMediator.getInstance().getGradientMin());
         session.put(MAX_GRADIENT_KEY, ControllerMediator.getInstance().getGradientMax());
         session.put(MIN_COLOR_KEY, ControllerMediator.getInstance().getGradientMinColorCode());
@@ -128,6 +149,9 @@ public class SessionMaker {
         session.put(MAX_ITERATIONS_KEY, ControllerMediator.getInstance().getMaxIterations());
         session.put(MIN_DIST_KEY, ControllerMediator.getInstance().getMinDist());
         session.put(NEAREST_NEIGHBORS_KEY, ControllerMediator.getInstance().getNearestNeighbors());
+        session.put(NUM_LANDMARKS_KEY, ControllerMediator.getInstance().getNumLandmarks());
+        session.put(NUM_HIGHLY_VARIABLE_ISOFORMS_KEY, ControllerMediator.getInstance().getNumHighlyVariableIsoforms());
+        session.put(HIGHLY_VARIABLE_ISOFORMS_KEY, ControllerMediator.getInstance().getHighlyVariableIsoformIDs());
         session.put(FIGURE_SCALE_KEY, ControllerMediator.getInstance().getFigureScale());
         session.put(FIGURE_TYPE_EXPORTING_KEY, ControllerMediator.getInstance().getFigureTypeExporting());
         session.put(FIGURE_CELL_PLOT_X_AXIS_LABEL_KEY, ControllerMediator.getInstance().getCellPlotFigureXAxisLabel());
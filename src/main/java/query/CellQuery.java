@@ -0,0 +1,166 @@
+package query;
+
+import controller.clusterview.ExpressionIndex;
+
+import java.util.BitSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Query that selects cells by their isoform expression and the clusters they're in (ex.
+ * ISO-A > 5 and ISO-B == 0 and in "T cells"), parsed from text by CellQueryParser. Queries are trees of
+ * comparisons and cluster memberships combined with and, or and not. Each node evaluates to a bitmap of
+ * the cells matching it, so combining them is a bitmap operation
+ *
+ * A comparison only reads the expression of the cells expressing its isoforms (from the expression index),
+ * as every other cell's expression is 0, and reads them in parallel chunks
+ */
+public abstract class CellQuery {
+    private static final int CELLS_PER_CHUNK = 4096;
+
+    /**
+     * Returns the cells matching this query, evaluated on the given pool's threads
+     *
+     * @param matrix cell isoform expression matrix the query's isoform columns are in
+     * @param index index of the cells expressing each isoform of the matrix
+     */
+    public BitSet evaluate(double[][] matrix, ExpressionIndex index, ForkJoinPool pool) throws InterruptedException, ExecutionException {
+        return pool.submit(() -> evaluate(matrix, index)).get();
+    }
+
+    abstract BitSet evaluate(double[][] matrix, ExpressionIndex index);
+
+    /**
+     * How a comparison compares expression with its threshold
+     */
+    enum Operator {
+        GREATER, GREATER_OR_EQUAL, LESS, LESS_OR_EQUAL, EQUAL, NOT_EQUAL;
+
+        boolean test(double value, double threshold) {
+            switch (this) {
+                case GREATER: return value > threshold;
+                case GREATER_OR_EQUAL: return value >= threshold;
+                case LESS: return value < threshold;
+                case LESS_OR_EQUAL: return value <= threshold;
+                case EQUAL: return value == threshold;
+                default: return value != threshold;
+            }
+        }
+    }
+
+    /**
+     * Cells whose total expression of some isoforms (one isoform, or all isoforms of a gene) compares to
+     * a threshold in the given way
+     */
+    static class Comparison extends CellQuery {
+        private final int[] columns;
+        private final Operator operator;
+        private final double threshold;
+
+        Comparison(int[] columns, Operator operator, double threshold) {
+            this.columns = columns;
+            this.operator = operator;
+            this.threshold = threshold;
+        }
+
+        @Override
+        BitSet evaluate(double[][] matrix, ExpressionIndex index) {
+            BitSet expressingCells = new BitSet(index.getNumCells());
+            for (int column : columns) {
+                for (int cellNumber : index.getExpressingCells(column))
+                    expressingCells.set(cellNumber);
+            }
+            int[] candidates = expressingCells.stream().toArray();
+            int numChunks = (candidates.length + CELLS_PER_CHUNK - 1) / CELLS_PER_CHUNK;
+            BitSet matchingCells = IntStream.range(0, numChunks).parallel().mapToObj(chunk -> {
+                BitSet matchingChunkCells = new BitSet();
+                int end = Math.min(candidates.length, (chunk + 1) * CELLS_PER_CHUNK);
+                for (int i = chunk * CELLS_PER_CHUNK; i < end; i++) {
+                    double[] expressionLevels = matrix[candidates[i]];
+                    double expression = 0;
+                    for (int column : columns)
+                        expression += expressionLevels[column];
+                    if (operator.test(expression, threshold))
+                        matchingChunkCells.set(candidates[i]);
+                }
+                return matchingChunkCells;
+            }).collect(BitSet::new, BitSet::or, BitSet::or);
+
+            // cells that don't express any of the isoforms all have an expression of 0
+            if (operator.test(0, threshold)) {
+                BitSet nonExpressingCells = new BitSet(index.getNumCells());
+                nonExpressingCells.set(0, index.getNumCells());
+                nonExpressingCells.andNot(expressingCells);
+                matchingCells.or(nonExpressingCells);
+            }
+            return matchingCells;
+        }
+    }
+
+    /**
+     * Cells in a cluster
+     */
+    static class ClusterMembership extends CellQuery {
+        private final BitSet clusterCells;
+
+        ClusterMembership(BitSet clusterCells) {
+            this.clusterCells = clusterCells;
+        }
+
+        @Override
+        BitSet evaluate(double[][] matrix, ExpressionIndex index) {
+            return (BitSet) clusterCells.clone();
+        }
+    }
+
+    static class And extends CellQuery {
+        private final CellQuery left;
+        private final CellQuery right;
+
+        And(CellQuery left, CellQuery right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        BitSet evaluate(double[][] matrix, ExpressionIndex index) {
+            BitSet matchingCells = left.evaluate(matrix, index);
+            if (!matchingCells.isEmpty())
+                matchingCells.and(right.evaluate(matrix, index));
+            return matchingCells;
+        }
+    }
+
+    static class Or extends CellQuery {
+        private final CellQuery left;
+        private final CellQuery right;
+
+        Or(CellQuery left, CellQuery right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        BitSet evaluate(double[][] matrix, ExpressionIndex index) {
+            BitSet matchingCells = left.evaluate(matrix, index);
+            matchingCells.or(right.evaluate(matrix, index));
+            return matchingCells;
+        }
+    }
+
+    static class Not extends CellQuery {
+        private final CellQuery query;
+
+        Not(CellQuery query) {
+            this.query = query;
+        }
+
+        @Override
+        BitSet evaluate(double[][] matrix, ExpressionIndex index) {
+            BitSet matchingCells = query.evaluate(matrix, index);
+            matchingCells.flip(0, index.getNumCells());
+            return matchingCells;
+        }
+    }
+}
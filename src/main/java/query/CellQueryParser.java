@@ -0,0 +1,238 @@
+package query;
+
+import exceptions.InvalidCellQueryException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Parses cell selection queries. A query is made of:
+ *  - comparisons of an isoform's expression with a number (ex. ISO-A > 5, "ISO B" == 0), with >, >=, <,
+ *    <=, == (or =) and !=
+ *  - comparisons of the total expression of a gene's isoforms (ex. gene(BRCA1) >= 10), by gene ID or name
+ *  - cluster memberships (ex. in "T cells", which is in the label set in use, or in "T cells" of "Label Set 2")
+ * combined with and (&), or (|), not (!) and parentheses. Names with spaces or symbols in them have to be
+ * quoted. Names are looked up when the query is parsed, so the query can be evaluated off the JavaFX
+ * application thread
+ */
+public class CellQueryParser {
+    private static final String SYMBOLS = "()&|!<>=\"'";
+
+    private final Context context;
+    private List<Token> tokens;
+    private int position;
+
+    /**
+     * What names in queries refer to
+     */
+    public interface Context {
+        /**
+         * Returns the column of the isoform with the given ID in the expression matrix (null if there's no
+         * such isoform)
+         */
+        Integer getIsoformColumn(String isoformID);
+
+        /**
+         * Returns the columns of the isoforms of the gene with the given ID or name (null if there's no
+         * such gene)
+         */
+        int[] getGeneColumns(String gene);
+
+        /**
+         * Returns the cells in the cluster with the given name, in the label set with the given name (or the
+         * label set in use, if labelSetName is null). Returns null if there's no such cluster
+         */
+        BitSet getClusterCells(String clusterName, String labelSetName);
+    }
+
+    public CellQueryParser(Context context) {
+        this.context = context;
+    }
+
+    public CellQuery parse(String query) throws InvalidCellQueryException {
+        tokens = tokenize(query);
+        position = 0;
+        if (tokens.isEmpty())
+            throw new InvalidCellQueryException("query is empty");
+        CellQuery cellQuery = parseOr();
+        if (position < tokens.size())
+            throw new InvalidCellQueryException("unexpected \"" + tokens.get(position).text + "\"");
+        return cellQuery;
+    }
+
+    private CellQuery parseOr() throws InvalidCellQueryException {
+        CellQuery query = parseAnd();
+        while (acceptKeyword("or") || acceptSymbol("|"))
+            query = new CellQuery.Or(query, parseAnd());
+        return query;
+    }
+
+    private CellQuery parseAnd() throws InvalidCellQueryException {
+        CellQuery query = parseNot();
+        while (acceptKeyword("and") || acceptSymbol("&"))
+            query = new CellQuery.And(query, parseNot());
+        return query;
+    }
+
+    private CellQuery parseNot() throws InvalidCellQueryException {
+        if (acceptKeyword("not") || acceptSymbol("!"))
+            return new CellQuery.Not(parseNot());
+        return parsePrimary();
+    }
+
+    private CellQuery parsePrimary() throws InvalidCellQueryException {
+        if (acceptSymbol("(")) {
+            CellQuery query = parseOr();
+            expectSymbol(")");
+            return query;
+        } else if (acceptKeyword("in")) {
+            String clusterName = expectName("cluster name");
+            String labelSetName = acceptKeyword("of") ? expectName("label set name") : null;
+            BitSet clusterCells = context.getClusterCells(clusterName, labelSetName);
+            if (clusterCells == null)
+                throw new InvalidCellQueryException("no cluster named " + clusterName + (labelSetName != null ? " in " + labelSetName : ""));
+            return new CellQuery.ClusterMembership(clusterCells);
+        } else if (isKeyword("gene") && position + 1 < tokens.size() && tokens.get(position + 1).isSymbol("(")) {
+            position += 2;
+            String gene = expectName("gene ID or name");
+            expectSymbol(")");
+            int[] columns = context.getGeneColumns(gene);
+            if (columns == null)
+                throw new InvalidCellQueryException("no gene with ID or name " + gene);
+            return parseComparison(columns);
+        } else {
+            String isoformID = expectName("isoform ID");
+            Integer column = context.getIsoformColumn(isoformID);
+            if (column == null)
+                throw new InvalidCellQueryException("no isoform with ID " + isoformID + " in the expression matrix");
+            return parseComparison(new int[]{column});
+        }
+    }
+
+    private CellQuery parseComparison(int[] columns) throws InvalidCellQueryException {
+        CellQuery.Operator operator;
+        if (acceptSymbol(">="))
+            operator = CellQuery.Operator.GREATER_OR_EQUAL;
+        else if (acceptSymbol(">"))
+            operator = CellQuery.Operator.GREATER;
+        else if (acceptSymbol("<="))
+            operator = CellQuery.Operator.LESS_OR_EQUAL;
+        else if (acceptSymbol("<"))
+            operator = CellQuery.Operator.LESS;
+        else if (acceptSymbol("==") || acceptSymbol("="))
+            operator = CellQuery.Operator.EQUAL;
+        else if (acceptSymbol("!="))
+            operator = CellQuery.Operator.NOT_EQUAL;
+        else
+            throw new InvalidCellQueryException("expected a comparison (>, >=, <, <=, == or !=) " + getPositionDescription());
+
+        String threshold = expectName("number");
+        try {
+            return new CellQuery.Comparison(columns, operator, Double.parseDouble(threshold));
+        } catch (NumberFormatException e) {
+            throw new InvalidCellQueryException(threshold + " is not a number");
+        }
+    }
+
+    private boolean acceptSymbol(String symbol) {
+        if (position < tokens.size() && tokens.get(position).isSymbol(symbol)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectSymbol(String symbol) throws InvalidCellQueryException {
+        if (!acceptSymbol(symbol))
+            throw new InvalidCellQueryException("expected \"" + symbol + "\" " + getPositionDescription());
+    }
+
+    private boolean isKeyword(String keyword) {
+        return position < tokens.size() && tokens.get(position).isKeyword(keyword);
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (isKeyword(keyword)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name (a word or quoted text) at the current position
+     */
+    private String expectName(String description) throws InvalidCellQueryException {
+        if (position >= tokens.size() || tokens.get(position).type == TokenType.SYMBOL)
+            throw new InvalidCellQueryException("expected " + description + " " + getPositionDescription());
+        return tokens.get(position++).text;
+    }
+
+    private String getPositionDescription() {
+        if (position >= tokens.size())
+            return "at the end of the query";
+        return "before \"" + tokens.get(position).text + "\"";
+    }
+
+    private static List<Token> tokenize(String query) throws InvalidCellQueryException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char character = query.charAt(i);
+            if (Character.isWhitespace(character)) {
+                i++;
+            } else if (character == '"' || character == '\'') {
+                int end = query.indexOf(character, i + 1);
+                if (end < 0)
+                    throw new InvalidCellQueryException("missing closing quote");
+                tokens.add(new Token(TokenType.QUOTED, query.substring(i + 1, end)));
+                i = end + 1;
+            } else if (SYMBOLS.indexOf(character) >= 0) {
+                String symbol = String.valueOf(character);
+                // two character operators, and && and || (which mean the same as & and |)
+                if (i + 1 < query.length()) {
+                    String pair = query.substring(i, i + 2);
+                    if (pair.equals(">=") || pair.equals("<=") || pair.equals("==") || pair.equals("!="))
+                        symbol = pair;
+                    else if (pair.equals("&&") || pair.equals("||"))
+                        i++;
+                }
+                tokens.add(new Token(TokenType.SYMBOL, symbol));
+                i += symbol.length();
+            } else {
+                int end = i;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end)) && SYMBOLS.indexOf(query.charAt(end)) < 0)
+                    end++;
+                tokens.add(new Token(TokenType.WORD, query.substring(i, end)));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    private enum TokenType {
+        WORD, QUOTED, SYMBOL
+    }
+
+    private static class Token {
+        private final TokenType type;
+        private final String text;
+
+        private Token(TokenType type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        private boolean isSymbol(String symbol) {
+            return type == TokenType.SYMBOL && text.equals(symbol);
+        }
+
+        /**
+         * Keywords aren't case sensitive, and quoting them makes them names
+         */
+        private boolean isKeyword(String keyword) {
+            return type == TokenType.WORD && text.equalsIgnoreCase(keyword);
+        }
+    }
+}
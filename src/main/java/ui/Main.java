@@ -3,6 +3,7 @@ package ui;
 import controller.*;
 import controller.clusterview.ClusterViewController;
 import controller.clusterview.ClusterViewSettingsController;
+import controller.clusterview.EmbeddingSweepController;
 import controller.clusterview.TSNESettingsController;
 import controller.clusterview.UMAPSettingsController;
 import controller.labelsetmanager.AddLabelSetViewController;
@@ -34,6 +35,7 @@ public class Main extends Application {
         FXMLLoader tSNESettingsLoader = new FXMLLoader(getClass().getResource("/fxml/clusterviewsettings/tsnesettings.fxml"));
         FXMLLoader umapSettingsLoader = new FXMLLoader(getClass().getResource("/fxml/clusterviewsettings/umapsettings.fxml"));
         FXMLLoader imageExporterLoader = new FXMLLoader(getClass().getResource("/fxml/imageexporter.fxml"));
+        FXMLLoader embeddingSweepLoader = new FXMLLoader(getClass().getResource("/fxml/clusterviewsettings/embeddingsweep.fxml"));
 
         mainLoader.load();
         aboutLoader.load();
@@ -49,12 +51,13 @@ public class Main extends Application {
         Parent tSNESettings = tSNESettingsLoader.load();
         Parent umapSettings = umapSettingsLoader.load();
         imageExporterLoader.load();
+        embeddingSweepLoader.load();
 
         registerControllers(mainLoader.getController(), aboutLoader.getController(), consoleLoader.getController(), isoformPlotLoader.getController(),
                             clusterViewLoader.getController(), geneSelectorLoader.getController(), geneFiltererLoader.getController(),
                             gradientAdjusterLoader.getController(), labelSetManagerLoader.getController(), addLabelSetViewLoader.getController(),
                             clusterViewSettingsLoader.getController(), tSNESettingsLoader.getController(), umapSettingsLoader.getController(),
-                            imageExporterLoader.getController());
+                            imageExporterLoader.getController(), embeddingSweepLoader.getController());
         ControllerMediator.getInstance().initializeMain(console, isoformPlot, clusterView);
         ControllerMediator.getInstance().initializeClusterViewSettings(tSNESettings, umapSettings);
         setUpLabelSetManagerPopUp(labelSetManager, addLabelSetView);
@@ -69,7 +72,7 @@ public class Main extends Application {
                                      GradientAdjusterController gradientAdjusterController, LabelSetManagerController labelSetManagerController,
                                      AddLabelSetViewController addLabelSetViewController, ClusterViewSettingsController clusterViewSettingsController,
                                      TSNESettingsController tsneSettingsController, UMAPSettingsController umapSettingsController,
-                                     ImageExporterController imageExporterController) {
+                                     ImageExporterController imageExporterController, EmbeddingSweepController embeddingSweepController) {
         ControllerMediator.getInstance().registerMainController(mainController);
         ControllerMediator.getInstance().registerAboutController(aboutController);
         ControllerMediator.getInstance().registerConsoleController(consoleController);
@@ -84,6 +87,7 @@ public class Main extends Application {
         ControllerMediator.getInstance().registerTSNESettingsController(tsneSettingsController);
         ControllerMediator.getInstance().registerUMAPSettingsController(umapSettingsController);
         ControllerMediator.getInstance().registerImageExporterController(imageExporterController);
+        ControllerMediator.getInstance().registerEmbeddingSweepController(embeddingSweepController);
     }
 
     private void setUpLabelSetManagerPopUp(Parent labelSetManager, Parent addLabelSetView) {